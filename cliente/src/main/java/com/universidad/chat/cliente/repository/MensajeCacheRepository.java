@@ -13,4 +13,7 @@ public interface MensajeCacheRepository extends JpaRepository<MensajeCache, Long
     // --- MÉTODO ACTUALIZADO ---
     // Ahora buscará los mensajes para un 'target' Y que pertenezcan a un 'owner'
     List<MensajeCache> findByChatTargetAndOwnerUsernameOrderByTimestampAsc(String chatTarget, String ownerUsername);
+
+    // Para sustituir el "[Transcribiendo...]" cuando llega la transcripción de un audio
+    List<MensajeCache> findByAudioFileNameAndOwnerUsername(String audioFileName, String ownerUsername);
 }
\ No newline at end of file
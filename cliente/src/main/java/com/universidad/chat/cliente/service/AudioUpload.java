@@ -0,0 +1,168 @@
+package com.universidad.chat.cliente.service;
+
+import com.universidad.chat.comun.dto.ActionType;
+import com.universidad.chat.comun.dto.AudioChunkDTO;
+import com.universidad.chat.comun.dto.AudioUploadDTO;
+import com.universidad.chat.comun.dto.Packet;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.UUID;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Subida por partes de un archivo de audio ya grabado en disco.
+ * Anuncia la subida (AUDIO_UPLOAD_START), envía los trozos (AUDIO_UPLOAD_CHUNK) desde el
+ * offset que confirma el servidor y la cierra (AUDIO_UPLOAD_COMMIT). El uploadId no cambia:
+ * si se corta la conexión, subir() se vuelve a llamar tras reconectar y el servidor
+ * responde con los bytes que ya tiene, así que solo se envía lo que falta.
+ *
+ * Las respuestas AUDIO_UPLOAD_STATUS llegan por onStatus() desde el hilo de red.
+ */
+public class AudioUpload {
+
+    public static final int CHUNK_SIZE = 64 * 1024;
+    private static final long RESPONSE_TIMEOUT_MS = 10_000;
+    // Intentos de reenviar lo que falta si el servidor pide un offset distinto durante la subida
+    private static final int MAX_ATTEMPTS = 3;
+
+    private final NetworkService networkService;
+    private final String uploadId = UUID.randomUUID().toString();
+    private final Path file;
+    private final long totalSize;
+    private final BlockingQueue<AudioUploadDTO> respuestas = new LinkedBlockingQueue<>();
+
+    public AudioUpload(NetworkService networkService, Path file) throws IOException {
+        this.networkService = networkService;
+        this.file = file;
+        this.totalSize = Files.size(file);
+    }
+
+    public String getUploadId() {
+        return uploadId;
+    }
+
+    /**
+     * Recibe un AUDIO_UPLOAD_STATUS; devuelve false si es de otra subida
+     */
+    public boolean onStatus(AudioUploadDTO status) {
+        if (!uploadId.equals(status.getUploadId())) {
+            return false;
+        }
+        respuestas.add(status);
+        return true;
+    }
+
+    /**
+     * Sube lo que le falta al servidor y confirma la subida.
+     * @return nombre definitivo del archivo en el servidor
+     * @throws IOException si se pierde la conexión (se puede reintentar) o el servidor la rechaza
+     */
+    public String subir() throws IOException {
+        for (int intento = 1; ; intento++) {
+            long offset = anunciar();
+            System.out.println("⬆️ Subiendo audio " + uploadId + " desde el byte " + offset + " de " + totalSize);
+            enviarDesde(offset);
+
+            networkService.sendPacket(new Packet(ActionType.AUDIO_UPLOAD_COMMIT, control()));
+            boolean corregido = false;
+            while (true) {
+                AudioUploadDTO status = esperarRespuesta();
+                if (status.getFileName() != null) {
+                    return status.getFileName();
+                }
+                if (status.getError() != null) {
+                    // Tras una corrección de offset el COMMIT falla por datos incompletos: se reintenta
+                    if (corregido && intento < MAX_ATTEMPTS) {
+                        break;
+                    }
+                    throw new IOException(status.getError());
+                }
+                corregido = true;
+            }
+        }
+    }
+
+    /**
+     * Borra la copia local del audio cuando la subida terminó o se abandona
+     */
+    public void descartar() {
+        try {
+            Files.deleteIfExists(file);
+        } catch (IOException e) {
+            System.err.println("No se pudo borrar el audio temporal " + file + ": " + e.getMessage());
+        }
+    }
+
+    /**
+     * Envía AUDIO_UPLOAD_START y devuelve el offset confirmado por el servidor
+     */
+    private long anunciar() throws IOException {
+        respuestas.clear();
+        networkService.sendPacket(new Packet(ActionType.AUDIO_UPLOAD_START, control()));
+        AudioUploadDTO status = esperarRespuesta();
+        if (status.getError() != null) {
+            throw new IOException(status.getError());
+        }
+        return status.getOffset();
+    }
+
+    private void enviarDesde(long offset) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate(CHUNK_SIZE);
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            while (offset < totalSize) {
+                if (!networkService.isConnected()) {
+                    throw new IOException("Sin conexión con el servidor");
+                }
+                // Los trozos no se confirman: el servidor solo responde si espera otro offset
+                AudioUploadDTO correccion = respuestas.poll();
+                if (correccion != null) {
+                    if (correccion.getError() != null) {
+                        throw new IOException(correccion.getError());
+                    }
+                    offset = correccion.getOffset();
+                    continue;
+                }
+
+                buffer.clear();
+                int leidos = channel.read(buffer, offset);
+                if (leidos <= 0) {
+                    throw new IOException("El audio temporal terminó antes de lo esperado");
+                }
+                AudioChunkDTO chunk = new AudioChunkDTO();
+                chunk.setUploadId(uploadId);
+                chunk.setOffset(offset);
+                chunk.setData(Arrays.copyOf(buffer.array(), leidos));
+                networkService.sendPacket(new Packet(ActionType.AUDIO_UPLOAD_CHUNK, chunk));
+                offset += leidos;
+            }
+        }
+    }
+
+    private AudioUploadDTO esperarRespuesta() throws IOException {
+        try {
+            AudioUploadDTO status = respuestas.poll(RESPONSE_TIMEOUT_MS, TimeUnit.MILLISECONDS);
+            if (status == null) {
+                throw new IOException("El servidor no respondió a la subida de audio");
+            }
+            return status;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Subida de audio interrumpida");
+        }
+    }
+
+    private AudioUploadDTO control() {
+        AudioUploadDTO dto = new AudioUploadDTO();
+        dto.setUploadId(uploadId);
+        dto.setTotalSize(totalSize);
+        return dto;
+    }
+}
@@ -1,22 +1,29 @@
 package com.universidad.chat.cliente.service;
 
+import com.universidad.chat.comun.dto.ActionType;
 import com.universidad.chat.comun.dto.Packet;
+import com.universidad.chat.comun.dto.UserDTO;
+import com.universidad.chat.comun.protocol.PacketStream;
 import org.springframework.stereotype.Service;
 
 import java.beans.PropertyChangeListener;
 import java.beans.PropertyChangeSupport;
 import java.io.IOException;
-import java.io.ObjectInputStream;
-import java.io.ObjectOutputStream;
 import java.net.Socket;
 
 @Service
 public class NetworkService {
 
-    private Socket socket;
-    private ObjectOutputStream outputStream;
-    private ObjectInputStream inputStream;
-    private boolean connected = false;
+    // Espera entre intentos de reconexión tras perder la conexión con la sesión iniciada
+    private static final long RECONNECT_DELAY_MS = 3000;
+
+    private volatile Socket socket;
+    private volatile PacketStream stream;
+    private volatile boolean connected = false;
+    private String serverAddress;
+    private int serverPort;
+    // Credenciales del último login: al reconectar se vuelve a iniciar sesión con ellas
+    private volatile UserDTO credenciales;
 
     // --- IMPLEMENTACIÓN DEL PATRÓN OBSERVER ---
     // PropertyChangeSupport es una clase de ayuda de Java para implementar el patrón Observer fácilmente.
@@ -45,11 +52,14 @@ public class NetworkService {
         
         try {
             System.out.println("Intentando conectar a " + serverAddress + ":" + serverPort + "...");
-            socket = new Socket(serverAddress, serverPort);
-            outputStream = new ObjectOutputStream(socket.getOutputStream());
-            inputStream = new ObjectInputStream(socket.getInputStream());
+            // Negocia el protocolo de tramas (con compresión si el servidor la soporta); si es antiguo vuelve a ObjectOutputStream
+            stream = PacketStream.connect(serverAddress, serverPort);
+            socket = stream.getSocket();
+            this.serverAddress = serverAddress;
+            this.serverPort = serverPort;
             connected = true;
-            System.out.println("✅ Conectado exitosamente al servidor en " + serverAddress + ":" + serverPort);
+            System.out.println("✅ Conectado exitosamente al servidor en " + serverAddress + ":" + serverPort +
+                    " (" + stream.describeProtocol() + ")");
 
             // ¡Iniciamos un hilo para escuchar al servidor!
             startListening();
@@ -74,7 +84,7 @@ public class NetworkService {
             try {
                 while (true) {
                     // El hilo se bloquea aquí hasta que recibe un paquete.
-                    Packet receivedPacket = (Packet) inputStream.readObject();
+                    Packet receivedPacket = stream.readPacket();
 
                     // Cuando recibe algo, notifica a todos los observadores (la UI).
                     // El primer argumento es el "nombre" del evento.
@@ -85,17 +95,48 @@ public class NetworkService {
             } catch (IOException | ClassNotFoundException e) {
                 System.err.println("Desconectado del servidor: " + e.getMessage());
                 connected = false;
+                try { socket.close(); } catch (IOException ioex) { /* ignore */ }
+                if (credenciales != null) {
+                    reconectar();
+                }
             }
         }).start();
     }
 
+    /**
+     * Inicia sesión y recuerda las credenciales para volver a entrar si se corta la conexión
+     */
+    public void login(UserDTO credenciales) {
+        this.credenciales = credenciales;
+        sendPacket(new Packet(ActionType.LOGIN_REQUEST, credenciales));
+    }
+
+    /**
+     * Reintenta la conexión con el mismo servidor hasta conseguirla y vuelve a iniciar sesión.
+     * La vista recibe un LOGIN_SUCCESS nuevo y continúa desde ahí (p. ej. reanuda una subida de audio).
+     */
+    private void reconectar() {
+        Thread reconexion = new Thread(() -> {
+            while (!connect(serverAddress, serverPort)) {
+                try {
+                    Thread.sleep(RECONNECT_DELAY_MS);
+                } catch (InterruptedException e) {
+                    return;
+                }
+            }
+            System.out.println("🔄 Reconectado, iniciando sesión de nuevo");
+            sendPacket(new Packet(ActionType.LOGIN_REQUEST, credenciales));
+        }, "reconexion");
+        reconexion.setDaemon(true);
+        reconexion.start();
+    }
+
     // El método sendPacket() no cambia.
     public void sendPacket(Packet packet) {
         // ... (código sin cambios) ...
-        if (outputStream != null) {
+        if (stream != null) {
             try {
-                outputStream.writeObject(packet);
-                outputStream.flush();
+                stream.writePacket(packet);
             } catch (IOException e) {
                 System.err.println("Error al enviar paquete: " + e.getMessage());
             }
@@ -1,5 +1,6 @@
 package com.universidad.chat.cliente.vista;
 
+import com.universidad.chat.cliente.service.AudioUpload;
 import com.universidad.chat.cliente.service.NetworkService;
 import com.universidad.chat.comun.dto.*;
 import com.universidad.chat.cliente.model.MensajeCache; // <-- Importar
@@ -14,10 +15,15 @@ import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
 import java.time.LocalDateTime;
 import java.util.List;
 import java.util.Map;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 import java.util.Base64;
 
 
@@ -33,14 +39,30 @@ public class ChatPrincipalVista extends JFrame implements PropertyChangeListener
     private JList<String> listaUsuarios, listaCanales;
     private DefaultListModel<String> modeloUsuarios, modeloCanales;
     private final Map<String, JPanel> conversationPanels = new ConcurrentHashMap<>();
+    private final Map<String, JButton> historyButtons = new ConcurrentHashMap<>(); // "Cargar anteriores" por conversación
+    private final Map<String, ByteArrayOutputStream> pendingDownloads = new ConcurrentHashMap<>(); // Audios a medio descargar
+    private final Map<String, List<JLabel>> audioLabels = new ConcurrentHashMap<>(); // Textos visibles de cada audio
+    private long presenceSeq; // Último cambio de la lista de usuarios aplicado (solo en el hilo de Swing)
+    private boolean presenceResyncPedido = false;
     private String currentChatTarget = null;
     private boolean isRecording = false;
     private TargetDataLine audioLine;
     private ByteArrayOutputStream audioStream;
+    // Nota de voz a medio subir: se reanuda desde el offset del servidor tras reconectar
+    private volatile SubidaAudio subidaPendiente;
+    // Las subidas van fuera del hilo de Swing y de una en una
+    private final ExecutorService subidas = Executors.newSingleThreadExecutor(r -> {
+        Thread t = new Thread(r, "subida-audio");
+        t.setDaemon(true);
+        return t;
+    });
+
+    private record SubidaAudio(AudioUpload upload, ActionType action, String recipient) {}
 
     // Constructor
-    public ChatPrincipalVista(NetworkService networkService, UserDTO usuarioActual, List<String> initialUsernames, List<String> initialChannelNames, MensajeCacheRepository cacheRepository) {
+    public ChatPrincipalVista(NetworkService networkService, UserDTO usuarioActual, List<String> initialUsernames, List<String> initialChannelNames, long presenceSeq, MensajeCacheRepository cacheRepository) {
         this.networkService = networkService;
+        this.presenceSeq = presenceSeq;
         this.usuarioActual = usuarioActual;
         this.cacheRepository = cacheRepository;
         this.networkService.addPropertyChangeListener(this);
@@ -301,54 +323,65 @@ public class ChatPrincipalVista extends JFrame implements PropertyChangeListener
         }
 
         try {
-            // Convertimos los datos crudos a formato WAV en memoria
-            ByteArrayOutputStream wavStream = new ByteArrayOutputStream();
-            AudioFormat format = getAudioFormat(); // Assuming you have the getAudioFormat() method
+            // El WAV se guarda en un archivo temporal: si se corta la conexión, la subida
+            // continúa desde el offset que confirme el servidor leyendo de ahí
+            AudioFormat format = getAudioFormat();
             AudioInputStream audioInputStream = new AudioInputStream(
                     new ByteArrayInputStream(rawAudioData),
                     format,
                     rawAudioData.length / format.getFrameSize()
             );
+            Path wavFile = Files.createTempFile("nota_voz_", ".wav");
+            AudioSystem.write(audioInputStream, AudioFileFormat.Type.WAVE, wavFile.toFile());
+
+            // Crear la notificación al destino correcto (usuario o canal); sale cuando termine la subida
+            subidaPendiente = new SubidaAudio(
+                    new AudioUpload(networkService, wavFile),
+                    currentChatTarget.startsWith("channel:") ? ActionType.SEND_MESSAGE_TO_CHANNEL : ActionType.SEND_MESSAGE_TO_USER,
+                    currentChatTarget.split(":", 2)[1]
+            );
+            subidas.execute(this::subirAudioPendiente);
 
-            AudioSystem.write(audioInputStream, AudioFileFormat.Type.WAVE, wavStream);
-            byte[] wavAudioData = wavStream.toByteArray(); // Bytes con cabecera WAV
-
-            // Preparamos DTO para SUBIR el audio (con Base64)
-            MessageDTO uploadDTO = new MessageDTO();
-            uploadDTO.setSender(usuarioActual.getUsername());
-            uploadDTO.setRecipient(currentChatTarget.split(":", 2)[1]);
-            uploadDTO.setAudioMessage(true);
-            uploadDTO.setContent("Audio grabado por " + usuarioActual.getUsername()); // Placeholder
-
-            String audioBase64 = Base64.getEncoder().encodeToString(wavAudioData);
-            uploadDTO.setAudioDataBase64(audioBase64);
-
-            // Enviamos paquete de subida
-            Packet audioDataPacket = new Packet(ActionType.UPLOAD_AUDIO, uploadDTO);
-            networkService.sendPacket(audioDataPacket);
+        } catch (IOException e) {
+            JOptionPane.showMessageDialog(this, "Error al empaquetar o enviar el audio.", "Error de Envío", JOptionPane.ERROR_MESSAGE);
+        } finally {
+            // Aseguramos que el botón se resetee después de intentar enviar
+            btnGrabarAudio.setText("🎤 Grabar");
+        }
+    }
 
+    /**
+     * Sube la nota de voz pendiente y, al confirmarse, envía la notificación del mensaje.
+     * Si se pierde la conexión queda pendiente hasta el siguiente LOGIN_SUCCESS.
+     */
+    private void subirAudioPendiente() {
+        SubidaAudio subida = subidaPendiente;
+        if (subida == null) {
+            return;
+        }
+        try {
+            String fileName = subida.upload().subir();
+            System.out.println("✅ Audio subido como " + fileName);
 
             MessageDTO notificationDTO = new MessageDTO();
-            notificationDTO.setSender(uploadDTO.getSender());
-            notificationDTO.setRecipient(uploadDTO.getRecipient());
+            notificationDTO.setSender(usuarioActual.getUsername());
+            notificationDTO.setRecipient(subida.recipient());
             notificationDTO.setAudioMessage(true);
             notificationDTO.setContent("Audio grabado"); // Placeholder, servidor lo reemplaza
-            // notificationDTO.setAudioDataBase64(null); // No es necesario, es null por defecto
-
-        // Crear el paquete de notificación al destino correcto (usuario o canal)
-        Packet notificationPacket = new Packet(
-            currentChatTarget.startsWith("channel:") ? ActionType.SEND_MESSAGE_TO_CHANNEL : ActionType.SEND_MESSAGE_TO_USER,
-            notificationDTO
-        );
-
-            // Enviamos paquete de notificación
-            networkService.sendPacket(notificationPacket);
+            networkService.sendPacket(new Packet(subida.action(), notificationDTO));
 
+            subida.upload().descartar();
+            subidaPendiente = null;
         } catch (IOException e) {
-            JOptionPane.showMessageDialog(this, "Error al empaquetar o enviar el audio.", "Error de Envío", JOptionPane.ERROR_MESSAGE);
-        } finally {
-            // Aseguramos que el botón se resetee después de intentar enviar
-            btnGrabarAudio.setText("🎤 Grabar");
+            if (networkService.isConnected()) {
+                // El servidor la rechazó (el motivo ya se mostró con AUDIO_UPLOAD_STATUS)
+                System.err.println("Subida de audio rechazada: " + e.getMessage());
+                subida.upload().descartar();
+                subidaPendiente = null;
+            } else {
+                System.err.println("Subida de audio cortada, se reanudará al reconectar: " + e.getMessage());
+                SwingUtilities.invokeLater(() -> btnGrabarAudio.setToolTipText("⏳ Audio pendiente de enviar: se reanudará al reconectar"));
+            }
         }
     }
 
@@ -456,17 +489,52 @@ public class ChatPrincipalVista extends JFrame implements PropertyChangeListener
         }
     }
 
+    /**
+     * Coloca arriba de la conversación el botón que pide los mensajes anteriores al cursor.
+     * Sin cursor no quedan mensajes más antiguos en el servidor y no se muestra.
+     */
+    private void updateHistoryButton(String chatTarget, String chatId, Long nextCursor) {
+        JPanel conversationPanel = conversationPanels.get(chatTarget);
+        if (conversationPanel == null || nextCursor == null) {
+            if (conversationPanel != null) {
+                conversationPanel.revalidate();
+                conversationPanel.repaint();
+            }
+            return;
+        }
+
+        JButton loadOlderButton = new JButton("⬆ Cargar mensajes anteriores");
+        loadOlderButton.setAlignmentX(Component.LEFT_ALIGNMENT);
+        loadOlderButton.addActionListener(e -> {
+            loadOlderButton.setEnabled(false); // Evita pedir la misma página dos veces
+            MessageHistoryDTO request = new MessageHistoryDTO(chatId, null, null, nextCursor);
+            networkService.sendPacket(new Packet(ActionType.MESSAGE_HISTORY_REQUEST, request));
+        });
+        conversationPanel.add(loadOlderButton, 0);
+        historyButtons.put(chatTarget, loadOlderButton);
+        conversationPanel.revalidate();
+        conversationPanel.repaint();
+    }
+
+    private void requestAudioRange(String audioFileName, long offset) {
+        AudioDataDTO request = new AudioDataDTO();
+        request.setFileName(audioFileName);
+        request.setOffset(offset);
+        networkService.sendPacket(new Packet(ActionType.AUDIO_DOWNLOAD_RANGE, request));
+    }
+
     private JPanel createVisualMessageLine(String text, String audioFileName) {
         JPanel messageLinePanel = new JPanel(new FlowLayout(FlowLayout.LEFT, 5, 2));
-        messageLinePanel.add(new JLabel(text));
+        JLabel textLabel = new JLabel(text);
+        messageLinePanel.add(textLabel);
 
         if (audioFileName != null) {
+            audioLabels.computeIfAbsent(audioFileName, k -> new CopyOnWriteArrayList<>()).add(textLabel);
             JButton playButton = new JButton("▶ Play");
             playButton.addActionListener(e -> {
-                // Pide el audio al servidor al hacer clic
-                AudioRequestDTO request = new AudioRequestDTO();
-                request.setFileName(audioFileName);
-                networkService.sendPacket(new Packet(ActionType.DOWNLOAD_AUDIO_REQUEST, request));
+                // Pide el audio al servidor al hacer clic, por rangos desde el principio
+                pendingDownloads.put(audioFileName, new ByteArrayOutputStream());
+                requestAudioRange(audioFileName, 0);
             });
             messageLinePanel.add(playButton);
         }
@@ -476,18 +544,74 @@ public class ChatPrincipalVista extends JFrame implements PropertyChangeListener
         return messageLinePanel;
     }
 
+    /**
+     * Aplica un cambio de la lista de usuarios si es el siguiente al último aplicado;
+     * si falta alguno, pide la lista completa (una vez hasta que llegue)
+     */
+    private void aplicarCambioPresencia(PresenceDeltaDTO delta) {
+        if (delta.getSeq() <= presenceSeq) {
+            return; // Ya incluido en la lista actual
+        }
+        if (delta.getSeq() != presenceSeq + 1) {
+            if (!presenceResyncPedido) {
+                presenceResyncPedido = true;
+                networkService.sendPacket(new Packet(ActionType.PRESENCE_RESYNC, null));
+            }
+            return;
+        }
+        presenceSeq = delta.getSeq();
+        delta.getLeft().forEach(modeloUsuarios::removeElement);
+        delta.getJoined().forEach(username -> {
+            if (!modeloUsuarios.contains(username)) {
+                modeloUsuarios.addElement(username);
+            }
+        });
+    }
+
     @Override
     public void propertyChange(PropertyChangeEvent evt) {
         if (!"newPacket".equals(evt.getPropertyName())) return;
         Packet receivedPacket = (Packet) evt.getNewValue();
 
+        // La subida en curso espera estas respuestas en su propio hilo: no pasan por el de Swing
+        SubidaAudio subida = subidaPendiente;
+        if (receivedPacket.getAction() == ActionType.AUDIO_UPLOAD_STATUS && subida != null) {
+            subida.upload().onStatus((AudioUploadDTO) receivedPacket.getPayload());
+        }
+
         SwingUtilities.invokeLater(() -> {
             switch (receivedPacket.getAction()) {
 
+                case LOGIN_SUCCESS:
+                    // Sesión recuperada tras una reconexión: listas nuevas y el servidor reenvía el historial
+                    LoginSuccessDTO relogin = (LoginSuccessDTO) receivedPacket.getPayload();
+                    modeloUsuarios.clear();
+                    relogin.getAllUsernames().forEach(modeloUsuarios::addElement);
+                    modeloCanales.clear();
+                    relogin.getAllChannelNames().forEach(modeloCanales::addElement);
+                    presenceSeq = relogin.getPresenceSeq();
+                    presenceResyncPedido = false;
+                    conversationPanels.clear(); // Se rehacen desde la caché local y el historial nuevo
+                    historyButtons.clear();
+                    audioLabels.clear();
+                    loadConversation();
+                    if (subidaPendiente != null) {
+                        btnGrabarAudio.setToolTipText(null);
+                        subidas.execute(this::subirAudioPendiente);
+                    }
+                    break;
+
                 case USER_LIST_UPDATE:
-                    List<String> usernames = (List<String>) receivedPacket.getPayload();
+                    // Lista completa (tras pedir PRESENCE_RESYNC)
+                    PresenceDeltaDTO snapshot = (PresenceDeltaDTO) receivedPacket.getPayload();
                     modeloUsuarios.clear();
-                    usernames.forEach(modeloUsuarios::addElement);
+                    snapshot.getJoined().forEach(modeloUsuarios::addElement);
+                    presenceSeq = snapshot.getSeq();
+                    presenceResyncPedido = false;
+                    break;
+
+                case USER_PRESENCE_DELTA:
+                    aplicarCambioPresencia((PresenceDeltaDTO) receivedPacket.getPayload());
                     break;
 
                 case CHANNEL_LIST_UPDATE:
@@ -579,6 +703,50 @@ public class ChatPrincipalVista extends JFrame implements PropertyChangeListener
                     }
                     break;
 
+                case AUDIO_DOWNLOAD_DATA:
+                    // Un rango del audio pedido: se junta y se pide el siguiente hasta completar el archivo
+                    AudioDataDTO range = (AudioDataDTO) receivedPacket.getPayload();
+                    ByteArrayOutputStream download = pendingDownloads.get(range.getFileName());
+                    if (download == null || range.getOffset() != download.size() || range.getData() == null) {
+                        break; // Rango inesperado (descarga cancelada o repetida)
+                    }
+                    download.write(range.getData(), 0, range.getData().length);
+                    long received = range.getOffset() + range.getData().length;
+                    if (received < range.getTotalSize() && range.getData().length > 0) {
+                        requestAudioRange(range.getFileName(), received);
+                    } else {
+                        pendingDownloads.remove(range.getFileName());
+                        playAudio(download.toByteArray());
+                    }
+                    break;
+
+                case TRANSCRIPTION_READY:
+                    // El audio se mostró con "[Transcribiendo...]": se sustituye por el texto final
+                    MessageDTO transcription = (MessageDTO) receivedPacket.getPayload();
+                    String finalText = transcription.getContent();
+                    List<JLabel> labels = audioLabels.getOrDefault(transcription.getAudioFileName(), List.of());
+                    for (JLabel label : labels) {
+                        label.setText(label.getText().replace(MessageDTO.TRANSCRIPCION_EN_CURSO, finalText));
+                    }
+                    for (MensajeCache cached : cacheRepository.findByAudioFileNameAndOwnerUsername(transcription.getAudioFileName(), usuarioActual.getUsername())) {
+                        cached.setDisplayText(cached.getDisplayText().replace(MessageDTO.TRANSCRIPCION_EN_CURSO, finalText));
+                        cacheRepository.save(cached);
+                    }
+                    break;
+
+                case TRANSCRIPTION_PARTIAL:
+                    // Lo que el servidor lleva reconocido del audio que estamos subiendo
+                    MessageDTO partial = (MessageDTO) receivedPacket.getPayload();
+                    btnGrabarAudio.setToolTipText("📝 " + partial.getContent());
+                    break;
+
+                case AUDIO_UPLOAD_STATUS:
+                    AudioUploadDTO uploadStatus = (AudioUploadDTO) receivedPacket.getPayload();
+                    if (uploadStatus.getError() != null) {
+                        JOptionPane.showMessageDialog(this, "No se pudo subir el audio: " + uploadStatus.getError(), "Error de Audio", JOptionPane.ERROR_MESSAGE);
+                    }
+                    break;
+
                 case MESSAGE_HISTORY:
                     // Recibimos historial de mensajes de una conversación o canal
                     MessageHistoryDTO history = (MessageHistoryDTO) receivedPacket.getPayload();
@@ -590,6 +758,15 @@ public class ChatPrincipalVista extends JFrame implements PropertyChangeListener
                     // Determinar si es un canal o usuario
                     String historyChatTarget = historyChat.startsWith("#") ? "channel:" + historyChat : "user:" + historyChat;
                     
+                    // Las páginas anteriores (pedidas con el botón) se insertan arriba
+                    boolean olderPage = history.getBeforeCursor() != null;
+                    JPanel historyPanel = conversationPanels.get(historyChatTarget);
+                    int insertIndex = 0;
+                    JButton oldButton = historyButtons.remove(historyChatTarget);
+                    if (oldButton != null && historyPanel != null) {
+                        historyPanel.remove(oldButton);
+                    }
+                    
                     // Agregar cada mensaje del historial al panel correspondiente
                     for (MessageDTO msg : messages) {
                         String senderName = msg.getSender();
@@ -612,10 +789,17 @@ public class ChatPrincipalVista extends JFrame implements PropertyChangeListener
                             }
                         }
                         
-                        // Agregar al panel SIN hacer scroll automático (historial)
-                        addMessageToPanel(historyChatTarget, historyDisplayText, audioFile, false);
+                        if (olderPage && historyPanel != null) {
+                            historyPanel.add(createVisualMessageLine(historyDisplayText, audioFile), insertIndex++);
+                        } else {
+                            // Agregar al panel SIN guardarlo en la caché local (historial)
+                            addMessageToPanel(historyChatTarget, historyDisplayText, audioFile, false);
+                        }
                     }
                     
+                    // Botón para pedir la página anterior, si el servidor indicó que hay más
+                    updateHistoryButton(historyChatTarget, historyChat, history.getNextCursor());
+                    
                     System.out.println("✅ Historial de " + historyChat + " cargado en la interfaz");
                     break;
 
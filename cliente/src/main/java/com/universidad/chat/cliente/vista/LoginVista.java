@@ -156,8 +156,7 @@ public class LoginVista extends JFrame implements PropertyChangeListener {
         userDTO.setEmail(email);
         userDTO.setPassword(password);
 
-        Packet loginPacket = new Packet(ActionType.LOGIN_REQUEST, userDTO);
-        networkService.sendPacket(loginPacket);
+        networkService.login(userDTO);
     }
 
 
@@ -240,10 +239,12 @@ public class LoginVista extends JFrame implements PropertyChangeListener {
 
                         JOptionPane.showMessageDialog(this, "¡Bienvenido, " + userInfo.getUsername() + "!", "Login Exitoso", JOptionPane.INFORMATION_MESSAGE);
 
+                        // Los LOGIN_SUCCESS de las reconexiones los atiende la ventana del chat
+                        networkService.removePropertyChangeListener(this);
                         this.dispose();
 
                         // 2. Pasamos AMBAS listas a la nueva ventana
-                        new ChatPrincipalVista(networkService, userInfo, allUsernames, allChannelNames, cacheRepository).setVisible(true);
+                        new ChatPrincipalVista(networkService, userInfo, allUsernames, allChannelNames, loginPayload.getPresenceSeq(), cacheRepository).setVisible(true);
                         break;
 
                     case LOGIN_FAILURE:
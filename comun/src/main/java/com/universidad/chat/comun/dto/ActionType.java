@@ -2,6 +2,11 @@ package com.universidad.chat.comun.dto;
 
 import java.io.Serializable;
 
+/**
+ * Tipos de paquete del protocolo.
+ * BinaryPacketCodec identifica cada acción por su ordinal: las acciones nuevas
+ * deben añadirse siempre al final para no romper la compatibilidad entre versiones.
+ */
 public enum ActionType implements Serializable {
     // Acciones del Cliente al Servidor
     REGISTER_REQUEST,
@@ -42,5 +47,39 @@ public enum ActionType implements Serializable {
     FEDERATED_MESSAGE,       // Mensaje de chat enrutado entre servidores
     FEDERATED_AUDIO,         // Audio enrutado entre servidores
     FEDERATED_CHANNEL_INVITE,// Invitación a canal entre servidores
-    FEDERATED_INVITATION_RESPONSE // Respuesta de invitación entre servidores
+    FEDERATED_INVITATION_RESPONSE,// Respuesta de invitación entre servidores
+
+    // Historial paginado
+    MESSAGE_HISTORY_REQUEST, // Cliente pide una página anterior del historial (MessageHistoryDTO con cursor)
+
+    // Subida de audio por partes
+    AUDIO_UPLOAD_START,      // Cliente inicia o reanuda una subida (AudioUploadDTO)
+    AUDIO_UPLOAD_CHUNK,      // Trozo de bytes del archivo (AudioChunkDTO)
+    AUDIO_UPLOAD_COMMIT,     // Cliente terminó de enviar el archivo (AudioUploadDTO)
+    AUDIO_UPLOAD_STATUS,     // Servidor informa offset, nombre final o error (AudioUploadDTO)
+
+    // Descarga de audio por rangos
+    AUDIO_DOWNLOAD_RANGE,    // Cliente pide un rango de bytes de un audio (AudioDataDTO sin data)
+    AUDIO_DOWNLOAD_DATA,     // Servidor envía el rango pedido (AudioDataDTO con data)
+
+    // Transcripción asíncrona
+    TRANSCRIPTION_READY,     // Texto final de un audio entregado con el marcador "transcribiendo" (MessageDTO;
+                             // entre servidores va dentro de un FederatedMessageDTO)
+    TRANSCRIPTION_PARTIAL,   // Texto reconocido hasta ahora del audio que el cliente está subiendo (MessageDTO)
+
+    // Enrutamiento de mensajes privados entre servidores
+    USER_LOCATE,             // Un servidor pregunta quién tiene a un usuario (ServerUserListDTO con un nombre)
+    USER_LOCATION,           // Respuesta del servidor donde está conectado (ServerUserListDTO con ese nombre)
+
+    // Presencia por cambios versionados (PresenceDeltaDTO); USER_LIST_UPDATE lleva la instantánea
+    SERVER_PRESENCE_DELTA,   // Usuarios que entraron/salieron de un servidor, o su instantánea
+    USER_PRESENCE_DELTA,     // Usuarios que entraron/salieron de la lista que ve el cliente
+    PRESENCE_RESYNC,         // Se detectó un salto de seq: pedir una instantánea (sin payload)
+
+    // Latidos entre servidores: SERVER_HEARTBEAT lleva el System.nanoTime() del emisor (Long)
+    SERVER_HEARTBEAT_ACK,    // El mismo Long devuelto al emisor para medir la latencia
+
+    // Reenvío del buzón de un servidor que estuvo caído
+    OUTBOX_REPLAY_MARK,      // Fin de una tanda reenviada (Long: offset en el buzón)
+    OUTBOX_REPLAY_ACK        // La tanda se procesó (el mismo Long)
 }
\ No newline at end of file
@@ -0,0 +1,15 @@
+package com.universidad.chat.comun.dto;
+
+import lombok.Data;
+import java.io.Serializable;
+
+/**
+ * Un trozo de una subida de audio (AUDIO_UPLOAD_CHUNK). Los bytes van tal cual en la
+ * trama, sin Base64; offset es la posición del trozo dentro del archivo.
+ */
+@Data
+public class AudioChunkDTO implements Serializable {
+    private String uploadId;
+    private long offset;
+    private byte[] data;
+}
@@ -0,0 +1,20 @@
+package com.universidad.chat.comun.dto;
+
+import lombok.Data;
+import java.io.Serializable;
+
+/**
+ * Descarga de audio por rangos de bytes.
+ *
+ * AUDIO_DOWNLOAD_RANGE (cliente): fileName, offset y length (0 = hasta el final); data va null.
+ * AUDIO_DOWNLOAD_DATA (servidor): el trozo [offset, offset + length) en data y el tamaño
+ * total del archivo en totalSize, para que el cliente pida el siguiente rango o salte a otro.
+ */
+@Data
+public class AudioDataDTO implements Serializable {
+    private String fileName;
+    private long offset;
+    private long length;
+    private long totalSize;
+    private byte[] data;
+}
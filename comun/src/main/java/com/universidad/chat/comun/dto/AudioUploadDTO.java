@@ -0,0 +1,18 @@
+package com.universidad.chat.comun.dto;
+
+import lombok.Data;
+import java.io.Serializable;
+
+/**
+ * Control de una subida de audio por partes (AUDIO_UPLOAD_START / COMMIT / STATUS).
+ * El cliente elige el uploadId; con el mismo id puede reanudar una subida cortada
+ * desde el offset que le indica el servidor.
+ */
+@Data
+public class AudioUploadDTO implements Serializable {
+    private String uploadId;
+    private long totalSize;  // Tamaño total del archivo (START)
+    private long offset;     // Bytes ya recibidos por el servidor (STATUS)
+    private String fileName; // Nombre definitivo del archivo tras el COMMIT (STATUS)
+    private String error;    // Motivo del rechazo, null si todo fue bien (STATUS)
+}
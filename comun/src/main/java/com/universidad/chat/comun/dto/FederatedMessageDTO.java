@@ -9,8 +9,13 @@ import java.io.Serializable;
  */
 @Data
 public class FederatedMessageDTO implements Serializable {
+    // El de la versión sin messageId: los servidores antiguos siguen leyendo los mensajes federados
+    private static final long serialVersionUID = -6532921004631868759L;
+
     private String originServerIP;      // IP del servidor que origina el mensaje
     private String originServerName;    // Nombre del servidor origen
     private MessageDTO message;         // El mensaje original
     private boolean requiresAudioData;  // Si es true, el audio debe solicitarse al servidor origen
+    private String messageId;           // Único en la federación: servidor origen + arranque + secuencia
+                                        // (null = servidor antiguo, no se deduplica)
 }
@@ -8,7 +8,12 @@ import java.util.List;
 @Data
 @AllArgsConstructor
 public class LoginSuccessDTO implements Serializable {
+    // El de la versión sin presenceSeq: los clientes antiguos (ObjectOutputStream) siguen leyendo
+    // el login y descartan el campo nuevo
+    private static final long serialVersionUID = -1919595527756056582L;
+
     private UserDTO userInfo;
     private List<String> allUsernames;
     private List<String> allChannelNames; // <-- AÑADE ESTA LÍNEA
+    private long presenceSeq; // Versión de allUsernames: los USER_PRESENCE_DELTA siguientes continúan desde aquí
 }
\ No newline at end of file
@@ -7,6 +7,13 @@ import java.util.Base64; // <-- Importar
 
 @Data
 public class MessageDTO implements Serializable {
+    // El de la versión sin TRANSCRIPCION_EN_CURSO: los clientes antiguos (ObjectOutputStream)
+    // siguen leyendo los mensajes
+    private static final long serialVersionUID = 50828969656629817L;
+
+    // Contenido de un audio cuya transcripción aún no terminó; el texto real llega con TRANSCRIPTION_READY
+    public static final String TRANSCRIPCION_EN_CURSO = "[Transcribiendo...]";
+
     private String sender;
     private String recipient;
     private boolean isAudioMessage;
@@ -6,12 +6,18 @@ import java.util.List;
 /**
  * DTO para enviar historial de mensajes al cliente
  * Puede ser historial de un chat privado o de un canal
+ *
+ * El historial se envía por páginas: en el login llegan los últimos mensajes de cada
+ * conversación y el cliente pide los anteriores con MESSAGE_HISTORY_REQUEST enviando
+ * este mismo DTO (sin mensajes) con beforeCursor = nextCursor de la última página.
  */
 public class MessageHistoryDTO implements Serializable {
     private static final long serialVersionUID = 1L;
     
     private String chatId; // Username del contacto o nombre del canal (con #)
     private List<MessageDTO> messages;
+    private Long nextCursor;   // Cursor para pedir mensajes más antiguos (null = no hay más)
+    private Long beforeCursor; // Cursor con el que se pidió esta página (null = página inicial)
     
     public MessageHistoryDTO() {}
     
@@ -19,6 +25,13 @@ public class MessageHistoryDTO implements Serializable {
         this.chatId = chatId;
         this.messages = messages;
     }
+
+    public MessageHistoryDTO(String chatId, List<MessageDTO> messages, Long nextCursor, Long beforeCursor) {
+        this.chatId = chatId;
+        this.messages = messages;
+        this.nextCursor = nextCursor;
+        this.beforeCursor = beforeCursor;
+    }
     
     public String getChatId() {
         return chatId;
@@ -35,4 +48,20 @@ public class MessageHistoryDTO implements Serializable {
     public void setMessages(List<MessageDTO> messages) {
         this.messages = messages;
     }
+
+    public Long getNextCursor() {
+        return nextCursor;
+    }
+
+    public void setNextCursor(Long nextCursor) {
+        this.nextCursor = nextCursor;
+    }
+
+    public Long getBeforeCursor() {
+        return beforeCursor;
+    }
+
+    public void setBeforeCursor(Long beforeCursor) {
+        this.beforeCursor = beforeCursor;
+    }
 }
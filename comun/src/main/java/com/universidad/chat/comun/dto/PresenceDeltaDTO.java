@@ -0,0 +1,22 @@
+package com.universidad.chat.comun.dto;
+
+import lombok.Data;
+import java.io.Serializable;
+import java.util.List;
+
+/**
+ * Cambio versionado de la lista de usuarios conectados.
+ *
+ * Cada emisor numera sus cambios con seq consecutivos: quien recibe un seq que no es el
+ * siguiente al último aplicado pide PRESENCE_RESYNC y recibe una instantánea
+ * (snapshot = true, todos los usuarios en joined, left vacío) con el seq actual.
+ * Entre servidores (SERVER_PRESENCE_DELTA) describe los usuarios locales del emisor;
+ * a los clientes (USER_PRESENCE_DELTA, o USER_LIST_UPDATE para la instantánea) la lista completa.
+ */
+@Data
+public class PresenceDeltaDTO implements Serializable {
+    private long seq;
+    private boolean snapshot;
+    private List<String> joined;
+    private List<String> left;
+}
@@ -0,0 +1,596 @@
+package com.universidad.chat.comun.protocol;
+
+import com.universidad.chat.comun.dto.*;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.Serializable;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.time.LocalDateTime;
+import java.time.ZoneOffset;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+
+/**
+ * Codec binario compacto para los paquetes del chat.
+ *
+ * Formato de la trama:
+ *   [ACCIÓN 1 byte = ordinal de ActionType][PAYLOAD]
+ *
+ * El payload empieza con un byte de tipo y después los campos del DTO en orden fijo.
+ * No viajan descriptores de clase ni nombres de campos. Los enteros de longitud se
+ * escriben como varint y los String como UTF-8 precedidos de su longitud.
+ *
+ * Un payload que no tiene codificador propio se envía con la serialización de Java
+ * (tipo JAVA), así que añadir un DTO nuevo no rompe el protocolo aunque aún no tenga
+ * su versión binaria.
+ */
+public class BinaryPacketCodec implements PacketCodec {
+
+    public static final byte ID = 1;
+    public static final BinaryPacketCodec INSTANCE = new BinaryPacketCodec();
+
+    private static final ActionType[] ACTIONS = ActionType.values();
+
+    // --- Tipos de payload ---
+    private static final byte T_NULL = 0;
+    private static final byte T_STRING = 1;
+    private static final byte T_BOOLEAN = 2;
+    private static final byte T_INT = 3;
+    private static final byte T_LONG = 4;
+    private static final byte T_LIST = 5;
+    private static final byte T_USER = 10;
+    private static final byte T_MESSAGE = 11;
+    private static final byte T_FEDERATED_MESSAGE = 12;
+    private static final byte T_SERVER_USER_LIST = 13;
+    private static final byte T_SERVER_INFO = 14;
+    private static final byte T_SERVER_TOPOLOGY = 15;
+    private static final byte T_INVITATION = 16;
+    private static final byte T_CHANNEL = 17;
+    private static final byte T_AUDIO_REQUEST = 18;
+    private static final byte T_LOGIN_SUCCESS = 19;
+    private static final byte T_MESSAGE_HISTORY = 20;
+    private static final byte T_AUDIO_UPLOAD = 21;
+    private static final byte T_AUDIO_CHUNK = 22;
+    private static final byte T_AUDIO_DATA = 23;
+    private static final byte T_PRESENCE_DELTA = 24;
+    private static final byte T_JAVA = 127;
+
+    @Override
+    public byte id() {
+        return ID;
+    }
+
+    @Override
+    public String name() {
+        return "binario";
+    }
+
+    @Override
+    public byte[] encode(Packet packet) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(128);
+        DataOutputStream out = new DataOutputStream(bytes);
+        out.writeByte(packet.getAction().ordinal());
+        writeValue(out, packet.getPayload());
+        out.flush();
+        return bytes.toByteArray();
+    }
+
+    @Override
+    public Packet decode(byte[] data, int offset, int length) throws IOException, ClassNotFoundException {
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(data, offset, length));
+        int ordinal = in.readUnsignedByte();
+        if (ordinal >= ACTIONS.length) {
+            throw new IOException("Acción desconocida en la trama: " + ordinal);
+        }
+        return new Packet(ACTIONS[ordinal], readValue(in));
+    }
+
+    /**
+     * Cabecera de una trama AUDIO_DOWNLOAD_DATA (longitud de trama incluida) cuyo contenido,
+     * meta.getLength() bytes, se escribe a continuación directamente desde el archivo.
+     * Cabecera + bytes del archivo forman una trama normal que decode() lee como AudioDataDTO.
+     */
+    public byte[] encodeAudioDataHeader(AudioDataDTO meta) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(64);
+        DataOutputStream out = new DataOutputStream(bytes);
+        out.writeInt(0); // Longitud de la trama, se completa al final
+        out.writeByte(ActionType.AUDIO_DOWNLOAD_DATA.ordinal());
+        out.writeByte(T_AUDIO_DATA);
+        writeAudioDataFields(out, meta);
+        writeVarInt(out, Math.toIntExact(meta.getLength()));
+        out.flush();
+        byte[] header = bytes.toByteArray();
+        long frameLength = header.length - 4 + meta.getLength();
+        WireProtocol.checkFrameLength(Math.toIntExact(frameLength));
+        ByteBuffer.wrap(header).putInt(0, (int) frameLength);
+        return header;
+    }
+
+    // ==================== ESCRITURA ====================
+
+    private void writeValue(DataOutputStream out, Object value) throws IOException {
+        if (value == null) {
+            out.writeByte(T_NULL);
+        } else if (value instanceof String s) {
+            out.writeByte(T_STRING);
+            writeString(out, s);
+        } else if (value instanceof Boolean b) {
+            out.writeByte(T_BOOLEAN);
+            out.writeBoolean(b);
+        } else if (value instanceof Integer i) {
+            out.writeByte(T_INT);
+            out.writeInt(i);
+        } else if (value instanceof Long l) {
+            out.writeByte(T_LONG);
+            out.writeLong(l);
+        } else if (value instanceof List<?> list) {
+            out.writeByte(T_LIST);
+            writeVarInt(out, list.size());
+            for (Object item : list) {
+                writeValue(out, item);
+            }
+        } else if (value instanceof MessageDTO m) {
+            out.writeByte(T_MESSAGE);
+            writeMessage(out, m);
+        } else if (value instanceof UserDTO u) {
+            out.writeByte(T_USER);
+            writeUser(out, u);
+        } else if (value instanceof FederatedMessageDTO f) {
+            out.writeByte(T_FEDERATED_MESSAGE);
+            writeString(out, f.getOriginServerIP());
+            writeString(out, f.getOriginServerName());
+            writeNullableMessage(out, f.getMessage());
+            out.writeBoolean(f.isRequiresAudioData());
+            writeString(out, f.getMessageId());
+        } else if (value instanceof ServerUserListDTO l) {
+            out.writeByte(T_SERVER_USER_LIST);
+            writeString(out, l.getServerIP());
+            writeString(out, l.getServerName());
+            writeStringList(out, l.getUsernames());
+        } else if (value instanceof ServerInfoDTO s) {
+            out.writeByte(T_SERVER_INFO);
+            writeServerInfo(out, s);
+        } else if (value instanceof ServerTopologyDTO t) {
+            out.writeByte(T_SERVER_TOPOLOGY);
+            List<ServerInfoDTO> servers = t.getServers();
+            writeVarInt(out, servers == null ? -1 : servers.size());
+            if (servers != null) {
+                for (ServerInfoDTO s : servers) {
+                    writeServerInfo(out, s);
+                }
+            }
+        } else if (value instanceof InvitationDTO i) {
+            out.writeByte(T_INVITATION);
+            writeString(out, i.getInviterUsername());
+            writeString(out, i.getInvitedUsername());
+            writeString(out, i.getChannelName());
+            out.writeBoolean(i.isAccepted());
+        } else if (value instanceof ChannelDTO c) {
+            out.writeByte(T_CHANNEL);
+            writeString(out, c.getChannelName());
+            writeString(out, c.getCreatorUsername());
+        } else if (value instanceof AudioRequestDTO a) {
+            out.writeByte(T_AUDIO_REQUEST);
+            writeString(out, a.getFileName());
+        } else if (value instanceof LoginSuccessDTO l) {
+            out.writeByte(T_LOGIN_SUCCESS);
+            out.writeBoolean(l.getUserInfo() != null);
+            if (l.getUserInfo() != null) {
+                writeUser(out, l.getUserInfo());
+            }
+            writeStringList(out, l.getAllUsernames());
+            writeStringList(out, l.getAllChannelNames());
+            out.writeLong(l.getPresenceSeq());
+        } else if (value instanceof MessageHistoryDTO h) {
+            out.writeByte(T_MESSAGE_HISTORY);
+            writeString(out, h.getChatId());
+            List<MessageDTO> messages = h.getMessages();
+            writeVarInt(out, messages == null ? -1 : messages.size());
+            if (messages != null) {
+                for (MessageDTO m : messages) {
+                    writeNullableMessage(out, m);
+                }
+            }
+            writeNullableLong(out, h.getNextCursor());
+            writeNullableLong(out, h.getBeforeCursor());
+        } else if (value instanceof AudioUploadDTO u) {
+            out.writeByte(T_AUDIO_UPLOAD);
+            writeString(out, u.getUploadId());
+            out.writeLong(u.getTotalSize());
+            out.writeLong(u.getOffset());
+            writeString(out, u.getFileName());
+            writeString(out, u.getError());
+        } else if (value instanceof AudioDataDTO d) {
+            out.writeByte(T_AUDIO_DATA);
+            writeAudioDataFields(out, d);
+            byte[] data = d.getData();
+            writeVarInt(out, data == null ? -1 : data.length);
+            if (data != null) {
+                out.write(data);
+            }
+        } else if (value instanceof AudioChunkDTO c) {
+            out.writeByte(T_AUDIO_CHUNK);
+            writeString(out, c.getUploadId());
+            out.writeLong(c.getOffset());
+            byte[] data = c.getData();
+            writeVarInt(out, data == null ? -1 : data.length);
+            if (data != null) {
+                out.write(data);
+            }
+        } else if (value instanceof PresenceDeltaDTO p) {
+            out.writeByte(T_PRESENCE_DELTA);
+            out.writeLong(p.getSeq());
+            out.writeBoolean(p.isSnapshot());
+            writeStringList(out, p.getJoined());
+            writeStringList(out, p.getLeft());
+        } else if (value instanceof Serializable) {
+            // Sin codificador propio: serialización de Java dentro de la trama
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream(256);
+            try (ObjectOutputStream oos = new ObjectOutputStream(bytes)) {
+                oos.writeObject(value);
+            }
+            out.writeByte(T_JAVA);
+            writeVarInt(out, bytes.size());
+            bytes.writeTo(out);
+        } else {
+            throw new IOException("Payload no serializable: " + value.getClass().getName());
+        }
+    }
+
+    private void writeMessage(DataOutputStream out, MessageDTO m) throws IOException {
+        writeString(out, m.getSender());
+        writeString(out, m.getRecipient());
+        out.writeBoolean(m.isAudioMessage());
+        writeString(out, m.getContent());
+        writeString(out, m.getAudioFileName());
+        writeDateTime(out, m.getTimestamp());
+        writeString(out, m.getAudioDataBase64());
+    }
+
+    private void writeNullableMessage(DataOutputStream out, MessageDTO m) throws IOException {
+        out.writeBoolean(m != null);
+        if (m != null) {
+            writeMessage(out, m);
+        }
+    }
+
+    private void writeUser(DataOutputStream out, UserDTO u) throws IOException {
+        writeString(out, u.getUsername());
+        writeString(out, u.getEmail());
+        writeString(out, u.getPassword());
+        writeString(out, u.getServerIP());
+        writeString(out, u.getServerName());
+    }
+
+    private void writeServerInfo(DataOutputStream out, ServerInfoDTO s) throws IOException {
+        writeString(out, s.getServerName());
+        writeString(out, s.getIpAddress());
+        out.writeInt(s.getClientPort());
+        out.writeInt(s.getFederationPort());
+        out.writeInt(s.getConnectedClients());
+        out.writeLong(s.getTimestamp());
+    }
+
+    private void writeStringList(DataOutputStream out, Collection<String> values) throws IOException {
+        writeVarInt(out, values == null ? -1 : values.size());
+        if (values != null) {
+            for (String value : values) {
+                writeString(out, value);
+            }
+        }
+    }
+
+    private void writeString(DataOutputStream out, String value) throws IOException {
+        if (value == null) {
+            writeVarInt(out, -1);
+            return;
+        }
+        byte[] utf8 = value.getBytes(StandardCharsets.UTF_8);
+        writeVarInt(out, utf8.length);
+        out.write(utf8);
+    }
+
+    private void writeDateTime(DataOutputStream out, LocalDateTime value) throws IOException {
+        out.writeBoolean(value != null);
+        if (value != null) {
+            out.writeLong(value.toEpochSecond(ZoneOffset.UTC));
+            out.writeInt(value.getNano());
+        }
+    }
+
+    private void writeAudioDataFields(DataOutputStream out, AudioDataDTO d) throws IOException {
+        writeString(out, d.getFileName());
+        out.writeLong(d.getOffset());
+        out.writeLong(d.getLength());
+        out.writeLong(d.getTotalSize());
+    }
+
+    private void writeNullableLong(DataOutputStream out, Long value) throws IOException {
+        out.writeBoolean(value != null);
+        if (value != null) {
+            out.writeLong(value);
+        }
+    }
+
+    /**
+     * Entero sin signo de 7 bits por byte; -1 (colección null) se escribe como 0 y el resto desplazado en 1
+     */
+    private void writeVarInt(DataOutputStream out, int value) throws IOException {
+        int v = value + 1;
+        while ((v & ~0x7F) != 0) {
+            out.writeByte((v & 0x7F) | 0x80);
+            v >>>= 7;
+        }
+        out.writeByte(v);
+    }
+
+    // ==================== LECTURA ====================
+
+    private Object readValue(DataInputStream in) throws IOException, ClassNotFoundException {
+        byte type = in.readByte();
+        switch (type) {
+            case T_NULL:
+                return null;
+            case T_STRING:
+                return readString(in);
+            case T_BOOLEAN:
+                return in.readBoolean();
+            case T_INT:
+                return in.readInt();
+            case T_LONG:
+                return in.readLong();
+            case T_LIST: {
+                int size = checkCount(in, readVarInt(in));
+                if (size < 0) {
+                    throw new IOException("Longitud de lista inválida en la trama: " + size);
+                }
+                List<Object> list = new ArrayList<>();
+                for (int i = 0; i < size; i++) {
+                    list.add(readValue(in));
+                }
+                return list;
+            }
+            case T_MESSAGE:
+                return readMessage(in);
+            case T_USER:
+                return readUser(in);
+            case T_FEDERATED_MESSAGE: {
+                FederatedMessageDTO f = new FederatedMessageDTO();
+                f.setOriginServerIP(readString(in));
+                f.setOriginServerName(readString(in));
+                f.setMessage(readNullableMessage(in));
+                f.setRequiresAudioData(in.readBoolean());
+                f.setMessageId(readString(in));
+                return f;
+            }
+            case T_SERVER_USER_LIST: {
+                ServerUserListDTO l = new ServerUserListDTO();
+                l.setServerIP(readString(in));
+                l.setServerName(readString(in));
+                l.setUsernames(readStringList(in));
+                return l;
+            }
+            case T_SERVER_INFO:
+                return readServerInfo(in);
+            case T_SERVER_TOPOLOGY: {
+                ServerTopologyDTO t = new ServerTopologyDTO();
+                int size = checkCount(in, readVarInt(in));
+                if (size >= 0) {
+                    List<ServerInfoDTO> servers = new ArrayList<>();
+                    for (int i = 0; i < size; i++) {
+                        servers.add(readServerInfo(in));
+                    }
+                    t.setServers(servers);
+                }
+                return t;
+            }
+            case T_INVITATION: {
+                InvitationDTO i = new InvitationDTO();
+                i.setInviterUsername(readString(in));
+                i.setInvitedUsername(readString(in));
+                i.setChannelName(readString(in));
+                i.setAccepted(in.readBoolean());
+                return i;
+            }
+            case T_CHANNEL: {
+                ChannelDTO c = new ChannelDTO();
+                c.setChannelName(readString(in));
+                c.setCreatorUsername(readString(in));
+                return c;
+            }
+            case T_AUDIO_REQUEST: {
+                AudioRequestDTO a = new AudioRequestDTO();
+                a.setFileName(readString(in));
+                return a;
+            }
+            case T_LOGIN_SUCCESS: {
+                UserDTO user = in.readBoolean() ? readUser(in) : null;
+                List<String> usernames = readStringList(in);
+                List<String> channels = readStringList(in);
+                return new LoginSuccessDTO(user, usernames, channels, in.readLong());
+            }
+            case T_MESSAGE_HISTORY: {
+                String chatId = readString(in);
+                int size = checkCount(in, readVarInt(in));
+                List<MessageDTO> messages = null;
+                if (size >= 0) {
+                    messages = new ArrayList<>();
+                    for (int i = 0; i < size; i++) {
+                        messages.add(readNullableMessage(in));
+                    }
+                }
+                Long nextCursor = readNullableLong(in);
+                Long beforeCursor = readNullableLong(in);
+                return new MessageHistoryDTO(chatId, messages, nextCursor, beforeCursor);
+            }
+            case T_AUDIO_UPLOAD: {
+                AudioUploadDTO u = new AudioUploadDTO();
+                u.setUploadId(readString(in));
+                u.setTotalSize(in.readLong());
+                u.setOffset(in.readLong());
+                u.setFileName(readString(in));
+                u.setError(readString(in));
+                return u;
+            }
+            case T_AUDIO_DATA: {
+                AudioDataDTO d = new AudioDataDTO();
+                d.setFileName(readString(in));
+                d.setOffset(in.readLong());
+                d.setLength(in.readLong());
+                d.setTotalSize(in.readLong());
+                int length = readVarInt(in);
+                if (length != -1) {
+                    byte[] data = new byte[checkLength(in, length)];
+                    in.readFully(data);
+                    d.setData(data);
+                }
+                return d;
+            }
+            case T_AUDIO_CHUNK: {
+                AudioChunkDTO c = new AudioChunkDTO();
+                c.setUploadId(readString(in));
+                c.setOffset(in.readLong());
+                int length = readVarInt(in);
+                if (length != -1) {
+                    byte[] data = new byte[checkLength(in, length)];
+                    in.readFully(data);
+                    c.setData(data);
+                }
+                return c;
+            }
+            case T_PRESENCE_DELTA: {
+                PresenceDeltaDTO p = new PresenceDeltaDTO();
+                p.setSeq(in.readLong());
+                p.setSnapshot(in.readBoolean());
+                p.setJoined(readStringList(in));
+                p.setLeft(readStringList(in));
+                return p;
+            }
+            case T_JAVA: {
+                byte[] bytes = new byte[checkLength(in, readVarInt(in))];
+                in.readFully(bytes);
+                try (ObjectInputStream ois = new ObjectInputStream(new ByteArrayInputStream(bytes))) {
+                    return ois.readObject();
+                }
+            }
+            default:
+                throw new IOException("Tipo de payload desconocido: " + type);
+        }
+    }
+
+    private MessageDTO readMessage(DataInputStream in) throws IOException {
+        MessageDTO m = new MessageDTO();
+        m.setSender(readString(in));
+        m.setRecipient(readString(in));
+        m.setAudioMessage(in.readBoolean());
+        m.setContent(readString(in));
+        m.setAudioFileName(readString(in));
+        m.setTimestamp(readDateTime(in));
+        m.setAudioDataBase64(readString(in));
+        return m;
+    }
+
+    private MessageDTO readNullableMessage(DataInputStream in) throws IOException {
+        return in.readBoolean() ? readMessage(in) : null;
+    }
+
+    private UserDTO readUser(DataInputStream in) throws IOException {
+        UserDTO u = new UserDTO();
+        u.setUsername(readString(in));
+        u.setEmail(readString(in));
+        u.setPassword(readString(in));
+        u.setServerIP(readString(in));
+        u.setServerName(readString(in));
+        return u;
+    }
+
+    private ServerInfoDTO readServerInfo(DataInputStream in) throws IOException {
+        ServerInfoDTO s = new ServerInfoDTO();
+        s.setServerName(readString(in));
+        s.setIpAddress(readString(in));
+        s.setClientPort(in.readInt());
+        s.setFederationPort(in.readInt());
+        s.setConnectedClients(in.readInt());
+        s.setTimestamp(in.readLong());
+        return s;
+    }
+
+    private List<String> readStringList(DataInputStream in) throws IOException {
+        int size = checkCount(in, readVarInt(in));
+        if (size < 0) {
+            return null;
+        }
+        List<String> values = new ArrayList<>();
+        for (int i = 0; i < size; i++) {
+            values.add(readString(in));
+        }
+        return values;
+    }
+
+    private String readString(DataInputStream in) throws IOException {
+        int length = readVarInt(in);
+        if (length == -1) {
+            return null;
+        }
+        byte[] utf8 = new byte[checkLength(in, length)];
+        in.readFully(utf8);
+        return new String(utf8, StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Evita reservar memoria por una longitud corrupta mayor que lo que queda de la trama
+     */
+    private int checkLength(DataInputStream in, int length) throws IOException {
+        if (length < 0 || length > in.available()) {
+            throw new IOException("Longitud inválida en la trama: " + length);
+        }
+        return length;
+    }
+
+    /**
+     * Número de elementos de una lista (-1 = null). Cada elemento ocupa al menos un byte, así que
+     * no puede haber más que bytes quedan; las listas no se dimensionan con este valor de todos modos
+     */
+    private int checkCount(DataInputStream in, int count) throws IOException {
+        if (count < -1 || count > in.available()) {
+            throw new IOException("Número de elementos inválido en la trama: " + count);
+        }
+        return count;
+    }
+
+    private LocalDateTime readDateTime(DataInputStream in) throws IOException {
+        if (!in.readBoolean()) {
+            return null;
+        }
+        long epochSecond = in.readLong();
+        int nano = in.readInt();
+        return LocalDateTime.ofEpochSecond(epochSecond, nano, ZoneOffset.UTC);
+    }
+
+    private Long readNullableLong(DataInputStream in) throws IOException {
+        return in.readBoolean() ? in.readLong() : null;
+    }
+
+    private int readVarInt(DataInputStream in) throws IOException {
+        int value = 0;
+        int shift = 0;
+        int b;
+        do {
+            if (shift > 28) {
+                throw new IOException("Varint demasiado largo");
+            }
+            b = in.readUnsignedByte();
+            value |= (b & 0x7F) << shift;
+            shift += 7;
+        } while ((b & 0x80) != 0);
+        return value - 1;
+    }
+}
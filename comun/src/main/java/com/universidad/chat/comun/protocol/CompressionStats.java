@@ -0,0 +1,68 @@
+package com.universidad.chat.comun.protocol;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Contadores de compresión de una conexión (o del total): bytes antes y después de
+ * comprimir y tiempo de CPU gastado en cada sentido.
+ */
+public final class CompressionStats {
+
+    private final AtomicLong framesOut = new AtomicLong();
+    private final AtomicLong compressedOut = new AtomicLong();
+    private final AtomicLong rawBytesOut = new AtomicLong();
+    private final AtomicLong wireBytesOut = new AtomicLong();
+    private final AtomicLong deflateNanos = new AtomicLong();
+
+    private final AtomicLong framesIn = new AtomicLong();
+    private final AtomicLong compressedIn = new AtomicLong();
+    private final AtomicLong rawBytesIn = new AtomicLong();
+    private final AtomicLong wireBytesIn = new AtomicLong();
+    private final AtomicLong inflateNanos = new AtomicLong();
+
+    void onEncoded(int rawBytes, int wireBytes, boolean compressed, long nanos) {
+        framesOut.incrementAndGet();
+        if (compressed) {
+            compressedOut.incrementAndGet();
+        }
+        rawBytesOut.addAndGet(rawBytes);
+        wireBytesOut.addAndGet(wireBytes);
+        deflateNanos.addAndGet(nanos);
+    }
+
+    void onDecoded(int rawBytes, int wireBytes, boolean compressed, long nanos) {
+        framesIn.incrementAndGet();
+        if (compressed) {
+            compressedIn.incrementAndGet();
+        }
+        rawBytesIn.addAndGet(rawBytes);
+        wireBytesIn.addAndGet(wireBytes);
+        inflateNanos.addAndGet(nanos);
+    }
+
+    /**
+     * Métricas para la API REST. ratio = bytes en la red / bytes sin comprimir (menor es mejor)
+     */
+    public Map<String, Object> toMap() {
+        Map<String, Object> metrics = new LinkedHashMap<>();
+        metrics.put("framesOut", framesOut.get());
+        metrics.put("compressedOut", compressedOut.get());
+        metrics.put("rawBytesOut", rawBytesOut.get());
+        metrics.put("wireBytesOut", wireBytesOut.get());
+        metrics.put("ratioOut", ratio(wireBytesOut.get(), rawBytesOut.get()));
+        metrics.put("deflateMs", deflateNanos.get() / 1_000_000.0);
+        metrics.put("framesIn", framesIn.get());
+        metrics.put("compressedIn", compressedIn.get());
+        metrics.put("rawBytesIn", rawBytesIn.get());
+        metrics.put("wireBytesIn", wireBytesIn.get());
+        metrics.put("ratioIn", ratio(wireBytesIn.get(), rawBytesIn.get()));
+        metrics.put("inflateMs", inflateNanos.get() / 1_000_000.0);
+        return metrics;
+    }
+
+    private static double ratio(long wire, long raw) {
+        return raw == 0 ? 1.0 : (double) wire / raw;
+    }
+}
@@ -0,0 +1,216 @@
+package com.universidad.chat.comun.protocol;
+
+import com.universidad.chat.comun.dto.Packet;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * Compresión Deflate por encima de otro codec, negociada por conexión.
+ *
+ * En el handshake se pide poniendo {@link #FLAG} en el byte del codec; un servidor que no la
+ * conoce responde con otro codec y el cliente reconecta sin ella (ver PacketStream.connect).
+ *
+ * Cuerpo de cada trama:
+ *   [0][cuerpo del codec base]                          sin comprimir
+ *   [1][longitud sin comprimir 4 bytes][datos Deflate]  comprimido
+ * Los cuerpos de menos de {@link #MIN_SIZE} bytes, o los que no encogen (audio ya comprimido),
+ * viajan sin comprimir.
+ *
+ * Cada conexión tiene su instancia, con sus propias estadísticas. Una trama compartida
+ * (EncodedPacket) se comprime una sola vez y cuenta para la conexión que la codificó primero.
+ */
+public final class DeflatePacketCodec implements PacketCodec {
+
+    public static final byte FLAG = 0x40;
+    public static final int MIN_SIZE = 256;
+
+    private static final byte RAW = 0;
+    private static final byte DEFLATE = 1;
+    private static final int POOL_SIZE = 32;
+    // Deflate no expande más de ~1032:1: una longitud declarada mayor es mentira
+    private static final int MAX_RATIO = 1032;
+    // Buffer inicial al descomprimir; crece según salen bytes, no según lo que declara el otro lado
+    private static final int INITIAL_INFLATE_BUFFER = 64 * 1024;
+
+    // Totales de todas las conexiones
+    private static final CompressionStats TOTAL = new CompressionStats();
+
+    // Deflater/Inflater usan memoria nativa: se reutilizan en lugar de crear uno por trama
+    private static final Queue<Deflater> DEFLATERS = new ConcurrentLinkedQueue<>();
+    private static final Queue<Inflater> INFLATERS = new ConcurrentLinkedQueue<>();
+    private static final AtomicInteger pooledDeflaters = new AtomicInteger();
+    private static final AtomicInteger pooledInflaters = new AtomicInteger();
+
+    private final PacketCodec base;
+    private final CompressionStats stats = new CompressionStats();
+
+    public DeflatePacketCodec(PacketCodec base) {
+        this.base = base;
+    }
+
+    public static boolean isCompressed(byte id) {
+        return (id & FLAG) != 0;
+    }
+
+    public static CompressionStats getTotalStats() {
+        return TOTAL;
+    }
+
+    public CompressionStats getStats() {
+        return stats;
+    }
+
+    public PacketCodec getBase() {
+        return base;
+    }
+
+    @Override
+    public byte id() {
+        return (byte) (base.id() | FLAG);
+    }
+
+    @Override
+    public String name() {
+        return base.name() + "+deflate";
+    }
+
+    @Override
+    public byte[] encode(Packet packet) throws IOException {
+        byte[] raw = base.encode(packet);
+        long start = System.nanoTime();
+        byte[] body = raw.length < MIN_SIZE ? null : deflate(raw);
+        boolean compressed = body != null;
+        if (!compressed) {
+            body = new byte[raw.length + 1];
+            body[0] = RAW;
+            System.arraycopy(raw, 0, body, 1, raw.length);
+        }
+        long nanos = System.nanoTime() - start;
+        stats.onEncoded(raw.length, body.length, compressed, nanos);
+        TOTAL.onEncoded(raw.length, body.length, compressed, nanos);
+        return body;
+    }
+
+    /**
+     * @return el cuerpo comprimido, o null si no ocupa menos que el original
+     */
+    private static byte[] deflate(byte[] raw) {
+        Deflater deflater = DEFLATERS.poll();
+        if (deflater == null) {
+            deflater = new Deflater(Deflater.BEST_SPEED);
+        } else {
+            pooledDeflaters.decrementAndGet();
+        }
+        try {
+            deflater.setInput(raw);
+            deflater.finish();
+            // Si no cabe en menos que el original no merece la pena
+            byte[] out = new byte[raw.length];
+            out[0] = DEFLATE;
+            ByteBuffer.wrap(out, 1, 4).putInt(raw.length);
+            int pos = 5;
+            while (!deflater.finished() && pos < out.length) {
+                pos += deflater.deflate(out, pos, out.length - pos);
+            }
+            if (!deflater.finished()) {
+                return null;
+            }
+            return pos == out.length ? out : Arrays.copyOf(out, pos);
+        } finally {
+            deflater.reset();
+            release(DEFLATERS, pooledDeflaters, deflater);
+        }
+    }
+
+    /**
+     * Convierte la cabecera de una trama del codec base (longitud incluida) en la de una trama
+     * sin comprimir de este codec. Los bytes que la siguen (un rango de archivo enviado con
+     * transferTo) viajan tal cual.
+     */
+    public static byte[] uncompressedFrameHeader(byte[] baseHeader) throws IOException {
+        int length = ByteBuffer.wrap(baseHeader).getInt() + 1;
+        WireProtocol.checkFrameLength(length);
+        byte[] header = new byte[baseHeader.length + 1];
+        ByteBuffer.wrap(header).putInt(length).put(RAW).put(baseHeader, 4, baseHeader.length - 4);
+        return header;
+    }
+
+    @Override
+    public Packet decode(byte[] data, int offset, int length) throws IOException, ClassNotFoundException {
+        if (length < 1) {
+            throw new IOException("Trama comprimida vacía");
+        }
+        if (data[offset] == RAW) {
+            stats.onDecoded(length - 1, length, false, 0);
+            TOTAL.onDecoded(length - 1, length, false, 0);
+            return base.decode(data, offset + 1, length - 1);
+        }
+        if (data[offset] != DEFLATE || length < 5) {
+            throw new IOException("Trama comprimida inválida");
+        }
+        int rawLength = ByteBuffer.wrap(data, offset + 1, 4).getInt();
+        WireProtocol.checkFrameLength(rawLength);
+        if (rawLength > (long) (length - 5) * MAX_RATIO) {
+            throw new IOException("Trama comprimida con longitud imposible: " + rawLength);
+        }
+        long start = System.nanoTime();
+        byte[] raw = new byte[Math.min(rawLength, Math.max(INITIAL_INFLATE_BUFFER, (length - 5) * 4))];
+        Inflater inflater = INFLATERS.poll();
+        if (inflater == null) {
+            inflater = new Inflater();
+        } else {
+            pooledInflaters.decrementAndGet();
+        }
+        try {
+            inflater.setInput(data, offset + 5, length - 5);
+            int pos = 0;
+            while (pos < rawLength && !inflater.finished()) {
+                if (pos == raw.length) {
+                    raw = Arrays.copyOf(raw, (int) Math.min(rawLength, raw.length * 2L));
+                }
+                int n = inflater.inflate(raw, pos, raw.length - pos);
+                if (n == 0 && (inflater.needsInput() || inflater.needsDictionary())) {
+                    break;
+                }
+                pos += n;
+            }
+            // Con la salida justa puede faltar por leer el final del stream
+            if (pos == rawLength && !inflater.finished() && inflater.inflate(new byte[1]) != 0) {
+                pos++;
+            }
+            if (pos != rawLength || !inflater.finished()) {
+                throw new IOException("Trama comprimida truncada o con longitud incorrecta");
+            }
+        } catch (DataFormatException e) {
+            throw new IOException("Trama comprimida corrupta: " + e.getMessage(), e);
+        } finally {
+            inflater.reset();
+            release(INFLATERS, pooledInflaters, inflater);
+        }
+        long nanos = System.nanoTime() - start;
+        stats.onDecoded(rawLength, length, true, nanos);
+        TOTAL.onDecoded(rawLength, length, true, nanos);
+        return base.decode(raw, 0, rawLength);
+    }
+
+    private static <T> void release(Queue<T> pool, AtomicInteger size, T item) {
+        if (size.incrementAndGet() <= POOL_SIZE) {
+            pool.offer(item);
+            return;
+        }
+        size.decrementAndGet();
+        if (item instanceof Deflater d) {
+            d.end();
+        } else if (item instanceof Inflater i) {
+            i.end();
+        }
+    }
+}
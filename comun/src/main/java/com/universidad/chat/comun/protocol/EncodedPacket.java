@@ -0,0 +1,64 @@
+package com.universidad.chat.comun.protocol;
+
+import com.universidad.chat.comun.dto.Packet;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * Paquete que se codifica una sola vez para enviarlo a muchos destinatarios.
+ *
+ * La trama (longitud + cuerpo) se genera la primera vez que la pide una conexión con
+ * un codec dado y se reutiliza para el resto: en un broadcast a N clientes el coste de
+ * serialización es uno por codec en uso, no N. Las tramas son inmutables; cada conexión
+ * NIO recibe su propia vista (duplicate) del mismo buffer, sin copiar los bytes.
+ *
+ * Las conexiones con el protocolo clásico no pueden compartir bytes (su ObjectOutputStream
+ * guarda estado entre objetos) y siguen usando {@link #getPacket()}.
+ */
+public final class EncodedPacket {
+
+    private final Packet packet;
+    // Indexado por id de codec (son pocos y consecutivos); los comprimidos en la segunda mitad
+    private final ByteBuffer[] frames = new ByteBuffer[8];
+
+    public EncodedPacket(Packet packet) {
+        this.packet = packet;
+    }
+
+    public Packet getPacket() {
+        return packet;
+    }
+
+    /**
+     * Devuelve una vista de solo lectura de la trama para el codec indicado,
+     * con su propia posición para que cada conexión la escriba de forma independiente.
+     */
+    public ByteBuffer frame(PacketCodec codec) throws IOException {
+        return sharedFrame(codec).asReadOnlyBuffer();
+    }
+
+    /**
+     * Trama compartida como array (para conexiones bloqueantes). No debe modificarse.
+     */
+    public byte[] frameBytes(PacketCodec codec) throws IOException {
+        ByteBuffer frame = sharedFrame(codec);
+        // WireProtocol.encodeFrame crea un buffer con array de respaldo, así que no se copia
+        return frame.array();
+    }
+
+    // Solo codifica en memoria, sin I/O: el synchronized no bloquea hilos virtuales en el socket
+    private synchronized ByteBuffer sharedFrame(PacketCodec codec) throws IOException {
+        int id = codec.id();
+        if (DeflatePacketCodec.isCompressed(codec.id())) {
+            id = (id & ~DeflatePacketCodec.FLAG) + frames.length / 2;
+        }
+        if (id < 0 || id >= frames.length) {
+            return WireProtocol.encodeFrame(codec, packet);
+        }
+        if (frames[id] == null) {
+            frames[id] = WireProtocol.encodeFrame(codec, packet);
+        }
+        return frames[id];
+    }
+}
@@ -0,0 +1,46 @@
+package com.universidad.chat.comun.protocol;
+
+import com.universidad.chat.comun.dto.Packet;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+
+/**
+ * Codec que serializa cada paquete con la serialización estándar de Java.
+ * Cada trama es independiente (no comparte referencias con las anteriores),
+ * por lo que puede decodificarse por separado en el event loop NIO.
+ */
+public class JavaPacketCodec implements PacketCodec {
+
+    public static final byte ID = 0;
+    public static final JavaPacketCodec INSTANCE = new JavaPacketCodec();
+
+    @Override
+    public byte id() {
+        return ID;
+    }
+
+    @Override
+    public String name() {
+        return "java";
+    }
+
+    @Override
+    public byte[] encode(Packet packet) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(256);
+        try (ObjectOutputStream out = new ObjectOutputStream(bytes)) {
+            out.writeObject(packet);
+        }
+        return bytes.toByteArray();
+    }
+
+    @Override
+    public Packet decode(byte[] data, int offset, int length) throws IOException, ClassNotFoundException {
+        try (ObjectInputStream in = new ObjectInputStream(new ByteArrayInputStream(data, offset, length))) {
+            return (Packet) in.readObject();
+        }
+    }
+}
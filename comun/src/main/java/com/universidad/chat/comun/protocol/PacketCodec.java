@@ -0,0 +1,53 @@
+package com.universidad.chat.comun.protocol;
+
+import com.universidad.chat.comun.dto.Packet;
+
+import java.io.IOException;
+
+/**
+ * Codifica y decodifica el cuerpo de una trama del protocolo.
+ * Cada implementación se identifica con un byte que viaja en el handshake.
+ */
+public interface PacketCodec {
+
+    /**
+     * Identificador del codec en el handshake
+     */
+    byte id();
+
+    /**
+     * Nombre legible para los logs
+     */
+    String name();
+
+    byte[] encode(Packet packet) throws IOException;
+
+    Packet decode(byte[] data, int offset, int length) throws IOException, ClassNotFoundException;
+
+    /**
+     * Codec que ofrece un cliente al conectar. El servidor puede responder con otro
+     * (por ejemplo JavaPacketCodec si es una versión anterior que no conoce el binario).
+     */
+    static PacketCodec preferred() {
+        return BinaryPacketCodec.INSTANCE;
+    }
+
+    /**
+     * Devuelve el codec asociado a un identificador, o null si no se soporta.
+     * Con {@link DeflatePacketCodec#FLAG} devuelve una instancia nueva con compresión
+     * (cada conexión lleva sus propias estadísticas).
+     */
+    static PacketCodec forId(byte id) {
+        if (DeflatePacketCodec.isCompressed(id)) {
+            PacketCodec base = forId((byte) (id & ~DeflatePacketCodec.FLAG));
+            return base == null ? null : new DeflatePacketCodec(base);
+        }
+        if (id == JavaPacketCodec.ID) {
+            return JavaPacketCodec.INSTANCE;
+        }
+        if (id == BinaryPacketCodec.ID) {
+            return BinaryPacketCodec.INSTANCE;
+        }
+        return null;
+    }
+}
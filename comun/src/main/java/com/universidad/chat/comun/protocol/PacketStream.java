@@ -0,0 +1,311 @@
+package com.universidad.chat.comun.protocol;
+
+import com.universidad.chat.comun.dto.Packet;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.net.Socket;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.util.List;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Conexión bloqueante que envía y recibe paquetes sobre un socket.
+ * Soporta el protocolo antiguo (ObjectOutputStream continuo) y el protocolo de tramas
+ * negociado con handshake (ver {@link WireProtocol}).
+ */
+public class PacketStream implements Closeable {
+
+    private static final int HANDSHAKE_TIMEOUT_MS = 5000;
+    // Tamaño máximo del buffer que writeBatch reutiliza entre tandas
+    private static final int MAX_BATCH_BUFFER = 256 * 1024;
+
+    private final Socket socket;
+    private final PacketCodec codec; // null = protocolo antiguo
+    // ReentrantLock en lugar de synchronized: no ancla hilos virtuales durante la escritura al socket
+    private final ReentrantLock writeLock = new ReentrantLock();
+
+    // Protocolo antiguo
+    private ObjectOutputStream objectOut;
+    private ObjectInputStream objectIn;
+
+    // Protocolo de tramas
+    private DataOutputStream dataOut;
+    private DataInputStream dataIn;
+    private byte[] batchBuffer; // Reutilizado por writeBatch (bajo writeLock)
+
+    private PacketStream(Socket socket, PacketCodec codec) {
+        this.socket = socket;
+        this.codec = codec;
+    }
+
+    /**
+     * Lado servidor: detecta el protocolo del cliente mirando los dos primeros bytes
+     * y completa el handshake si es el protocolo de tramas.
+     */
+    public static PacketStream accept(Socket socket) throws IOException {
+        BufferedInputStream in = new BufferedInputStream(socket.getInputStream());
+        in.mark(2);
+        int b0 = in.read();
+        int b1 = in.read();
+        if (b0 < 0 || b1 < 0) {
+            throw new EOFException("Conexión cerrada antes del handshake");
+        }
+        in.reset();
+
+        if (WireProtocol.isLegacyHeader(b0, b1)) {
+            PacketStream stream = new PacketStream(socket, null);
+            stream.objectOut = new ObjectOutputStream(socket.getOutputStream());
+            stream.objectOut.flush();
+            stream.objectIn = new ObjectInputStream(in);
+            return stream;
+        }
+
+        DataInputStream dataIn = new DataInputStream(in);
+        byte codecId = readHandshake(dataIn);
+        PacketCodec codec = PacketCodec.forId(codecId);
+        if (codec == null) {
+            // Codec desconocido: respondemos con el codec por defecto
+            codec = JavaPacketCodec.INSTANCE;
+        }
+        PacketStream stream = new PacketStream(socket, codec);
+        stream.dataIn = dataIn;
+        stream.dataOut = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+        stream.dataOut.write(WireProtocol.handshake(codec.id()));
+        stream.dataOut.flush();
+        return stream;
+    }
+
+    /**
+     * Lado cliente: intenta el protocolo de tramas con el codec preferido y compresión y, si el
+     * servidor responde con la cabecera del protocolo antiguo, reconecta usando ObjectOutputStream.
+     */
+    public static PacketStream connect(String host, int port) throws IOException {
+        return connect(host, port, PacketCodec.preferred(), true);
+    }
+
+    /**
+     * Lado cliente: ofrece el codec indicado; el servidor responde con el que va a usar
+     */
+    public static PacketStream connect(String host, int port, PacketCodec offered) throws IOException {
+        return connect(host, port, offered, false);
+    }
+
+    /**
+     * Lado cliente: ofrece el codec indicado, comprimido si compress. Un servidor que no conoce
+     * la compresión responde con otro codec base: entonces se reconecta ofreciendo solo el codec.
+     */
+    public static PacketStream connect(String host, int port, PacketCodec offered, boolean compress) throws IOException {
+        byte offeredId = compress ? (byte) (offered.id() | DeflatePacketCodec.FLAG) : offered.id();
+        Socket socket = new Socket(host, port);
+        try {
+            DataOutputStream out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+            out.write(WireProtocol.handshake(offeredId));
+            out.flush();
+
+            socket.setSoTimeout(HANDSHAKE_TIMEOUT_MS);
+            DataInputStream in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+            byte codecId = readHandshake(in);
+            socket.setSoTimeout(0);
+
+            if (compress && codecId != offeredId && codecId != offered.id()) {
+                // Servidor anterior a la compresión: no reconoció el codec pedido
+                socket.close();
+                System.out.println("ℹ️ El servidor no soporta compresión, reconectando sin ella");
+                return connect(host, port, offered, false);
+            }
+            PacketCodec codec = PacketCodec.forId(codecId);
+            if (codec == null) {
+                throw new IOException("El servidor eligió un codec no soportado: " + codecId);
+            }
+            PacketStream stream = new PacketStream(socket, codec);
+            stream.dataOut = out;
+            stream.dataIn = in;
+            return stream;
+        } catch (IOException e) {
+            // Servidor antiguo (o handshake fallido): volvemos al protocolo original
+            try { socket.close(); } catch (IOException ignored) { /* ignore */ }
+            System.out.println("ℹ️ Handshake no soportado por el servidor, usando protocolo clásico: " + e.getMessage());
+            return connectLegacy(host, port);
+        }
+    }
+
+    /**
+     * Lado cliente: conexión con el protocolo antiguo (ObjectOutputStream continuo)
+     */
+    public static PacketStream connectLegacy(String host, int port) throws IOException {
+        Socket socket = new Socket(host, port);
+        PacketStream stream = new PacketStream(socket, null);
+        stream.objectOut = new ObjectOutputStream(socket.getOutputStream());
+        stream.objectIn = new ObjectInputStream(socket.getInputStream());
+        return stream;
+    }
+
+    private static byte readHandshake(DataInputStream in) throws IOException {
+        int magic = in.readInt();
+        if (magic != WireProtocol.MAGIC) {
+            throw new IOException("Handshake inválido");
+        }
+        byte version = in.readByte();
+        if (version != WireProtocol.VERSION) {
+            throw new IOException("Versión de protocolo no soportada: " + version);
+        }
+        return in.readByte();
+    }
+
+    public void writePacket(Packet packet) throws IOException {
+        writeLock.lock();
+        try {
+            if (codec == null) {
+                objectOut.writeObject(packet);
+                objectOut.flush();
+            } else {
+                byte[] body = codec.encode(packet);
+                WireProtocol.writeFrame(dataOut, body, 0, body.length);
+                dataOut.flush();
+            }
+        } finally {
+            writeLock.unlock();
+        }
+    }
+
+    /**
+     * Escribe un paquete ya codificado: con tramas reutiliza los bytes compartidos,
+     * con el protocolo clásico lo serializa como siempre.
+     */
+    public void writeEncoded(EncodedPacket encoded) throws IOException {
+        if (codec == null) {
+            writePacket(encoded.getPacket());
+            return;
+        }
+        byte[] frame = encoded.frameBytes(codec);
+        writeLock.lock();
+        try {
+            dataOut.write(frame);
+            dataOut.flush();
+        } finally {
+            writeLock.unlock();
+        }
+    }
+
+    /**
+     * Escribe varios paquetes seguidos con un solo flush. Con tramas se copian a un buffer
+     * contiguo y salen en una única escritura al socket (un segmento TCP lleno en lugar de
+     * uno por paquete); cada trama sigue siendo independiente, el receptor no nota nada.
+     */
+    public void writeBatch(List<EncodedPacket> packets) throws IOException {
+        writeLock.lock();
+        try {
+            if (codec == null) {
+                for (EncodedPacket encoded : packets) {
+                    objectOut.writeObject(encoded.getPacket());
+                }
+                objectOut.flush();
+                return;
+            }
+            int total = 0;
+            for (EncodedPacket encoded : packets) {
+                total += encoded.frameBytes(codec).length;
+            }
+            if (total > MAX_BATCH_BUFFER) {
+                // Tanda con tramas grandes (audio): no merece copiarlas, las grandes van directas
+                for (EncodedPacket encoded : packets) {
+                    dataOut.write(encoded.frameBytes(codec));
+                }
+                dataOut.flush();
+                return;
+            }
+            if (batchBuffer == null || batchBuffer.length < total) {
+                batchBuffer = new byte[Math.max(total, 8192)];
+            }
+            int pos = 0;
+            for (EncodedPacket encoded : packets) {
+                byte[] frame = encoded.frameBytes(codec);
+                System.arraycopy(frame, 0, batchBuffer, pos, frame.length);
+                pos += frame.length;
+            }
+            // Mayor que el buffer de BufferedOutputStream: va directo al socket
+            dataOut.write(batchBuffer, 0, pos);
+            dataOut.flush();
+        } finally {
+            writeLock.unlock();
+        }
+    }
+
+    /**
+     * Escribe una trama cuyo final sale directamente de un archivo: primero la cabecera ya
+     * codificada y luego count bytes del archivo con transferTo, sin pasar por el heap.
+     * Si el socket tiene canal NIO el kernel copia los bytes (sendfile); si no, el JDK usa
+     * un buffer temporal pequeño.
+     */
+    public void writeFileRegion(byte[] header, FileChannel file, long position, long count) throws IOException {
+        if (codec == null) {
+            throw new IOException("El protocolo clásico no admite tramas con datos de archivo");
+        }
+        writeLock.lock();
+        try {
+            dataOut.write(header);
+            dataOut.flush();
+            WritableByteChannel target = socket.getChannel() != null ? socket.getChannel() : Channels.newChannel(socket.getOutputStream());
+            long sent = 0;
+            while (sent < count) {
+                long n = file.transferTo(position + sent, count - sent, target);
+                if (n <= 0 && file.size() < position + count) {
+                    throw new IOException("El archivo se acortó durante el envío");
+                }
+                sent += n;
+            }
+        } finally {
+            writeLock.unlock();
+        }
+    }
+
+    public Packet readPacket() throws IOException, ClassNotFoundException {
+        return readPacket(WireProtocol.MAX_FRAME_LENGTH);
+    }
+
+    /**
+     * Lee un paquete rechazando tramas de más de maxFrameLength bytes (el protocolo clásico no
+     * tiene tramas: ahí no se aplica)
+     */
+    public Packet readPacket(int maxFrameLength) throws IOException, ClassNotFoundException {
+        if (codec == null) {
+            return (Packet) objectIn.readObject();
+        }
+        byte[] body = WireProtocol.readFrame(dataIn, maxFrameLength);
+        return codec.decode(body, 0, body.length);
+    }
+
+    public boolean isFramed() {
+        return codec != null;
+    }
+
+    /**
+     * Descripción del protocolo negociado, para los logs
+     */
+    public String describeProtocol() {
+        return codec == null ? "protocolo clásico" : "protocolo de tramas, codec " + codec.name();
+    }
+
+    public PacketCodec getCodec() {
+        return codec;
+    }
+
+    public Socket getSocket() {
+        return socket;
+    }
+
+    @Override
+    public void close() throws IOException {
+        socket.close();
+    }
+}
@@ -0,0 +1,114 @@
+package com.universidad.chat.comun.protocol;
+
+import com.universidad.chat.comun.dto.Packet;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * Constantes y utilidades del protocolo de tramas (framed) entre cliente y servidor.
+ *
+ * Formato del handshake (lo envía primero el cliente, el servidor responde igual):
+ *   [MAGIC 4 bytes "CHAT"][VERSION 1 byte][CODEC 1 byte]
+ *
+ * El cliente indica el codec que prefiere; el servidor responde con el codec que usará
+ * la conexión (el mismo si lo soporta, o JavaPacketCodec si no lo conoce).
+ * El bit {@link DeflatePacketCodec#FLAG} del codec pide comprimir las tramas.
+ *
+ * Formato de cada trama después del handshake:
+ *   [LONGITUD 4 bytes big-endian][CUERPO codificado por el PacketCodec]
+ *
+ * Un cliente antiguo empieza directamente con la cabecera de ObjectOutputStream (0xACED),
+ * lo que permite al servidor distinguir ambos formatos leyendo los dos primeros bytes.
+ */
+public final class WireProtocol {
+
+    public static final int MAGIC = 0x43484154; // "CHAT"
+    public static final byte VERSION = 1;
+    public static final int HANDSHAKE_LENGTH = 6;
+
+    // Cabecera de un stream de ObjectOutputStream (protocolo antiguo)
+    public static final byte LEGACY_HEADER_0 = (byte) 0xAC;
+    public static final byte LEGACY_HEADER_1 = (byte) 0xED;
+
+    // Tamaño máximo de una trama (los audios viajan dentro de los paquetes)
+    public static final int MAX_FRAME_LENGTH = 32 * 1024 * 1024;
+    // Tamaño máximo de una trama de un cliente aún sin autenticar (registro y login son pequeños)
+    public static final int MAX_PRE_LOGIN_FRAME_LENGTH = 64 * 1024;
+
+    private WireProtocol() {}
+
+    /**
+     * Indica si los dos primeros bytes corresponden al protocolo antiguo (ObjectOutputStream)
+     */
+    public static boolean isLegacyHeader(int b0, int b1) {
+        return (byte) b0 == LEGACY_HEADER_0 && (byte) b1 == LEGACY_HEADER_1;
+    }
+
+    /**
+     * Construye el handshake para el codec indicado
+     */
+    public static byte[] handshake(byte codecId) {
+        ByteBuffer buffer = ByteBuffer.allocate(HANDSHAKE_LENGTH);
+        buffer.putInt(MAGIC);
+        buffer.put(VERSION);
+        buffer.put(codecId);
+        return buffer.array();
+    }
+
+    /**
+     * Valida que la longitud declarada de una trama sea aceptable
+     */
+    public static void checkFrameLength(int length) throws IOException {
+        checkFrameLength(length, MAX_FRAME_LENGTH);
+    }
+
+    /**
+     * Valida la longitud declarada de una trama contra un máximo propio de la conexión
+     */
+    public static void checkFrameLength(int length, int maxLength) throws IOException {
+        if (length < 0 || length > maxLength) {
+            throw new IOException("Longitud de trama inválida: " + length + " (máximo " + maxLength + ")");
+        }
+    }
+
+    /**
+     * Escribe una trama completa (longitud + cuerpo) en el stream
+     */
+    public static void writeFrame(DataOutputStream out, byte[] body, int offset, int length) throws IOException {
+        out.writeInt(length);
+        out.write(body, offset, length);
+    }
+
+    /**
+     * Lee una trama completa y devuelve su cuerpo
+     */
+    public static byte[] readFrame(DataInputStream in) throws IOException {
+        return readFrame(in, MAX_FRAME_LENGTH);
+    }
+
+    /**
+     * Lee una trama completa de como mucho maxLength bytes y devuelve su cuerpo
+     */
+    public static byte[] readFrame(DataInputStream in, int maxLength) throws IOException {
+        int length = in.readInt();
+        checkFrameLength(length, maxLength);
+        byte[] body = new byte[length];
+        in.readFully(body);
+        return body;
+    }
+
+    /**
+     * Codifica un paquete como trama lista para escribir en un canal NIO
+     */
+    public static ByteBuffer encodeFrame(PacketCodec codec, Packet packet) throws IOException {
+        byte[] body = codec.encode(packet);
+        ByteBuffer frame = ByteBuffer.allocate(4 + body.length);
+        frame.putInt(body.length);
+        frame.put(body);
+        frame.flip();
+        return frame;
+    }
+}
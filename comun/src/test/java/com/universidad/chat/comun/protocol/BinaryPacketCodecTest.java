@@ -0,0 +1,309 @@
+package com.universidad.chat.comun.protocol;
+
+import com.universidad.chat.comun.dto.ActionType;
+import com.universidad.chat.comun.dto.AudioChunkDTO;
+import com.universidad.chat.comun.dto.AudioDataDTO;
+import com.universidad.chat.comun.dto.AudioRequestDTO;
+import com.universidad.chat.comun.dto.AudioUploadDTO;
+import com.universidad.chat.comun.dto.ChannelDTO;
+import com.universidad.chat.comun.dto.FederatedMessageDTO;
+import com.universidad.chat.comun.dto.InvitationDTO;
+import com.universidad.chat.comun.dto.LoginSuccessDTO;
+import com.universidad.chat.comun.dto.MessageDTO;
+import com.universidad.chat.comun.dto.MessageHistoryDTO;
+import com.universidad.chat.comun.dto.Packet;
+import com.universidad.chat.comun.dto.PresenceDeltaDTO;
+import com.universidad.chat.comun.dto.ServerInfoDTO;
+import com.universidad.chat.comun.dto.ServerTopologyDTO;
+import com.universidad.chat.comun.dto.ServerUserListDTO;
+import com.universidad.chat.comun.dto.UserDTO;
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.io.Serializable;
+import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.fail;
+
+class BinaryPacketCodecTest {
+
+    private final BinaryPacketCodec codec = BinaryPacketCodec.INSTANCE;
+
+    // ==================== IDA Y VUELTA ====================
+
+    @Test
+    void valoresSimples() throws Exception {
+        assertRoundTrip(new Packet(ActionType.SERVER_HEARTBEAT, null));
+        assertRoundTrip(new Packet(ActionType.LOGIN_FAILURE, "Contraseña incorrecta ñ €"));
+        assertRoundTrip(new Packet(ActionType.LOGIN_FAILURE, ""));
+        assertRoundTrip(new Packet(ActionType.INVITE_SUCCESS, Boolean.TRUE));
+        assertRoundTrip(new Packet(ActionType.INVITE_SUCCESS, Integer.MIN_VALUE));
+        assertRoundTrip(new Packet(ActionType.INVITE_SUCCESS, Long.MAX_VALUE));
+        assertRoundTrip(new Packet(ActionType.USER_LIST_UPDATE, List.of("ana", "luis")));
+        assertRoundTrip(new Packet(ActionType.USER_LIST_UPDATE, List.of()));
+        assertRoundTrip(new Packet(ActionType.USER_LIST_UPDATE, Arrays.asList("ana", null, 7, List.of("x"))));
+    }
+
+    @Test
+    void usuarioYMensaje() throws Exception {
+        assertRoundTrip(new Packet(ActionType.LOGIN_REQUEST, user("ana")));
+        assertRoundTrip(new Packet(ActionType.LOGIN_REQUEST, new UserDTO()));
+        assertRoundTrip(new Packet(ActionType.NEW_MESSAGE, message("ana", "luis", "hola")));
+        assertRoundTrip(new Packet(ActionType.NEW_MESSAGE, new MessageDTO()));
+
+        MessageDTO audio = message("ana", "#general", MessageDTO.TRANSCRIPCION_EN_CURSO);
+        audio.setAudioMessage(true);
+        audio.setAudioFileName("ana_123.wav");
+        audio.setAudioDataBase64("UklGRg==");
+        assertRoundTrip(new Packet(ActionType.NEW_MESSAGE, audio));
+    }
+
+    @Test
+    void federacion() throws Exception {
+        FederatedMessageDTO f = new FederatedMessageDTO();
+        f.setOriginServerIP("10.0.0.1");
+        f.setOriginServerName("servidor-a");
+        f.setMessage(message("ana", "luis", "hola"));
+        f.setRequiresAudioData(true);
+        f.setMessageId("servidor-a:1:42");
+        assertRoundTrip(new Packet(ActionType.FEDERATED_MESSAGE, f));
+        assertRoundTrip(new Packet(ActionType.FEDERATED_MESSAGE, new FederatedMessageDTO()));
+
+        ServerUserListDTO l = new ServerUserListDTO();
+        l.setServerIP("10.0.0.1");
+        l.setServerName("servidor-a");
+        l.setUsernames(List.of("ana", "luis"));
+        assertRoundTrip(new Packet(ActionType.SERVER_USER_LIST_SYNC, l));
+        assertRoundTrip(new Packet(ActionType.SERVER_USER_LIST_SYNC, new ServerUserListDTO()));
+
+        assertRoundTrip(new Packet(ActionType.SERVER_REGISTER, serverInfo("servidor-a")));
+
+        ServerTopologyDTO t = new ServerTopologyDTO();
+        t.setServers(List.of(serverInfo("servidor-a"), serverInfo("servidor-b")));
+        assertRoundTrip(new Packet(ActionType.SERVER_TOPOLOGY_SYNC, t));
+        assertRoundTrip(new Packet(ActionType.SERVER_TOPOLOGY_SYNC, new ServerTopologyDTO()));
+
+        PresenceDeltaDTO p = new PresenceDeltaDTO();
+        p.setSeq(17);
+        p.setJoined(List.of("ana"));
+        p.setLeft(List.of("luis", "eva"));
+        assertRoundTrip(new Packet(ActionType.SERVER_PRESENCE_DELTA, p));
+        p.setSnapshot(true);
+        p.setLeft(List.of());
+        assertRoundTrip(new Packet(ActionType.USER_PRESENCE_DELTA, p));
+        assertRoundTrip(new Packet(ActionType.USER_PRESENCE_DELTA, new PresenceDeltaDTO()));
+    }
+
+    @Test
+    void canalesEInvitaciones() throws Exception {
+        InvitationDTO i = new InvitationDTO();
+        i.setInviterUsername("ana");
+        i.setInvitedUsername("luis");
+        i.setChannelName("#general");
+        i.setAccepted(true);
+        assertRoundTrip(new Packet(ActionType.INVITATION_RESPONSE, i));
+
+        ChannelDTO c = new ChannelDTO();
+        c.setChannelName("#general");
+        c.setCreatorUsername("ana");
+        assertRoundTrip(new Packet(ActionType.CREATE_CHANNEL_REQUEST, c));
+    }
+
+    @Test
+    void loginEHistorial() throws Exception {
+        assertRoundTrip(new Packet(ActionType.LOGIN_SUCCESS,
+                new LoginSuccessDTO(user("ana"), List.of("ana", "luis"), List.of("#general"), 9)));
+        assertRoundTrip(new Packet(ActionType.LOGIN_SUCCESS, new LoginSuccessDTO(null, null, null, 0)));
+
+        List<MessageDTO> mensajes = new ArrayList<>();
+        mensajes.add(message("ana", "luis", "uno"));
+        mensajes.add(null);
+        mensajes.add(message("luis", "ana", "dos"));
+        MessageHistoryDTO h = assertHistoryRoundTrip(new MessageHistoryDTO("luis", mensajes, 120L, 200L));
+        assertEquals(mensajes, h.getMessages());
+
+        h = assertHistoryRoundTrip(new MessageHistoryDTO("#general", null, null, null));
+        assertNull(h.getMessages());
+    }
+
+    @Test
+    void audio() throws Exception {
+        AudioRequestDTO r = new AudioRequestDTO();
+        r.setFileName("ana_123.wav");
+        assertRoundTrip(new Packet(ActionType.DOWNLOAD_AUDIO_REQUEST, r));
+
+        AudioUploadDTO u = new AudioUploadDTO();
+        u.setUploadId("u-1");
+        u.setTotalSize(1_000_000);
+        u.setOffset(65_536);
+        u.setFileName("ana_123.wav");
+        u.setError(null);
+        assertRoundTrip(new Packet(ActionType.AUDIO_UPLOAD_STATUS, u));
+
+        AudioChunkDTO chunk = new AudioChunkDTO();
+        chunk.setUploadId("u-1");
+        chunk.setOffset(65_536);
+        chunk.setData(bytes(4096));
+        assertRoundTrip(new Packet(ActionType.AUDIO_UPLOAD_CHUNK, chunk));
+        assertRoundTrip(new Packet(ActionType.AUDIO_UPLOAD_CHUNK, new AudioChunkDTO()));
+
+        AudioDataDTO d = new AudioDataDTO();
+        d.setFileName("ana_123.wav");
+        d.setOffset(4096);
+        d.setLength(3000);
+        d.setTotalSize(10_000);
+        d.setData(bytes(3000));
+        assertRoundTrip(new Packet(ActionType.AUDIO_DOWNLOAD_DATA, d));
+        assertRoundTrip(new Packet(ActionType.AUDIO_DOWNLOAD_RANGE, new AudioDataDTO()));
+    }
+
+    @Test
+    void payloadSinCodificadorPropioUsaJava() throws Exception {
+        assertRoundTrip(new Packet(ActionType.NEW_MESSAGE, new Otro("x", 3)));
+    }
+
+    @Test
+    void cabeceraDeAudioMasBytesDelArchivoEsUnaTramaNormal() throws Exception {
+        AudioDataDTO meta = new AudioDataDTO();
+        meta.setFileName("ana_123.wav");
+        meta.setOffset(100);
+        meta.setLength(500);
+        meta.setTotalSize(2000);
+        byte[] data = bytes(500);
+
+        byte[] header = codec.encodeAudioDataHeader(meta);
+        byte[] frame = Arrays.copyOf(header, header.length + data.length);
+        System.arraycopy(data, 0, frame, header.length, data.length);
+
+        Packet packet = codec.decode(frame, 4, frame.length - 4);
+        assertEquals(ActionType.AUDIO_DOWNLOAD_DATA, packet.getAction());
+        meta.setData(data);
+        assertEquals(meta, packet.getPayload());
+    }
+
+    // ==================== TRAMAS MAL FORMADAS ====================
+
+    @Test
+    void accionOTipoDesconocidos() {
+        assertMalformed(new byte[] {(byte) 250, 0});
+        assertMalformed(new byte[] {0, 99});
+        assertMalformed(new byte[0]);
+        assertMalformed(new byte[] {0});
+    }
+
+    @Test
+    void numeroDeElementosNegativoOEnorme() {
+        // T_LIST con el marcador de null y con un varint que da un número negativo
+        assertMalformed(new byte[] {0, 5, 0x00});
+        assertMalformed(new byte[] {0, 5, (byte) 0x80, (byte) 0x80, (byte) 0x80, (byte) 0x80, 0x0F});
+        // Más elementos de los que caben en lo que queda de trama
+        assertMalformed(new byte[] {0, 5, (byte) 0xFF, (byte) 0xFF, (byte) 0xFF, 0x7F});
+        // Historial, topología y lista de usuarios con 1.000.000 de elementos
+        assertMalformed(new byte[] {0, 20, 0, (byte) 0xC1, (byte) 0x84, 0x3D});
+        assertMalformed(new byte[] {0, 15, (byte) 0xC1, (byte) 0x84, 0x3D});
+        assertMalformed(new byte[] {0, 13, 0, 0, (byte) 0xC1, (byte) 0x84, 0x3D});
+    }
+
+    @Test
+    void longitudesNegativasOMayoresQueLaTrama() {
+        assertMalformed(new byte[] {0, 1, (byte) 0x80, (byte) 0x80, (byte) 0x80, (byte) 0x80, 0x0F});
+        assertMalformed(new byte[] {0, 1, 0x10, 'a', 'b'});
+        assertMalformed(new byte[] {0, 127, (byte) 0xFF, (byte) 0xFF, 0x7F});
+        assertMalformed(new byte[] {0, 1, (byte) 0xFF, (byte) 0xFF, (byte) 0xFF, (byte) 0xFF, (byte) 0xFF});
+    }
+
+    @Test
+    void cualquierTramaCortadaFallaConIOException() throws Exception {
+        FederatedMessageDTO f = new FederatedMessageDTO();
+        f.setOriginServerName("servidor-a");
+        f.setMessage(message("ana", "luis", "hola"));
+        f.setMessageId("servidor-a:1:42");
+        List<Packet> packets = List.of(
+                new Packet(ActionType.FEDERATED_MESSAGE, f),
+                new Packet(ActionType.LOGIN_SUCCESS, new LoginSuccessDTO(user("ana"), List.of("ana"), List.of("#g"), 1)),
+                new Packet(ActionType.MESSAGE_HISTORY, new MessageHistoryDTO("luis", List.of(message("a", "b", "c")), 1L, null)));
+        for (Packet packet : packets) {
+            byte[] body = codec.encode(packet);
+            for (int length = 0; length < body.length; length++) {
+                byte[] truncated = Arrays.copyOf(body, length);
+                assertMalformed(truncated);
+            }
+        }
+    }
+
+    // ==================== AUXILIARES ====================
+
+    private void assertRoundTrip(Packet packet) throws Exception {
+        byte[] body = codec.encode(packet);
+        Packet decoded = codec.decode(body, 0, body.length);
+        assertEquals(packet.getAction(), decoded.getAction());
+        assertEquals(packet.getPayload(), decoded.getPayload());
+    }
+
+    private MessageHistoryDTO assertHistoryRoundTrip(MessageHistoryDTO history) throws Exception {
+        byte[] body = codec.encode(new Packet(ActionType.MESSAGE_HISTORY, history));
+        Packet decoded = codec.decode(body, 0, body.length);
+        assertEquals(ActionType.MESSAGE_HISTORY, decoded.getAction());
+        MessageHistoryDTO h = (MessageHistoryDTO) decoded.getPayload();
+        assertEquals(history.getChatId(), h.getChatId());
+        assertEquals(history.getNextCursor(), h.getNextCursor());
+        assertEquals(history.getBeforeCursor(), h.getBeforeCursor());
+        return h;
+    }
+
+    private void assertMalformed(byte[] body) {
+        try {
+            Packet packet = codec.decode(body, 0, body.length);
+            fail("Se decodificó una trama mal formada " + Arrays.toString(body) + ": " + packet);
+        } catch (IOException e) {
+            // Esperado
+        } catch (Exception e) {
+            fail("Trama mal formada " + Arrays.toString(body) + " lanzó " + e, e);
+        }
+    }
+
+    static UserDTO user(String username) {
+        UserDTO u = new UserDTO();
+        u.setUsername(username);
+        u.setEmail(username + "@universidad.edu");
+        u.setServerIP("10.0.0.1");
+        u.setServerName("servidor-a");
+        return u;
+    }
+
+    static MessageDTO message(String sender, String recipient, String content) {
+        MessageDTO m = new MessageDTO();
+        m.setSender(sender);
+        m.setRecipient(recipient);
+        m.setContent(content);
+        m.setTimestamp(LocalDateTime.of(2024, 5, 17, 10, 30, 15, 123_456_789));
+        return m;
+    }
+
+    private static ServerInfoDTO serverInfo(String name) {
+        ServerInfoDTO s = new ServerInfoDTO();
+        s.setServerName(name);
+        s.setIpAddress("10.0.0.1");
+        s.setClientPort(5000);
+        s.setFederationPort(5001);
+        s.setConnectedClients(12);
+        s.setTimestamp(1_700_000_000_000L);
+        return s;
+    }
+
+    static byte[] bytes(int length) {
+        byte[] data = new byte[length];
+        for (int i = 0; i < length; i++) {
+            data[i] = (byte) (i * 31 + 7);
+        }
+        return data;
+    }
+
+    private record Otro(String nombre, int valor) implements Serializable {
+    }
+}
@@ -0,0 +1,152 @@
+package com.universidad.chat.comun.protocol;
+
+import com.universidad.chat.comun.dto.ActionType;
+import com.universidad.chat.comun.dto.AudioDataDTO;
+import com.universidad.chat.comun.dto.MessageDTO;
+import com.universidad.chat.comun.dto.Packet;
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.zip.Deflater;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class DeflatePacketCodecTest {
+
+    private final DeflatePacketCodec codec = new DeflatePacketCodec(BinaryPacketCodec.INSTANCE);
+
+    @Test
+    void negociacion() {
+        assertEquals(BinaryPacketCodec.ID | DeflatePacketCodec.FLAG, codec.id());
+        assertTrue(DeflatePacketCodec.isCompressed(codec.id()));
+        PacketCodec negociado = PacketCodec.forId(codec.id());
+        assertTrue(negociado instanceof DeflatePacketCodec);
+        assertEquals(BinaryPacketCodec.INSTANCE, ((DeflatePacketCodec) negociado).getBase());
+        assertNull(PacketCodec.forId((byte) (0x33 | DeflatePacketCodec.FLAG)));
+    }
+
+    @Test
+    void tramasPequenasViajanSinComprimir() throws Exception {
+        Packet packet = new Packet(ActionType.NEW_MESSAGE, BinaryPacketCodecTest.message("ana", "luis", "hola"));
+        byte[] body = codec.encode(packet);
+        assertEquals(0, body[0]);
+        assertArrayEquals(BinaryPacketCodec.INSTANCE.encode(packet), Arrays.copyOfRange(body, 1, body.length));
+        assertEquals(packet, codec.decode(body, 0, body.length));
+    }
+
+    @Test
+    void tramasGrandesSeComprimen() throws Exception {
+        MessageDTO m = BinaryPacketCodecTest.message("ana", "#general", "texto repetido ".repeat(500));
+        Packet packet = new Packet(ActionType.NEW_MESSAGE, m);
+        byte[] raw = BinaryPacketCodec.INSTANCE.encode(packet);
+        byte[] body = codec.encode(packet);
+        assertEquals(1, body[0]);
+        assertEquals(raw.length, ByteBuffer.wrap(body, 1, 4).getInt());
+        assertTrue(body.length < raw.length / 10);
+        assertEquals(packet, codec.decode(body, 0, body.length));
+        assertEquals(1L, codec.getStats().toMap().get("compressedOut"));
+        assertEquals(1L, codec.getStats().toMap().get("compressedIn"));
+    }
+
+    @Test
+    void loQueNoEncogeViajaSinComprimir() throws Exception {
+        byte[] ruido = new byte[8192];
+        new Random(42).nextBytes(ruido);
+        AudioDataDTO d = new AudioDataDTO();
+        d.setFileName("ana_123.wav");
+        d.setLength(ruido.length);
+        d.setData(ruido);
+        Packet packet = new Packet(ActionType.AUDIO_DOWNLOAD_DATA, d);
+        byte[] body = codec.encode(packet);
+        assertEquals(0, body[0]);
+        assertEquals(packet, codec.decode(body, 0, body.length));
+    }
+
+    @Test
+    void tramaSinComprimirConDatosDeArchivo() throws Exception {
+        AudioDataDTO meta = new AudioDataDTO();
+        meta.setFileName("ana_123.wav");
+        meta.setOffset(0);
+        meta.setLength(3000);
+        meta.setTotalSize(3000);
+        byte[] data = BinaryPacketCodecTest.bytes(3000);
+
+        byte[] header = DeflatePacketCodec.uncompressedFrameHeader(BinaryPacketCodec.INSTANCE.encodeAudioDataHeader(meta));
+        byte[] frame = Arrays.copyOf(header, header.length + data.length);
+        System.arraycopy(data, 0, frame, header.length, data.length);
+        assertEquals(frame.length - 4, ByteBuffer.wrap(frame).getInt());
+
+        Packet packet = codec.decode(frame, 4, frame.length - 4);
+        meta.setData(data);
+        assertEquals(new Packet(ActionType.AUDIO_DOWNLOAD_DATA, meta), packet);
+    }
+
+    @Test
+    void tramasMalFormadas() {
+        assertThrows(IOException.class, () -> codec.decode(new byte[0], 0, 0));
+        assertThrows(IOException.class, () -> codec.decode(new byte[] {7, 0, 0}, 0, 3));
+        assertThrows(IOException.class, () -> codec.decode(new byte[] {1, 0, 0}, 0, 3));
+        // Datos que no son Deflate
+        byte[] basura = {1, 0, 0, 0, 10, 1, 2, 3, 4, 5};
+        assertThrows(IOException.class, () -> codec.decode(basura, 0, basura.length));
+    }
+
+    @Test
+    void longitudDeclaradaIncorrecta() throws Exception {
+        byte[] raw = BinaryPacketCodec.INSTANCE.encode(
+                new Packet(ActionType.LOGIN_FAILURE, "x".repeat(2000)));
+        byte[] comprimido = deflate(raw);
+
+        // Más corta o más larga que lo que sale al descomprimir
+        byte[] corta = frame(raw.length - 1, comprimido);
+        assertThrows(IOException.class, () -> codec.decode(corta, 0, corta.length));
+        byte[] larga = frame(raw.length + 1, comprimido);
+        assertThrows(IOException.class, () -> codec.decode(larga, 0, larga.length));
+
+        // Negativa o imposible para el tamaño comprimido: se rechaza sin reservar memoria
+        byte[] negativa = frame(-1, comprimido);
+        assertThrows(IOException.class, () -> codec.decode(negativa, 0, negativa.length));
+        byte[] enorme = frame(WireProtocol.MAX_FRAME_LENGTH, new byte[] {3, 0});
+        assertThrows(IOException.class, () -> codec.decode(enorme, 0, enorme.length));
+
+        // Cortada a mitad del stream Deflate
+        byte[] entera = frame(raw.length, comprimido);
+        byte[] cortada = Arrays.copyOf(entera, entera.length - 3);
+        assertThrows(IOException.class, () -> codec.decode(cortada, 0, cortada.length));
+
+        assertEquals(new Packet(ActionType.LOGIN_FAILURE, "x".repeat(2000)), codec.decode(entera, 0, entera.length));
+    }
+
+    @Test
+    void descomprimeTramasQueCrecenMasQueElBufferInicial() throws Exception {
+        // ~1 MB de ceros: muy por encima del buffer inicial, pero dentro de la proporción de Deflate
+        AudioDataDTO d = new AudioDataDTO();
+        d.setFileName("silencio.wav");
+        d.setData(new byte[1024 * 1024]);
+        Packet packet = new Packet(ActionType.AUDIO_DOWNLOAD_DATA, d);
+        byte[] body = codec.encode(packet);
+        assertEquals(1, body[0]);
+        assertEquals(packet, codec.decode(body, 0, body.length));
+    }
+
+    private static byte[] deflate(byte[] raw) {
+        Deflater deflater = new Deflater(Deflater.BEST_SPEED);
+        deflater.setInput(raw);
+        deflater.finish();
+        byte[] out = new byte[raw.length + 64];
+        int n = deflater.deflate(out);
+        deflater.end();
+        return Arrays.copyOf(out, n);
+    }
+
+    private static byte[] frame(int rawLength, byte[] deflated) {
+        return ByteBuffer.allocate(5 + deflated.length).put((byte) 1).putInt(rawLength).put(deflated).array();
+    }
+}
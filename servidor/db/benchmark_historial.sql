@@ -0,0 +1,116 @@
+-- ==================================
+-- BENCHMARK DEL HISTORIAL DE MENSAJES (MySQL 8)
+-- ==================================
+-- Uso:
+--   1. Arrancar una vez el servidor contra una BD vacía (p. ej. chat_bench) para que
+--      Hibernate cree las tablas e índices de Mensaje y Canal:
+--        idx_mensajes_canal_id              (receptor_canal_id, id)
+--        idx_mensajes_conversacion_id       (conversacion_privada, id)
+--        idx_mensajes_emisor_conversacion   (emisor_id, conversacion_privada)
+--        idx_mensajes_receptor_conversacion (receptor_usuario_id, conversacion_privada)
+--        idx_mensajes_ruta_audio            (ruta_audio)
+--        idx_miembros_canal_usuario         (usuario_id, canal_id)
+--   2. mysql -u root -p --table -vvv chat_bench < servidor/db/benchmark_historial.sql | tee benchmark_historial.out
+--      (MySQL 8.0.18 o posterior: EXPLAIN ANALYZE; la consulta de login usa LATERAL)
+--
+-- Carga 1.000 usuarios, 100 canales y 10.000.000 de mensajes (70 % privados, 30 % de canal)
+-- y mide con EXPLAIN ANALYZE las lecturas de historial que hace el servidor, cada una junto
+-- a su forma anterior. Para comparar con el esquema anterior, repetir las consultas tras:
+--   ALTER TABLE mensajes DROP INDEX idx_mensajes_conversacion_id, DROP INDEX idx_mensajes_canal_id,
+--     DROP INDEX idx_mensajes_emisor_conversacion, DROP INDEX idx_mensajes_receptor_conversacion;
+
+SET SESSION cte_max_recursion_depth = 10000;
+
+-- ---------- Datos ----------
+INSERT INTO usuarios (nombre_usuario, email, password)
+WITH RECURSIVE n AS (SELECT 1 AS i UNION ALL SELECT i + 1 FROM n WHERE i < 1000)
+SELECT CONCAT('user', i), CONCAT('user', i, '@bench.local'), 'x' FROM n;
+
+INSERT INTO canales (nombre_canal, creador_id, fecha_creacion)
+WITH RECURSIVE n AS (SELECT 1 AS i UNION ALL SELECT i + 1 FROM n WHERE i < 100)
+SELECT CONCAT('#canal', i), (SELECT MIN(id) FROM usuarios), NOW() FROM n;
+
+-- Cada usuario es miembro de 5 canales
+INSERT INTO miembros_canal (canal_id, usuario_id)
+SELECT DISTINCT c.id, u.id
+FROM usuarios u
+JOIN canales c ON MOD(c.id + u.id, 20) = 0;
+
+CREATE TEMPORARY TABLE digitos (d INT PRIMARY KEY);
+INSERT INTO digitos VALUES (0), (1), (2), (3), (4), (5), (6), (7), (8), (9);
+
+SET @u0 = (SELECT MIN(id) FROM usuarios);
+SET @c0 = (SELECT MIN(id) FROM canales);
+
+-- 10^7 filas con un producto cartesiano de 7 tablas de dígitos
+INSERT INTO mensajes (emisor_id, receptor_usuario_id, receptor_canal_id, contenido_texto, timestamp, conversacion_privada)
+SELECT emisor, receptor, canal, 'mensaje de prueba', ts,
+       IF(receptor IS NULL, NULL, CONCAT(LEAST(emisor, receptor), ':', GREATEST(emisor, receptor)))
+FROM (
+    SELECT @u0 + MOD(n * 7919, 1000) AS emisor,
+           IF(MOD(n, 10) < 7, @u0 + MOD(n * 104729, 1000), NULL) AS receptor,
+           IF(MOD(n, 10) < 7, NULL, @c0 + MOD(n, 100)) AS canal,
+           TIMESTAMP('2024-01-01') + INTERVAL n SECOND AS ts
+    FROM (
+        SELECT a.d + 10 * b.d + 100 * c.d + 1000 * d.d + 10000 * e.d + 100000 * f.d + 1000000 * g.d AS n
+        FROM digitos a, digitos b, digitos c, digitos d, digitos e, digitos f, digitos g
+    ) numeros
+) filas;
+
+ANALYZE TABLE mensajes, miembros_canal;
+
+-- ---------- Consultas ----------
+SET @yo = @u0 + 17;
+SET @otro = @u0 + 503;
+SET @canal = @c0 + 3;
+
+-- Login: últimos 51 mensajes de cada conversación (MensajeRepository.findUltimosPorConversacion).
+-- Un LIMIT por conversación sobre (receptor_canal_id, id) / (conversacion_privada, id); las
+-- conversaciones privadas del usuario salen de los índices emisor/receptor + conversación
+EXPLAIN ANALYZE
+SELECT m.* FROM (SELECT mc.canal_id FROM miembros_canal mc WHERE mc.usuario_id = @yo) c
+CROSS JOIN LATERAL (
+  SELECT r.id FROM mensajes r WHERE r.receptor_canal_id = c.canal_id ORDER BY r.id DESC LIMIT 51
+) ultimos JOIN mensajes m ON m.id = ultimos.id
+UNION ALL
+SELECT m.* FROM (
+  SELECT e.conversacion_privada AS clave FROM mensajes e WHERE e.emisor_id = @yo AND e.conversacion_privada IS NOT NULL
+  UNION
+  SELECT d.conversacion_privada FROM mensajes d WHERE d.receptor_usuario_id = @yo AND d.conversacion_privada IS NOT NULL
+) p
+CROSS JOIN LATERAL (
+  SELECT r.id FROM mensajes r WHERE r.conversacion_privada = p.clave ORDER BY r.id DESC LIMIT 51
+) ultimos JOIN mensajes m ON m.id = ultimos.id
+ORDER BY id ASC;
+
+-- Forma anterior de la misma consulta (ROW_NUMBER sobre todo el historial del usuario), para comparar
+EXPLAIN ANALYZE
+SELECT m.* FROM mensajes m JOIN (
+  SELECT r.id, ROW_NUMBER() OVER (
+    PARTITION BY r.receptor_canal_id, r.conversacion_privada ORDER BY r.id DESC) AS rn
+  FROM mensajes r
+  WHERE (r.emisor_id = @yo AND r.receptor_usuario_id IS NOT NULL)
+     OR r.receptor_usuario_id = @yo
+     OR r.receptor_canal_id IN (SELECT mc.canal_id FROM miembros_canal mc WHERE mc.usuario_id = @yo)
+) ultimos ON ultimos.id = m.id
+WHERE ultimos.rn <= 51
+ORDER BY m.id ASC;
+
+-- Página de chat privado (findMessagesByConversacionBefore): rango en idx_mensajes_conversacion_id
+EXPLAIN ANALYZE
+SELECT * FROM mensajes
+WHERE conversacion_privada = CONCAT(LEAST(@yo, @otro), ':', GREATEST(@yo, @otro)) AND id < 9000000
+ORDER BY id DESC LIMIT 51;
+
+-- Forma anterior de la misma consulta (OR de dos pares emisor/receptor), para comparar
+EXPLAIN ANALYZE
+SELECT * FROM mensajes
+WHERE ((emisor_id = @yo AND receptor_usuario_id = @otro) OR (emisor_id = @otro AND receptor_usuario_id = @yo))
+  AND id < 9000000
+ORDER BY id DESC LIMIT 51;
+
+-- Página de canal (findMessagesByCanalBefore): rango en idx_mensajes_canal_id
+EXPLAIN ANALYZE
+SELECT * FROM mensajes
+WHERE receptor_canal_id = @canal AND id < 9000000
+ORDER BY id DESC LIMIT 51;
@@ -3,11 +3,17 @@ package com.universidad.chat.servidor.controller;
 import com.universidad.chat.comun.dto.api.*;
 import com.universidad.chat.servidor.model.Canal;
 import com.universidad.chat.servidor.model.Usuario;
+import com.universidad.chat.servidor.network.FederatedAudioTransfer;
+import com.universidad.chat.servidor.network.OutboundLimits;
 import com.universidad.chat.servidor.network.ServerRegistry;
 import com.universidad.chat.servidor.network.TCPServer;
 import com.universidad.chat.servidor.repository.CanalRepository;
 import com.universidad.chat.servidor.repository.MensajeRepository;
 import com.universidad.chat.servidor.repository.UsuarioRepository;
+import com.universidad.chat.servidor.service.AudioDownloadService;
+import com.universidad.chat.servidor.service.AudioStore;
+import com.universidad.chat.servidor.service.TranscriptionService;
+import com.universidad.chat.servidor.service.MensajeBatchWriter;
 import com.universidad.chat.servidor.service.ServerLogService;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.beans.factory.annotation.Value;
@@ -47,6 +53,24 @@ public class ServerApiController {
     @Autowired
     private ServerLogService logService;
 
+    @Autowired
+    private OutboundLimits outboundLimits;
+
+    @Autowired
+    private MensajeBatchWriter mensajeBatchWriter;
+
+    @Autowired
+    private AudioDownloadService audioDownloadService;
+
+    @Autowired
+    private TranscriptionService transcriptionService;
+
+    @Autowired
+    private AudioStore audioStore;
+
+    @Autowired
+    private FederatedAudioTransfer federatedAudioTransfer;
+
     @Value("${chat.server.name:Servidor-Desconocido}")
     private String serverName;
 
@@ -105,6 +129,7 @@ public class ServerApiController {
         health.put("timestamp", System.currentTimeMillis());
         health.put("uptime", System.currentTimeMillis() - serverStartTime);
         health.put("connections", tcpServer.getClients().size());
+        health.put("transcription", transcriptionService.getHealth());
 
         return ResponseEntity.ok(ApiResponseDTO.success("Server is healthy", health));
     }
@@ -284,6 +309,36 @@ public class ServerApiController {
         }
     }
 
+    /**
+     * GET /api/v1/server/metrics
+     * Métricas internas del servidor (colas de salida de las sesiones, etc.)
+     */
+    @GetMapping("/metrics")
+    public ResponseEntity<ApiResponseDTO<Map<String, Object>>> getMetrics() {
+        try {
+            Map<String, Object> metrics = new LinkedHashMap<>();
+            metrics.put("outbound", outboundLimits.getMetrics());
+            metrics.put("persistence", mensajeBatchWriter.getMetrics());
+            metrics.put("audioDownloads", audioDownloadService.getMetrics());
+            metrics.put("federationRouting", serverRegistry.getRoutingMetrics());
+            metrics.put("federationWriter", serverRegistry.getWriterMetrics());
+            metrics.put("federationHeartbeat", tcpServer.getFederationHeartbeat().getMetrics());
+            metrics.put("federationDedup", tcpServer.getSeenMessageCache().getMetrics());
+            metrics.put("federationOutbox", tcpServer.getFederationOutbox().getMetrics());
+            metrics.put("presence", tcpServer.getPresenceTracker().getMetrics());
+            Map<String, Object> audioStoreMetrics = new LinkedHashMap<>(audioStore.getMetrics());
+            audioStoreMetrics.put("federation", federatedAudioTransfer.getMetrics());
+            metrics.put("audioStore", audioStoreMetrics);
+            metrics.put("transcription", transcriptionService.getMetrics());
+            metrics.put("compression", tcpServer.getCompressionMetrics());
+            return ResponseEntity.ok(ApiResponseDTO.success(metrics));
+        } catch (Exception e) {
+            logService.error("Error al obtener métricas: " + e.getMessage(), "ServerApiController");
+            return ResponseEntity.status(HttpStatus.INTERNAL_SERVER_ERROR)
+                    .body(ApiResponseDTO.error("Error al obtener métricas"));
+        }
+    }
+
     /**
      * GET /api/v1/server/report
      * Genera un reporte completo del servidor
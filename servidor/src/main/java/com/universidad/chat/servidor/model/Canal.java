@@ -26,7 +26,9 @@ public class Canal {
     @JoinTable(
             name = "miembros_canal",
             joinColumns = @JoinColumn(name = "canal_id"),
-            inverseJoinColumns = @JoinColumn(name = "usuario_id")
+            inverseJoinColumns = @JoinColumn(name = "usuario_id"),
+            // Canales de un usuario (login e historial) sin recorrer la tabla
+            indexes = @Index(name = "idx_miembros_canal_usuario", columnList = "usuario_id, canal_id")
     )
     private Set<Usuario> miembros = new HashSet<>();
     
@@ -5,7 +5,17 @@ import lombok.Data;
 import java.time.LocalDateTime;
 
 @Entity
-@Table(name = "mensajes")
+@Table(name = "mensajes", indexes = {
+        // Historial de canal: WHERE receptor_canal_id = ? AND id < ? ORDER BY id DESC
+        @Index(name = "idx_mensajes_canal_id", columnList = "receptor_canal_id, id"),
+        // Historial privado: WHERE conversacion_privada = ? AND id < ? ORDER BY id DESC
+        @Index(name = "idx_mensajes_conversacion_id", columnList = "conversacion_privada, id"),
+        // Conversaciones privadas de un usuario (historial del login) sin leer las filas
+        @Index(name = "idx_mensajes_emisor_conversacion", columnList = "emisor_id, conversacion_privada"),
+        @Index(name = "idx_mensajes_receptor_conversacion", columnList = "receptor_usuario_id, conversacion_privada"),
+        // Transcripción terminada (MensajeBatchWriter): UPDATE ... WHERE ruta_audio = ?
+        @Index(name = "idx_mensajes_ruta_audio", columnList = "ruta_audio")
+})
 @Data
 public class Mensaje {
 
@@ -33,4 +43,13 @@ public class Mensaje {
     // Guardamos la fecha y hora de envío.
     @Column(nullable = false)
     private LocalDateTime timestamp;
+
+    // Clave del chat privado independiente de la dirección ("idMenor:idMayor"), null en canales.
+    // Permite leer una conversación con un solo rango del índice en vez de un OR de dos pares.
+    @Column(name = "conversacion_privada", length = 41)
+    private String conversacionPrivada;
+
+    public static String clavePrivada(Long usuarioA, Long usuarioB) {
+        return Math.min(usuarioA, usuarioB) + ":" + Math.max(usuarioA, usuarioB);
+    }
 }
\ No newline at end of file
@@ -0,0 +1,137 @@
+package com.universidad.chat.servidor.network;
+
+import com.universidad.chat.comun.dto.ActionType;
+import com.universidad.chat.comun.dto.AudioDataDTO;
+import com.universidad.chat.comun.dto.Packet;
+import com.universidad.chat.comun.protocol.EncodedPacket;
+import com.universidad.chat.comun.protocol.PacketCodec;
+import com.universidad.chat.comun.protocol.PacketStream;
+
+import java.io.IOException;
+import java.net.Socket;
+import java.nio.file.Path;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Conexión clásica de un hilo por cliente sobre un {@link PacketStream}.
+ * Acepta tanto clientes antiguos (ObjectOutputStream) como clientes con protocolo de tramas.
+ *
+ * Las escrituras no se hacen en el hilo que llama a sendPacket: se encolan en una
+ * {@link OutboundQueue} acotada y un writer las vacía, así un cliente lento no frena
+ * a quien hace el broadcast.
+ */
+public class BlockingClientConnection implements ClientConnection {
+
+    private final Socket socket;
+    private final PacketStream stream;
+    private final Executor writers;
+    private final OutboundQueue<Object> outbound; // EncodedPacket o FileRegion
+    private final AtomicBoolean writing = new AtomicBoolean();
+
+    public BlockingClientConnection(Socket socket, Executor writers, OutboundLimits limits) throws IOException {
+        this.socket = socket;
+        this.stream = PacketStream.accept(socket);
+        this.writers = writers;
+        this.outbound = new OutboundQueue<>(limits);
+    }
+
+    public Packet readPacket(int maxFrameLength) throws IOException, ClassNotFoundException {
+        return stream.readPacket(maxFrameLength);
+    }
+
+    @Override
+    public void sendPacket(Packet packet) throws IOException {
+        sendEncoded(new EncodedPacket(packet));
+    }
+
+    @Override
+    public void sendEncoded(EncodedPacket packet) throws IOException {
+        if (socket.isClosed()) {
+            throw new IOException("Conexión cerrada");
+        }
+        // Con tramas el tamaño se conoce al codificar (y queda cacheado para el writer);
+        // con el protocolo clásico solo se limita el número de mensajes
+        int size = stream.isFramed() ? packet.frameBytes(stream.getCodec()).length : 0;
+        if (offer(packet, size, packet.getPacket().getAction())) {
+            scheduleDrain();
+        }
+    }
+
+    private boolean offer(Object item, int size, ActionType action) {
+        switch (outbound.offer(item, size, action)) {
+            case DROPPED:
+                System.err.println("⚠️ Cola de salida llena, paquete " + action + " descartado para " + getRemoteAddress());
+                return false;
+            case OVERFLOW:
+                System.err.println("🐢 Cliente lento desconectado (cola de salida llena): " + getRemoteAddress());
+                close();
+                return false;
+            default:
+                return true;
+        }
+    }
+
+    private void scheduleDrain() {
+        if (writing.compareAndSet(false, true)) {
+            writers.execute(this::drainOutbound);
+        }
+    }
+
+    @Override
+    public PacketCodec getCodec() {
+        return stream.getCodec();
+    }
+
+    /**
+     * Con el codec binario (comprimido o no) el rango sale del archivo al socket con transferTo
+     */
+    @Override
+    public boolean sendFileRange(AudioDataDTO meta, Path file) throws IOException {
+        if (socket.isClosed()) {
+            throw new IOException("Conexión cerrada");
+        }
+        byte[] header = FileRegion.audioDataHeader(stream.getCodec(), meta);
+        if (header == null) {
+            return ClientConnection.super.sendFileRange(meta, file);
+        }
+        FileRegion region = new FileRegion(header, file, meta.getOffset(), meta.getLength());
+        if (offer(region, region.headerLength(), ActionType.AUDIO_DOWNLOAD_DATA)) {
+            scheduleDrain();
+        }
+        return true;
+    }
+
+    private void drainOutbound() {
+        do {
+            Object item;
+            while ((item = outbound.poll()) != null) {
+                try {
+                    if (item instanceof FileRegion region) {
+                        region.writeTo(stream);
+                    } else {
+                        stream.writeEncoded((EncodedPacket) item);
+                    }
+                } catch (IOException e) {
+                    System.err.println("❌ Error enviando paquete al cliente " + getRemoteAddress() + ": " + e.getMessage());
+                    close(); // El hilo lector termina y ejecuta onDisconnect
+                    outbound.clear();
+                    writing.set(false);
+                    return;
+                }
+            }
+            writing.set(false);
+        } while (!outbound.isEmpty() && writing.compareAndSet(false, true));
+    }
+
+    @Override
+    public String getRemoteAddress() {
+        return String.valueOf(socket.getInetAddress());
+    }
+
+    @Override
+    public void close() {
+        try { socket.close(); } catch (IOException e) { /* ignore */ }
+        outbound.clear();
+    }
+}
@@ -0,0 +1,74 @@
+package com.universidad.chat.servidor.network;
+
+import com.universidad.chat.comun.dto.ActionType;
+import com.universidad.chat.comun.dto.AudioDataDTO;
+import com.universidad.chat.comun.dto.Packet;
+import com.universidad.chat.comun.protocol.EncodedPacket;
+import com.universidad.chat.comun.protocol.PacketCodec;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * Transporte de una sesión de cliente. Permite que {@link ClientHandler} despache
+ * paquetes igual sin importar si la conexión es bloqueante (un hilo por socket)
+ * o está gestionada por un event loop NIO.
+ */
+public interface ClientConnection {
+
+    /**
+     * Envía un paquete al cliente
+     */
+    void sendPacket(Packet packet) throws IOException;
+
+    /**
+     * Envía un paquete ya codificado, compartido entre varios destinatarios (broadcast)
+     */
+    void sendEncoded(EncodedPacket packet) throws IOException;
+
+    /**
+     * Envía como AUDIO_DOWNLOAD_DATA el rango [offset, offset + length) del archivo que describe meta.
+     * Esta versión lee el rango al heap y lo envía como un paquete normal (codec Java o protocolo
+     * clásico); los transportes con codec binario la sobrescriben para enviarlo sin copia.
+     * @return true si el rango se envió sin pasar por el heap
+     */
+    default boolean sendFileRange(AudioDataDTO meta, Path file) throws IOException {
+        ByteBuffer data = ByteBuffer.allocate(Math.toIntExact(meta.getLength()));
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            while (data.hasRemaining()) {
+                if (channel.read(data, meta.getOffset() + data.position()) < 0) {
+                    throw new EOFException("El archivo " + file.getFileName() + " se acortó durante la lectura");
+                }
+            }
+        }
+        AudioDataDTO response = new AudioDataDTO();
+        response.setFileName(meta.getFileName());
+        response.setOffset(meta.getOffset());
+        response.setLength(meta.getLength());
+        response.setTotalSize(meta.getTotalSize());
+        response.setData(data.array());
+        sendPacket(new Packet(ActionType.AUDIO_DOWNLOAD_DATA, response));
+        return false;
+    }
+
+    /**
+     * Codec negociado, o null con el protocolo clásico o antes del handshake
+     */
+    default PacketCodec getCodec() {
+        return null;
+    }
+
+    /**
+     * Dirección remota del cliente (para logs)
+     */
+    String getRemoteAddress();
+
+    /**
+     * Cierra la conexión con el cliente
+     */
+    void close();
+}
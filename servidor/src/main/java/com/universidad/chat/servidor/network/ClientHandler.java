@@ -1,25 +1,26 @@
 package com.universidad.chat.servidor.network;
 
 import com.universidad.chat.comun.dto.*;
+import com.universidad.chat.comun.protocol.EncodedPacket;
+import com.universidad.chat.comun.protocol.PacketCodec;
+import com.universidad.chat.comun.protocol.WireProtocol;
 import com.universidad.chat.servidor.model.Canal;
 import com.universidad.chat.servidor.model.Usuario;
 import com.universidad.chat.servidor.repository.CanalRepository;
+import com.universidad.chat.servidor.service.AudioUploadService;
 import com.universidad.chat.servidor.service.CanalService;
 import com.universidad.chat.servidor.service.MensajeService;
 import com.universidad.chat.servidor.service.TranscriptionService;
 import com.universidad.chat.servidor.service.UsuarioService;
 
-import java.io.File;
-import java.io.FileOutputStream;
 import java.io.IOException;
-import java.io.ObjectInputStream;
-import java.io.ObjectOutputStream;
 import java.net.Socket;
 import java.nio.file.Files;
+import java.nio.file.Path;
 import java.util.Base64;
 import java.util.List;
 import java.util.Set;
-import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
 import java.util.stream.Collectors;
 
 public class ClientHandler implements Runnable {
@@ -30,14 +31,14 @@ public class ClientHandler implements Runnable {
     private final CanalRepository canalRepository;
     private final MensajeService mensajeService;
     private final TranscriptionService transcriptionService;
-    private final Socket clientSocket;
+    private final Socket clientSocket; // Solo en modo bloqueante
     private final TCPServer tcpServer;
     private final com.universidad.chat.servidor.repository.UsuarioRepository usuarioRepository;
-    private ObjectOutputStream outputStream;
-    private ObjectInputStream inputStream;
-    private UserDTO authenticatedUser;
+    private ClientConnection connection;
+    private volatile UserDTO authenticatedUser; // También lo lee el event loop NIO (maxFrameLength)
     private String lastUploadedAudioFileName = null;
     private String lastTranscriptionResult = null;
+    private CompletableFuture<String> pendingTranscription = null; // Trabajo en el pool de Vosk
 
     // Constructor
     public ClientHandler(Socket socket, UsuarioService us, TCPServer ts, CanalService cs, CanalRepository cr, MensajeService ms, TranscriptionService tsc, com.universidad.chat.servidor.repository.UsuarioRepository ur) {
@@ -51,90 +52,159 @@ public class ClientHandler implements Runnable {
         this.usuarioRepository = ur;
     }
 
+    // Constructor para conexiones ya establecidas por otro transporte (NIO)
+    public ClientHandler(ClientConnection connection, UsuarioService us, TCPServer ts, CanalService cs, CanalRepository cr, MensajeService ms, TranscriptionService tsc, com.universidad.chat.servidor.repository.UsuarioRepository ur) {
+        this((Socket) null, us, ts, cs, cr, ms, tsc, ur);
+        this.connection = connection;
+    }
+
+    /**
+     * Bucle de lectura del modo bloqueante (un hilo por cliente)
+     */
     @Override
     public void run() {
         try {
-            outputStream = new ObjectOutputStream(clientSocket.getOutputStream());
-            inputStream = new ObjectInputStream(clientSocket.getInputStream());
+            BlockingClientConnection blockingConnection = new BlockingClientConnection(clientSocket,
+                    tcpServer.getServerExecutors().writers(), tcpServer.getOutboundLimits());
+            this.connection = blockingConnection;
 
             while (true) {
-                Packet receivedPacket = (Packet) inputStream.readObject();
-                switch (receivedPacket.getAction()) {
-                    case REGISTER_REQUEST:
-                        handleRegistration(receivedPacket);
-                        break;
-                    case LOGIN_REQUEST:
-                        handleLogin(receivedPacket);
-                        break;
-                    case UPLOAD_AUDIO:
-                        handleAudioUpload(receivedPacket);
-                        break;
-                    case SEND_MESSAGE_TO_USER:
-                        MessageDTO userMessage = (MessageDTO) receivedPacket.getPayload(); // Get the message DTO
-                        ClientHandler recipientHandler = tcpServer.findClientByUsername(userMessage.getRecipient());
-                        if (recipientHandler != null) {
-                            // Destinatario local
-                            processAndForwardNotification(userMessage, recipientHandler);
-                        } else {
-                            // Destinatario en otro servidor, reenviar a federación
-                            // PRIMERO: aplicar transcripción si es audio (PERO NO LIMPIAR VARIABLES TODAVÍA)
-                            if (userMessage.isAudioMessage()) {
-                                if (this.lastUploadedAudioFileName != null && this.lastTranscriptionResult != null) {
-                                    userMessage.setContent(this.lastTranscriptionResult);
-                                    userMessage.setAudioFileName(this.lastUploadedAudioFileName);
-                                    // NO limpiar todavía, lo necesitamos para forwardToFederation
-                                }
-                            }
-                            
-                            // SEGUNDO: Guardar en BD local
-                            mensajeService.guardarMensaje(userMessage);
-                            
-                            // TERCERO: Enviar eco al emisor (ANTES de reenviar a federación)
-                            Packet echoPacket = new Packet(ActionType.NEW_MESSAGE, userMessage);
-                            this.sendPacket(echoPacket);
-                            System.out.println("📤 Eco enviado al emisor: " + userMessage.getSender() + " (destinatario remoto)");
-                            
-                            // CUARTO: Reenviar a federación (esto incluirá el audio en Base64)
-                            if (!forwardToFederation(userMessage)) {
-                                System.err.println("❌ Destinatario " + userMessage.getRecipient() + " no encontrado en federación.");
-                            }
-                            
-                            // QUINTO: AHORA sí limpiamos las variables temporales
-                            this.lastUploadedAudioFileName = null;
-                            this.lastTranscriptionResult = null;
-                        }
-                        break;
-                    case SEND_MESSAGE_TO_CHANNEL:
-                        MessageDTO channelMessage = (MessageDTO) receivedPacket.getPayload(); // Get the message DTO
-                        processAndForwardNotification(channelMessage, null); // Send the DTO, null means broadcast to channel members
-                        // Además, reenviar a otros servidores si el canal es federado
-                        forwardChannelMessageToFederation(channelMessage);
-                        break;
-                    case CREATE_CHANNEL_REQUEST:
-                        handleCreateChannel(receivedPacket);
-                        break;
-                    case INVITE_USER_REQUEST:
-                        handleInviteUser(receivedPacket);
-                        break;
-                    case INVITATION_RESPONSE:
-                        handleInvitationResponse(receivedPacket);
-                        break;
-                    case DOWNLOAD_AUDIO_REQUEST:
-                        handleAudioDownloadRequest(receivedPacket);
-                        break;
-                    default:
-                        System.out.println("Acción desconocida recibida: " + receivedPacket.getAction());
-                }
+                handlePacket(blockingConnection.readPacket(maxFrameLength()));
             }
         } catch (IOException | ClassNotFoundException e) {
             System.out.println("Cliente desconectado: " + clientSocket.getInetAddress());
         } finally {
-            tcpServer.removeClient(this);
-            broadcastUserListUpdate();
+            onDisconnect();
+        }
+    }
+
+    /**
+     * Despacha un paquete recibido del cliente. Lo invoca el hilo del cliente (modo bloqueante)
+     * o un worker del transporte NIO, nunca dos a la vez para la misma sesión.
+     */
+    void handlePacket(Packet receivedPacket) {
+        switch (receivedPacket.getAction()) {
+            case REGISTER_REQUEST:
+                handleRegistration(receivedPacket);
+                break;
+            case LOGIN_REQUEST:
+                handleLogin(receivedPacket);
+                break;
+            case UPLOAD_AUDIO:
+                handleAudioUpload(receivedPacket);
+                break;
+            case SEND_MESSAGE_TO_USER:
+                MessageDTO userMessage = (MessageDTO) receivedPacket.getPayload(); // Get the message DTO
+                ClientHandler recipientHandler = tcpServer.findClientByUsername(userMessage.getRecipient());
+                if (recipientHandler != null) {
+                    // Destinatario local
+                    processAndForwardNotification(userMessage, recipientHandler);
+                } else {
+                    // Destinatario en otro servidor, reenviar a federación
+                    // PRIMERO: aplicar transcripción si es audio (PERO NO LIMPIAR VARIABLES TODAVÍA)
+                    if (userMessage.isAudioMessage()) {
+                        if (this.lastUploadedAudioFileName != null && this.lastTranscriptionResult != null) {
+                            userMessage.setContent(contenidoDelAudio());
+                            userMessage.setAudioFileName(this.lastUploadedAudioFileName);
+                            // NO limpiar todavía, lo necesitamos para forwardToFederation
+                        }
+                    }
+                    
+                    // SEGUNDO: Guardar en BD local
+                    mensajeService.guardarMensaje(userMessage);
+                    
+                    // TERCERO: Enviar eco al emisor (ANTES de reenviar a federación)
+                    Packet echoPacket = new Packet(ActionType.NEW_MESSAGE, userMessage);
+                    this.sendPacket(echoPacket);
+                    System.out.println("📤 Eco enviado al emisor: " + userMessage.getSender() + " (destinatario remoto)");
+                    
+                    // CUARTO: Reenviar a federación (esto incluirá el audio en Base64)
+                    if (!forwardToFederation(userMessage)) {
+                        System.err.println("❌ Destinatario " + userMessage.getRecipient() + " no encontrado en federación.");
+                    }
+                    
+                    // QUINTO: AHORA sí limpiamos las variables temporales
+                    this.lastUploadedAudioFileName = null;
+                    this.lastTranscriptionResult = null;
+                    programarTranscripcion(userMessage);
+                }
+                break;
+            case SEND_MESSAGE_TO_CHANNEL:
+                MessageDTO channelMessage = (MessageDTO) receivedPacket.getPayload(); // Get the message DTO
+                processAndForwardNotification(channelMessage, null); // Send the DTO, null means broadcast to channel members
+                // Además, reenviar a otros servidores si el canal es federado
+                forwardChannelMessageToFederation(channelMessage);
+                programarTranscripcion(channelMessage);
+                break;
+            case CREATE_CHANNEL_REQUEST:
+                handleCreateChannel(receivedPacket);
+                break;
+            case INVITE_USER_REQUEST:
+                handleInviteUser(receivedPacket);
+                break;
+            case INVITATION_RESPONSE:
+                handleInvitationResponse(receivedPacket);
+                break;
+            case DOWNLOAD_AUDIO_REQUEST:
+                handleAudioDownloadRequest(receivedPacket);
+                break;
+            case MESSAGE_HISTORY_REQUEST:
+                handleHistoryRequest(receivedPacket);
+                break;
+            case AUDIO_DOWNLOAD_RANGE:
+                handleAudioRangeRequest(receivedPacket);
+                break;
+            case AUDIO_UPLOAD_START:
+                handleAudioUploadStart(receivedPacket);
+                break;
+            case AUDIO_UPLOAD_CHUNK:
+                handleAudioUploadChunk(receivedPacket);
+                break;
+            case AUDIO_UPLOAD_COMMIT:
+                handleAudioUploadCommit(receivedPacket);
+                break;
+            case PRESENCE_RESYNC:
+                // El cliente vio un salto en los seq de USER_PRESENCE_DELTA: lista completa
+                if (authenticatedUser != null) {
+                    tcpServer.getPresenceTracker().sendWithSnapshot(this, usuarios -> new Packet(ActionType.USER_LIST_UPDATE, usuarios));
+                }
+                break;
+            default:
+                System.out.println("Acción desconocida recibida: " + receivedPacket.getAction());
+        }
+    }
+
+    /**
+     * Limpieza al desconectarse el cliente (cualquier transporte)
+     */
+    void onDisconnect() {
+        if (clientSocket == null && connection != null) {
+            System.out.println("Cliente desconectado: " + connection.getRemoteAddress());
+        }
+        if (authenticatedUser != null) {
+            // Sus subidas a medias no deben retener archivos ni recognizers hasta que caduquen
+            tcpServer.getAudioUploadService().suspenderSesion(authenticatedUser.getUsername(), this);
+        }
+        tcpServer.removeClient(this); // Avisa a los demás clientes y servidores (PresenceTracker)
+        if (connection != null) {
+            connection.close();
+        } else {
             try { clientSocket.close(); } catch (IOException e) { e.printStackTrace(); }
         }
     }
 
+    /**
+     * Cierra la conexión desde otro hilo; la limpieza la hace onDisconnect cuando el
+     * transporte detecta el cierre (el hilo del cliente o un worker NIO)
+     */
+    void disconnect() {
+        if (connection != null) {
+            connection.close();
+        } else if (clientSocket != null) {
+            try { clientSocket.close(); } catch (IOException e) { /* ignore */ }
+        }
+    }
+
     private void handleAudioUpload(Packet packet) {
         MessageDTO messageWithBase64 = (MessageDTO) packet.getPayload();
         if (!messageWithBase64.isAudioMessage() || messageWithBase64.getAudioDataBase64() == null) {
@@ -143,28 +213,146 @@ public class ClientHandler implements Runnable {
 
         try {
             byte[] audioData = Base64.getDecoder().decode(messageWithBase64.getAudioDataBase64());
-            File audioDir = new File("audio_files");
-            if (!audioDir.exists()) audioDir.mkdir();
-            String uniqueFileName = UUID.randomUUID().toString() + ".wav";
-            File audioFile = new File(audioDir, uniqueFileName);
+            String fileName = tcpServer.getAudioStore().almacenar(audioData);
+            Path audioFile = tcpServer.getAudioStore().ruta(fileName);
+            System.out.println("Audio de " + messageWithBase64.getSender() + " guardado como: " + fileName);
 
-            try (FileOutputStream fos = new FileOutputStream(audioFile)) {
-                fos.write(audioData);
-            }
-            System.out.println("Audio de " + messageWithBase64.getSender() + " guardado como: " + uniqueFileName);
-
-            // --- ¡LÓGICA DE TRANSCRIPCIÓN AÑADIDA AQUÍ! ---
-            String transcripcion = transcriptionService.transcribeAudio(audioData);
-
-            // Guardamos ambos resultados para que el siguiente método los use
-            this.lastUploadedAudioFileName = uniqueFileName;
-            this.lastTranscriptionResult = transcripcion;
+            // Guardamos el nombre y el trabajo de transcripción para que el siguiente método los use
+            iniciarTranscripcion(audioFile, transcriptionService.transcribirAsync(audioFile));
 
         } catch (IOException | IllegalArgumentException e) {
             System.err.println("Error fatal al procesar el audio subido: " + e.getMessage());
             this.lastUploadedAudioFileName = null;
             this.lastTranscriptionResult = null;
+            this.pendingTranscription = null;
+        }
+    }
+
+    // ==================== SUBIDA DE AUDIO POR PARTES ====================
+
+    private void handleAudioUploadStart(Packet packet) {
+        AudioUploadDTO request = (AudioUploadDTO) packet.getPayload();
+        AudioUploadDTO status = new AudioUploadDTO();
+        status.setUploadId(request.getUploadId());
+        try {
+            String owner = uploadOwner();
+            status.setOffset(tcpServer.getAudioUploadService().iniciar(request.getUploadId(), owner, this, request.getTotalSize(),
+                    texto -> enviarTranscripcionParcial(owner, texto)));
+        } catch (IOException | IllegalArgumentException | IllegalStateException e) {
+            status.setError(e.getMessage());
         }
+        sendPacket(new Packet(ActionType.AUDIO_UPLOAD_STATUS, status));
+    }
+
+    /**
+     * Los trozos no se confirman uno a uno: solo se responde si hay que reenviar desde otro offset
+     */
+    private void handleAudioUploadChunk(Packet packet) {
+        AudioChunkDTO chunk = (AudioChunkDTO) packet.getPayload();
+        AudioUploadDTO status = new AudioUploadDTO();
+        status.setUploadId(chunk.getUploadId());
+        try {
+            long next = tcpServer.getAudioUploadService().escribir(chunk.getUploadId(), uploadOwner(), chunk.getOffset(), chunk.getData());
+            if (next == chunk.getOffset() + chunk.getData().length) {
+                return;
+            }
+            status.setOffset(next);
+        } catch (IOException | IllegalArgumentException | IllegalStateException e) {
+            status.setError(e.getMessage());
+        }
+        sendPacket(new Packet(ActionType.AUDIO_UPLOAD_STATUS, status));
+    }
+
+    private void handleAudioUploadCommit(Packet packet) {
+        AudioUploadDTO request = (AudioUploadDTO) packet.getPayload();
+        AudioUploadDTO status = new AudioUploadDTO();
+        status.setUploadId(request.getUploadId());
+        try {
+            AudioUploadService.AudioSubido subido = tcpServer.getAudioUploadService().confirmar(request.getUploadId(), uploadOwner());
+            Path audioFile = subido.archivo();
+            status.setFileName(audioFile.getFileName().toString());
+            status.setOffset(Files.size(audioFile));
+
+            // Igual que handleAudioUpload: el siguiente SEND_MESSAGE_* usa estos resultados.
+            // El audio ya se fue reconociendo mientras llegaba: normalmente falta muy poco.
+            iniciarTranscripcion(audioFile, subido.transcripcion());
+        } catch (IOException | IllegalArgumentException | IllegalStateException e) {
+            System.err.println("Error al confirmar la subida de audio: " + e.getMessage());
+            status.setError(e.getMessage());
+            this.lastUploadedAudioFileName = null;
+            this.lastTranscriptionResult = null;
+            this.pendingTranscription = null;
+        }
+        sendPacket(new Packet(ActionType.AUDIO_UPLOAD_STATUS, status));
+    }
+
+    // ==================== TRANSCRIPCIÓN ASÍNCRONA ====================
+
+    /**
+     * Guarda la transcripción sin esperarla: el hilo del cliente sigue atendiendo paquetes
+     * y el siguiente SEND_MESSAGE_* sale con el texto provisional si aún no terminó.
+     */
+    private void iniciarTranscripcion(Path audioFile, CompletableFuture<String> transcripcion) {
+        this.lastUploadedAudioFileName = audioFile.getFileName().toString();
+        this.pendingTranscription = transcripcion;
+        this.lastTranscriptionResult = MessageDTO.TRANSCRIPCION_EN_CURSO;
+    }
+
+    /**
+     * Resultado parcial del audio que el usuario está subiendo (solo si partial-results está activo).
+     * Lo invoca un hilo de Vosk; sendPacket solo encola.
+     */
+    private void enviarTranscripcionParcial(String owner, String texto) {
+        MessageDTO parcial = new MessageDTO();
+        parcial.setSender(owner);
+        parcial.setAudioMessage(true);
+        parcial.setContent(texto);
+        sendPacket(new Packet(ActionType.TRANSCRIPTION_PARTIAL, parcial));
+    }
+
+    /**
+     * La transcripción si ya terminó; si no, el marcador de transcripción en curso
+     */
+    private String contenidoDelAudio() {
+        if (pendingTranscription == null) {
+            return lastTranscriptionResult;
+        }
+        return TranscriptionService.textoProvisional(pendingTranscription);
+    }
+
+    /**
+     * Llamar después de entregar el mensaje: si salió con el marcador, al terminar la
+     * transcripción se guarda el texto y se avisa con TRANSCRIPTION_READY. Así el aviso
+     * nunca puede llegar a un cliente antes que el propio mensaje.
+     */
+    private void programarTranscripcion(MessageDTO message) {
+        CompletableFuture<String> transcripcion = this.pendingTranscription;
+        this.pendingTranscription = null;
+        if (transcripcion == null || !message.isAudioMessage()
+                || !MessageDTO.TRANSCRIPCION_EN_CURSO.equals(message.getContent())) {
+            return;
+        }
+
+        MessageDTO update = new MessageDTO();
+        update.setSender(message.getSender());
+        update.setRecipient(message.getRecipient());
+        update.setAudioMessage(true);
+        update.setAudioFileName(message.getAudioFileName());
+        // Fuera de los hilos de Vosk: publicar puede esperar a la cola de persistencia
+        transcripcion.thenAcceptAsync(texto -> {
+            update.setContent(texto);
+            tcpServer.publishTranscription(update);
+        }, tcpServer.getServerExecutors()::execute).exceptionally(e -> {
+            System.err.println("❌ Error publicando la transcripción de " + update.getAudioFileName() + ": " + e.getMessage());
+            return null;
+        });
+    }
+
+    private String uploadOwner() {
+        if (authenticatedUser == null) {
+            throw new IllegalStateException("Debes iniciar sesión para subir audio");
+        }
+        return authenticatedUser.getUsername();
     }
 
     private void processAndForwardNotification(MessageDTO messageNotification, ClientHandler singleRecipient) {
@@ -175,7 +363,7 @@ public class ClientHandler implements Runnable {
             // Usamos los resultados REALES guardados en handleAudioUpload
             if (this.lastUploadedAudioFileName != null && this.lastTranscriptionResult != null) {
                 uniqueFileName = this.lastUploadedAudioFileName;
-                finalTextContent = this.lastTranscriptionResult; // La transcripción REAL
+                finalTextContent = contenidoDelAudio(); // La transcripción REAL o el marcador si aún no terminó
 
                 // SOLO limpiamos si NO es un mensaje que irá a federación después
                 // Para mensajes de canal, NO limpiamos aquí
@@ -211,32 +399,31 @@ public class ClientHandler implements Runnable {
             singleRecipient.sendPacket(forwardPacket); // Siempre enviar al destinatario
             this.sendPacket(forwardPacket); // Eco al emisor
             System.out.println("📨 Notificación de mensaje enviada a " + messageNotification.getRecipient() + " y eco a " + messageNotification.getSender());
+            programarTranscripcion(messageNotification);
 
         } else { 
             // Mensaje de Canal
             // Siempre enviar eco al emisor
             this.sendPacket(forwardPacket);
             
-            // Si el canal existe localmente, enviar a sus miembros (excepto el emisor)
-            canalRepository.findByNombreCanal(messageNotification.getRecipient()).ifPresentOrElse(
-                canal -> {
-                    Set<String> miembros = canal.getMiembros().stream()
-                        .map(Usuario::getNombreUsuario)
-                        .filter(username -> !username.equals(messageNotification.getSender())) // Excluir al emisor
-                        .collect(Collectors.toSet());
-                    
-                    if (!miembros.isEmpty()) {
-                        System.out.println("📢 Reenviando notificación de canal a " + miembros.size() + " miembros locales (sin emisor).");
-                        tcpServer.broadcastToUserList(forwardPacket, miembros);
-                    } else {
-                        System.out.println("ℹ️ No hay otros miembros locales conectados al canal.");
-                    }
-                },
-                () -> {
-                    // El canal no existe localmente (es remoto), pero el eco ya se envió
-                    System.out.println("ℹ️ Canal remoto, solo eco enviado al emisor: " + messageNotification.getSender());
+            // Si el canal existe localmente, enviar a sus miembros conectados (excepto el emisor).
+            // El índice en memoria evita consultar la BD en cada mensaje de canal.
+            Set<String> miembrosEnLinea = canalService.getMiembrosEnLinea(messageNotification.getRecipient());
+            if (miembrosEnLinea != null) {
+                Set<String> miembros = miembrosEnLinea.stream()
+                    .filter(username -> !username.equals(messageNotification.getSender())) // Excluir al emisor
+                    .collect(Collectors.toSet());
+
+                if (!miembros.isEmpty()) {
+                    System.out.println("📢 Reenviando notificación de canal a " + miembros.size() + " miembros locales (sin emisor).");
+                    tcpServer.broadcastToUserList(forwardPacket, miembros);
+                } else {
+                    System.out.println("ℹ️ No hay otros miembros locales conectados al canal.");
                 }
-            );
+            } else {
+                // El canal no existe localmente (es remoto), pero el eco ya se envió
+                System.out.println("ℹ️ Canal remoto, solo eco enviado al emisor: " + messageNotification.getSender());
+            }
         }
     }
 
@@ -244,9 +431,8 @@ public class ClientHandler implements Runnable {
         AudioRequestDTO request = (AudioRequestDTO) packet.getPayload();
         String fileName = request.getFileName();
         try {
-            File audioFile = new File("audio_files/" + fileName);
-            if (audioFile.exists()) {
-                byte[] audioData = Files.readAllBytes(audioFile.toPath());
+            if (tcpServer.getAudioStore().existe(fileName)) {
+                byte[] audioData = Files.readAllBytes(tcpServer.getAudioStore().ruta(fileName));
                 MessageDTO audioResponse = new MessageDTO();
                 audioResponse.setAudioMessage(true);
                 audioResponse.setAudioFileName(fileName);
@@ -260,6 +446,38 @@ public class ClientHandler implements Runnable {
         } catch (IOException e) { System.err.println("Error al leer archivo para descarga: " + e.getMessage()); }
     }
 
+    /**
+     * Devuelve la página de historial anterior al cursor que pide el cliente
+     */
+    private void handleHistoryRequest(Packet packet) {
+        if (authenticatedUser == null) return;
+        MessageHistoryDTO request = (MessageHistoryDTO) packet.getPayload();
+        if (request == null || request.getChatId() == null) return;
+
+        MessageHistoryDTO page = mensajeService.obtenerPaginaHistorial(
+                authenticatedUser.getUsername(), request.getChatId(), request.getBeforeCursor());
+        sendPacket(new Packet(ActionType.MESSAGE_HISTORY, page));
+        System.out.println("📜 Página de historial de " + request.getChatId() + " enviada a " + authenticatedUser.getUsername() +
+                " (" + page.getMessages().size() + " mensajes)");
+    }
+
+    /**
+     * Envía un rango del audio pedido; el cliente pide el siguiente rango con el offset recibido
+     */
+    private void handleAudioRangeRequest(Packet packet) {
+        AudioDataDTO request = (AudioDataDTO) packet.getPayload();
+        try {
+            Path audioFile = tcpServer.getAudioDownloadService().resolver(request.getFileName());
+            AudioDataDTO range = tcpServer.getAudioDownloadService().prepararRango(request, audioFile);
+            boolean zeroCopy = connection.sendFileRange(range, audioFile);
+            tcpServer.getAudioDownloadService().registrarEnvio(range, zeroCopy);
+        } catch (IllegalArgumentException e) {
+            System.err.println(e.getMessage());
+        } catch (IOException e) {
+            System.err.println("Error al enviar audio " + request.getFileName() + ": " + e.getMessage());
+        }
+    }
+
     private void handleRegistration(Packet packet) {
         UserDTO userData = (UserDTO) packet.getPayload();
         Usuario nuevoUsuario = new Usuario();
@@ -287,26 +505,21 @@ public class ClientHandler implements Runnable {
             userInfo.setServerIP(tcpServer.getServerRegistry().getLocalServerIP());
             userInfo.setServerName(tcpServer.getServerName());
             this.authenticatedUser = userInfo;
-            tcpServer.addClient(this);
-
-            // CAMBIO: Obtenemos TODOS los usuarios (locales + remotos)
-            List<String> allUsernames = tcpServer.getAllAvailableUsernames();
+            tcpServer.addClient(this); // Avisa a los demás clientes y servidores (PresenceTracker)
 
             // ¡CAMBIO CLAVE! Obtenemos la lista de canales SOLO para este usuario.
             List<String> misCanales = canalService.findCanalesPorMiembro(userInfo.getUsername()).stream()
                     .map(Canal::getNombreCanal)
                     .collect(Collectors.toList());
+            canalService.usuarioConectado(userInfo.getUsername(), misCanales);
 
-            // Creamos el DTO de bienvenida con la lista de canales personalizada.
-            LoginSuccessDTO loginPayload = new LoginSuccessDTO(userInfo, allUsernames, misCanales);
-            Packet successPacket = new Packet(ActionType.LOGIN_SUCCESS, loginPayload);
-            sendPacket(successPacket);
-
-            // Notificamos a los demás que nos hemos conectado
-            broadcastUserListUpdate();
+            // Creamos el DTO de bienvenida con la lista de canales personalizada y TODOS los
+            // usuarios (locales + remotos) con su versión: después solo llegan los cambios
+            tcpServer.getPresenceTracker().sendWithSnapshot(this, usuarios -> new Packet(ActionType.LOGIN_SUCCESS,
+                    new LoginSuccessDTO(userInfo, usuarios.getJoined(), misCanales, usuarios.getSeq())));
             
             // NUEVO: Enviar historial de mensajes
-            enviarHistorialMensajes(userInfo.getUsername(), allUsernames, misCanales);
+            enviarHistorialMensajes(userInfo.getUsername());
         } catch (IllegalStateException e) {
             Packet failurePacket = new Packet(ActionType.LOGIN_FAILURE, e.getMessage());
             sendPacket(failurePacket);
@@ -334,36 +547,34 @@ public class ClientHandler implements Runnable {
         }
     }
 
-    private void broadcastUserListUpdate() {
-        // Enviar lista completa de usuarios (locales + remotos)
-        List<String> allUsers = tcpServer.getAllAvailableUsernames();
-        Packet userListPacket = new Packet(ActionType.USER_LIST_UPDATE, allUsers);
-        tcpServer.broadcastPacket(userListPacket);        // Notificar a servidores federados sobre la actualización de usuarios locales
-        notifyFederatedServersUserListUpdate(tcpServer.getConnectedUsernames());
-    }
-    
-    private void notifyFederatedServersUserListUpdate(List<String> usernames) {
-        ServerUserListDTO userListDTO = new ServerUserListDTO();
-        userListDTO.setServerIP(tcpServer.getServerRegistry().getLocalServerIP());
-        userListDTO.setServerName(tcpServer.getServerName());
-        userListDTO.setUsernames(usernames);
-        
-        Packet syncPacket = new Packet(ActionType.SERVER_USER_LIST_SYNC, userListDTO);
-        tcpServer.getServerRegistry().broadcastToFederation(syncPacket);
-        
-        System.out.println("📡 Sincronizando lista de usuarios con servidores federados: " + usernames);
-    }
-
+    public UserDTO getAuthenticatedUser() { return authenticatedUser; }
 
+    /**
+     * Trama más grande que se acepta de este cliente: hasta el login solo llegan peticiones
+     * pequeñas, así una conexión sin autenticar no puede hacer reservar 32 MB
+     */
+    int maxFrameLength() {
+        return authenticatedUser != null ? WireProtocol.MAX_FRAME_LENGTH : WireProtocol.MAX_PRE_LOGIN_FRAME_LENGTH;
+    }
 
-    public UserDTO getAuthenticatedUser() { return authenticatedUser; }
+    public PacketCodec getCodec() { return connection != null ? connection.getCodec() : null; }
 
     public void sendPacket(Packet packet) {
         try {
             String username = (authenticatedUser != null) ? authenticatedUser.getUsername() : "no-autenticado";
             System.out.println("  📤 Enviando " + packet.getAction() + " a " + username);
-            outputStream.writeObject(packet);
-            outputStream.flush();
+            connection.sendPacket(packet);
+        } catch (IOException e) {
+            System.err.println("❌ Error enviando paquete al cliente: " + e.getMessage());
+        }
+    }
+
+    /**
+     * Envía un paquete de broadcast ya codificado (se serializa una vez para todos los destinatarios)
+     */
+    public void sendEncoded(EncodedPacket packet) {
+        try {
+            connection.sendEncoded(packet);
         } catch (IOException e) {
             System.err.println("❌ Error enviando paquete al cliente: " + e.getMessage());
         }
@@ -470,6 +681,7 @@ public class ClientHandler implements Runnable {
                     if (!canalRemoto.getMiembros().contains(usuarioLocal)) {
                         canalRemoto.getMiembros().add(usuarioLocal);
                         canalRepository.save(canalRemoto);
+                        canalService.registrarMiembro(response.getChannelName(), response.getInvitedUsername());
                         System.out.println("✅ Usuario " + response.getInvitedUsername() + " agregado al canal remoto " + response.getChannelName() + " en BD local");
                     }
                     
@@ -494,36 +706,21 @@ public class ClientHandler implements Runnable {
      * Reenvía un mensaje privado a través de la federación
      */
     private boolean forwardToFederation(MessageDTO message) {
-        // Si es un mensaje de audio, necesitamos incluir los datos del archivo
-        if (message.isAudioMessage() && message.getAudioFileName() != null) {
-            try {
-                File audioFile = new File("audio_files/" + message.getAudioFileName());
-                if (audioFile.exists()) {
-                    byte[] audioData = Files.readAllBytes(audioFile.toPath());
-                    String audioBase64 = Base64.getEncoder().encodeToString(audioData);
-                    message.setAudioDataBase64(audioBase64);
-                    System.out.println("📦 Audio incluido en mensaje federado: " + message.getAudioFileName());
-                } else {
-                    System.err.println("⚠️ Archivo de audio no encontrado para federación: " + message.getAudioFileName());
-                }
-            } catch (IOException e) {
-                System.err.println("❌ Error leyendo audio para federación: " + e.getMessage());
-            }
-        }
-        
-        FederatedMessageDTO fedMsg = new FederatedMessageDTO();
-        fedMsg.setOriginServerIP(tcpServer.getServerRegistry().getLocalServerIP());
-        fedMsg.setOriginServerName(tcpServer.getServerName());
-        fedMsg.setMessage(message);
-        fedMsg.setRequiresAudioData(message.isAudioMessage());
+        // Los audios del almacén se ofrecen por hash; el otro servidor pide los bytes si no los tiene
+        boolean audioPorHash = tcpServer.getFederatedAudioTransfer().prepararEnvio(message);
+
+        FederatedMessageDTO fedMsg = tcpServer.getServerRegistry().newFederatedMessage(message);
+        fedMsg.setRequiresAudioData(audioPorHash);
 
         Packet fedPacket = new Packet(
                 message.isAudioMessage() ? ActionType.FEDERATED_AUDIO : ActionType.FEDERATED_MESSAGE,
                 fedMsg
         );
 
-        // Broadcast a todos los servidores federados (en producción, buscar servidor específico)
-        tcpServer.getServerRegistry().broadcastToFederation(fedPacket);
+        // Solo al servidor donde está el destinatario (tabla de rutas de ServerRegistry)
+        if (!tcpServer.getServerRegistry().sendToUser(message.getRecipient(), fedPacket)) {
+            return false;
+        }
         System.out.println("📡 Mensaje reenviado a federación: " + message.getRecipient());
         return true;
     }
@@ -532,32 +729,16 @@ public class ClientHandler implements Runnable {
      * Reenvía un mensaje de canal a través de la federación
      */
     private void forwardChannelMessageToFederation(MessageDTO message) {
-        // Si es un mensaje de audio, necesitamos incluir los datos del archivo
-        if (message.isAudioMessage() && message.getAudioFileName() != null) {
-            try {
-                File audioFile = new File("audio_files/" + message.getAudioFileName());
-                if (audioFile.exists()) {
-                    byte[] audioData = Files.readAllBytes(audioFile.toPath());
-                    String audioBase64 = Base64.getEncoder().encodeToString(audioData);
-                    message.setAudioDataBase64(audioBase64);
-                    System.out.println("📦 Audio incluido en mensaje de canal federado: " + message.getAudioFileName());
-                } else {
-                    System.err.println("⚠️ Archivo de audio no encontrado para federación: " + message.getAudioFileName());
-                }
-            } catch (IOException e) {
-                System.err.println("❌ Error leyendo audio para federación: " + e.getMessage());
-            }
-            
-            // AHORA sí limpiamos las variables temporales después de leer el archivo
+        // Los audios del almacén se ofrecen por hash; el otro servidor pide los bytes si no los tiene
+        boolean audioPorHash = tcpServer.getFederatedAudioTransfer().prepararEnvio(message);
+        if (message.isAudioMessage()) {
+            // AHORA sí limpiamos las variables temporales
             this.lastUploadedAudioFileName = null;
             this.lastTranscriptionResult = null;
         }
-        
-        FederatedMessageDTO fedMsg = new FederatedMessageDTO();
-        fedMsg.setOriginServerIP(tcpServer.getServerRegistry().getLocalServerIP());
-        fedMsg.setOriginServerName(tcpServer.getServerName());
-        fedMsg.setMessage(message);
-        fedMsg.setRequiresAudioData(message.isAudioMessage());
+
+        FederatedMessageDTO fedMsg = tcpServer.getServerRegistry().newFederatedMessage(message);
+        fedMsg.setRequiresAudioData(audioPorHash);
 
         Packet fedPacket = new Packet(
                 message.isAudioMessage() ? ActionType.FEDERATED_AUDIO : ActionType.FEDERATED_MESSAGE,
@@ -569,35 +750,19 @@ public class ClientHandler implements Runnable {
     }
     
     /**
-     * Envía el historial de mensajes al usuario que acaba de iniciar sesión
+     * Envía al usuario que acaba de iniciar sesión la última página de cada conversación.
+     * Los mensajes más antiguos los pide el cliente con MESSAGE_HISTORY_REQUEST.
      */
-    private void enviarHistorialMensajes(String username, List<String> todosLosUsuarios, List<String> misCanales) {
+    private void enviarHistorialMensajes(String username) {
         System.out.println("📜 Enviando historial de mensajes a " + username);
-        
-        // 1. Enviar historial de conversaciones privadas con cada usuario
-        for (String otroUsuario : todosLosUsuarios) {
-            if (otroUsuario.equals(username)) continue; // Saltear a sí mismo
-            
-            List<MessageDTO> historial = mensajeService.obtenerHistorialPrivado(username, otroUsuario);
-            if (!historial.isEmpty()) {
-                MessageHistoryDTO historyDTO = new MessageHistoryDTO(otroUsuario, historial);
-                Packet historyPacket = new Packet(ActionType.MESSAGE_HISTORY, historyDTO);
-                sendPacket(historyPacket);
-                System.out.println("  📨 Enviados " + historial.size() + " mensajes de conversación con " + otroUsuario);
-            }
-        }
-        
-        // 2. Enviar historial de cada canal del que es miembro
-        for (String canal : misCanales) {
-            List<MessageDTO> historial = mensajeService.obtenerHistorialCanal(canal);
-            if (!historial.isEmpty()) {
-                MessageHistoryDTO historyDTO = new MessageHistoryDTO(canal, historial);
-                Packet historyPacket = new Packet(ActionType.MESSAGE_HISTORY, historyDTO);
-                sendPacket(historyPacket);
-                System.out.println("  📨 Enviados " + historial.size() + " mensajes del canal " + canal);
-            }
+
+        List<MessageHistoryDTO> historial = mensajeService.obtenerHistorialInicial(username);
+        for (MessageHistoryDTO historyDTO : historial) {
+            sendPacket(new Packet(ActionType.MESSAGE_HISTORY, historyDTO));
+            System.out.println("  📨 Enviados " + historyDTO.getMessages().size() + " mensajes de " + historyDTO.getChatId() +
+                    (historyDTO.getNextCursor() != null ? " (hay más antiguos)" : ""));
         }
-        
-        System.out.println("✅ Historial de mensajes enviado completamente a " + username);
+
+        System.out.println("✅ Historial de mensajes enviado a " + username + " (" + historial.size() + " conversaciones)");
     }
 }
\ No newline at end of file
@@ -0,0 +1,309 @@
+package com.universidad.chat.servidor.network;
+
+import com.universidad.chat.comun.dto.ActionType;
+import com.universidad.chat.comun.dto.AudioDataDTO;
+import com.universidad.chat.comun.dto.MessageDTO;
+import com.universidad.chat.comun.dto.Packet;
+import com.universidad.chat.servidor.service.AudioDownloadService;
+import com.universidad.chat.servidor.service.AudioStore;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.Base64;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Audios entre servidores por hash.
+ *
+ * Un mensaje de audio federado lleva solo el nombre &lt;sha256&gt;.wav del AudioStore (la oferta).
+ * El servidor que lo recibe lo entrega en el acto si ya tiene ese contenido; si no, pide los
+ * bytes por rangos al servidor que se lo envió (AUDIO_DOWNLOAD_RANGE / AUDIO_DOWNLOAD_DATA,
+ * igual que los clientes) y retiene el mensaje hasta tenerlos. Los mensajes con el mismo audio
+ * comparten una única descarga: cada audio cruza como mucho una vez cada enlace.
+ * Los audios anteriores al almacén y los servidores antiguos siguen usando Base64.
+ */
+@Component
+public class FederatedAudioTransfer {
+
+    // Pasado este tiempo sin completar la descarga, los mensajes se entregan sin audio
+    @Value("${chat.server.federation.audio-fetch-timeout-ms:15000}")
+    private long fetchTimeoutMs;
+
+    @Autowired
+    private ServerRegistry serverRegistry;
+
+    @Autowired
+    private ServerExecutors serverExecutors;
+
+    @Autowired
+    private AudioStore audioStore;
+
+    @Autowired
+    private AudioDownloadService audioDownloadService;
+
+    private static final class Descarga {
+        final String fileName;
+        final String serverKey;
+        final Path temporal;
+        final FileChannel canal;
+        final MessageDigest digest = AudioStore.nuevoDigest();
+        final List<Runnable> entregas = new ArrayList<>();
+        long recibidos;
+
+        Descarga(String fileName, String serverKey, Path temporal, FileChannel canal) {
+            this.fileName = fileName;
+            this.serverKey = serverKey;
+            this.temporal = temporal;
+            this.canal = canal;
+        }
+    }
+
+    private final Map<String, Descarga> descargas = new ConcurrentHashMap<>();
+    private final ReentrantLock lock = new ReentrantLock();
+
+    // --- Métricas ---
+    private final AtomicLong yaPresentes = new AtomicLong();
+    private final AtomicLong descargasIniciadas = new AtomicLong();
+    private final AtomicLong descargasCompartidas = new AtomicLong();
+    private final AtomicLong descargasFallidas = new AtomicLong();
+    private final AtomicLong bytesRecibidos = new AtomicLong();
+    private final AtomicLong bytesEnviados = new AtomicLong();
+    private final AtomicLong enviadosEnBase64 = new AtomicLong();
+
+    /**
+     * Prepara un mensaje de audio para reenviarlo a la federación. Los audios del almacén se
+     * ofrecen solo por nombre; los antiguos viajan en Base64 como antes.
+     * @return true si el servidor que lo reciba tendrá que pedir los bytes
+     */
+    public boolean prepararEnvio(MessageDTO message) {
+        if (!message.isAudioMessage() || message.getAudioFileName() == null) {
+            return false;
+        }
+        if (audioStore.esDireccionadoPorContenido(message.getAudioFileName())) {
+            message.setAudioDataBase64(null);
+            System.out.println("📦 Audio ofrecido por hash: " + message.getAudioFileName());
+            return true;
+        }
+        try {
+            byte[] audioData = Files.readAllBytes(audioStore.resolver(message.getAudioFileName()));
+            message.setAudioDataBase64(Base64.getEncoder().encodeToString(audioData));
+            enviadosEnBase64.incrementAndGet();
+            System.out.println("📦 Audio incluido en mensaje federado: " + message.getAudioFileName());
+        } catch (IllegalArgumentException e) {
+            System.err.println("⚠️ Archivo de audio no encontrado para federación: " + message.getAudioFileName());
+        } catch (IOException e) {
+            System.err.println("❌ Error leyendo audio para federación: " + e.getMessage());
+        }
+        return false;
+    }
+
+    /**
+     * Entrega un mensaje federado cuando su audio está en el almacén local.
+     * @param serverKey servidor del que llegó el mensaje (al que se piden los bytes)
+     * @param entregar reparto del mensaje a los clientes locales; puede ejecutarse en otro hilo
+     */
+    public void entregarConAudio(String serverKey, MessageDTO message, Runnable entregar) {
+        if (!message.isAudioMessage() || message.getAudioFileName() == null) {
+            entregar.run();
+            return;
+        }
+        if (message.getAudioDataBase64() != null) {
+            // Servidor antiguo o audio sin hash: los bytes vienen en el propio mensaje
+            try {
+                byte[] audioData = Base64.getDecoder().decode(message.getAudioDataBase64());
+                message.setAudioFileName(audioStore.almacenar(audioData));
+                System.out.println("🔊 Audio federado guardado localmente: " + message.getAudioFileName());
+            } catch (IOException | IllegalArgumentException e) {
+                System.err.println("❌ Error guardando audio federado: " + e.getMessage());
+            }
+            // Limpiar los datos Base64 para no enviarlos al cliente
+            message.setAudioDataBase64(null);
+            entregar.run();
+            return;
+        }
+
+        String fileName = message.getAudioFileName();
+        if (!audioStore.esDireccionadoPorContenido(fileName) || serverKey == null) {
+            entregar.run();
+            return;
+        }
+
+        Descarga nueva = null;
+        lock.lock();
+        try {
+            if (audioStore.existe(fileName)) {
+                yaPresentes.incrementAndGet();
+            } else {
+                Descarga enCurso = descargas.get(fileName);
+                if (enCurso != null) {
+                    enCurso.entregas.add(entregar);
+                    descargasCompartidas.incrementAndGet();
+                    return;
+                }
+                Path temporal = audioStore.archivoTemporal();
+                nueva = new Descarga(fileName, serverKey, temporal, FileChannel.open(temporal, StandardOpenOption.WRITE));
+                nueva.entregas.add(entregar);
+                descargas.put(fileName, nueva);
+            }
+        } catch (IOException e) {
+            System.err.println("❌ No se pudo preparar la descarga del audio " + fileName + ": " + e.getMessage());
+        } finally {
+            lock.unlock();
+        }
+
+        if (nueva == null) {
+            entregar.run(); // Ya lo teníamos (o no se puede descargar): no hay que esperar
+            return;
+        }
+        descargasIniciadas.incrementAndGet();
+        System.out.println("📥 Pidiendo audio " + fileName + " a " + serverKey);
+        pedirRango(nueva, 0);
+        Descarga descarga = nueva;
+        CompletableFuture.delayedExecutor(fetchTimeoutMs, TimeUnit.MILLISECONDS, serverExecutors::execute)
+                .execute(() -> terminar(descarga, false, "tiempo agotado"));
+    }
+
+    /**
+     * Otro servidor pide un rango de un audio nuestro. Se responde desde otro hilo para no
+     * bloquear la lectura de ese servidor mientras se escribe hasta download-chunk-bytes.
+     */
+    public void atenderRango(String serverKey, AudioDataDTO request) {
+        serverExecutors.execute(() -> {
+            AudioDataDTO respuesta;
+            try {
+                Path file = audioStore.resolver(request.getFileName());
+                respuesta = audioDownloadService.prepararRango(request, file);
+                byte[] data = new byte[(int) respuesta.getLength()];
+                try (FileChannel canal = FileChannel.open(file, StandardOpenOption.READ)) {
+                    ByteBuffer buffer = ByteBuffer.wrap(data);
+                    long position = respuesta.getOffset();
+                    while (buffer.hasRemaining()) {
+                        int n = canal.read(buffer, position);
+                        if (n < 0) break;
+                        position += n;
+                    }
+                }
+                respuesta.setData(data);
+                bytesEnviados.addAndGet(data.length);
+            } catch (IllegalArgumentException | IOException e) {
+                // Sin datos = no lo tenemos; el otro servidor entrega el mensaje sin audio
+                respuesta = new AudioDataDTO();
+                respuesta.setFileName(request.getFileName());
+                respuesta.setOffset(request.getOffset());
+            }
+            serverRegistry.sendToServer(serverKey, new Packet(ActionType.AUDIO_DOWNLOAD_DATA, respuesta));
+        });
+    }
+
+    /**
+     * Llega un rango de un audio que pedimos
+     */
+    public void recibirRango(String serverKey, AudioDataDTO range) {
+        Descarga descarga = descargas.get(range.getFileName());
+        if (descarga == null || !descarga.serverKey.equals(serverKey) || range.getOffset() != descarga.recibidos) {
+            return; // Descarga ya terminada o rango repetido
+        }
+        byte[] data = range.getData();
+        if (data == null || data.length == 0 || range.getTotalSize() <= 0) {
+            terminar(descarga, false, serverKey + " no tiene el audio");
+            return;
+        }
+        try {
+            ByteBuffer buffer = ByteBuffer.wrap(data);
+            long position = range.getOffset();
+            while (buffer.hasRemaining()) {
+                position += descarga.canal.write(buffer, position);
+            }
+        } catch (IOException e) {
+            terminar(descarga, false, e.getMessage());
+            return;
+        }
+        descarga.digest.update(data);
+        descarga.recibidos += data.length;
+        bytesRecibidos.addAndGet(data.length);
+        if (descarga.recibidos < range.getTotalSize()) {
+            pedirRango(descarga, descarga.recibidos);
+        } else {
+            terminar(descarga, true, null);
+        }
+    }
+
+    private void pedirRango(Descarga descarga, long offset) {
+        AudioDataDTO request = new AudioDataDTO();
+        request.setFileName(descarga.fileName);
+        request.setOffset(offset);
+        serverRegistry.sendToServer(descarga.serverKey, new Packet(ActionType.AUDIO_DOWNLOAD_RANGE, request));
+    }
+
+    /**
+     * Cierra la descarga (una sola vez), guarda el audio si su hash es el anunciado
+     * y entrega los mensajes que lo esperaban
+     */
+    private void terminar(Descarga descarga, boolean completa, String motivo) {
+        List<Runnable> entregas;
+        lock.lock();
+        try {
+            if (!descargas.remove(descarga.fileName, descarga)) {
+                return;
+            }
+            entregas = List.copyOf(descarga.entregas);
+        } finally {
+            lock.unlock();
+        }
+
+        try {
+            descarga.canal.close();
+            if (completa) {
+                byte[] sha256 = descarga.digest.digest();
+                if (AudioStore.nombreDe(sha256).equals(descarga.fileName)) {
+                    audioStore.almacenar(descarga.temporal, sha256);
+                    System.out.println("📥 Audio " + descarga.fileName + " recibido de " + descarga.serverKey + " (" + descarga.recibidos + " bytes)");
+                } else {
+                    completa = false;
+                    motivo = "el contenido no coincide con su hash";
+                }
+            }
+            Files.deleteIfExists(descarga.temporal);
+        } catch (IOException e) {
+            completa = false;
+            motivo = e.getMessage();
+        }
+        if (!completa) {
+            descargasFallidas.incrementAndGet();
+            System.err.println("⚠️ Audio " + descarga.fileName + " no descargado de " + descarga.serverKey + " (" + motivo + "): se entrega el mensaje sin audio");
+        }
+        entregas.forEach(Runnable::run);
+    }
+
+    /**
+     * Métricas para la API REST
+     */
+    public Map<String, Object> getMetrics() {
+        Map<String, Object> metrics = new LinkedHashMap<>();
+        metrics.put("alreadyPresent", yaPresentes.get());
+        metrics.put("fetchesStarted", descargasIniciadas.get());
+        metrics.put("fetchesShared", descargasCompartidas.get());
+        metrics.put("fetchesFailed", descargasFallidas.get());
+        metrics.put("fetchesInProgress", descargas.size());
+        metrics.put("bytesReceived", bytesRecibidos.get());
+        metrics.put("bytesSent", bytesEnviados.get());
+        metrics.put("sentAsBase64", enviadosEnBase64.get());
+        return metrics;
+    }
+}
@@ -0,0 +1,178 @@
+package com.universidad.chat.servidor.network;
+
+import com.universidad.chat.comun.dto.*;
+import com.universidad.chat.servidor.service.CanalService;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.stereotype.Component;
+
+import java.util.Set;
+
+/**
+ * Reparto de los paquetes que llegan de otros servidores.
+ *
+ * Es el mismo para todos los enlaces ({@link FederationLink}): da igual qué servidor abrió
+ * la conexión. SERVER_REGISTER y SERVER_UNREGISTER los trata el propio enlace.
+ */
+@Component
+public class FederationDispatcher {
+
+    @Autowired
+    private ServerRegistry serverRegistry;
+
+    // Índice de miembros en línea por canal (evita consultar la BD por cada mensaje federado)
+    @Autowired
+    private CanalService canalService;
+
+    private TCPServer tcpServer;
+
+    public void setTCPServer(TCPServer tcpServer) {
+        this.tcpServer = tcpServer;
+    }
+
+    /**
+     * Procesa un paquete del servidor serverKey en el hilo lector de su enlace
+     */
+    public void dispatch(String serverKey, Packet packet) {
+        Object data = packet.getPayload();
+        switch (packet.getAction()) {
+            case SERVER_HEARTBEAT:
+                // La señal de vida ya se anotó al leer el paquete; se devuelve para medir la latencia
+                tcpServer.getFederationHeartbeat().onHeartbeat(serverKey, data);
+                break;
+
+            case SERVER_HEARTBEAT_ACK:
+                tcpServer.getFederationHeartbeat().onHeartbeatAck(serverKey, data);
+                break;
+
+            case OUTBOX_REPLAY_MARK:
+                // Todo lo anterior de su buzón ya se procesó (este hilo lee en orden)
+                serverRegistry.sendToServer(serverKey, new Packet(ActionType.OUTBOX_REPLAY_ACK, data));
+                break;
+
+            case OUTBOX_REPLAY_ACK:
+                tcpServer.getFederationOutbox().confirmado(serverKey, data);
+                break;
+
+            case SERVER_USER_LIST_SYNC:
+                handleUserListSync(serverKey, (ServerUserListDTO) data);
+                break;
+
+            case SERVER_TOPOLOGY_SYNC:
+                ServerTopologyDTO topology = (ServerTopologyDTO) data;
+                System.out.println("🌐 Topología recibida con " + topology.getServers().size() + " servidores");
+                // Conectar automáticamente a los servidores que aún no conocemos
+                serverRegistry.connectToTopology(topology);
+                break;
+
+            case FEDERATED_MESSAGE:
+            case FEDERATED_AUDIO:
+                handleFederatedMessage(serverKey, (FederatedMessageDTO) data);
+                break;
+
+            case TRANSCRIPTION_READY:
+                // El mensaje no se guardó aquí (se guarda en el servidor de origen): solo avisar
+                FederatedMessageDTO fedMsg = (FederatedMessageDTO) data;
+                if (tcpServer.getSeenMessageCache().accept(serverKey, fedMsg)) {
+                    tcpServer.deliverTranscriptionToLocalClients(fedMsg.getMessage());
+                }
+                break;
+
+            case SERVER_PRESENCE_DELTA:
+                tcpServer.getPresenceTracker().onRemoteDelta(serverKey, (PresenceDeltaDTO) data);
+                break;
+
+            case PRESENCE_RESYNC:
+                tcpServer.getPresenceTracker().sendSnapshotToServer(serverKey);
+                break;
+
+            case USER_LOCATE:
+                serverRegistry.answerUserLocate(serverKey, (ServerUserListDTO) data);
+                break;
+
+            case USER_LOCATION:
+                serverRegistry.handleUserLocation(serverKey, (ServerUserListDTO) data);
+                break;
+
+            case AUDIO_DOWNLOAD_RANGE:
+                tcpServer.getFederatedAudioTransfer().atenderRango(serverKey, (AudioDataDTO) data);
+                break;
+
+            case AUDIO_DOWNLOAD_DATA:
+                tcpServer.getFederatedAudioTransfer().recibirRango(serverKey, (AudioDataDTO) data);
+                break;
+
+            case FEDERATED_CHANNEL_INVITE:
+                handleFederatedChannelInvite((InvitationDTO) data);
+                break;
+
+            case FEDERATED_INVITATION_RESPONSE:
+                InvitationDTO response = (InvitationDTO) data;
+                System.out.println("✅ Respuesta de invitación federada recibida: " + response.getInvitedUsername() +
+                                 " " + (response.isAccepted() ? "aceptó" : "rechazó") + " unirse a " + response.getChannelName());
+                // Si el canal es de este servidor, se agrega al usuario remoto
+                tcpServer.handleRemoteInvitationResponse(response);
+                break;
+
+            default:
+                System.out.println("⚠️ Acción S2S desconocida de " + serverKey + ": " + packet.getAction());
+        }
+    }
+
+    private void handleUserListSync(String serverKey, ServerUserListDTO userList) {
+        System.out.println("📋 Lista de usuarios recibida de " + userList.getServerName() + ": " + userList.getUsernames());
+        // Servidor sin presencia versionada: lista completa. Los clientes reciben solo lo que cambió
+        tcpServer.getPresenceTracker().onRemoteUserList(serverKey, userList.getUsernames());
+        // Asegurar que conocemos el nombre del servidor remoto para anotaciones en la UI
+        serverRegistry.updateServerName(serverKey, userList.getServerName());
+        // Notificar a la UI del servidor para que actualice la lista de usuarios federados
+        tcpServer.notifyRemoteServerUserList(userList);
+    }
+
+    private void handleFederatedMessage(String serverKey, FederatedMessageDTO fedMsg) {
+        if (!tcpServer.getSeenMessageCache().accept(serverKey, fedMsg)) {
+            return; // Ya llegó antes
+        }
+        MessageDTO message = fedMsg.getMessage();
+        // El audio viaja por hash: si aún no lo tenemos se pide y el mensaje espera a tenerlo
+        tcpServer.getFederatedAudioTransfer().entregarConAudio(serverKey, message,
+                () -> entregarMensajeFederado(message));
+    }
+
+    private void entregarMensajeFederado(MessageDTO message) {
+        ClientHandler recipient = tcpServer.findClientByUsername(message.getRecipient());
+        Packet forwardPacket = new Packet(ActionType.NEW_MESSAGE, message);
+
+        if (recipient != null) {
+            // El usuario está aquí, reenviar el mensaje
+            recipient.sendPacket(forwardPacket);
+            System.out.println("📨 Mensaje federado entregado a " + message.getRecipient());
+        } else if (message.getRecipient().startsWith("#")) {
+            Set<String> miembrosLocales = canalService.getMiembrosEnLinea(message.getRecipient());
+            if (miembrosLocales != null) {
+                // El canal existe aquí: solo a los miembros conectados a este servidor
+                tcpServer.broadcastToUserList(forwardPacket, miembrosLocales);
+                System.out.println("📨 Mensaje federado de canal entregado a " + miembrosLocales.size() + " miembros locales del canal " + message.getRecipient());
+            } else {
+                // El canal está en otro servidor: a todos los clientes locales
+                tcpServer.broadcastPacket(forwardPacket);
+                System.out.println("📨 Mensaje federado de canal remoto " + message.getRecipient() + " broadcast a todos los clientes locales");
+            }
+        } else {
+            System.err.println("⚠️ Destinatario " + message.getRecipient() + " no encontrado localmente");
+        }
+        // Los mensajes federados no se guardan aquí: ya están en la BD del servidor de origen
+    }
+
+    private void handleFederatedChannelInvite(InvitationDTO invitation) {
+        System.out.println("👥 Invitación federada recibida: " + invitation.getInviterUsername() +
+                         " invita a " + invitation.getInvitedUsername() + " al canal " + invitation.getChannelName());
+
+        ClientHandler invitedHandler = tcpServer.findClientByUsername(invitation.getInvitedUsername());
+        if (invitedHandler != null) {
+            invitedHandler.sendPacket(new Packet(ActionType.CHANNEL_INVITATION, invitation));
+            System.out.println("✅ Invitación federada entregada a " + invitation.getInvitedUsername());
+        } else {
+            System.err.println("⚠️ Usuario invitado " + invitation.getInvitedUsername() + " no encontrado localmente");
+        }
+    }
+}
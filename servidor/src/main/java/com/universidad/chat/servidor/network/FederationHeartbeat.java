@@ -0,0 +1,166 @@
+package com.universidad.chat.servidor.network;
+
+import com.universidad.chat.comun.dto.ActionType;
+import com.universidad.chat.comun.dto.Packet;
+import jakarta.annotation.PostConstruct;
+import jakarta.annotation.PreDestroy;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Latidos entre servidores federados y detección de caídas.
+ *
+ * Cada heartbeat-interval-ms se envía SERVER_HEARTBEAT (con System.nanoTime() del emisor) a
+ * cada servidor, que lo devuelve tal cual en SERVER_HEARTBEAT_ACK: así se mide la latencia de
+ * ida y vuelta por servidor. Cualquier paquete recibido cuenta como señal de vida
+ * (FederationLink actualiza lastHeartbeat); si un servidor pasa heartbeat-timeout-ms sin dar
+ * ninguna se da de baja con unregisterServer, aunque su socket siga abierto.
+ *
+ * Solo se da de baja por tiempo a los servidores que ya respondieron algún latido: los
+ * servidores antiguos no responden y se siguen detectando por los errores de escritura.
+ */
+@Component
+public class FederationHeartbeat {
+
+    @Value("${chat.server.federation.heartbeat-interval-ms:2000}")
+    private long intervalMs;
+
+    @Value("${chat.server.federation.heartbeat-timeout-ms:10000}")
+    private long timeoutMs;
+
+    @Autowired
+    private ServerRegistry serverRegistry;
+
+    @Autowired
+    private ServerExecutors serverExecutors;
+
+    private static final class Peer {
+        // Un latido por servidor a la vez: una escritura bloqueada no acumula tareas
+        final AtomicBoolean enviando = new AtomicBoolean();
+        volatile boolean responde;
+        volatile long ultimaRttNanos = -1;
+        volatile double mediaRttNanos = -1; // Media móvil exponencial
+        volatile long maxRttNanos;
+        final AtomicLong enviados = new AtomicLong();
+        final AtomicLong respuestas = new AtomicLong();
+    }
+
+    private final Map<String, Peer> peers = new ConcurrentHashMap<>();
+    private volatile boolean running;
+
+    // --- Métricas ---
+    private final AtomicLong bajasPorTiempo = new AtomicLong();
+
+    @PostConstruct
+    public void start() {
+        if (intervalMs <= 0) {
+            System.out.println("💓 Heartbeat de federación desactivado");
+            return;
+        }
+        running = true;
+        programar();
+    }
+
+    private void programar() {
+        CompletableFuture.delayedExecutor(intervalMs, TimeUnit.MILLISECONDS, serverExecutors::execute)
+                .execute(this::tick);
+    }
+
+    private void tick() {
+        if (!running) return;
+        try {
+            long ahora = System.currentTimeMillis();
+            peers.keySet().removeIf(key -> !serverRegistry.isServerRegistered(key));
+            for (String key : serverRegistry.getServerKeys()) {
+                ServerRegistry.FederatedServer fs = serverRegistry.getFederatedServer(key);
+                if (fs == null) continue;
+                Peer peer = peers.computeIfAbsent(key, k -> new Peer());
+                long silencio = ahora - fs.lastHeartbeat;
+                if (peer.responde && timeoutMs > 0 && silencio > timeoutMs) {
+                    bajasPorTiempo.incrementAndGet();
+                    peers.remove(key, peer);
+                    System.err.println("💔 Servidor " + key + " sin responder en " + silencio + " ms: se da de baja");
+                    serverRegistry.unregisterServer(key);
+                    continue;
+                }
+                if (peer.enviando.compareAndSet(false, true)) {
+                    peer.enviados.incrementAndGet();
+                    serverExecutors.execute(() -> {
+                        try {
+                            serverRegistry.sendToServer(key, new Packet(ActionType.SERVER_HEARTBEAT, System.nanoTime()));
+                        } finally {
+                            peer.enviando.set(false);
+                        }
+                    });
+                }
+            }
+        } finally {
+            programar();
+        }
+    }
+
+    /**
+     * Otro servidor nos envía un latido: se le devuelve para que mida la latencia
+     */
+    public void onHeartbeat(String serverKey, Object payload) {
+        if (serverKey != null && payload instanceof Long) {
+            serverRegistry.sendToServer(serverKey, new Packet(ActionType.SERVER_HEARTBEAT_ACK, payload));
+        }
+    }
+
+    /**
+     * Vuelve un latido nuestro: su payload es el nanoTime en que se envió
+     */
+    public void onHeartbeatAck(String serverKey, Object payload) {
+        if (serverKey == null || !(payload instanceof Long enviado)) return;
+        Peer peer = peers.get(serverKey);
+        if (peer == null) return;
+        long rtt = System.nanoTime() - enviado;
+        if (rtt < 0) return;
+        peer.responde = true;
+        peer.respuestas.incrementAndGet();
+        peer.ultimaRttNanos = rtt;
+        peer.mediaRttNanos = peer.mediaRttNanos < 0 ? rtt : peer.mediaRttNanos * 0.8 + rtt * 0.2;
+        peer.maxRttNanos = Math.max(peer.maxRttNanos, rtt);
+    }
+
+    @PreDestroy
+    public void shutdown() {
+        running = false;
+    }
+
+    /**
+     * Métricas para la API REST: latencia por servidor federado
+     */
+    public Map<String, Object> getMetrics() {
+        Map<String, Object> metrics = new LinkedHashMap<>();
+        metrics.put("intervalMs", intervalMs);
+        metrics.put("timeoutMs", timeoutMs);
+        metrics.put("evictions", bajasPorTiempo.get());
+        Map<String, Object> porServidor = new LinkedHashMap<>();
+        long ahora = System.currentTimeMillis();
+        peers.forEach((key, peer) -> {
+            ServerRegistry.FederatedServer fs = serverRegistry.getFederatedServer(key);
+            Map<String, Object> m = new LinkedHashMap<>();
+            m.put("responding", peer.responde);
+            m.put("rttLastMs", peer.ultimaRttNanos < 0 ? null : peer.ultimaRttNanos / 1_000_000.0);
+            m.put("rttAvgMs", peer.mediaRttNanos < 0 ? null : peer.mediaRttNanos / 1_000_000.0);
+            m.put("rttMaxMs", peer.maxRttNanos / 1_000_000.0);
+            m.put("lastSeenMsAgo", fs == null ? null : ahora - fs.lastHeartbeat);
+            m.put("sent", peer.enviados.get());
+            m.put("acked", peer.respuestas.get());
+            porServidor.put(key, m);
+        });
+        metrics.put("peers", porServidor);
+        return metrics;
+    }
+}
@@ -0,0 +1,138 @@
+package com.universidad.chat.servidor.network;
+
+import com.universidad.chat.comun.dto.ActionType;
+import com.universidad.chat.comun.dto.Packet;
+import com.universidad.chat.comun.dto.ServerInfoDTO;
+import com.universidad.chat.comun.protocol.PacketStream;
+
+import java.io.IOException;
+import java.net.Socket;
+
+/**
+ * Lector de la única conexión con un servidor federado, la haya abierto él o nosotros.
+ *
+ * Una conexión entrante queda registrada al recibir su SERVER_REGISTER; una saliente ya lo
+ * está al crearse (ServerRegistry.connectToServer). Si los dos servidores se conectan a la vez
+ * ServerRegistry se queda con la misma conexión en ambos lados y cierra la otra.
+ * Todo lo demás lo reparte {@link FederationDispatcher}.
+ */
+public class FederationLink implements Runnable {
+
+    private final ServerRegistry serverRegistry;
+    private final FederationDispatcher dispatcher;
+    private final Socket socket;
+    private PacketStream stream;
+    private ServerRegistry.FederatedServer server; // null hasta el SERVER_REGISTER de una entrante
+    private String serverKey;
+
+    /**
+     * Conexión entrante: el protocolo se negocia en el hilo del enlace
+     */
+    public FederationLink(Socket socket, ServerRegistry serverRegistry, FederationDispatcher dispatcher) {
+        this.socket = socket;
+        this.serverRegistry = serverRegistry;
+        this.dispatcher = dispatcher;
+    }
+
+    /**
+     * Conexión saliente ya registrada
+     */
+    public FederationLink(ServerRegistry.FederatedServer server, String serverKey,
+                          ServerRegistry serverRegistry, FederationDispatcher dispatcher) {
+        this.socket = server.socket;
+        this.stream = server.stream;
+        this.server = server;
+        this.serverKey = serverKey;
+        this.serverRegistry = serverRegistry;
+        this.dispatcher = dispatcher;
+    }
+
+    @Override
+    public void run() {
+        try {
+            if (stream == null) {
+                // Detecta si el otro servidor usa tramas (y con qué codec) o el protocolo clásico
+                stream = PacketStream.accept(socket);
+            }
+            while (true) {
+                Packet packet = stream.readPacket();
+                if (packet == null) {
+                    continue;
+                }
+                if (packet.getAction() == ActionType.SERVER_REGISTER) {
+                    if (!handleServerRegister((ServerInfoDTO) packet.getPayload())) {
+                        return; // Ya había otra conexión con ese servidor y se queda esa
+                    }
+                    continue;
+                }
+                if (server == null) {
+                    System.out.println("⚠️ Paquete " + packet.getAction() + " antes de SERVER_REGISTER desde " + socket.getInetAddress());
+                    continue;
+                }
+                // Cualquier paquete cuenta como señal de vida (FederationHeartbeat)
+                server.lastHeartbeat = System.currentTimeMillis();
+                if (packet.getAction() == ActionType.SERVER_UNREGISTER) {
+                    System.out.println("👋 Servidor federado se desconecta: " + serverKey);
+                    return;
+                }
+                dispatcher.dispatch(serverKey, packet);
+            }
+        } catch (java.io.EOFException e) {
+            System.out.println("🔌 Conexión federada cerrada limpiamente: " + describe());
+        } catch (java.net.SocketException e) {
+            System.out.println("🔌 Socket federado cerrado: " + describe());
+        } catch (IOException e) {
+            System.err.println("❌ Error I/O con servidor federado " + describe() + ": " + e.getMessage());
+        } catch (ClassNotFoundException e) {
+            System.err.println("❌ Error de deserialización con servidor federado " + describe() + ": " + e.getMessage());
+        } finally {
+            if (server != null) {
+                // Si esta conexión fue sustituida por otra, el servidor sigue registrado
+                serverRegistry.unregisterLink(serverKey, server);
+            }
+            try {
+                socket.close();
+            } catch (IOException e) { /* ignore */ }
+        }
+    }
+
+    /**
+     * @return false si la conexión sobra y hay que cerrarla
+     */
+    private boolean handleServerRegister(ServerInfoDTO info) {
+        if (server != null) {
+            // Respuesta a nuestro SERVER_REGISTER: ahora sabemos su nombre real
+            serverRegistry.updateServerName(serverKey, info.getServerName());
+            return true;
+        }
+        serverKey = info.getIpAddress() + ":" + info.getFederationPort();
+        server = serverRegistry.adoptInbound(info, stream);
+        if (server == null) {
+            return false;
+        }
+
+        // Responder con nuestra info (nuestro puerto real de federación, no el remoto)
+        ServerInfoDTO myInfo = new ServerInfoDTO();
+        myInfo.setServerName(serverRegistry.getLocalServerName());
+        myInfo.setIpAddress(serverRegistry.getLocalServerIP());
+        myInfo.setFederationPort(serverRegistry.getLocalFederationPort());
+        myInfo.setTimestamp(System.currentTimeMillis());
+        try {
+            // Por la cola del enlace: otros hilos ya pueden estar escribiendo a este servidor
+            server.send(new Packet(ActionType.SERVER_REGISTER, myInfo));
+        } catch (IOException e) {
+            System.err.println("Error respondiendo SERVER_REGISTER: " + e.getMessage());
+            return false;
+        }
+        // Nuestra lista de usuarios y la topología completa de servidores conocidos
+        serverRegistry.sendUserListToServer(serverKey);
+        serverRegistry.sendTopologyToServer(serverKey);
+        // Lo que se le guardó mientras no estaba
+        serverRegistry.linkReady(serverKey);
+        return true;
+    }
+
+    private String describe() {
+        return serverKey != null ? serverKey : String.valueOf(socket.getInetAddress());
+    }
+}
@@ -0,0 +1,446 @@
+package com.universidad.chat.servidor.network;
+
+import com.universidad.chat.comun.dto.ActionType;
+import com.universidad.chat.comun.dto.Packet;
+import com.universidad.chat.comun.protocol.BinaryPacketCodec;
+import jakarta.annotation.PostConstruct;
+import jakarta.annotation.PreDestroy;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.EnumSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Buzón de salida por servidor federado.
+ *
+ * Mientras un servidor está caído (o reiniciándose) los mensajes para él se guardan en
+ * federation_outbox/&lt;ip&gt;_&lt;puerto&gt;.log en lugar de perderse, y se reintenta la conexión.
+ * Al volver se le reenvían en orden, en tandas de replay-batch paquetes: cada tanda termina
+ * con OUTBOX_REPLAY_MARK y la siguiente no sale hasta recibir su OUTBOX_REPLAY_ACK (y como
+ * mucho replay-rate paquetes por segundo). Lo confirmado se anota en &lt;archivo&gt;.ack, así que
+ * tras un reinicio de este servidor solo se repite la tanda sin confirmar; los repetidos los
+ * descarta SeenMessageCache por su messageId.
+ *
+ * Mientras quedan paquetes en el buzón los nuevos también van a él, para no adelantarlos.
+ * Solo se guardan mensajes, audios, transcripciones e invitaciones: la presencia, las rutas
+ * y los latidos se vuelven a sincronizar al reconectar.
+ */
+@Component
+public class FederationOutbox {
+
+    private static final Path OUTBOX_DIR = Paths.get("federation_outbox");
+    private static final Set<ActionType> GUARDABLES = EnumSet.of(
+            ActionType.FEDERATED_MESSAGE, ActionType.FEDERATED_AUDIO, ActionType.TRANSCRIPTION_READY,
+            ActionType.FEDERATED_CHANNEL_INVITE, ActionType.FEDERATED_INVITATION_RESPONSE);
+    // [longitud int][guardado en ms long][paquete en el codec binario]
+    private static final int CABECERA = Integer.BYTES + Long.BYTES;
+
+    // Tamaño máximo pendiente por servidor; lo que no cabe se descarta
+    @Value("${chat.server.federation.outbox.max-bytes:67108864}")
+    private long maxBytes;
+
+    // Los paquetes más antiguos ya no se reenvían (y el buzón de un servidor ausente más tiempo se borra)
+    @Value("${chat.server.federation.outbox.ttl-ms:3600000}")
+    private long ttlMs;
+
+    @Value("${chat.server.federation.outbox.retry-ms:5000}")
+    private long retryMs;
+
+    @Value("${chat.server.federation.outbox.replay-batch:100}")
+    private int replayBatch;
+
+    @Value("${chat.server.federation.outbox.replay-rate:500}")
+    private int replayRate;
+
+    @Autowired
+    private ServerRegistry serverRegistry;
+
+    @Autowired
+    private ServerExecutors serverExecutors;
+
+    private static final class Buzon {
+        final String serverKey;
+        final Path archivo;
+        final Path archivoAck;
+        final ReentrantLock lock = new ReentrantLock();
+        FileChannel canal;      // null hasta el primer paquete guardado
+        long confirmado;        // Bytes que el otro servidor ya confirmó
+        long enviado;           // Hasta dónde llegó la tanda en curso
+        long tandaEnEspera = -1; // Offset final de la tanda esperando OUTBOX_REPLAY_ACK
+        boolean ausente = true; // Sin conexión: todo lo guardable va al buzón
+        long ausenteDesde = System.currentTimeMillis();
+
+        Buzon(String serverKey) {
+            this.serverKey = serverKey;
+            String nombre = serverKey.replace(':', '_');
+            this.archivo = OUTBOX_DIR.resolve(nombre + ".log");
+            this.archivoAck = OUTBOX_DIR.resolve(nombre + ".ack");
+        }
+
+        boolean tienePendientes() throws IOException {
+            return canal != null && canal.size() > confirmado;
+        }
+    }
+
+    private final Map<String, Buzon> buzones = new ConcurrentHashMap<>();
+    private volatile boolean running;
+
+    // --- Métricas ---
+    private final AtomicLong guardados = new AtomicLong();
+    private final AtomicLong reenviados = new AtomicLong();
+    private final AtomicLong caducados = new AtomicLong();
+    private final AtomicLong descartadosPorTamano = new AtomicLong();
+
+    @PostConstruct
+    public void start() {
+        // Buzones que quedaron de antes de un reinicio
+        if (Files.isDirectory(OUTBOX_DIR)) {
+            try (DirectoryStream<Path> archivos = Files.newDirectoryStream(OUTBOX_DIR, "*.log")) {
+                for (Path archivo : archivos) {
+                    String nombre = archivo.getFileName().toString();
+                    nombre = nombre.substring(0, nombre.length() - ".log".length());
+                    int sep = nombre.lastIndexOf('_');
+                    if (sep <= 0) continue;
+                    Buzon b = new Buzon(nombre.substring(0, sep) + ":" + nombre.substring(sep + 1));
+                    b.canal = FileChannel.open(b.archivo, StandardOpenOption.READ, StandardOpenOption.WRITE);
+                    if (Files.exists(b.archivoAck)) {
+                        b.confirmado = Math.min(ByteBuffer.wrap(Files.readAllBytes(b.archivoAck)).getLong(), b.canal.size());
+                    }
+                    b.enviado = b.confirmado;
+                    b.ausenteDesde = Files.getLastModifiedTime(archivo).toMillis();
+                    buzones.put(b.serverKey, b);
+                    System.out.println("📮 Buzón federado pendiente para " + b.serverKey + " (" + (b.canal.size() - b.confirmado) + " bytes)");
+                }
+            } catch (IOException | RuntimeException e) {
+                System.err.println("⚠️ No se pudieron leer los buzones federados: " + e.getMessage());
+            }
+        }
+        running = true;
+        programarReintento();
+    }
+
+    /**
+     * Si el servidor está ausente o su buzón aún tiene paquetes, el paquete se guarda detrás
+     * de ellos en lugar de enviarse.
+     * @return true si se guardó (no hay que enviarlo)
+     */
+    public boolean guardarSiPendiente(String serverKey, Packet packet) {
+        if (!GUARDABLES.contains(packet.getAction())) return false;
+        Buzon b = buzones.get(serverKey);
+        if (b == null) return false;
+        b.lock.lock();
+        try {
+            if (!b.ausente && !b.tienePendientes()) {
+                return false;
+            }
+            escribir(b, packet);
+            return true;
+        } catch (IOException e) {
+            System.err.println("❌ Error guardando en el buzón de " + serverKey + ": " + e.getMessage());
+            return true;
+        } finally {
+            b.lock.unlock();
+        }
+    }
+
+    /**
+     * Guarda un paquete que no se pudo escribir (el servidor acaba de caerse)
+     */
+    public void guardar(String serverKey, Packet packet) {
+        if (GUARDABLES.contains(packet.getAction())) {
+            buzones.computeIfAbsent(serverKey, Buzon::new);
+            guardarSiPendiente(serverKey, packet);
+        }
+    }
+
+    /**
+     * Guarda un paquete difundido a la federación para los servidores ausentes
+     * @param tratados servidores a los que ya se envió o en cuyo buzón ya se guardó
+     */
+    public void guardarParaAusentes(Packet packet, Set<String> tratados) {
+        if (!GUARDABLES.contains(packet.getAction())) return;
+        buzones.forEach((key, b) -> {
+            if (b.ausente && !tratados.contains(key)) {
+                guardarSiPendiente(key, packet);
+            }
+        });
+    }
+
+    private void escribir(Buzon b, Packet packet) throws IOException {
+        byte[] data = BinaryPacketCodec.INSTANCE.encode(packet);
+        if (b.canal == null) {
+            Files.createDirectories(OUTBOX_DIR);
+            b.canal = FileChannel.open(b.archivo, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        }
+        long size = b.canal.size();
+        if (size - b.confirmado + CABECERA + data.length > maxBytes) {
+            descartadosPorTamano.incrementAndGet();
+            System.err.println("⚠️ Buzón de " + b.serverKey + " lleno: se descarta " + packet.getAction());
+            return;
+        }
+        ByteBuffer buffer = ByteBuffer.allocate(CABECERA + data.length);
+        buffer.putInt(data.length).putLong(System.currentTimeMillis()).put(data).flip();
+        long position = size;
+        while (buffer.hasRemaining()) {
+            position += b.canal.write(buffer, position);
+        }
+        guardados.incrementAndGet();
+    }
+
+    /**
+     * El servidor dejó de estar conectado: desde ahora sus paquetes se guardan
+     */
+    public void servidorPerdido(String serverKey) {
+        Buzon b = buzones.computeIfAbsent(serverKey, Buzon::new);
+        b.lock.lock();
+        try {
+            if (!b.ausente) {
+                b.ausente = true;
+                b.ausenteDesde = System.currentTimeMillis();
+            }
+            // La tanda sin confirmar se repetirá al volver
+            b.enviado = b.confirmado;
+            b.tandaEnEspera = -1;
+        } finally {
+            b.lock.unlock();
+        }
+    }
+
+    /**
+     * El servidor volvió (ya intercambiamos SERVER_REGISTER): empieza el reenvío
+     */
+    public void servidorListo(String serverKey) {
+        Buzon b = buzones.get(serverKey);
+        if (b == null) return;
+        b.lock.lock();
+        try {
+            b.ausente = false;
+            if (!b.tienePendientes()) return;
+            System.out.println("📮 Reenviando buzón a " + serverKey + " (" + (b.canal.size() - b.confirmado) + " bytes)");
+        } catch (IOException e) {
+            return;
+        } finally {
+            b.lock.unlock();
+        }
+        serverExecutors.execute(() -> enviarTanda(b));
+    }
+
+    /**
+     * El administrador desconectó el servidor a mano: no se le guarda nada más
+     */
+    public void descartar(String serverKey) {
+        Buzon b = buzones.remove(serverKey);
+        if (b == null) return;
+        b.lock.lock();
+        try {
+            cerrarYBorrar(b);
+        } finally {
+            b.lock.unlock();
+        }
+    }
+
+    private void enviarTanda(Buzon b) {
+        List<Packet> tanda = new ArrayList<>();
+        long fin;
+        b.lock.lock();
+        try {
+            if (b.ausente || b.canal == null || b.tandaEnEspera >= 0) return;
+            long limite = System.currentTimeMillis() - ttlMs;
+            long position = b.enviado;
+            long size = b.canal.size();
+            ByteBuffer cabecera = ByteBuffer.allocate(CABECERA);
+            while (tanda.size() < replayBatch && position + CABECERA <= size) {
+                cabecera.clear();
+                leer(b.canal, cabecera, position);
+                cabecera.flip();
+                int length = cabecera.getInt();
+                long guardado = cabecera.getLong();
+                if (length < 0 || position + CABECERA + length > size) {
+                    // Registro a medias (el servidor se detuvo mientras se escribía): se quita
+                    b.canal.truncate(position);
+                    break;
+                }
+                ByteBuffer data = ByteBuffer.allocate(length);
+                leer(b.canal, data, position + CABECERA);
+                position += CABECERA + length;
+                if (guardado < limite) {
+                    caducados.incrementAndGet();
+                    continue;
+                }
+                tanda.add(BinaryPacketCodec.INSTANCE.decode(data.array(), 0, length));
+            }
+            fin = position;
+            b.enviado = fin;
+            b.tandaEnEspera = fin;
+        } catch (IOException | ClassNotFoundException | RuntimeException e) {
+            System.err.println("❌ Buzón de " + b.serverKey + " ilegible, se descarta: " + e.getMessage());
+            cerrarYBorrar(b);
+            return;
+        } finally {
+            b.lock.unlock();
+        }
+
+        for (Packet packet : tanda) {
+            if (!serverRegistry.sendDirect(b.serverKey, packet)) {
+                return; // Se volvió a caer: servidorPerdido ya dejó la tanda para el próximo intento
+            }
+        }
+        reenviados.addAndGet(tanda.size());
+        // Cuando el otro servidor procese todo lo anterior responderá OUTBOX_REPLAY_ACK
+        serverRegistry.sendDirect(b.serverKey, new Packet(ActionType.OUTBOX_REPLAY_MARK, fin));
+    }
+
+    private static void leer(FileChannel canal, ByteBuffer buffer, long position) throws IOException {
+        while (buffer.hasRemaining()) {
+            int n = canal.read(buffer, position);
+            if (n < 0) throw new IOException("registro incompleto");
+            position += n;
+        }
+    }
+
+    /**
+     * El otro servidor procesó la tanda que terminaba en offset
+     */
+    public void confirmado(String serverKey, Object payload) {
+        Buzon b = buzones.get(serverKey);
+        if (b == null || !(payload instanceof Long offset)) return;
+        boolean seguir;
+        b.lock.lock();
+        try {
+            if (offset != b.tandaEnEspera) return;
+            b.tandaEnEspera = -1;
+            b.confirmado = offset;
+            seguir = b.tienePendientes();
+            if (seguir) {
+                Files.write(b.archivoAck, ByteBuffer.allocate(Long.BYTES).putLong(offset).array());
+            } else {
+                // Vacío: se empieza de cero y los paquetes nuevos vuelven a ir directos
+                b.canal.truncate(0);
+                b.confirmado = 0;
+                b.enviado = 0;
+                Files.deleteIfExists(b.archivoAck);
+                System.out.println("📮 Buzón de " + serverKey + " entregado");
+            }
+        } catch (IOException e) {
+            System.err.println("⚠️ Error actualizando el buzón de " + serverKey + ": " + e.getMessage());
+            seguir = false;
+        } finally {
+            b.lock.unlock();
+        }
+        if (seguir) {
+            long pausa = replayRate > 0 ? replayBatch * 1000L / replayRate : 0;
+            CompletableFuture.delayedExecutor(pausa, TimeUnit.MILLISECONDS, serverExecutors::execute)
+                    .execute(() -> enviarTanda(b));
+        }
+    }
+
+    private void programarReintento() {
+        CompletableFuture.delayedExecutor(retryMs, TimeUnit.MILLISECONDS, serverExecutors::execute)
+                .execute(this::reintentar);
+    }
+
+    /**
+     * Borra los buzones caducados y vuelve a conectar con los servidores ausentes que tienen
+     * paquetes pendientes
+     */
+    private void reintentar() {
+        if (!running) return;
+        try {
+            long ahora = System.currentTimeMillis();
+            buzones.forEach((key, b) -> {
+                boolean reconectar;
+                b.lock.lock();
+                try {
+                    if (!b.ausente) return;
+                    if (ahora - b.ausenteDesde > ttlMs) {
+                        if (buzones.remove(key, b)) {
+                            cerrarYBorrar(b);
+                        }
+                        return;
+                    }
+                    reconectar = b.tienePendientes();
+                } catch (IOException e) {
+                    return;
+                } finally {
+                    b.lock.unlock();
+                }
+                int sep = key.lastIndexOf(':');
+                if (reconectar && sep > 0 && !serverRegistry.isServerRegistered(key)) {
+                    serverExecutors.execute(() ->
+                            serverRegistry.connectToServer(key.substring(0, sep), Integer.parseInt(key.substring(sep + 1))));
+                }
+            });
+        } finally {
+            programarReintento();
+        }
+    }
+
+    private void cerrarYBorrar(Buzon b) {
+        try {
+            if (b.canal != null) {
+                b.canal.close();
+                b.canal = null;
+            }
+            Files.deleteIfExists(b.archivo);
+            Files.deleteIfExists(b.archivoAck);
+        } catch (IOException e) {
+            System.err.println("⚠️ No se pudo borrar el buzón de " + b.serverKey + ": " + e.getMessage());
+        }
+    }
+
+    @PreDestroy
+    public void shutdown() {
+        running = false;
+        buzones.values().forEach(b -> {
+            try {
+                if (b.canal != null) b.canal.close();
+            } catch (IOException e) { /* ignore */ }
+        });
+    }
+
+    /**
+     * Métricas para la API REST
+     */
+    public Map<String, Object> getMetrics() {
+        Map<String, Object> metrics = new LinkedHashMap<>();
+        metrics.put("stored", guardados.get());
+        metrics.put("replayed", reenviados.get());
+        metrics.put("expired", caducados.get());
+        metrics.put("droppedFull", descartadosPorTamano.get());
+        Map<String, Object> porServidor = new LinkedHashMap<>();
+        buzones.forEach((key, b) -> {
+            Map<String, Object> m = new LinkedHashMap<>();
+            b.lock.lock();
+            try {
+                m.put("absent", b.ausente);
+                m.put("pendingBytes", b.canal == null ? 0 : b.canal.size() - b.confirmado);
+            } catch (IOException e) {
+                m.put("pendingBytes", null);
+            } finally {
+                b.lock.unlock();
+            }
+            porServidor.put(key, m);
+        });
+        metrics.put("peers", porServidor);
+        return metrics;
+    }
+}
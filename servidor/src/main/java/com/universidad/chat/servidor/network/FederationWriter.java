@@ -0,0 +1,161 @@
+package com.universidad.chat.servidor.network;
+
+import com.universidad.chat.comun.dto.Packet;
+import com.universidad.chat.comun.protocol.EncodedPacket;
+import com.universidad.chat.comun.protocol.PacketStream;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Escritor de la conexión con un servidor federado.
+ *
+ * Quien envía solo encola; este hilo vacía la cola y escribe los paquetes por tandas con
+ * un único flush (PacketStream.writeBatch), como el algoritmo de Nagle: una tanda se cierra
+ * al llegar a batch-bytes o cuando pasan linger-us sin que llegue nada más. Con carga, muchos
+ * mensajes viajan en la misma escritura al socket; sin carga, un mensaje suelto espera como
+ * mucho linger-us.
+ *
+ * Si la escritura falla (o el enlace se cierra) lo que quedaba sin escribir se devuelve a
+ * ServerRegistry, que lo guarda en el buzón o lo reenvía por la conexión nueva.
+ */
+final class FederationWriter implements Runnable {
+
+    interface Stopped {
+        void onStopped(List<Packet> unsent, IOException error);
+    }
+
+    // Marca de cierre en la cola: despierta al hilo aunque esté esperando paquetes
+    private static final EncodedPacket CERRAR = new EncodedPacket(null);
+    // Tamaño supuesto de un paquete en el protocolo clásico (no se conoce sin serializarlo)
+    private static final int TAMANO_CLASICO = 512;
+
+    private final PacketStream stream;
+    private final LinkedBlockingQueue<EncodedPacket> queue;
+    private final int batchBytes;
+    private final long lingerNanos;
+    private final Stopped stopped;
+    private volatile boolean closed;
+
+    // --- Métricas ---
+    private final AtomicLong paquetes = new AtomicLong();
+    private final AtomicLong tandas = new AtomicLong();
+    private final AtomicLong bytes = new AtomicLong();
+    private volatile int mayorTanda;
+
+    FederationWriter(PacketStream stream, int capacity, int batchBytes, long lingerMicros, Stopped stopped) {
+        this.stream = stream;
+        this.queue = new LinkedBlockingQueue<>(Math.max(1, capacity));
+        this.batchBytes = Math.max(1, batchBytes);
+        this.lingerNanos = TimeUnit.MICROSECONDS.toNanos(Math.max(0, lingerMicros));
+        this.stopped = stopped;
+    }
+
+    /**
+     * Encola un paquete. Si la cola está llena espera (contrapresión, como antes la escritura)
+     * @throws IOException si el enlace ya está cerrado: el paquete no se enviará
+     */
+    void offer(EncodedPacket packet) throws IOException {
+        if (closed) {
+            throw new IOException("Enlace federado cerrado");
+        }
+        try {
+            queue.put(packet);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrumpido esperando la cola federada");
+        }
+        // Se cerró mientras encolábamos: si el escritor ya no lo recogió, es nuestro
+        if (closed && queue.remove(packet)) {
+            throw new IOException("Enlace federado cerrado");
+        }
+    }
+
+    /**
+     * Detiene el escritor; lo pendiente se devuelve por Stopped
+     */
+    void close() {
+        closed = true;
+        queue.offer(CERRAR);
+    }
+
+    @Override
+    public void run() {
+        List<EncodedPacket> tanda = new ArrayList<>();
+        IOException error = null;
+        try {
+            boolean cerrar = false;
+            while (!cerrar) {
+                EncodedPacket first = queue.take();
+                if (first == CERRAR) {
+                    break;
+                }
+                tanda.add(first);
+                long tamano = tamano(first);
+                long limite = System.nanoTime() + lingerNanos;
+                while (tamano < batchBytes) {
+                    EncodedPacket next = queue.poll();
+                    if (next == null && lingerNanos > 0) {
+                        long espera = limite - System.nanoTime();
+                        if (espera > 0) {
+                            next = queue.poll(espera, TimeUnit.NANOSECONDS);
+                        }
+                    }
+                    if (next == null) {
+                        break;
+                    }
+                    if (next == CERRAR) {
+                        cerrar = true;
+                        break;
+                    }
+                    tanda.add(next);
+                    tamano += tamano(next);
+                }
+                stream.writeBatch(tanda);
+                paquetes.addAndGet(tanda.size());
+                tandas.incrementAndGet();
+                bytes.addAndGet(tamano);
+                mayorTanda = Math.max(mayorTanda, tanda.size());
+                tanda.clear();
+            }
+        } catch (IOException e) {
+            error = e;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } finally {
+            closed = true;
+            List<Packet> unsent = new ArrayList<>();
+            tanda.forEach(p -> unsent.add(p.getPacket()));
+            List<EncodedPacket> resto = new ArrayList<>();
+            queue.drainTo(resto);
+            resto.stream().filter(p -> p != CERRAR).forEach(p -> unsent.add(p.getPacket()));
+            stopped.onStopped(unsent, error);
+        }
+    }
+
+    private int tamano(EncodedPacket packet) throws IOException {
+        return stream.isFramed() ? packet.frameBytes(stream.getCodec()).length : TAMANO_CLASICO;
+    }
+
+    /**
+     * Métricas del enlace para la API REST
+     */
+    Map<String, Object> getMetrics() {
+        Map<String, Object> metrics = new LinkedHashMap<>();
+        long n = tandas.get();
+        metrics.put("queued", queue.size());
+        metrics.put("packets", paquetes.get());
+        metrics.put("flushes", n);
+        metrics.put("bytes", bytes.get());
+        metrics.put("avgPacketsPerFlush", n == 0 ? 0.0 : (double) paquetes.get() / n);
+        metrics.put("maxPacketsPerFlush", mayorTanda);
+        return metrics;
+    }
+}
@@ -0,0 +1,99 @@
+package com.universidad.chat.servidor.network;
+
+import com.universidad.chat.comun.dto.AudioDataDTO;
+import com.universidad.chat.comun.protocol.BinaryPacketCodec;
+import com.universidad.chat.comun.protocol.DeflatePacketCodec;
+import com.universidad.chat.comun.protocol.PacketCodec;
+import com.universidad.chat.comun.protocol.PacketStream;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * Trama de salida cuyo cuerpo sale de un archivo: una cabecera ya codificada seguida de un
+ * rango del archivo que se envía con FileChannel.transferTo (sendfile), sin copiarlo al heap.
+ * El archivo se abre al empezar a escribir la trama y se cierra al terminarla o descartarla.
+ */
+final class FileRegion {
+
+    private final ByteBuffer header;
+    private final Path file;
+    private final long position;
+    private final long count;
+    private long transferred;
+    private FileChannel source;
+
+    FileRegion(byte[] header, Path file, long position, long count) {
+        this.header = ByteBuffer.wrap(header);
+        this.file = file;
+        this.position = position;
+        this.count = count;
+    }
+
+    /**
+     * Cabecera de la trama AUDIO_DOWNLOAD_DATA para el codec de la conexión, o null si ese codec
+     * no permite enviar el rango desde el archivo (codec Java o protocolo clásico).
+     * Con compresión negociada el rango viaja sin comprimir para no perder el transferTo
+     * (el audio WAV apenas se comprime con Deflate).
+     */
+    static byte[] audioDataHeader(PacketCodec codec, AudioDataDTO meta) throws IOException {
+        PacketCodec base = codec instanceof DeflatePacketCodec deflate ? deflate.getBase() : codec;
+        if (base == null || base.id() != BinaryPacketCodec.ID) {
+            return null;
+        }
+        byte[] header = BinaryPacketCodec.INSTANCE.encodeAudioDataHeader(meta);
+        return base == codec ? header : DeflatePacketCodec.uncompressedFrameHeader(header);
+    }
+
+    int headerLength() {
+        return header.capacity();
+    }
+
+    /**
+     * Escritura no bloqueante (event loop NIO): envía lo que acepte el socket.
+     * @return true cuando la trama se escribió completa
+     */
+    boolean writeTo(SocketChannel target) throws IOException {
+        if (header.hasRemaining()) {
+            target.write(header);
+            if (header.hasRemaining()) {
+                return false;
+            }
+        }
+        if (source == null) {
+            source = FileChannel.open(file, StandardOpenOption.READ);
+        }
+        while (transferred < count) {
+            long n = source.transferTo(position + transferred, count - transferred, target);
+            if (n == 0) {
+                if (source.size() < position + count) {
+                    throw new IOException("El archivo " + file.getFileName() + " se acortó durante el envío");
+                }
+                return false; // Buffer del socket lleno
+            }
+            transferred += n;
+        }
+        close();
+        return true;
+    }
+
+    /**
+     * Escritura bloqueante sobre un PacketStream (conexiones de un hilo por cliente)
+     */
+    void writeTo(PacketStream stream) throws IOException {
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            stream.writeFileRegion(header.array(), channel, position, count);
+        }
+    }
+
+    void close() {
+        if (source != null) {
+            try { source.close(); } catch (IOException e) { /* ignore */ }
+            source = null;
+        }
+    }
+}
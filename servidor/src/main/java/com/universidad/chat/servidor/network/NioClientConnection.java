@@ -0,0 +1,333 @@
+package com.universidad.chat.servidor.network;
+
+import com.universidad.chat.comun.dto.ActionType;
+import com.universidad.chat.comun.dto.AudioDataDTO;
+import com.universidad.chat.comun.dto.Packet;
+import com.universidad.chat.comun.protocol.EncodedPacket;
+import com.universidad.chat.comun.protocol.JavaPacketCodec;
+import com.universidad.chat.comun.protocol.PacketCodec;
+import com.universidad.chat.comun.protocol.WireProtocol;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.nio.file.Path;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Sesión de cliente gestionada por un event loop NIO.
+ * La lectura y escritura de bytes ocurre en el hilo del loop; el despacho de paquetes
+ * al {@link ClientHandler} se hace en el pool de workers, uno a la vez por sesión.
+ * Si el handler se queda atrás, la sesión deja de leer del socket hasta ponerse al día.
+ */
+class NioClientConnection implements ClientConnection {
+
+    // Paquetes recibidos pendientes de procesar a partir de los cuales se deja de leer el socket
+    static final int MAX_PENDING_INBOUND = 16;
+
+    private final SocketChannel channel;
+    private final NioClientTransport.EventLoop loop;
+    private final Executor workers;
+    private final NioClientTransport transport;
+    private final String remoteAddress;
+    private SelectionKey key;
+    private ClientHandler handler;
+
+    // --- Estado de lectura (solo lo toca el event loop) ---
+    private final ByteBuffer header = ByteBuffer.allocate(WireProtocol.HANDSHAKE_LENGTH);
+    private ByteBuffer body;
+    private PacketCodec codec;
+
+    // --- Escritura: cualquier hilo encola (con límites), el loop escribe ---
+    private final OutboundQueue<Object> outbound;   // ByteBuffer o FileRegion
+    private Object currentWrite; // Trama a medio escribir, solo la toca el loop
+    private final AtomicBoolean writeScheduled = new AtomicBoolean();
+
+    // --- Despacho serializado de paquetes en los workers ---
+    private final Queue<Runnable> inboundTasks = new ConcurrentLinkedQueue<>();
+    private final AtomicBoolean dispatching = new AtomicBoolean();
+    private final AtomicInteger pendingInbound = new AtomicInteger();
+    private final AtomicBoolean readPaused = new AtomicBoolean();
+
+    private volatile boolean closed;
+
+    NioClientConnection(SocketChannel channel, NioClientTransport.EventLoop loop, Executor workers,
+                        NioClientTransport transport, OutboundLimits limits) throws IOException {
+        this.channel = channel;
+        this.outbound = new OutboundQueue<>(limits);
+        this.loop = loop;
+        this.workers = workers;
+        this.transport = transport;
+        this.remoteAddress = String.valueOf(channel.getRemoteAddress());
+    }
+
+    void setHandler(ClientHandler handler) {
+        this.handler = handler;
+    }
+
+    void register(Selector selector) {
+        try {
+            key = channel.register(selector, SelectionKey.OP_READ, this);
+        } catch (IOException e) {
+            closeNow();
+        }
+    }
+
+    // ==================== LECTURA ====================
+
+    void onReadable(ByteBuffer readBuffer) throws IOException {
+        readBuffer.clear();
+        int read = channel.read(readBuffer);
+        if (read < 0) {
+            closeNow();
+            return;
+        }
+        readBuffer.flip();
+
+        while (readBuffer.hasRemaining() && !closed) {
+            if (codec == null) {
+                readHandshake(readBuffer);
+                continue;
+            }
+            if (body == null) {
+                transfer(readBuffer, header);
+                if (header.hasRemaining()) {
+                    return; // Falta parte de la longitud
+                }
+                header.flip();
+                int length = header.getInt();
+                header.clear().limit(4);
+                WireProtocol.checkFrameLength(length, handler != null ? handler.maxFrameLength() : WireProtocol.MAX_PRE_LOGIN_FRAME_LENGTH);
+                body = ByteBuffer.allocate(length);
+            }
+            transfer(readBuffer, body);
+            if (!body.hasRemaining()) {
+                byte[] frame = body.array();
+                body = null;
+                PacketCodec frameCodec = codec;
+                // La decodificación también se hace fuera del event loop
+                dispatch(() -> {
+                    Packet packet;
+                    try {
+                        packet = frameCodec.decode(frame, 0, frame.length);
+                    } catch (IOException | ClassNotFoundException | ClassCastException e) {
+                        System.err.println("❌ Trama inválida desde " + remoteAddress + ": " + e.getMessage());
+                        close();
+                        return;
+                    }
+                    handler.handlePacket(packet);
+                });
+            }
+        }
+        // Lo ya leído se despacha entero (como mucho un buffer de lectura); a partir de aquí se deja
+        // de leer hasta que el handler se ponga al día y el cliente nota la contrapresión en TCP
+        if (pendingInbound.get() >= MAX_PENDING_INBOUND && !closed && readPaused.compareAndSet(false, true)) {
+            key.interestOps(key.interestOps() & ~SelectionKey.OP_READ);
+            // El worker pudo vaciar la cola justo antes de ver la pausa
+            if (pendingInbound.get() < MAX_PENDING_INBOUND) {
+                resumeRead();
+            }
+        }
+    }
+
+    /**
+     * Vuelve a leer del socket tras una pausa por contrapresión (hilo del event loop)
+     */
+    private void resumeRead() {
+        if (readPaused.compareAndSet(true, false) && key != null && key.isValid()) {
+            key.interestOps(key.interestOps() | SelectionKey.OP_READ);
+        }
+    }
+
+    private void readHandshake(ByteBuffer readBuffer) {
+        transfer(readBuffer, header);
+        if (header.position() >= 2 && WireProtocol.isLegacyHeader(header.get(0), header.get(1))) {
+            System.out.println("⚠️ Cliente con protocolo clásico rechazado por el transporte NIO: " + remoteAddress);
+            closeNow();
+            return;
+        }
+        if (header.hasRemaining()) {
+            return;
+        }
+        header.flip();
+        int magic = header.getInt();
+        byte version = header.get();
+        byte codecId = header.get();
+        if (magic != WireProtocol.MAGIC || version != WireProtocol.VERSION) {
+            System.err.println("❌ Handshake inválido desde " + remoteAddress);
+            closeNow();
+            return;
+        }
+        PacketCodec requested = PacketCodec.forId(codecId);
+        codec = (requested != null) ? requested : JavaPacketCodec.INSTANCE;
+        header.clear().limit(4);
+        enqueue(ByteBuffer.wrap(WireProtocol.handshake(codec.id())), null);
+    }
+
+    private static void transfer(ByteBuffer src, ByteBuffer dst) {
+        int n = Math.min(src.remaining(), dst.remaining());
+        ByteBuffer slice = src.slice();
+        slice.limit(n);
+        dst.put(slice);
+        src.position(src.position() + n);
+    }
+
+    private void dispatch(Runnable task) {
+        pendingInbound.incrementAndGet();
+        inboundTasks.add(task);
+        if (dispatching.compareAndSet(false, true)) {
+            workers.execute(this::drainInbound);
+        }
+    }
+
+    private void drainInbound() {
+        do {
+            Runnable task;
+            while ((task = inboundTasks.poll()) != null) {
+                try {
+                    task.run();
+                } catch (Exception e) {
+                    System.err.println("❌ Error procesando paquete de " + remoteAddress + ": " + e.getMessage());
+                    e.printStackTrace();
+                }
+                if (pendingInbound.decrementAndGet() == 0 && readPaused.get()) {
+                    loop.execute(this::resumeRead);
+                }
+            }
+            dispatching.set(false);
+        } while (!inboundTasks.isEmpty() && dispatching.compareAndSet(false, true));
+    }
+
+    // ==================== ESCRITURA ====================
+
+    @Override
+    public void sendPacket(Packet packet) throws IOException {
+        if (closed) {
+            throw new IOException("Conexión cerrada");
+        }
+        enqueue(WireProtocol.encodeFrame(codec, packet), packet.getAction());
+    }
+
+    @Override
+    public void sendEncoded(EncodedPacket packet) throws IOException {
+        if (closed) {
+            throw new IOException("Conexión cerrada");
+        }
+        // Vista propia sobre la trama compartida: el loop avanza su posición sin copiar los bytes
+        enqueue(packet.frame(codec), packet.getPacket().getAction());
+    }
+
+    /**
+     * Con el codec binario (comprimido o no) el rango sale del archivo al socket con transferTo
+     */
+    @Override
+    public boolean sendFileRange(AudioDataDTO meta, Path file) throws IOException {
+        if (closed) {
+            throw new IOException("Conexión cerrada");
+        }
+        byte[] header = FileRegion.audioDataHeader(codec, meta);
+        if (header == null) {
+            return ClientConnection.super.sendFileRange(meta, file);
+        }
+        FileRegion region = new FileRegion(header, file, meta.getOffset(), meta.getLength());
+        // Solo la cabecera ocupa memoria mientras espera en la cola
+        enqueue(region, region.headerLength(), ActionType.AUDIO_DOWNLOAD_DATA);
+        return true;
+    }
+
+    private void enqueue(ByteBuffer frame, ActionType action) {
+        enqueue(frame, frame.remaining(), action);
+    }
+
+    private void enqueue(Object frame, int size, ActionType action) {
+        switch (outbound.offer(frame, size, action)) {
+            case DROPPED:
+                System.err.println("⚠️ Cola de salida llena, paquete " + action + " descartado para " + remoteAddress);
+                return;
+            case OVERFLOW:
+                System.err.println("🐢 Cliente lento desconectado (cola de salida llena): " + remoteAddress);
+                close();
+                return;
+            default:
+                break;
+        }
+        if (writeScheduled.compareAndSet(false, true)) {
+            loop.execute(this::enableWrite);
+        }
+    }
+
+    private void enableWrite() {
+        if (key != null && key.isValid()) {
+            key.interestOps(key.interestOps() | SelectionKey.OP_WRITE);
+        }
+    }
+
+    void onWritable() throws IOException {
+        while (currentWrite != null || (currentWrite = outbound.poll()) != null) {
+            if (currentWrite instanceof FileRegion region) {
+                if (!region.writeTo(channel)) {
+                    return; // Buffer del socket lleno, esperamos al siguiente OP_WRITE
+                }
+            } else {
+                ByteBuffer frame = (ByteBuffer) currentWrite;
+                channel.write(frame);
+                if (frame.hasRemaining()) {
+                    return; // Buffer del socket lleno, esperamos al siguiente OP_WRITE
+                }
+            }
+            currentWrite = null;
+        }
+        key.interestOps(key.interestOps() & ~SelectionKey.OP_WRITE);
+        writeScheduled.set(false);
+        // Un productor pudo encolar justo antes de limpiar la bandera
+        if (!outbound.isEmpty() && writeScheduled.compareAndSet(false, true)) {
+            enableWrite();
+        }
+    }
+
+    // ==================== CIERRE ====================
+
+    @Override
+    public PacketCodec getCodec() {
+        return codec;
+    }
+
+    @Override
+    public String getRemoteAddress() {
+        return remoteAddress;
+    }
+
+    @Override
+    public void close() {
+        if (!closed) {
+            loop.execute(this::closeNow);
+        }
+    }
+
+    /**
+     * Cierra el canal desde el hilo del event loop y avisa al handler (en un worker)
+     */
+    void closeNow() {
+        if (closed) {
+            return;
+        }
+        closed = true;
+        if (key != null) {
+            key.cancel();
+        }
+        try { channel.close(); } catch (IOException e) { /* ignore */ }
+        outbound.clear();
+        if (currentWrite instanceof FileRegion region) {
+            region.close();
+        }
+        currentWrite = null;
+        transport.connectionClosed();
+        dispatch(handler::onDisconnect);
+    }
+}
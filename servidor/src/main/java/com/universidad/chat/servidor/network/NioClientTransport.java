@@ -0,0 +1,154 @@
+package com.universidad.chat.servidor.network;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.CancelledKeyException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.Iterator;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Transporte de clientes basado en java.nio (Selector/SocketChannel).
+ *
+ * Un hilo acepta conexiones y las reparte en round-robin entre unos pocos event loops,
+ * que solo leen y escriben bytes. Los paquetes decodificados se despachan en un pool
+ * de workers (respetando el orden por sesión) porque ClientHandler hace llamadas
+ * bloqueantes a la BD y a Vosk que no pueden ejecutarse dentro del event loop.
+ */
+public class NioClientTransport {
+
+    private static final int READ_BUFFER_SIZE = 64 * 1024;
+
+    private final TCPServer tcpServer;
+    private final int port;
+    private final EventLoop[] loops;
+    private final ExecutorService workers;
+    private final AtomicInteger nextLoop = new AtomicInteger();
+    private final AtomicInteger openConnections = new AtomicInteger();
+
+    public NioClientTransport(TCPServer tcpServer, int port, int eventLoops, ExecutorService workers) throws IOException {
+        this.tcpServer = tcpServer;
+        this.port = port;
+        this.loops = new EventLoop[Math.max(1, eventLoops)];
+        for (int i = 0; i < loops.length; i++) {
+            loops[i] = new EventLoop(i);
+        }
+        this.workers = workers;
+    }
+
+    /**
+     * Arranca los event loops y el hilo aceptador
+     */
+    public void start() {
+        // Los event loops y el aceptador son siempre hilos de plataforma: viven bloqueados en select()/accept()
+        for (EventLoop loop : loops) {
+            Thread t = new Thread(loop, "nio-event-loop-" + loop.index);
+            t.setDaemon(true);
+            t.start();
+        }
+        Thread acceptor = new Thread(this::acceptLoop, "nio-acceptor");
+        acceptor.setDaemon(true);
+        acceptor.start();
+    }
+
+    private void acceptLoop() {
+        try (ServerSocketChannel serverChannel = ServerSocketChannel.open()) {
+            serverChannel.bind(new InetSocketAddress(port));
+            tcpServer.log("⚡ Transporte NIO activo: " + loops.length + " event loops, puerto " + port);
+
+            while (true) {
+                SocketChannel channel = serverChannel.accept(); // bloqueante, solo este hilo
+                // Cuenta también las conexiones que aún no han hecho login
+                if (openConnections.get() >= tcpServer.getMaxConnections()) {
+                    tcpServer.log("Conexión rechazada desde " + channel.getRemoteAddress() + ". Límite alcanzado.");
+                    try { channel.close(); } catch (IOException ioex) { /* ignore */ }
+                    continue;
+                }
+                tcpServer.log("Nuevo cliente intentando conectar desde: " + channel.getRemoteAddress());
+
+                channel.configureBlocking(false);
+                channel.socket().setTcpNoDelay(true);
+                EventLoop loop = loops[Math.floorMod(nextLoop.getAndIncrement(), loops.length)];
+                NioClientConnection connection = new NioClientConnection(channel, loop, workers, this, tcpServer.getOutboundLimits());
+                connection.setHandler(tcpServer.createClientHandler(connection));
+                loop.execute(() -> connection.register(loop.selector));
+                openConnections.incrementAndGet();
+            }
+        } catch (IOException e) {
+            tcpServer.log("!!! ERROR FATAL en el transporte NIO: " + e.getMessage());
+            e.printStackTrace();
+        }
+    }
+
+    void connectionClosed() {
+        openConnections.decrementAndGet();
+    }
+
+    public int getOpenConnections() {
+        return openConnections.get();
+    }
+
+    /**
+     * Hilo de selector: procesa tareas pendientes (registros, cambios de interés)
+     * y los eventos de lectura/escritura de sus conexiones.
+     */
+    static final class EventLoop implements Runnable {
+        private final int index;
+        private final Selector selector;
+        private final Queue<Runnable> tasks = new ConcurrentLinkedQueue<>();
+        // Buffer compartido por todas las conexiones del loop: las sesiones inactivas no reservan memoria de lectura
+        private final ByteBuffer readBuffer = ByteBuffer.allocateDirect(READ_BUFFER_SIZE);
+
+        EventLoop(int index) throws IOException {
+            this.index = index;
+            this.selector = Selector.open();
+        }
+
+        /**
+         * Ejecuta una tarea dentro del hilo del event loop
+         */
+        void execute(Runnable task) {
+            tasks.add(task);
+            selector.wakeup();
+        }
+
+        @Override
+        public void run() {
+            while (true) {
+                try {
+                    selector.select();
+                    Runnable task;
+                    while ((task = tasks.poll()) != null) {
+                        task.run();
+                    }
+
+                    Iterator<SelectionKey> it = selector.selectedKeys().iterator();
+                    while (it.hasNext()) {
+                        SelectionKey key = it.next();
+                        it.remove();
+                        NioClientConnection connection = (NioClientConnection) key.attachment();
+                        try {
+                            if (key.isValid() && key.isReadable()) {
+                                connection.onReadable(readBuffer);
+                            }
+                            if (key.isValid() && key.isWritable()) {
+                                connection.onWritable();
+                            }
+                        } catch (IOException | CancelledKeyException e) {
+                            connection.closeNow();
+                        }
+                    }
+                } catch (Exception e) {
+                    System.err.println("❌ Error en event loop NIO " + index + ": " + e.getMessage());
+                }
+            }
+        }
+    }
+}
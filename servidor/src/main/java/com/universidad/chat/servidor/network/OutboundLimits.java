@@ -0,0 +1,128 @@
+package com.universidad.chat.servidor.network;
+
+import com.universidad.chat.comun.dto.ActionType;
+import jakarta.annotation.PostConstruct;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Límites de la cola de salida de cada sesión y métricas globales de esas colas.
+ *
+ * Cuando un cliente no lee lo bastante rápido su cola crece; al superar los límites
+ * se aplica la política configurada:
+ *   drop       - se descarta el paquete nuevo si el cliente puede recuperarlo (ver isDroppable)
+ *   coalesce   - las listas completas (usuarios, canales) reemplazan a las que aún no se
+ *                enviaron, y la de usuarios también a los cambios de presencia pendientes;
+ *                si sigue sin caber, como drop
+ *   disconnect - se desconecta al cliente lento
+ * Un paquete que no se puede descartar (mensajes, historial, respuestas, audio) nunca se
+ * pierde en silencio: con la cola llena se desconecta al cliente, que al volver recibe el
+ * historial y reanuda sus subidas y descargas.
+ */
+@Component
+public class OutboundLimits {
+
+    public enum Policy { DROP, COALESCE, DISCONNECT }
+
+    @Value("${chat.server.outbound.max-messages:1000}")
+    private int maxMessages;
+
+    @Value("${chat.server.outbound.max-bytes:8388608}")
+    private long maxBytes;
+
+    @Value("${chat.server.outbound.policy:coalesce}")
+    private String policyName;
+
+    private Policy policy;
+
+    // --- Métricas (todas las sesiones) ---
+    private final AtomicLong queuedMessages = new AtomicLong();
+    private final AtomicLong queuedBytes = new AtomicLong();
+    private final AtomicLong dropped = new AtomicLong();
+    private final AtomicLong coalesced = new AtomicLong();
+    private final AtomicLong disconnected = new AtomicLong();
+
+    @PostConstruct
+    public void init() {
+        policy = Policy.valueOf(policyName.trim().toUpperCase());
+    }
+
+    public int getMaxMessages() {
+        return maxMessages;
+    }
+
+    public long getMaxBytes() {
+        return maxBytes;
+    }
+
+    public Policy getPolicy() {
+        return policy;
+    }
+
+    /**
+     * Paquetes que contienen un estado completo: uno nuevo deja obsoletos a los anteriores
+     */
+    public boolean isSnapshot(ActionType action) {
+        return action == ActionType.USER_LIST_UPDATE || action == ActionType.CHANNEL_LIST_UPDATE;
+    }
+
+    /**
+     * Paquetes que se pueden descartar con la cola llena: de un USER_PRESENCE_DELTA perdido el
+     * cliente se entera por el salto de seq y pide la lista completa
+     */
+    public boolean isDroppable(ActionType action) {
+        return action == ActionType.USER_PRESENCE_DELTA;
+    }
+
+    /**
+     * true si el estado completo {@code snapshot} hace innecesario el paquete pendiente {@code queued}.
+     * Los USER_PRESENCE_DELTA no se reemplazan entre sí (cada uno es un cambio distinto): si se
+     * descarta uno, el cliente ve el salto de seq y pide la lista completa.
+     */
+    public boolean supersedes(ActionType snapshot, ActionType queued) {
+        return queued == snapshot
+                || (snapshot == ActionType.USER_LIST_UPDATE && queued == ActionType.USER_PRESENCE_DELTA);
+    }
+
+    void onQueued(int bytes) {
+        queuedMessages.incrementAndGet();
+        queuedBytes.addAndGet(bytes);
+    }
+
+    void onDequeued(int bytes) {
+        queuedMessages.decrementAndGet();
+        queuedBytes.addAndGet(-bytes);
+    }
+
+    void onDropped() {
+        dropped.incrementAndGet();
+    }
+
+    void onCoalesced() {
+        coalesced.incrementAndGet();
+    }
+
+    void onDisconnected() {
+        disconnected.incrementAndGet();
+    }
+
+    /**
+     * Métricas para la API REST
+     */
+    public Map<String, Object> getMetrics() {
+        Map<String, Object> metrics = new LinkedHashMap<>();
+        metrics.put("policy", getPolicy().name().toLowerCase());
+        metrics.put("maxMessagesPerSession", maxMessages);
+        metrics.put("maxBytesPerSession", maxBytes);
+        metrics.put("queuedMessages", queuedMessages.get());
+        metrics.put("queuedBytes", queuedBytes.get());
+        metrics.put("dropped", dropped.get());
+        metrics.put("coalesced", coalesced.get());
+        metrics.put("slowConsumersDisconnected", disconnected.get());
+        return metrics;
+    }
+}
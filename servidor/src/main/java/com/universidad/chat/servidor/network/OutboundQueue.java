@@ -0,0 +1,125 @@
+package com.universidad.chat.servidor.network;
+
+import com.universidad.chat.comun.dto.ActionType;
+
+import java.util.ArrayDeque;
+import java.util.Iterator;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Cola de salida acotada de una sesión. Cualquier hilo encola; un único escritor
+ * (el event loop NIO o el writer de la conexión bloqueante) la vacía.
+ * Los elementos que ya empezaron a escribirse no están en la cola, así que
+ * coalescer nunca corta un paquete a medias.
+ */
+final class OutboundQueue<T> {
+
+    enum Result { QUEUED, DROPPED, OVERFLOW }
+
+    private static final class Entry<T> {
+        final T item;
+        final int bytes;
+        final ActionType action;
+
+        Entry(T item, int bytes, ActionType action) {
+            this.item = item;
+            this.bytes = bytes;
+            this.action = action;
+        }
+    }
+
+    private final OutboundLimits limits;
+    private final ArrayDeque<Entry<T>> entries = new ArrayDeque<>();
+    private final ReentrantLock lock = new ReentrantLock();
+    private long bytes;
+    private boolean evicted; // Ya se pidió desconectar: no volver a contar ni encolar
+
+    OutboundQueue(OutboundLimits limits) {
+        this.limits = limits;
+    }
+
+    /**
+     * Encola un elemento aplicando los límites y la política configurada.
+     * OVERFLOW indica que el llamador debe desconectar al cliente.
+     */
+    Result offer(T item, int size, ActionType action) {
+        OutboundLimits.Policy policy = limits.getPolicy();
+        lock.lock();
+        try {
+            if (evicted) {
+                return Result.OVERFLOW;
+            }
+            if (policy == OutboundLimits.Policy.COALESCE && action != null && limits.isSnapshot(action)) {
+                Iterator<Entry<T>> it = entries.iterator();
+                while (it.hasNext()) {
+                    Entry<T> old = it.next();
+                    if (limits.supersedes(action, old.action)) {
+                        it.remove();
+                        release(old);
+                        limits.onCoalesced();
+                    }
+                }
+            }
+
+            // Un paquete solo siempre cabe (p. ej. un audio grande con la cola vacía)
+            boolean full = !entries.isEmpty()
+                    && (entries.size() >= limits.getMaxMessages() || bytes + size > limits.getMaxBytes());
+            if (full) {
+                if (policy == OutboundLimits.Policy.DISCONNECT || !limits.isDroppable(action)) {
+                    evicted = true;
+                    limits.onDisconnected();
+                    return Result.OVERFLOW;
+                }
+                limits.onDropped();
+                return Result.DROPPED;
+            }
+
+            entries.add(new Entry<>(item, size, action));
+            bytes += size;
+            limits.onQueued(size);
+            return Result.QUEUED;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    T poll() {
+        lock.lock();
+        try {
+            Entry<T> entry = entries.poll();
+            if (entry == null) {
+                return null;
+            }
+            release(entry);
+            return entry.item;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    boolean isEmpty() {
+        lock.lock();
+        try {
+            return entries.isEmpty();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    void clear() {
+        lock.lock();
+        try {
+            Entry<T> entry;
+            while ((entry = entries.poll()) != null) {
+                release(entry);
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private void release(Entry<T> entry) {
+        bytes -= entry.bytes;
+        limits.onDequeued(entry.bytes);
+    }
+}
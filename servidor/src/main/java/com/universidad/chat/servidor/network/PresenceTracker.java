@@ -0,0 +1,366 @@
+package com.universidad.chat.servidor.network;
+
+import com.universidad.chat.comun.dto.ActionType;
+import com.universidad.chat.comun.dto.Packet;
+import com.universidad.chat.comun.dto.PresenceDeltaDTO;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Function;
+import java.util.function.Predicate;
+
+/**
+ * Presencia (usuarios conectados) por cambios versionados.
+ *
+ * Lleva dos secuencias: la de los usuarios de este servidor, que se envía a los demás
+ * servidores (SERVER_PRESENCE_DELTA), y la de la lista completa que ven los clientes
+ * (locales + remotos, USER_PRESENCE_DELTA). Un login o un logout cuesta así un nombre por
+ * servidor y por cliente en lugar de la lista entera. Quien detecta un salto de seq pide
+ * PRESENCE_RESYNC y recibe una instantánea. Los clientes antiguos (sin protocolo de tramas)
+ * siguen recibiendo la lista completa en cada cambio.
+ *
+ * Los cambios se juntan durante una ventana (chat.server.presence.coalesce-ms): el primero
+ * programa el envío y los que llegan antes de que venza viajan en el mismo delta, ya netos
+ * (entrar y salir dentro de la ventana no genera nada). Así un aluvión de logins cuesta un
+ * paquete por ventana y destino, y ningún cambio se retrasa más que la ventana.
+ *
+ * Cada delta se numera y se envía bajo el mismo lock, así los seq salen en orden por cada conexión.
+ * Las instantáneas usan lo ya publicado con su seq; los cambios pendientes llegan en el siguiente delta.
+ */
+@Component
+public class PresenceTracker {
+
+    // Retraso máximo que se añade a un cambio de presencia para juntarlo con otros (0 = enviar en el acto)
+    @Value("${chat.server.presence.coalesce-ms:100}")
+    private long coalesceMs;
+
+    @Autowired
+    private ServerRegistry serverRegistry;
+
+    @Autowired
+    private ServerExecutors serverExecutors;
+
+    private TCPServer tcpServer;
+
+    private final ReentrantLock lock = new ReentrantLock();
+
+    // Usuarios de este servidor, lo ya enviado a los demás servidores (con localSeq) y lo pendiente
+    private final Set<String> localUsers = new LinkedHashSet<>();
+    private final Set<String> publishedLocal = new LinkedHashSet<>();
+    private final Set<String> dirtyLocal = new LinkedHashSet<>();
+    private long localSeq;
+
+    // Lista de los clientes: cuántas fuentes (este servidor y cada federado) tienen a cada usuario,
+    // lo ya enviado a los clientes (con viewSeq) y lo pendiente
+    private final Map<String, Integer> viewCounts = new LinkedHashMap<>();
+    private final Set<String> publishedView = new LinkedHashSet<>();
+    private final Set<String> dirtyView = new LinkedHashSet<>();
+    private long viewSeq;
+
+    private boolean flushScheduled;
+
+    // Último seq aplicado de cada servidor federado y servidores a los que ya se pidió instantánea
+    private final Map<String, Long> remoteSeqs = new HashMap<>();
+    private final Set<String> resyncRequested = new HashSet<>();
+
+    // --- Métricas ---
+    private final AtomicLong serverDeltasSent = new AtomicLong();
+    private final AtomicLong serverDeltasApplied = new AtomicLong();
+    private final AtomicLong clientDeltasSent = new AtomicLong();
+    private final AtomicLong gapsDetected = new AtomicLong();
+    private final AtomicLong snapshotsSent = new AtomicLong();
+    private final AtomicLong changesCoalesced = new AtomicLong();
+
+    public void setTCPServer(TCPServer tcpServer) {
+        this.tcpServer = tcpServer;
+    }
+
+    /**
+     * Un usuario local entró o salió. Se compara con las sesiones actuales, así que el orden
+     * en que llegan las llamadas de login y logout concurrentes no importa.
+     */
+    public void localUserChanged(String username) {
+        lock.lock();
+        try {
+            boolean online = tcpServer.findClientByUsername(username) != null;
+            if (online == localUsers.contains(username)) {
+                return;
+            }
+            if (online) {
+                localUsers.add(username);
+                applyToView(List.of(username), List.of());
+            } else {
+                localUsers.remove(username);
+                applyToView(List.of(), List.of(username));
+            }
+            dirtyLocal.add(username);
+            scheduleFlush();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Instantánea de los usuarios locales para un servidor (al registrarse o si la pide)
+     */
+    public void sendSnapshotToServer(String serverKey) {
+        lock.lock();
+        try {
+            serverRegistry.sendToServer(serverKey, new Packet(ActionType.SERVER_PRESENCE_DELTA, snapshot(localSeq, publishedLocal)));
+            snapshotsSent.incrementAndGet();
+            System.out.println("📤 Usuarios enviados a " + serverKey + ": " + publishedLocal + " (seq " + localSeq + ")");
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Cambio (o instantánea) de presencia recibido de un servidor federado
+     */
+    public void onRemoteDelta(String serverKey, PresenceDeltaDTO delta) {
+        if (serverKey == null) {
+            return;
+        }
+        lock.lock();
+        try {
+            if (delta.isSnapshot()) {
+                applyRemoteSnapshot(serverKey, delta.getJoined(), delta.getSeq());
+                return;
+            }
+            Long last = remoteSeqs.get(serverKey);
+            if (last != null && delta.getSeq() <= last) {
+                return; // Ya aplicado
+            }
+            if (last == null || delta.getSeq() != last + 1) {
+                gapsDetected.incrementAndGet();
+                if (resyncRequested.add(serverKey)) {
+                    System.out.println("⚠️ Salto de presencia de " + serverKey + " (seq " + delta.getSeq() + " tras " + last + "), pidiendo instantánea");
+                    serverRegistry.sendToServer(serverKey, new Packet(ActionType.PRESENCE_RESYNC, null));
+                }
+                return;
+            }
+            remoteSeqs.put(serverKey, delta.getSeq());
+            List<String> before = serverRegistry.getRemoteUsers(serverKey);
+            serverRegistry.applyRemoteDelta(serverKey, delta.getJoined(), delta.getLeft());
+            serverDeltasApplied.incrementAndGet();
+            applyDiff(before, serverRegistry.getRemoteUsers(serverKey));
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Lista completa de un servidor antiguo (SERVER_USER_LIST_SYNC, sin versión)
+     */
+    public void onRemoteUserList(String serverKey, List<String> usernames) {
+        if (serverKey == null) {
+            return;
+        }
+        lock.lock();
+        try {
+            applyRemoteSnapshot(serverKey, usernames, null);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Un servidor federado se desconectó: sus usuarios desaparecen de la lista de los clientes
+     */
+    public void onServerGone(String serverKey, List<String> usernames) {
+        lock.lock();
+        try {
+            remoteSeqs.remove(serverKey);
+            resyncRequested.remove(serverKey);
+            if (usernames != null) {
+                applyDiff(usernames, List.of());
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Envía a un cliente un paquete construido con la instantánea de la lista (login o PRESENCE_RESYNC).
+     * Se encola bajo el lock: ningún cambio posterior a la instantánea puede llegarle antes que ella.
+     */
+    public void sendWithSnapshot(ClientHandler client, Function<PresenceDeltaDTO, Packet> packet) {
+        lock.lock();
+        try {
+            client.sendPacket(packet.apply(snapshot(viewSeq, publishedView)));
+            snapshotsSent.incrementAndGet();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private void applyRemoteSnapshot(String serverKey, List<String> usernames, Long seq) {
+        List<String> users = usernames != null ? usernames : List.of();
+        List<String> before = serverRegistry.updateRemoteUsers(serverKey, users);
+        if (seq != null) {
+            remoteSeqs.put(serverKey, seq);
+        } else {
+            remoteSeqs.remove(serverKey);
+        }
+        resyncRequested.remove(serverKey);
+        applyDiff(before != null ? before : List.of(), users);
+    }
+
+    private void applyDiff(Collection<String> before, Collection<String> after) {
+        // Los cambios de otros servidores solo afectan a la lista de los clientes
+        Set<String> beforeSet = new LinkedHashSet<>(before);
+        Set<String> afterSet = new LinkedHashSet<>(after);
+        List<String> joined = new ArrayList<>();
+        List<String> left = new ArrayList<>();
+        afterSet.forEach(u -> { if (!beforeSet.contains(u)) joined.add(u); });
+        beforeSet.forEach(u -> { if (!afterSet.contains(u)) left.add(u); });
+        if (applyToView(joined, left)) {
+            scheduleFlush();
+        }
+    }
+
+    /**
+     * Aplica un cambio de una fuente a la lista de los clientes y marca lo que de verdad
+     * cambió (un usuario conectado en dos servidores solo sale cuando lo dejan ambos)
+     */
+    private boolean applyToView(Collection<String> joined, Collection<String> left) {
+        boolean changed = false;
+        for (String username : joined) {
+            if (viewCounts.merge(username, 1, Integer::sum) == 1) {
+                dirtyView.add(username);
+                changed = true;
+            }
+        }
+        for (String username : left) {
+            Integer count = viewCounts.get(username);
+            if (count == null) {
+                continue;
+            }
+            if (count > 1) {
+                viewCounts.put(username, count - 1);
+            } else {
+                viewCounts.remove(username);
+                dirtyView.add(username);
+                changed = true;
+            }
+        }
+        return changed;
+    }
+
+    /**
+     * Programa el envío de lo pendiente al vencer la ventana (solo el primer cambio la abre,
+     * así que la espera nunca pasa de coalesce-ms). Se llama con el lock tomado.
+     */
+    private void scheduleFlush() {
+        if (coalesceMs <= 0) {
+            flush();
+            return;
+        }
+        if (flushScheduled) {
+            changesCoalesced.incrementAndGet();
+            return;
+        }
+        flushScheduled = true;
+        CompletableFuture.delayedExecutor(coalesceMs, TimeUnit.MILLISECONDS, serverExecutors::execute).execute(() -> {
+            lock.lock();
+            try {
+                flush();
+            } finally {
+                lock.unlock();
+            }
+        });
+    }
+
+    /**
+     * Envía un delta neto a los servidores y otro a los clientes con lo que cambió desde el
+     * último envío. Se llama con el lock tomado.
+     */
+    private void flush() {
+        flushScheduled = false;
+
+        List<String> joined = new ArrayList<>();
+        List<String> left = new ArrayList<>();
+        diffAgainstPublished(dirtyLocal, localUsers::contains, publishedLocal, joined, left);
+        if (!joined.isEmpty() || !left.isEmpty()) {
+            serverRegistry.broadcastToFederation(new Packet(ActionType.SERVER_PRESENCE_DELTA, delta(++localSeq, joined, left)));
+            serverDeltasSent.incrementAndGet();
+        }
+
+        joined = new ArrayList<>();
+        left = new ArrayList<>();
+        diffAgainstPublished(dirtyView, viewCounts::containsKey, publishedView, joined, left);
+        if (!joined.isEmpty() || !left.isEmpty()) {
+            tcpServer.broadcastPresence(new Packet(ActionType.USER_PRESENCE_DELTA, delta(++viewSeq, joined, left)),
+                    new ArrayList<>(publishedView));
+            clientDeltasSent.incrementAndGet();
+        }
+    }
+
+    /**
+     * Compara los usuarios marcados con lo ya publicado, actualiza lo publicado y limpia las marcas
+     */
+    private static void diffAgainstPublished(Set<String> dirty, Predicate<String> online,
+                                             Set<String> published, List<String> joined, List<String> left) {
+        for (String username : dirty) {
+            boolean now = online.test(username);
+            if (now && published.add(username)) {
+                joined.add(username);
+            } else if (!now && published.remove(username)) {
+                left.add(username);
+            }
+        }
+        dirty.clear();
+    }
+
+    private static PresenceDeltaDTO delta(long seq, List<String> joined, List<String> left) {
+        PresenceDeltaDTO delta = new PresenceDeltaDTO();
+        delta.setSeq(seq);
+        delta.setJoined(joined);
+        delta.setLeft(left);
+        return delta;
+    }
+
+    private static PresenceDeltaDTO snapshot(long seq, Collection<String> usernames) {
+        PresenceDeltaDTO snapshot = delta(seq, new ArrayList<>(usernames), List.of());
+        snapshot.setSnapshot(true);
+        return snapshot;
+    }
+
+    /**
+     * Métricas para la API REST
+     */
+    public Map<String, Object> getMetrics() {
+        Map<String, Object> metrics = new LinkedHashMap<>();
+        lock.lock();
+        try {
+            metrics.put("localUsers", localUsers.size());
+            metrics.put("localSeq", localSeq);
+            metrics.put("visibleUsers", viewCounts.size());
+            metrics.put("clientSeq", viewSeq);
+        } finally {
+            lock.unlock();
+        }
+        metrics.put("serverDeltasSent", serverDeltasSent.get());
+        metrics.put("serverDeltasApplied", serverDeltasApplied.get());
+        metrics.put("clientDeltasSent", clientDeltasSent.get());
+        metrics.put("gapsDetected", gapsDetected.get());
+        metrics.put("snapshotsSent", snapshotsSent.get());
+        metrics.put("coalesceMs", coalesceMs);
+        metrics.put("changesCoalesced", changesCoalesced.get());
+        return metrics;
+    }
+}
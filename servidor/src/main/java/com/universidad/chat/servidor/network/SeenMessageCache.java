@@ -0,0 +1,92 @@
+package com.universidad.chat.servidor.network;
+
+import com.universidad.chat.comun.dto.FederatedMessageDTO;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Identificadores de mensajes federados ya procesados.
+ *
+ * Con la topología en malla (o si un enlace se sustituye por otro con paquetes en vuelo) un
+ * mismo mensaje puede llegar más de una vez: las repeticiones se descartan antes de pedir su
+ * audio o repartirlo. No hace falta un límite de saltos: ningún servidor reenvía mensajes de
+ * otro, solo el origen reintenta (buzón, cambio de enlace) y esos reintentos llevan el mismo id.
+ * La caché guarda como mucho seen-cache-size ids y ninguno más de seen-window-ms; en orden de
+ * llegada, así que caducar es quitar por la cabeza.
+ */
+@Component
+public class SeenMessageCache {
+
+    @Value("${chat.server.federation.seen-cache-size:100000}")
+    private int maxEntries;
+
+    @Value("${chat.server.federation.seen-window-ms:300000}")
+    private long windowMs;
+
+    // id -> momento en que se vio (orden de inserción)
+    private final LinkedHashMap<String, Long> vistos = new LinkedHashMap<>();
+    private final ReentrantLock lock = new ReentrantLock();
+
+    // --- Métricas ---
+    private final AtomicLong aceptados = new AtomicLong();
+    private final AtomicLong duplicados = new AtomicLong();
+    private final AtomicLong sinId = new AtomicLong();
+
+    /**
+     * @return true si el mensaje se debe procesar; false si ya se vio
+     */
+    public boolean accept(String fromServerKey, FederatedMessageDTO fedMsg) {
+        String id = fedMsg.getMessageId();
+        if (id == null) {
+            sinId.incrementAndGet(); // Servidor antiguo: sin id
+            return true;
+        }
+        long ahora = System.currentTimeMillis();
+        lock.lock();
+        try {
+            purgar(ahora);
+            if (vistos.putIfAbsent(id, ahora) != null) {
+                duplicados.incrementAndGet();
+                System.out.println("♻️ Mensaje federado duplicado descartado: " + id + " (vía " + fromServerKey + ")");
+                return false;
+            }
+        } finally {
+            lock.unlock();
+        }
+        aceptados.incrementAndGet();
+        return true;
+    }
+
+    private void purgar(long ahora) {
+        long limite = ahora - windowMs;
+        Iterator<Map.Entry<String, Long>> it = vistos.entrySet().iterator();
+        while (it.hasNext()) {
+            Map.Entry<String, Long> primero = it.next();
+            if (vistos.size() < maxEntries && primero.getValue() >= limite) break;
+            it.remove();
+        }
+    }
+
+    /**
+     * Métricas para la API REST
+     */
+    public Map<String, Object> getMetrics() {
+        Map<String, Object> metrics = new LinkedHashMap<>();
+        lock.lock();
+        try {
+            metrics.put("cached", vistos.size());
+        } finally {
+            lock.unlock();
+        }
+        metrics.put("accepted", aceptados.get());
+        metrics.put("duplicatesDropped", duplicados.get());
+        metrics.put("withoutId", sinId.get());
+        return metrics;
+    }
+}
@@ -0,0 +1,82 @@
+package com.universidad.chat.servidor.network;
+
+import jakarta.annotation.PostConstruct;
+import jakarta.annotation.PreDestroy;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * Punto único donde se crean los hilos de sesiones de cliente y de federación.
+ *
+ * Con chat.server.threads=virtual cada sesión bloqueante corre en un hilo virtual
+ * (unos pocos KB de pila en lugar de ~1 MB). Para no "anclar" el hilo portador, el
+ * código que corre aquí no debe hacer I/O dentro de bloques synchronized: los locks
+ * de escritura usan ReentrantLock y la transcripción de Vosk (llamada nativa) se
+ * delega a hilos de plataforma en TranscriptionService.
+ */
+@Component
+public class ServerExecutors {
+
+    // "platform" = hilos clásicos, "virtual" = hilos virtuales de Java 21
+    @Value("${chat.server.threads:platform}")
+    private String threadMode;
+
+    private ExecutorService sessionExecutor;
+    private ExecutorService writerExecutor;
+
+    @PostConstruct
+    public void init() {
+        sessionExecutor = Executors.newThreadPerTaskExecutor(threadFactory("chat-session-"));
+        // Los writers solo viven mientras hay paquetes pendientes: en modo plataforma se reutilizan
+        writerExecutor = isVirtual()
+                ? Executors.newThreadPerTaskExecutor(threadFactory("chat-writer-"))
+                : Executors.newCachedThreadPool(threadFactory("chat-writer-"));
+        System.out.println("🧵 Modo de hilos para sesiones: " + (isVirtual() ? "virtual" : "platform"));
+    }
+
+    public boolean isVirtual() {
+        return "virtual".equalsIgnoreCase(threadMode);
+    }
+
+    /**
+     * Ejecuta una sesión de larga duración (cliente, handler de federación, aceptador)
+     */
+    public void execute(Runnable session) {
+        sessionExecutor.execute(session);
+    }
+
+    /**
+     * Executor donde las conexiones bloqueantes vacían su cola de salida
+     */
+    public ExecutorService writers() {
+        return writerExecutor;
+    }
+
+    /**
+     * Crea el pool de workers que ejecuta la lógica de las sesiones NIO.
+     * En modo virtual no hace falta limitar el número de hilos.
+     */
+    public ExecutorService newWorkerPool(int platformThreads, String namePrefix) {
+        if (isVirtual()) {
+            return Executors.newThreadPerTaskExecutor(threadFactory(namePrefix));
+        }
+        return Executors.newFixedThreadPool(Math.max(1, platformThreads), threadFactory(namePrefix));
+    }
+
+    private ThreadFactory threadFactory(String namePrefix) {
+        if (isVirtual()) {
+            return Thread.ofVirtual().name(namePrefix, 1).factory();
+        }
+        return Thread.ofPlatform().name(namePrefix, 1).daemon(true).factory();
+    }
+
+    @PreDestroy
+    public void shutdown() {
+        sessionExecutor.shutdownNow();
+        writerExecutor.shutdownNow();
+    }
+}
@@ -1,15 +1,24 @@
 package com.universidad.chat.servidor.network;
 
 import com.universidad.chat.comun.dto.*;
+import com.universidad.chat.comun.protocol.DeflatePacketCodec;
+import com.universidad.chat.comun.protocol.EncodedPacket;
+import com.universidad.chat.comun.protocol.PacketCodec;
+import com.universidad.chat.comun.protocol.PacketStream;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
 import org.springframework.stereotype.Component;
 
 import java.io.IOException;
-import java.io.ObjectInputStream;
-import java.io.ObjectOutputStream;
 import java.net.Socket;
+import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.stream.Collectors;
 
 /**
@@ -23,38 +32,97 @@ public class ServerRegistry {
     
     // Caché de usuarios remotos por servidor
     private final Map<String, java.util.List<String>> remoteUsersCache = new ConcurrentHashMap<>();
+
+    // Tabla de rutas usuario -> servidor (IP:puerto), mantenida con SERVER_USER_LIST_SYNC y USER_LOCATION
+    private final Map<String, String> userRoutes = new ConcurrentHashMap<>();
+
+    // Mensajes a usuarios sin ruta conocida, esperando la respuesta a USER_LOCATE
+    private final Map<String, List<Packet>> pendingLookups = new ConcurrentHashMap<>();
+
+    // Sin respuesta a USER_LOCATE en este tiempo, los mensajes pendientes se envían a todos
+    @Value("${chat.server.federation.discovery-timeout-ms:2000}")
+    private long discoveryTimeoutMs;
+
+    // Escritor por servidor (FederationWriter): tamaño de tanda, espera máxima para llenarla y cola
+    @Value("${chat.server.federation.batch-bytes:65536}")
+    private int batchBytes;
+
+    @Value("${chat.server.federation.linger-us:200}")
+    private long lingerMicros;
+
+    @Value("${chat.server.federation.writer-queue:10000}")
+    private int writerQueue;
+
+    // Ofrecer compresión Deflate al conectar con otro servidor (se usa si el otro la acepta)
+    @Value("${chat.server.federation.compression:false}")
+    private boolean compression;
+
+    // Ids de mensaje: servidor + arranque + secuencia, únicos aunque el servidor se reinicie
+    private final long bootTime = System.currentTimeMillis();
+    private final AtomicLong messageSeq = new AtomicLong();
+
+    // --- Métricas de enrutamiento ---
+    private final AtomicLong routeHits = new AtomicLong();
+    private final AtomicLong routeMisses = new AtomicLong();
+    private final AtomicLong lookupsResolved = new AtomicLong();
+    private final AtomicLong lookupsTimedOut = new AtomicLong();
     
     private String localServerIP;
     private String localServerName;
     private int localFederationPort;
     private TCPServer tcpServer; // Referencia al servidor TCP para obtener usuarios conectados
 
-    // Clase interna para representar un servidor federado
+    @Autowired
+    private ServerExecutors serverExecutors;
+
+    // Conexiones salientes en curso (evita abrir dos a la vez con el mismo servidor)
+    private final Set<String> connecting = ConcurrentHashMap.newKeySet();
+
+    // Clase interna para representar un servidor federado (su única conexión, ver FederationLink)
     public static class FederatedServer {
         public ServerInfoDTO info;
         public Socket socket;
-        public ObjectOutputStream outputStream;
-        public ObjectInputStream inputStream;
-        public long lastHeartbeat;
+        // true si la conexión la abrimos nosotros
+        public final boolean outbound;
+        // Tramas con el codec negociado (o el protocolo clásico si el otro servidor es antiguo).
+        // Solo escribe en él su FederationWriter; FederationLink lee.
+        public final PacketStream stream;
+        FederationWriter writer;
+        // Último paquete recibido de este servidor (FederationHeartbeat lo da de baja si se calla)
+        public volatile long lastHeartbeat;
 
-        public FederatedServer(ServerInfoDTO info, Socket socket) {
+        public FederatedServer(ServerInfoDTO info, PacketStream stream, boolean outbound) {
             this.info = info;
-            this.socket = socket;
+            this.stream = stream;
+            this.outbound = outbound;
+            this.socket = stream.getSocket();
             this.lastHeartbeat = System.currentTimeMillis();
-            try {
-                this.outputStream = new ObjectOutputStream(socket.getOutputStream());
-                this.inputStream = new ObjectInputStream(socket.getInputStream());
-            } catch (IOException e) {
-                System.err.println("Error al inicializar streams para servidor federado: " + e.getMessage());
-            }
         }
 
-        public FederatedServer(ServerInfoDTO info, Socket socket, ObjectOutputStream oos, ObjectInputStream ois) {
-            this.info = info;
-            this.socket = socket;
-            this.outputStream = oos;
-            this.inputStream = ois;
-            this.lastHeartbeat = System.currentTimeMillis();
+        /**
+         * Encola un paquete para el servidor federado (lo escribe su FederationWriter)
+         */
+        public void send(Packet packet) throws IOException {
+            writer.offer(new EncodedPacket(packet));
+        }
+
+        /**
+         * Encola un paquete ya codificado (compartido entre varios servidores)
+         */
+        public void send(EncodedPacket packet) throws IOException {
+            writer.offer(packet);
+        }
+
+        /**
+         * Cierra la conexión; lo que quedaba en la cola vuelve a ServerRegistry
+         */
+        void close() {
+            if (writer != null) {
+                writer.close();
+            }
+            try {
+                socket.close();
+            } catch (IOException e) { /* ignore */ }
         }
     }
 
@@ -77,13 +145,83 @@ public class ServerRegistry {
     }
 
     /**
-     * Registra un servidor federado entrante
+     * Envuelve un mensaje para la federación con nuestro origen y un id único
+     */
+    public FederatedMessageDTO newFederatedMessage(MessageDTO message) {
+        FederatedMessageDTO fedMsg = new FederatedMessageDTO();
+        fedMsg.setOriginServerIP(localServerIP);
+        fedMsg.setOriginServerName(localServerName);
+        fedMsg.setMessage(message);
+        fedMsg.setMessageId(localServerIP + ":" + localFederationPort + "/" + bootTime + "-" + messageSeq.incrementAndGet());
+        return fedMsg;
+    }
+
+    /**
+     * Registra la conexión entrante de un servidor (al recibir su SERVER_REGISTER)
+     * @return el servidor registrado, o null si se conserva otra conexión con él
      */
-    public void registerServer(ServerInfoDTO serverInfo, Socket socket, ObjectOutputStream oos, ObjectInputStream ois) {
+    public FederatedServer adoptInbound(ServerInfoDTO serverInfo, PacketStream stream) {
         String key = serverInfo.getIpAddress() + ":" + serverInfo.getFederationPort();
-        FederatedServer fs = new FederatedServer(serverInfo, socket, oos, ois);
-        federatedServers.put(key, fs);
-        System.out.println("✅ Servidor federado registrado: " + serverInfo.getServerName() + " (" + key + ")");
+        FederatedServer fs = newFederatedServer(key, serverInfo, stream, false);
+        if (!adopt(key, fs)) {
+            return null;
+        }
+        System.out.println("✅ Servidor federado registrado: " + serverInfo.getServerName() + " (" + key + ", " + stream.describeProtocol() + ")");
+        return fs;
+    }
+
+    /**
+     * Una sola conexión por pareja de servidores. Si ya hay otra con ese servidor:
+     * - abiertas por lados distintos (se conectaron a la vez): gana la que abrió el servidor
+     *   de clave menor, así los dos lados eligen la misma y cierran la otra;
+     * - abiertas por el mismo lado: gana la nueva (la anterior quedó colgada o se está cerrando).
+     * La conexión perdedora se cierra sin dar de baja al servidor.
+     * @return true si la candidata queda registrada
+     */
+    private boolean adopt(String key, FederatedServer candidate) {
+        String localKey = localServerIP + ":" + localFederationPort;
+        FederatedServer[] replaced = {null};
+        FederatedServer winner = federatedServers.compute(key, (k, current) -> {
+            if (current == null) {
+                return candidate;
+            }
+            boolean candidateWins = current.outbound == candidate.outbound
+                    || (candidate.outbound ? localKey : key).compareTo(candidate.outbound ? key : localKey) < 0;
+            if (candidateWins) {
+                replaced[0] = current;
+                return candidate;
+            }
+            return current;
+        });
+        FederatedServer loser = winner == candidate ? replaced[0] : candidate;
+        if (loser != null) {
+            System.out.println("🔀 Conexión duplicada con " + key + ": se mantiene la " + (winner.outbound ? "saliente" : "entrante"));
+            loser.close();
+        }
+        if (winner == candidate) {
+            serverExecutors.execute(candidate.writer);
+            return true;
+        }
+        return false;
+    }
+
+    private FederatedServer newFederatedServer(String key, ServerInfoDTO info, PacketStream stream, boolean outbound) {
+        FederatedServer fs = new FederatedServer(info, stream, outbound);
+        fs.writer = new FederationWriter(stream, writerQueue, batchBytes, lingerMicros,
+                (unsent, error) -> writerStopped(key, fs, unsent, error));
+        return fs;
+    }
+
+    /**
+     * El escritor de una conexión terminó (error de escritura o conexión cerrada)
+     */
+    private void writerStopped(String serverKey, FederatedServer fs, List<Packet> unsent, IOException error) {
+        if (error != null) {
+            System.err.println("Error enviando a servidor federado " + serverKey + ": " + error.getMessage());
+        }
+        unregisterLink(serverKey, fs);
+        // Lo que no llegó a salir: al buzón si el servidor se fue, a la conexión nueva si la sustituyó otra
+        unsent.forEach(packet -> sendToServer(serverKey, packet));
     }
 
     /**
@@ -91,13 +229,15 @@ public class ServerRegistry {
      */
     public boolean connectToServer(String remoteIP, int remoteFederationPort) {
         String key = remoteIP + ":" + remoteFederationPort;
-        if (federatedServers.containsKey(key)) {
+        if (federatedServers.containsKey(key) || !connecting.add(key)) {
             System.out.println("⚠️ Ya estás conectado a " + key);
             return false;
         }
 
+        FederatedServer fs = null;
         try {
-            Socket socket = new Socket(remoteIP, remoteFederationPort);
+            // Negocia tramas + codec binario (comprimido si ambos quieren); con un servidor antiguo vuelve a ObjectOutputStream
+            PacketStream stream = PacketStream.connect(remoteIP, remoteFederationPort, PacketCodec.preferred(), compression);
             // Preparar nuestra información local
             ServerInfoDTO myInfo = new ServerInfoDTO();
             myInfo.setServerName(localServerName);
@@ -105,36 +245,39 @@ public class ServerRegistry {
             myInfo.setFederationPort(localFederationPort);
             myInfo.setTimestamp(System.currentTimeMillis());
 
-            // Crear entrada en el registro (simulando respuesta)
+            // Crear entrada en el registro (el nombre real llega en su SERVER_REGISTER de respuesta)
             ServerInfoDTO remoteInfo = new ServerInfoDTO();
             remoteInfo.setIpAddress(remoteIP);
             remoteInfo.setFederationPort(remoteFederationPort);
             remoteInfo.setServerName("Servidor-" + remoteIP); // Placeholder
 
-            FederatedServer fs = new FederatedServer(remoteInfo, socket);
-            federatedServers.put(key, fs);
+            fs = newFederatedServer(key, remoteInfo, stream, true);
+            if (!adopt(key, fs)) {
+                return false; // El otro servidor se conectó a la vez y se usa su conexión
+            }
 
-            // Enviar nuestro SERVER_REGISTER usando el stream ya creado en FederatedServer
-            Packet registerPacket = new Packet(ActionType.SERVER_REGISTER, myInfo);
-            fs.outputStream.writeObject(registerPacket);
-            fs.outputStream.flush();
+            // Enviar nuestro SERVER_REGISTER usando el stream ya negociado en FederatedServer
+            fs.send(new Packet(ActionType.SERVER_REGISTER, myInfo));
+            System.out.println("✅ Conectado a servidor federado: " + key + " (" + stream.describeProtocol() + ")");
 
-            System.out.println("✅ Conectado a servidor federado: " + key);
-            
             // Enviar inmediatamente nuestra lista de usuarios conectados
             if (tcpServer != null) {
                 sendUserListToServer(key);
             }
-            
-            // NUEVO: Iniciar un handler para recibir paquetes de este servidor
-            // (necesario para recibir su lista de usuarios, topología, etc.)
-            new Thread(new OutgoingConnectionHandler(socket, this, tcpServer, key)).start();
-            
+
+            // El mismo lector que las conexiones entrantes recibe lo que nos envíe este servidor
+            serverExecutors.execute(new FederationLink(fs, key, this, tcpServer.getFederationDispatcher()));
+            linkReady(key);
             return true;
 
         } catch (IOException e) {
             System.err.println("❌ Error al conectar con servidor " + key + ": " + e.getMessage());
+            if (fs != null) {
+                unregisterLink(key, fs);
+            }
             return false;
+        } finally {
+            connecting.remove(key);
         }
     }
 
@@ -146,25 +289,30 @@ public class ServerRegistry {
     }
 
     /**
-     * Actualiza el timestamp de un servidor federado (para heartbeat)
+     * Desregistra un servidor federado
      */
-    public void updateServerTimestamp(String serverKey) {
+    public void unregisterServer(String serverKey) {
         FederatedServer fs = federatedServers.get(serverKey);
-        if (fs != null && fs.info != null) {
-            fs.info.setTimestamp(System.currentTimeMillis());
+        if (fs != null) {
+            unregisterLink(serverKey, fs);
         }
     }
 
     /**
-     * Desregistra un servidor federado
+     * Da de baja al servidor solo si fs sigue siendo su conexión registrada
+     * (una conexión sustituida por otra se cierra sin afectar al servidor)
      */
-    public void unregisterServer(String serverKey) {
-        FederatedServer fs = federatedServers.remove(serverKey);
-        if (fs != null) {
-            try {
-                fs.socket.close();
-            } catch (IOException e) { /* ignore */ }
-            clearRemoteUsers(serverKey); // Limpiar caché de usuarios
+    public void unregisterLink(String serverKey, FederatedServer fs) {
+        fs.close();
+        if (federatedServers.remove(serverKey, fs)) {
+            FederationOutbox outbox = outbox();
+            if (outbox != null) {
+                outbox.servidorPerdido(serverKey); // Lo que llegue para él se guarda hasta que vuelva
+            }
+            java.util.List<String> users = clearRemoteUsers(serverKey); // Limpiar caché de usuarios
+            if (tcpServer != null) {
+                tcpServer.getPresenceTracker().onServerGone(serverKey, users);
+            }
             System.out.println("❌ Servidor federado desconectado: " + serverKey);
         }
     }
@@ -173,17 +321,47 @@ public class ServerRegistry {
      * Envía un paquete a un servidor específico
      */
     public void sendToServer(String serverKey, Packet packet) {
+        FederationOutbox outbox = outbox();
+        // Servidor caído o con buzón pendiente: el mensaje espera en su buzón
+        if (outbox != null && outbox.guardarSiPendiente(serverKey, packet)) {
+            return;
+        }
+        boolean connected = isServerRegistered(serverKey);
+        if (!sendDirect(serverKey, packet) && connected && outbox != null) {
+            outbox.guardar(serverKey, packet); // Se cayó al escribirle
+        }
+    }
+
+    /**
+     * Encola el paquete sin pasar por el buzón (lo usa el propio buzón al reenviar)
+     * @return false si el servidor no está conectado o su enlace ya se cerró
+     */
+    public boolean sendDirect(String serverKey, Packet packet) {
         FederatedServer fs = federatedServers.get(serverKey);
-        if (fs != null && fs.outputStream != null) {
-            try {
-                synchronized (fs.outputStream) {
-                    fs.outputStream.writeObject(packet);
-                    fs.outputStream.flush();
-                }
-            } catch (IOException e) {
-                System.err.println("Error enviando a servidor federado " + serverKey + ": " + e.getMessage());
-                unregisterServer(serverKey);
-            }
+        if (fs == null) {
+            return false;
+        }
+        try {
+            fs.send(packet);
+            return true;
+        } catch (IOException e) {
+            System.err.println("Error enviando a servidor federado " + serverKey + ": " + e.getMessage());
+            unregisterLink(serverKey, fs);
+            return false;
+        }
+    }
+
+    private FederationOutbox outbox() {
+        return tcpServer != null ? tcpServer.getFederationOutbox() : null;
+    }
+
+    /**
+     * La conexión con el servidor quedó establecida (SERVER_REGISTER en los dos sentidos)
+     */
+    public void linkReady(String serverKey) {
+        FederationOutbox outbox = outbox();
+        if (outbox != null) {
+            outbox.servidorListo(serverKey);
         }
     }
 
@@ -191,33 +369,169 @@ public class ServerRegistry {
      * Broadcast a todos los servidores federados
      */
     public void broadcastToFederation(Packet packet) {
-        java.util.List<String> failedServers = new java.util.ArrayList<>();
+        Map<String, FederatedServer> failedServers = new LinkedHashMap<>();
+        Set<String> handled = new java.util.HashSet<>();
+        FederationOutbox outbox = outbox();
+        // Una sola codificación para todos los servidores con el mismo codec
+        EncodedPacket encoded = new EncodedPacket(packet);
         
         federatedServers.forEach((key, fs) -> {
+            handled.add(key);
+            if (outbox != null && outbox.guardarSiPendiente(key, packet)) {
+                return;
+            }
             try {
-                if (fs.outputStream != null) {
-                    synchronized (fs.outputStream) {
-                        fs.outputStream.writeObject(packet);
-                        fs.outputStream.flush();
-                    }
-                }
+                fs.send(encoded);
             } catch (IOException e) {
                 System.err.println("Error en broadcast a federación (" + key + "): " + e.getMessage());
-                failedServers.add(key);
+                failedServers.put(key, fs);
             }
         });
+        if (outbox != null) {
+            // Servidores caídos que volverán: se les guarda para cuando reconecten
+            outbox.guardarParaAusentes(packet, handled);
+        }
         
         // Desregistrar servidores con problemas DESPUÉS del loop
-        failedServers.forEach(this::unregisterServer);
+        failedServers.forEach((key, fs) -> {
+            unregisterLink(key, fs);
+            if (outbox != null) {
+                outbox.guardar(key, packet);
+            }
+        });
     }
 
     /**
-     * Encuentra el servidor donde está un usuario remoto (por ahora, broadcast)
+     * Encuentra el servidor donde está un usuario remoto
+     * @return la clave del servidor (IP:puerto) o null si no hay ruta a un servidor conectado
      */
     public String findServerForUser(String username) {
-        // TODO: Implementar caché de usuarios remotos
-        // Por ahora retornamos null para indicar que hay que hacer broadcast
-        return null;
+        String serverKey = username == null ? null : userRoutes.get(username);
+        return serverKey != null && federatedServers.containsKey(serverKey) ? serverKey : null;
+    }
+
+    /**
+     * Envía un paquete solo al servidor donde está el usuario. Sin ruta conocida, el paquete
+     * espera mientras se pregunta a la federación (USER_LOCATE); si nadie responde a tiempo
+     * se envía a todos los servidores, como antes de tener la tabla.
+     * @return false si no hay ningún servidor federado al que enviarlo
+     */
+    public boolean sendToUser(String username, Packet packet) {
+        String serverKey = findServerForUser(username);
+        if (serverKey != null) {
+            routeHits.incrementAndGet();
+            sendToServer(serverKey, packet);
+            return true;
+        }
+        routeMisses.incrementAndGet();
+        if (federatedServers.isEmpty()) {
+            return false;
+        }
+
+        boolean[] firstLookup = {false};
+        pendingLookups.compute(username, (k, pending) -> {
+            if (pending == null) {
+                pending = new java.util.ArrayList<>();
+                firstLookup[0] = true;
+            }
+            pending.add(packet);
+            return pending;
+        });
+        if (firstLookup[0]) {
+            ServerUserListDTO query = new ServerUserListDTO();
+            query.setServerIP(localServerIP);
+            query.setServerName(localServerName);
+            query.setUsernames(List.of(username));
+            broadcastToFederation(new Packet(ActionType.USER_LOCATE, query));
+            System.out.println("🔎 Sin ruta para " + username + ", preguntando a la federación");
+
+            CompletableFuture.delayedExecutor(discoveryTimeoutMs, TimeUnit.MILLISECONDS, serverExecutors::execute).execute(() -> {
+                List<Packet> pending = pendingLookups.remove(username);
+                if (pending != null) {
+                    lookupsTimedOut.incrementAndGet();
+                    System.out.println("⚠️ Nadie respondió por " + username + ", enviando a toda la federación");
+                    pending.forEach(this::broadcastToFederation);
+                }
+            });
+        }
+        return true;
+    }
+
+    /**
+     * Otro servidor pregunta por usuarios: se responde solo si están conectados aquí
+     */
+    public void answerUserLocate(String fromServerKey, ServerUserListDTO query) {
+        if (tcpServer == null || query.getUsernames() == null) {
+            return;
+        }
+        List<String> local = query.getUsernames().stream()
+                .filter(u -> tcpServer.findClientByUsername(u) != null)
+                .collect(Collectors.toList());
+        if (!local.isEmpty()) {
+            ServerUserListDTO answer = new ServerUserListDTO();
+            answer.setServerIP(localServerIP);
+            answer.setServerName(localServerName);
+            answer.setUsernames(local);
+            sendToServer(fromServerKey, new Packet(ActionType.USER_LOCATION, answer));
+        }
+    }
+
+    /**
+     * Respuesta a USER_LOCATE: se aprende la ruta y se envían los mensajes que esperaban
+     */
+    public void handleUserLocation(String fromServerKey, ServerUserListDTO answer) {
+        if (fromServerKey == null || answer.getUsernames() == null) {
+            return;
+        }
+        for (String username : answer.getUsernames()) {
+            userRoutes.put(username, fromServerKey);
+            List<Packet> pending = pendingLookups.remove(username);
+            if (pending != null) {
+                lookupsResolved.incrementAndGet();
+                System.out.println("🧭 Ruta encontrada: " + username + " -> " + fromServerKey);
+                pending.forEach(p -> sendToServer(fromServerKey, p));
+            }
+        }
+    }
+
+    /**
+     * Métricas de enrutamiento para la API REST
+     */
+    public Map<String, Object> getRoutingMetrics() {
+        Map<String, Object> metrics = new LinkedHashMap<>();
+        metrics.put("routes", userRoutes.size());
+        metrics.put("hits", routeHits.get());
+        metrics.put("misses", routeMisses.get());
+        metrics.put("lookupsPending", pendingLookups.size());
+        metrics.put("lookupsResolved", lookupsResolved.get());
+        metrics.put("lookupsTimedOut", lookupsTimedOut.get());
+        return metrics;
+    }
+
+    /**
+     * Métricas de los escritores por servidor (paquetes por escritura al socket) para la API REST
+     */
+    public Map<String, Object> getWriterMetrics() {
+        Map<String, Object> metrics = new LinkedHashMap<>();
+        metrics.put("batchBytes", batchBytes);
+        metrics.put("lingerUs", lingerMicros);
+        Map<String, Object> porServidor = new LinkedHashMap<>();
+        federatedServers.forEach((key, fs) -> porServidor.put(key, fs.writer.getMetrics()));
+        metrics.put("peers", porServidor);
+        return metrics;
+    }
+
+    /**
+     * Compresión por servidor federado (solo los enlaces que la negociaron)
+     */
+    public Map<String, Object> getCompressionMetrics() {
+        Map<String, Object> metrics = new LinkedHashMap<>();
+        federatedServers.forEach((key, fs) -> {
+            if (fs.stream.getCodec() instanceof DeflatePacketCodec codec) {
+                metrics.put(key, codec.getStats().toMap());
+            }
+        });
+        return metrics;
     }
 
     /**
@@ -229,6 +543,13 @@ public class ServerRegistry {
                 .collect(Collectors.toSet());
     }
 
+    /**
+     * Claves (IP:puerto) de los servidores registrados
+     */
+    public java.util.List<String> getServerKeys() {
+        return java.util.List.copyOf(federatedServers.keySet());
+    }
+
     /**
      * Verifica si un servidor está registrado
      */
@@ -238,30 +559,51 @@ public class ServerRegistry {
     
     /**
      * Envía la lista actual de usuarios conectados a un servidor específico
+     * (instantánea versionada; después solo viajan los cambios)
      */
     public void sendUserListToServer(String serverKey) {
         if (tcpServer == null) {
             return;
         }
-        
-        ServerUserListDTO userListDTO = new ServerUserListDTO();
-        userListDTO.setServerIP(localServerIP);
-        userListDTO.setServerName(localServerName);
-        userListDTO.setUsernames(tcpServer.getConnectedUsernames());
-        
-        Packet syncPacket = new Packet(ActionType.SERVER_USER_LIST_SYNC, userListDTO);
-        sendToServer(serverKey, syncPacket);
-        
-        System.out.println("📤 Lista de usuarios enviada a " + serverKey + ": " + userListDTO.getUsernames());
+        tcpServer.getPresenceTracker().sendSnapshotToServer(serverKey);
     }
     
     /**
      * Actualiza el caché de usuarios remotos de un servidor federado
+     * @return la lista anterior de ese servidor (null si no había)
      */
-    public void updateRemoteUsers(String serverKey, java.util.List<String> usernames) {
-        remoteUsersCache.put(serverKey, new java.util.ArrayList<>(usernames));
+    public java.util.List<String> updateRemoteUsers(String serverKey, java.util.List<String> usernames) {
+        java.util.List<String> previous = remoteUsersCache.put(serverKey, new java.util.ArrayList<>(usernames));
+        // Quitar las rutas de quienes ya no están en ese servidor y apuntar las nuevas
+        if (previous != null) {
+            Set<String> current = new java.util.HashSet<>(usernames);
+            previous.stream().filter(u -> !current.contains(u)).forEach(u -> userRoutes.remove(u, serverKey));
+        }
+        usernames.forEach(u -> userRoutes.put(u, serverKey));
         System.out.println("🔄 Caché actualizado para " + serverKey + ": " + usernames);
         System.out.println("📊 Total usuarios remotos en caché: " + getAllRemoteUsers());
+        return previous;
+    }
+
+    /**
+     * Aplica un cambio de presencia de un servidor federado al caché y a la tabla de rutas
+     */
+    public void applyRemoteDelta(String serverKey, java.util.List<String> joined, java.util.List<String> left) {
+        remoteUsersCache.compute(serverKey, (k, users) -> {
+            java.util.Set<String> updated = new java.util.LinkedHashSet<>(users != null ? users : java.util.List.of());
+            if (left != null) updated.removeAll(left);
+            if (joined != null) updated.addAll(joined);
+            return new java.util.ArrayList<>(updated);
+        });
+        if (left != null) left.forEach(u -> userRoutes.remove(u, serverKey));
+        if (joined != null) joined.forEach(u -> userRoutes.put(u, serverKey));
+    }
+
+    /**
+     * Usuarios conocidos de un servidor federado
+     */
+    public java.util.List<String> getRemoteUsers(String serverKey) {
+        return remoteUsersCache.getOrDefault(serverKey, java.util.List.of());
     }
     
     /**
@@ -276,9 +618,11 @@ public class ServerRegistry {
     /**
      * Limpia el caché de usuarios de un servidor desconectado
      */
-    public void clearRemoteUsers(String serverKey) {
-        remoteUsersCache.remove(serverKey);
+    public java.util.List<String> clearRemoteUsers(String serverKey) {
+        java.util.List<String> previous = remoteUsersCache.remove(serverKey);
+        userRoutes.values().removeIf(serverKey::equals);
         System.out.println("🗑️ Cache limpiado para servidor desconectado: " + serverKey);
+        return previous;
     }
 
     /**
@@ -314,12 +658,7 @@ public class ServerRegistry {
      * @return La clave del servidor (IP:puerto) o null si no se encuentra
      */
     public String findServerByUsername(String username) {
-        for (Map.Entry<String, java.util.List<String>> entry : remoteUsersCache.entrySet()) {
-            if (entry.getValue().contains(username)) {
-                return entry.getKey();
-            }
-        }
-        return null;
+        return findServerForUser(username);
     }
     
     /**
@@ -1,8 +1,15 @@
 package com.universidad.chat.servidor.network;
 
 import com.universidad.chat.comun.dto.ActionType;
+import com.universidad.chat.comun.dto.FederatedMessageDTO;
+import com.universidad.chat.comun.dto.MessageDTO;
 import com.universidad.chat.comun.dto.Packet;
+import com.universidad.chat.comun.protocol.DeflatePacketCodec;
+import com.universidad.chat.comun.protocol.EncodedPacket;
 import com.universidad.chat.servidor.repository.CanalRepository;
+import com.universidad.chat.servidor.service.AudioDownloadService;
+import com.universidad.chat.servidor.service.AudioStore;
+import com.universidad.chat.servidor.service.AudioUploadService;
 import com.universidad.chat.servidor.service.CanalService;
 import com.universidad.chat.servidor.service.MensajeService;
 import com.universidad.chat.servidor.service.TranscriptionService;
@@ -19,10 +26,13 @@ import java.net.InetAddress;
 import java.net.ServerSocket;
 import java.net.Socket;
 import java.util.ArrayList;
-import java.util.Collections;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.Set;
-import java.util.stream.Collectors; // Import for stream operations
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.locks.ReentrantLock;
 
 @Component
 public class TCPServer {
@@ -30,7 +40,12 @@ public class TCPServer {
     @Value("${chat.server.client-port:5000}")
     private int clientPort;
     
-    private final List<ClientHandler> clients = Collections.synchronizedList(new ArrayList<>());
+    // Sesiones autenticadas indexadas por username: búsqueda O(1) sin lock global
+    private final ConcurrentHashMap<String, ClientHandler> sessions = new ConcurrentHashMap<>();
+    // Lista inmutable de usernames conectados; se reemplaza en cada login/logout (copy-on-write)
+    private volatile List<String> connectedUsernames = List.of();
+    // Solo serializa a los escritores del snapshot (login/logout), nunca a los lectores
+    private final ReentrantLock sessionsWriteLock = new ReentrantLock();
 
     @Value("${chat.server.max-connections}")
     private int maxConnections;
@@ -44,6 +59,22 @@ public class TCPServer {
     @Value("${server.address:}")
     private String configuredAddress;
 
+    // "blocking" = un hilo por cliente, "nio" = event loops con Selector
+    @Value("${chat.server.transport:blocking}")
+    private String transport;
+
+    @Value("${chat.server.nio.event-loops:2}")
+    private int nioEventLoops;
+
+    @Value("${chat.server.nio.worker-threads:8}")
+    private int nioWorkerThreads;
+
+    // Límite propio del modo nio: las sesiones no cuestan un hilo cada una
+    @Value("${chat.server.nio.max-connections:50000}")
+    private int nioMaxConnections;
+
+    private NioClientTransport nioTransport;
+
     // --- Injected dependencies ---
     @Autowired private UsuarioService usuarioService;
     @Autowired private CanalService canalService;
@@ -52,6 +83,17 @@ public class TCPServer {
     @Autowired private MensajeService mensajeService;
     @Autowired private TranscriptionService transcriptionService;
     @Autowired private ServerRegistry serverRegistry;
+    @Autowired private ServerExecutors serverExecutors;
+    @Autowired private OutboundLimits outboundLimits;
+    @Autowired private AudioUploadService audioUploadService;
+    @Autowired private AudioDownloadService audioDownloadService;
+    @Autowired private FederatedAudioTransfer federatedAudioTransfer;
+    @Autowired private AudioStore audioStore;
+    @Autowired private PresenceTracker presenceTracker;
+    @Autowired private FederationHeartbeat federationHeartbeat;
+    @Autowired private SeenMessageCache seenMessageCache;
+    @Autowired private FederationDispatcher federationDispatcher;
+    @Autowired private FederationOutbox federationOutbox;
 
     // --- Observer Pattern Implementation ---
     private final PropertyChangeSupport support = new PropertyChangeSupport(this);
@@ -71,8 +113,15 @@ public class TCPServer {
         String localIP = getLocalIPAddress();
         serverRegistry.setLocalServerInfo(localIP, serverName, federationPort);
         serverRegistry.setTCPServer(this); // Establecer referencia al TCPServer
+        presenceTracker.setTCPServer(this);
+        federationDispatcher.setTCPServer(this);
+
+        if ("nio".equalsIgnoreCase(transport)) {
+            startNioServer(localIP);
+            return;
+        }
 
-        new Thread(() -> {
+        serverExecutors.execute(() -> {
             try (ServerSocket serverSocket = new ServerSocket(clientPort)) {
                 // Use log method to send messages to console AND GUI
                 log("======================================================");
@@ -85,25 +134,51 @@ public class TCPServer {
 
                 while (true) {
                     Socket clientSocket = serverSocket.accept();
-                    synchronized (clients) { // Lock before checking size
-                        if (clients.size() >= maxConnections) {
-                            log("Conexión rechazada desde " + clientSocket.getInetAddress() + ". Límite alcanzado.");
-                            try { clientSocket.close(); } catch (IOException ioex) { /* ignore */ }
-                            continue;
-                        }
-                    } // Unlock
+                    if (sessions.size() >= maxConnections) {
+                        log("Conexión rechazada desde " + clientSocket.getInetAddress() + ". Límite alcanzado.");
+                        try { clientSocket.close(); } catch (IOException ioex) { /* ignore */ }
+                        continue;
+                    }
                     // Log connection attempt
                     log("Nuevo cliente intentando conectar desde: " + clientSocket.getInetAddress());
 
-                    // Create handler and start its thread
+                    // Create handler and run it on its own (platform or virtual) thread
                     ClientHandler clientHandler = new ClientHandler(clientSocket, usuarioService, this, canalService, canalRepository, mensajeService, transcriptionService, usuarioRepository);
-                    new Thread(clientHandler).start();
+                    serverExecutors.execute(clientHandler);
                 }
             } catch (IOException e) {
                 log("!!! ERROR FATAL al iniciar el servidor TCP: " + e.getMessage());
                 e.printStackTrace(); // Also print stack trace for detailed errors
             }
-        }).start();
+        });
+    }
+
+    /**
+     * Arranca el transporte NIO en lugar del bucle accept() de un hilo por cliente
+     */
+    private void startNioServer(String localIP) {
+        log("======================================================");
+        log("      SERVIDOR TCP (NIO) INICIADO EN EL PUERTO " + clientPort);
+        log("      NOMBRE: " + serverName);
+        log("      IP LOCAL: " + localIP);
+        log("      PUERTO FEDERACIÓN: " + federationPort);
+        log("      LÍMITE DE CONEXIONES ESTABLECIDO EN: " + nioMaxConnections);
+        log("======================================================");
+        try {
+            nioTransport = new NioClientTransport(this, clientPort, nioEventLoops,
+                    serverExecutors.newWorkerPool(nioWorkerThreads, "nio-worker-"));
+            nioTransport.start();
+        } catch (IOException e) {
+            log("!!! ERROR FATAL al iniciar el transporte NIO: " + e.getMessage());
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     * Crea un ClientHandler para una conexión gestionada por otro transporte
+     */
+    ClientHandler createClientHandler(ClientConnection connection) {
+        return new ClientHandler(connection, usuarioService, this, canalService, canalRepository, mensajeService, transcriptionService, usuarioRepository);
     }
 
     // --- Modified Methods to Fire Events ---
@@ -117,12 +192,32 @@ public class TCPServer {
             log("Advertencia: Intento de añadir cliente no autenticado.");
             return; // Only add authenticated clients
         }
-        List<String> oldUsernames = getConnectedUsernames();
-        synchronized(clients) {
-            clients.add(clientHandler);
+        String username = clientHandler.getAuthenticatedUser().getUsername();
+        List<String> oldUsernames;
+        List<String> newUsernames;
+        ClientHandler previous;
+        sessionsWriteLock.lock();
+        try {
+            oldUsernames = connectedUsernames;
+            previous = sessions.put(username, clientHandler);
+            if (previous == null) {
+                List<String> updated = new ArrayList<>(oldUsernames.size() + 1);
+                updated.addAll(oldUsernames);
+                updated.add(username);
+                connectedUsernames = List.copyOf(updated);
+            }
+            newUsernames = connectedUsernames;
+        } finally {
+            sessionsWriteLock.unlock();
+        }
+        if (previous != null && previous != clientHandler) {
+            // El nuevo login gana (p. ej. el cliente se reconectó antes de que cayera el socket viejo).
+            // La sesión anterior ya no recibe nada: se cierra para que no quede abierta sin contar
+            log("Sesión anterior de " + username + " cerrada: nuevo login desde otra conexión");
+            previous.disconnect();
         }
-        List<String> newUsernames = getConnectedUsernames();
-        log("Cliente autenticado y añadido: " + clientHandler.getAuthenticatedUser().getUsername() + " (" + clients.size() + "/" + maxConnections + ")");
+        log("Cliente autenticado y añadido: " + username + " (" + sessions.size() + "/" + getMaxConnections() + ")");
+        presenceTracker.localUserChanged(username);
         // Notify GUI about the change in the client list
         support.firePropertyChange("clientListChanged", oldUsernames, newUsernames);
     }
@@ -132,18 +227,30 @@ public class TCPServer {
      * Called by ClientHandler in its finally block.
      */
     public void removeClient(ClientHandler clientHandler) {
-        List<String> oldUsernames = getConnectedUsernames();
-        boolean removed;
-        synchronized(clients) {
-            removed = clients.remove(clientHandler);
+        if (clientHandler.getAuthenticatedUser() == null) {
+            return; // Nunca llegó a registrarse
         }
-        String username = (clientHandler.getAuthenticatedUser() != null) ? clientHandler.getAuthenticatedUser().getUsername() : "No autenticado";
-
-        if (removed) {
-            List<String> newUsernames = getConnectedUsernames();
-            log("Cliente desconectado: " + username + " (" + clients.size() + "/" + maxConnections + ")");
-            support.firePropertyChange("clientListChanged", oldUsernames, newUsernames);
+        String username = clientHandler.getAuthenticatedUser().getUsername();
+        List<String> oldUsernames;
+        List<String> newUsernames;
+        sessionsWriteLock.lock();
+        try {
+            // Solo si sigue siendo la sesión registrada (un re-login pudo reemplazarla)
+            if (!sessions.remove(username, clientHandler)) {
+                return;
+            }
+            oldUsernames = connectedUsernames;
+            List<String> updated = new ArrayList<>(oldUsernames);
+            updated.remove(username);
+            connectedUsernames = List.copyOf(updated);
+            newUsernames = connectedUsernames;
+        } finally {
+            sessionsWriteLock.unlock();
         }
+        canalService.usuarioDesconectado(username);
+        log("Cliente desconectado: " + username + " (" + sessions.size() + "/" + getMaxConnections() + ")");
+        presenceTracker.localUserChanged(username);
+        support.firePropertyChange("clientListChanged", oldUsernames, newUsernames);
     }
 
     // --- Helper method for logging (sends to console and GUI) ---
@@ -154,14 +261,55 @@ public class TCPServer {
 
     // --- Methods to provide info to GUI ---
     public int getMaxConnections() {
-        return maxConnections;
+        return "nio".equalsIgnoreCase(transport) ? nioMaxConnections : maxConnections;
+    }
+
+    public AudioUploadService getAudioUploadService() {
+        return audioUploadService;
+    }
+
+    public AudioDownloadService getAudioDownloadService() {
+        return audioDownloadService;
+    }
+
+    public PresenceTracker getPresenceTracker() {
+        return presenceTracker;
+    }
+
+    public FederationOutbox getFederationOutbox() {
+        return federationOutbox;
+    }
+
+    public FederationDispatcher getFederationDispatcher() {
+        return federationDispatcher;
+    }
+
+    public SeenMessageCache getSeenMessageCache() {
+        return seenMessageCache;
+    }
+
+    public FederationHeartbeat getFederationHeartbeat() {
+        return federationHeartbeat;
+    }
+
+    public AudioStore getAudioStore() {
+        return audioStore;
+    }
+
+    public FederatedAudioTransfer getFederatedAudioTransfer() {
+        return federatedAudioTransfer;
+    }
+
+    public OutboundLimits getOutboundLimits() {
+        return outboundLimits;
+    }
+
+    public ServerExecutors getServerExecutors() {
+        return serverExecutors;
     }
 
     public int getConnectedClientCount() {
-        // Return the current size safely
-        synchronized(clients) {
-            return clients.size();
-        }
+        return sessions.size();
     }
 
     // --- Existing methods needed by ClientHandler or GUI ---
@@ -170,16 +318,35 @@ public class TCPServer {
      * Sends a packet to all currently connected clients.
      */
     public void broadcastPacket(Packet packet) {
-        synchronized (clients) {
-            // Use a copy of the list to avoid ConcurrentModificationException if a client disconnects during broadcast
-            List<ClientHandler> clientsCopy = new ArrayList<>(clients);
-            System.out.println("📡 Broadcasting packet tipo " + packet.getAction() + " a " + clientsCopy.size() + " clientes");
-            for (ClientHandler client : clientsCopy) {
-                if (client.getAuthenticatedUser() != null) {
-                    System.out.println("  → Enviando a: " + client.getAuthenticatedUser().getUsername());
-                }
-                client.sendPacket(packet);
+        // Iteración débilmente consistente del mapa: no bloquea logins/logouts concurrentes
+        System.out.println("📡 Broadcasting packet tipo " + packet.getAction() + " a " + sessions.size() + " clientes");
+        // Se codifica una sola vez (por codec) y todos los clientes comparten los bytes
+        EncodedPacket encoded = new EncodedPacket(packet);
+        for (ClientHandler client : sessions.values()) {
+            if (client.getAuthenticatedUser() != null) {
+                System.out.println("  → Enviando a: " + client.getAuthenticatedUser().getUsername());
+            }
+            client.sendEncoded(encoded);
+        }
+    }
+
+    /**
+     * Envía un cambio de presencia. Los clientes con protocolo de tramas reciben el delta; los
+     * antiguos (ObjectOutputStream, sin codec) no conocen USER_PRESENCE_DELTA ni PresenceDeltaDTO
+     * y reciben, como siempre, la lista completa en USER_LIST_UPDATE.
+     */
+    public void broadcastPresence(Packet delta, List<String> allUsernames) {
+        EncodedPacket encodedDelta = new EncodedPacket(delta);
+        EncodedPacket encodedList = null;
+        for (ClientHandler client : sessions.values()) {
+            if (client.getCodec() != null) {
+                client.sendEncoded(encodedDelta);
+                continue;
+            }
+            if (encodedList == null) {
+                encodedList = new EncodedPacket(new Packet(ActionType.USER_LIST_UPDATE, allUsernames));
             }
+            client.sendEncoded(encodedList);
         }
     }
 
@@ -187,12 +354,11 @@ public class TCPServer {
      * Sends a packet only to clients whose usernames are in the provided set.
      */
     public void broadcastToUserList(Packet packet, Set<String> usernames) {
-        synchronized (clients) {
-            List<ClientHandler> clientsCopy = new ArrayList<>(clients);
-            for (ClientHandler client : clientsCopy) {
-                if (client.getAuthenticatedUser() != null && usernames.contains(client.getAuthenticatedUser().getUsername())) {
-                    client.sendPacket(packet);
-                }
+        EncodedPacket encoded = new EncodedPacket(packet);
+        for (String username : usernames) {
+            ClientHandler client = sessions.get(username);
+            if (client != null) {
+                client.sendEncoded(encoded);
             }
         }
     }
@@ -201,28 +367,18 @@ public class TCPServer {
      * Finds an active ClientHandler by username. Returns null if not found.
      */
     public ClientHandler findClientByUsername(String username) {
-        synchronized (clients) {
-            for (ClientHandler client : clients) {
-                if (client.getAuthenticatedUser() != null && client.getAuthenticatedUser().getUsername().equals(username)) {
-                    return client;
-                }
-            }
+        if (username == null) {
+            return null;
         }
-        return null;
+        return sessions.get(username);
     }
 
     /**
      * Gets a list of usernames of all authenticated clients currently connected.
+     * Returns an immutable snapshot: it is not rebuilt on each call and must not be modified.
      */
     public List<String> getConnectedUsernames() {
-        List<String> usernames = new ArrayList<>();
-        synchronized(clients) {
-            usernames = clients.stream()
-                    .filter(c -> c.getAuthenticatedUser() != null)
-                    .map(c -> c.getAuthenticatedUser().getUsername())
-                    .collect(Collectors.toList());
-        }
-        return usernames;
+        return connectedUsernames;
     }
     
     /**
@@ -257,22 +413,6 @@ public class TCPServer {
         return annotated;
     }
     
-    /**
-     * Envía actualización de lista de usuarios a TODOS los clientes
-     * Incluye usuarios locales Y remotos
-     */
-    public void broadcastUserListToClients() {
-        List<String> allUsers = getAllAvailableUsernames();
-        Packet userListPacket = new Packet(ActionType.USER_LIST_UPDATE, allUsers);
-        
-        System.out.println("📢 ===== BROADCAST USER LIST =====");
-        System.out.println("📢 Lista a enviar: " + allUsers);
-        
-        broadcastPacket(userListPacket);
-        
-        System.out.println("📢 ===== FIN BROADCAST =====");
-    }
-
     /**
      * Obtiene la IP local del servidor
      */
@@ -330,6 +470,54 @@ public class TCPServer {
         log("🔊 Audio federado transmitido a clientes locales desde: " + fedMsg.getOriginServerName());
     }
     
+    /**
+     * Publica el texto final de un audio que se entregó con el marcador de transcripción en curso:
+     * actualiza la BD, avisa a los clientes locales implicados y, si puede haber destinatarios
+     * en otros servidores, lo reenvía a la federación.
+     */
+    public void publishTranscription(MessageDTO update) {
+        mensajeService.actualizarTranscripcion(update.getAudioFileName(), update.getContent());
+        deliverTranscriptionToLocalClients(update);
+
+        String recipient = update.getRecipient();
+        if (recipient.startsWith("#") || !sessions.containsKey(recipient)) {
+            FederatedMessageDTO fedMsg = serverRegistry.newFederatedMessage(update);
+            serverRegistry.broadcastToFederation(new Packet(ActionType.TRANSCRIPTION_READY, fedMsg));
+        }
+    }
+
+    /**
+     * Entrega TRANSCRIPTION_READY al emisor y a los destinatarios conectados a este servidor.
+     * Los clientes antiguos (ObjectOutputStream, sin codec) no conocen esa acción y no pueden
+     * leerla: a ellos no se les envía y se quedan con el texto provisional.
+     */
+    public void deliverTranscriptionToLocalClients(MessageDTO update) {
+        EncodedPacket encoded = new EncodedPacket(new Packet(ActionType.TRANSCRIPTION_READY, update));
+        Set<String> destinatarios = new HashSet<>();
+        destinatarios.add(update.getSender());
+        if (update.getRecipient().startsWith("#")) {
+            Set<String> miembros = canalService.getMiembrosEnLinea(update.getRecipient());
+            if (miembros == null) {
+                // Canal remoto: igual que sus mensajes, se avisa a todos los clientes locales
+                sessions.values().forEach(client -> enviarSiTieneCodec(client, encoded));
+                return;
+            }
+            destinatarios.addAll(miembros);
+        } else {
+            destinatarios.add(update.getRecipient());
+        }
+        for (String username : destinatarios) {
+            enviarSiTieneCodec(sessions.get(username), encoded);
+        }
+        System.out.println("📝 Transcripción de " + update.getAudioFileName() + " enviada a " + destinatarios);
+    }
+
+    private static void enviarSiTieneCodec(ClientHandler client, EncodedPacket encoded) {
+        if (client != null && client.getCodec() != null) {
+            client.sendEncoded(encoded);
+        }
+    }
+
     /**
      * Maneja la respuesta de invitación de un usuario remoto
      */
@@ -373,12 +561,29 @@ public class TCPServer {
         });
     }
     
+    /**
+     * Compresión negociada (para API REST): totales y por conexión, clientes por usuario
+     * y servidores federados por IP:puerto
+     */
+    public Map<String, Object> getCompressionMetrics() {
+        Map<String, Object> metrics = new LinkedHashMap<>();
+        metrics.put("minBytes", DeflatePacketCodec.MIN_SIZE);
+        metrics.put("total", DeflatePacketCodec.getTotalStats().toMap());
+        Map<String, Object> porCliente = new LinkedHashMap<>();
+        sessions.forEach((username, handler) -> {
+            if (handler.getCodec() instanceof DeflatePacketCodec codec) {
+                porCliente.put(username, codec.getStats().toMap());
+            }
+        });
+        metrics.put("clients", porCliente);
+        metrics.put("federation", serverRegistry.getCompressionMetrics());
+        return metrics;
+    }
+
     /**
      * Obtiene la lista de clientes conectados (para API REST)
      */
     public List<ClientHandler> getClients() {
-        synchronized (clients) {
-            return new ArrayList<>(clients);
-        }
+        return new ArrayList<>(sessions.values());
     }
 }
\ No newline at end of file
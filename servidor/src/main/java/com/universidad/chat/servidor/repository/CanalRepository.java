@@ -2,6 +2,7 @@ package com.universidad.chat.servidor.repository;
 
 import com.universidad.chat.servidor.model.Canal;
 import org.springframework.data.jpa.repository.JpaRepository;
+import org.springframework.data.jpa.repository.Query;
 import org.springframework.stereotype.Repository;
 import java.util.Optional;
 import java.util.List;
@@ -10,4 +11,8 @@ import java.util.List;
 public interface CanalRepository extends JpaRepository<Canal, Long> {
     Optional<Canal> findByNombreCanal(String nombreCanal);
     List<Canal> findAllByMiembros_NombreUsuario(String nombreUsuario);
+
+    // Solo los nombres, sin cargar la colección EAGER de miembros
+    @Query("SELECT c.nombreCanal FROM Canal c")
+    List<String> findAllNombresCanal();
 }
\ No newline at end of file
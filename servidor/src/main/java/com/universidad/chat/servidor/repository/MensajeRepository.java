@@ -2,7 +2,7 @@ package com.universidad.chat.servidor.repository;
 
 import com.universidad.chat.servidor.model.Canal;
 import com.universidad.chat.servidor.model.Mensaje;
-import com.universidad.chat.servidor.model.Usuario;
+import org.springframework.data.domain.Pageable;
 import org.springframework.data.jpa.repository.JpaRepository;
 import org.springframework.data.jpa.repository.Query;
 import org.springframework.data.repository.query.Param;
@@ -14,22 +14,46 @@ import java.util.List;
 public interface MensajeRepository extends JpaRepository<Mensaje, Long> {
     
     /**
-     * Obtiene todos los mensajes privados entre dos usuarios (en ambas direcciones)
-     * Ordenados por timestamp ascendente (del más antiguo al más reciente)
+     * Últimos mensajes de CADA conversación del usuario (chats privados y canales de los que
+     * es miembro) en una sola consulta, ordenados por id ascendente.
+     * Por cada conversación lee solo sus porConversacion mensajes más recientes con un rango
+     * descendente del índice (receptor_canal_id, id) o (conversacion_privada, id) (MySQL 8.0.14+,
+     * LATERAL): el coste no depende de cuántos mensajes tenga el historial completo.
+     * Las conversaciones privadas salen de los índices (emisor_id / receptor_usuario_id, conversacion_privada).
      */
-    @Query("SELECT m FROM Mensaje m WHERE " +
-           "(m.emisor = :usuario1 AND m.receptorUsuario = :usuario2) OR " +
-           "(m.emisor = :usuario2 AND m.receptorUsuario = :usuario1) " +
-           "ORDER BY m.timestamp ASC")
-    List<Mensaje> findMessagesBetweenUsers(@Param("usuario1") Usuario usuario1, 
-                                           @Param("usuario2") Usuario usuario2);
+    @Query(value = "SELECT m.* FROM (SELECT mc.canal_id FROM miembros_canal mc WHERE mc.usuario_id = :usuarioId) c " +
+           "CROSS JOIN LATERAL (" +
+           "  SELECT r.id FROM mensajes r WHERE r.receptor_canal_id = c.canal_id ORDER BY r.id DESC LIMIT :porConversacion" +
+           ") ultimos JOIN mensajes m ON m.id = ultimos.id " +
+           "UNION ALL " +
+           "SELECT m.* FROM (" +
+           "  SELECT e.conversacion_privada AS clave FROM mensajes e WHERE e.emisor_id = :usuarioId AND e.conversacion_privada IS NOT NULL" +
+           "  UNION" +
+           "  SELECT d.conversacion_privada FROM mensajes d WHERE d.receptor_usuario_id = :usuarioId AND d.conversacion_privada IS NOT NULL" +
+           ") p " +
+           "CROSS JOIN LATERAL (" +
+           "  SELECT r.id FROM mensajes r WHERE r.conversacion_privada = p.clave ORDER BY r.id DESC LIMIT :porConversacion" +
+           ") ultimos JOIN mensajes m ON m.id = ultimos.id " +
+           "ORDER BY id ASC", nativeQuery = true)
+    List<Mensaje> findUltimosPorConversacion(@Param("usuarioId") Long usuarioId,
+                                             @Param("porConversacion") int porConversacion);
+
+    /**
+     * Página de mensajes privados de una conversación (clave de {@link Mensaje#clavePrivada})
+     * anteriores al cursor (id), del más reciente al más antiguo. El tamaño lo fija el Pageable.
+     */
+    @Query("SELECT m FROM Mensaje m WHERE m.conversacionPrivada = :clave AND m.id < :cursor ORDER BY m.id DESC")
+    List<Mensaje> findMessagesByConversacionBefore(@Param("clave") String clave,
+                                                   @Param("cursor") Long cursor,
+                                                   Pageable pageable);
     
     /**
-     * Obtiene todos los mensajes de un canal específico
-     * Ordenados por timestamp ascendente
+     * Página de mensajes de un canal anteriores al cursor (id), del más reciente al más antiguo
      */
-    @Query("SELECT m FROM Mensaje m WHERE m.receptorCanal = :canal ORDER BY m.timestamp ASC")
-    List<Mensaje> findMessagesByCanal(@Param("canal") Canal canal);
+    @Query("SELECT m FROM Mensaje m WHERE m.receptorCanal = :canal AND m.id < :cursor ORDER BY m.id DESC")
+    List<Mensaje> findMessagesByCanalBefore(@Param("canal") Canal canal,
+                                            @Param("cursor") Long cursor,
+                                            Pageable pageable);
     
     /**
      * Obtiene todos los canales donde el usuario ha participado (tiene mensajes)
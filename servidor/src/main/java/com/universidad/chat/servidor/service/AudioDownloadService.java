@@ -0,0 +1,72 @@
+package com.universidad.chat.servidor.service;
+
+import com.universidad.chat.comun.dto.AudioDataDTO;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Service;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Descarga de audios por rangos de bytes. Valida el nombre pedido, recorta el rango al
+ * tamaño del archivo y a download-chunk-bytes, y lleva las métricas de bytes enviados
+ * (sin copia con transferTo o copiados al heap para clientes sin codec binario).
+ */
+@Service
+public class AudioDownloadService {
+
+    @Autowired
+    private AudioStore audioStore;
+
+    @Value("${chat.server.audio.download-chunk-bytes:1048576}")
+    private int downloadChunkBytes;
+
+    // --- Métricas ---
+    private final AtomicLong rangesServed = new AtomicLong();
+    private final AtomicLong zeroCopyBytes = new AtomicLong();
+    private final AtomicLong copiedBytes = new AtomicLong();
+
+    /**
+     * Resuelve el archivo pedido o lanza IllegalArgumentException si no existe o el nombre no es válido
+     */
+    public Path resolver(String fileName) {
+        return audioStore.resolver(fileName);
+    }
+
+    /**
+     * Calcula el rango que se va a enviar para la petición (sin datos, solo la descripción)
+     */
+    public AudioDataDTO prepararRango(AudioDataDTO request, Path file) throws IOException {
+        long size = Files.size(file);
+        long offset = Math.min(Math.max(request.getOffset(), 0), size);
+        long length = request.getLength() <= 0 ? size - offset : Math.min(request.getLength(), size - offset);
+
+        AudioDataDTO range = new AudioDataDTO();
+        range.setFileName(request.getFileName());
+        range.setOffset(offset);
+        range.setLength(Math.min(length, downloadChunkBytes));
+        range.setTotalSize(size);
+        return range;
+    }
+
+    public void registrarEnvio(AudioDataDTO range, boolean zeroCopy) {
+        rangesServed.incrementAndGet();
+        (zeroCopy ? zeroCopyBytes : copiedBytes).addAndGet(range.getLength());
+    }
+
+    /**
+     * Métricas para la API REST
+     */
+    public Map<String, Object> getMetrics() {
+        Map<String, Object> metrics = new LinkedHashMap<>();
+        metrics.put("rangesServed", rangesServed.get());
+        metrics.put("zeroCopyBytes", zeroCopyBytes.get());
+        metrics.put("copiedBytes", copiedBytes.get());
+        return metrics;
+    }
+}
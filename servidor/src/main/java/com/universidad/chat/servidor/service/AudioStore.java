@@ -0,0 +1,168 @@
+package com.universidad.chat.servidor.service;
+
+import org.springframework.stereotype.Service;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.HexFormat;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.regex.Pattern;
+
+/**
+ * Almacén de audios direccionado por contenido.
+ *
+ * Cada audio se guarda una sola vez en audio_files/sha256/ab/cd/&lt;sha256&gt;.wav y ese nombre
+ * (&lt;sha256&gt;.wav) es el que viaja en los mensajes: subir o recibir por federación un audio
+ * que ya existe no crea otra copia, y otro servidor sabe por el nombre si ya lo tiene.
+ * Los subdirectorios por prefijo evitan carpetas con cientos de miles de archivos.
+ * Los audios antiguos (&lt;uuid&gt;.wav directamente en audio_files) se siguen sirviendo.
+ */
+@Service
+public class AudioStore {
+
+    private static final Path AUDIO_DIR = Paths.get("audio_files");
+    private static final Path HASH_DIR = AUDIO_DIR.resolve("sha256");
+    private static final Path TMP_DIR = AUDIO_DIR.resolve("tmp");
+    private static final Pattern HASH_NAME = Pattern.compile("[0-9a-f]{64}\\.wav");
+    // Audios anteriores al almacén: solo nombres simples dentro de audio_files (nada de rutas ni "..")
+    private static final Pattern LEGACY_NAME = Pattern.compile("[A-Za-z0-9_-][A-Za-z0-9._-]{0,127}");
+
+    // --- Métricas ---
+    private final AtomicLong almacenados = new AtomicLong();
+    private final AtomicLong duplicados = new AtomicLong();
+    private final AtomicLong bytesAhorrados = new AtomicLong();
+
+    public static MessageDigest nuevoDigest() {
+        try {
+            return MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("SHA-256 no disponible", e); // Obligatorio en toda JVM
+        }
+    }
+
+    public static String nombreDe(byte[] sha256) {
+        return HexFormat.of().formatHex(sha256) + ".wav";
+    }
+
+    /**
+     * true si el nombre identifica el contenido (y por tanto se puede ofrecer por hash)
+     */
+    public boolean esDireccionadoPorContenido(String fileName) {
+        return fileName != null && HASH_NAME.matcher(fileName).matches();
+    }
+
+    /**
+     * Ruta de un audio por su nombre, exista o no
+     * @throws IllegalArgumentException si el nombre no es válido
+     */
+    public Path ruta(String fileName) {
+        if (esDireccionadoPorContenido(fileName)) {
+            return HASH_DIR.resolve(fileName.substring(0, 2)).resolve(fileName.substring(2, 4)).resolve(fileName);
+        }
+        if (fileName == null || !LEGACY_NAME.matcher(fileName).matches() || fileName.contains("..")) {
+            throw new IllegalArgumentException("Nombre de audio inválido: " + fileName);
+        }
+        return AUDIO_DIR.resolve(fileName);
+    }
+
+    public boolean existe(String fileName) {
+        try {
+            return Files.isRegularFile(ruta(fileName));
+        } catch (IllegalArgumentException e) {
+            return false;
+        }
+    }
+
+    /**
+     * Resuelve un audio existente o lanza IllegalArgumentException si no existe o el nombre no es válido
+     */
+    public Path resolver(String fileName) {
+        Path file = ruta(fileName);
+        if (!Files.isRegularFile(file)) {
+            throw new IllegalArgumentException("Archivo solicitado no existe: " + fileName);
+        }
+        return file;
+    }
+
+    /**
+     * Archivo temporal en el mismo sistema de archivos que el almacén (para moverlo sin copiar)
+     */
+    public Path archivoTemporal() throws IOException {
+        Files.createDirectories(TMP_DIR);
+        return Files.createTempFile(TMP_DIR, "audio-", ".tmp");
+    }
+
+    /**
+     * Mueve un archivo al almacén. Si ese contenido ya estaba se borra el archivo y se
+     * reutiliza el existente.
+     * @param sha256 hash del archivo si ya se calculó al recibirlo; null = calcularlo ahora
+     * @return el nombre del audio (&lt;sha256&gt;.wav)
+     */
+    public String almacenar(Path archivo, byte[] sha256) throws IOException {
+        String fileName = nombreDe(sha256 != null ? sha256 : hashDe(archivo));
+        Path destino = ruta(fileName);
+        if (Files.isRegularFile(destino)) {
+            long size = Files.size(archivo);
+            Files.delete(archivo);
+            duplicados.incrementAndGet();
+            bytesAhorrados.addAndGet(size);
+            System.out.println("♻️ Audio ya almacenado, se reutiliza: " + fileName);
+            return fileName;
+        }
+        Files.createDirectories(destino.getParent());
+        // Si otro hilo guarda el mismo contenido a la vez, cualquiera de las dos copias vale
+        Files.move(archivo, destino, StandardCopyOption.ATOMIC_MOVE);
+        almacenados.incrementAndGet();
+        return fileName;
+    }
+
+    /**
+     * Guarda un audio recibido entero en memoria (subida clásica en Base64, federación antigua)
+     */
+    public String almacenar(byte[] data) throws IOException {
+        byte[] sha256 = nuevoDigest().digest(data);
+        if (existe(nombreDe(sha256))) {
+            duplicados.incrementAndGet();
+            bytesAhorrados.addAndGet(data.length);
+            return nombreDe(sha256);
+        }
+        Path temporal = archivoTemporal();
+        try {
+            Files.write(temporal, data);
+            return almacenar(temporal, sha256);
+        } finally {
+            Files.deleteIfExists(temporal);
+        }
+    }
+
+    private static byte[] hashDe(Path archivo) throws IOException {
+        MessageDigest digest = nuevoDigest();
+        try (InputStream in = Files.newInputStream(archivo)) {
+            byte[] buffer = new byte[64 * 1024];
+            int n;
+            while ((n = in.read(buffer)) != -1) {
+                digest.update(buffer, 0, n);
+            }
+        }
+        return digest.digest();
+    }
+
+    /**
+     * Métricas para la API REST
+     */
+    public Map<String, Object> getMetrics() {
+        Map<String, Object> metrics = new LinkedHashMap<>();
+        metrics.put("stored", almacenados.get());
+        metrics.put("deduplicated", duplicados.get());
+        metrics.put("bytesSaved", bytesAhorrados.get());
+        return metrics;
+    }
+}
@@ -0,0 +1,340 @@
+package com.universidad.chat.servidor.service;
+
+import com.universidad.chat.servidor.network.ServerExecutors;
+import jakarta.annotation.PostConstruct;
+import jakarta.annotation.PreDestroy;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Service;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.stream.Stream;
+import java.util.function.Consumer;
+import java.util.regex.Pattern;
+
+/**
+ * Subidas de audio por partes.
+ *
+ * Cada trozo se escribe directamente en audio_files/uploads/&lt;uploadId&gt;.part con un
+ * FileChannel, así que la memoria usada por subida es la de un trozo, no la del archivo.
+ * Las subidas cortadas se pueden reanudar con el mismo uploadId (también tras reiniciar
+ * el servidor o desconectarse el cliente) hasta que caducan; al confirmar, el archivo pasa al AudioStore con su SHA-256
+ * (calculado mientras llegan los trozos) como nombre.
+ *
+ * Cada trozo escrito se pasa también al reconocimiento incremental de TranscriptionService,
+ * así la transcripción está casi lista cuando termina la subida. Las subidas reanudadas tras
+ * un reinicio o una desconexión no tienen reconocimiento incremental y se transcriben
+ * completas al confirmar.
+ *
+ * Al desconectarse un cliente sus subidas se suspenden (se cierran el archivo y el reconocimiento,
+ * el .part se conserva); una tarea periódica borra las caducadas aunque nadie inicie otra subida.
+ */
+@Service
+public class AudioUploadService {
+
+    private static final Path UPLOADS_DIR = Paths.get("audio_files", "uploads");
+    // El id forma parte de la ruta del archivo: nada de separadores ni ".."
+    private static final Pattern UPLOAD_ID = Pattern.compile("[A-Za-z0-9-]{1,64}");
+
+    @Value("${chat.server.audio.max-upload-bytes:10485760}")
+    private long maxUploadBytes;
+
+    @Value("${chat.server.audio.max-chunk-bytes:262144}")
+    private int maxChunkBytes;
+
+    @Value("${chat.server.audio.upload-ttl-ms:600000}")
+    private long uploadTtlMs;
+
+    @Value("${chat.server.audio.max-uploads-per-user:3}")
+    private int maxUploadsPerOwner;
+
+    @Autowired
+    private ServerExecutors serverExecutors;
+
+    @Autowired
+    private TranscriptionService transcriptionService;
+
+    @Autowired
+    private AudioStore audioStore;
+
+    /**
+     * Resultado de confirmar una subida: el archivo definitivo y su transcripción en curso
+     */
+    public record AudioSubido(Path archivo, CompletableFuture<String> transcripcion) {}
+
+    private static final class Upload {
+        final String owner;
+        final long totalSize;
+        final Path partFile;
+        final FileChannel channel;
+        final TranscriptionService.TranscripcionIncremental transcripcion; // null = transcribir al confirmar
+        final MessageDigest digest; // null = subida reanudada tras un reinicio, se calcula al confirmar
+        final ReentrantLock lock = new ReentrantLock();
+        volatile long lastActivity = System.currentTimeMillis();
+        volatile Object sesion; // Conexión que la está subiendo (se suspende al desconectarse)
+
+        Upload(String owner, long totalSize, Path partFile, FileChannel channel,
+               TranscriptionService.TranscripcionIncremental transcripcion, MessageDigest digest) {
+            this.owner = owner;
+            this.totalSize = totalSize;
+            this.partFile = partFile;
+            this.channel = channel;
+            this.transcripcion = transcripcion;
+            this.digest = digest;
+        }
+
+        void cerrar() throws IOException {
+            if (transcripcion != null) transcripcion.cancelar();
+            channel.close();
+        }
+    }
+
+    private final Map<String, Upload> uploads = new ConcurrentHashMap<>();
+    // Serializa las altas para respetar max-uploads-per-user
+    private final ReentrantLock altas = new ReentrantLock();
+    private volatile boolean running;
+
+    @PostConstruct
+    public void start() {
+        running = true;
+        programarLimpieza();
+    }
+
+    private void programarLimpieza() {
+        CompletableFuture.delayedExecutor(Math.max(1000, Math.min(uploadTtlMs, 60_000)), TimeUnit.MILLISECONDS,
+                serverExecutors::execute).execute(() -> {
+            if (!running) return;
+            try {
+                descartarCaducadas();
+                borrarPartesHuerfanas();
+            } finally {
+                programarLimpieza();
+            }
+        });
+    }
+
+    /**
+     * Inicia o reanuda una subida.
+     * @param sesion conexión del cliente, para suspender sus subidas cuando se desconecte
+     * @param parciales recibe la transcripción parcial mientras llega el audio (puede ser null)
+     * @return los bytes que el servidor ya tiene; el cliente debe continuar desde ahí
+     */
+    public long iniciar(String uploadId, String owner, Object sesion, long totalSize, Consumer<String> parciales) throws IOException {
+        validarId(uploadId);
+        if (totalSize <= 0 || totalSize > maxUploadBytes) {
+            throw new IllegalArgumentException("Tamaño de audio no permitido (máximo " + maxUploadBytes + " bytes)");
+        }
+        descartarCaducadas();
+
+        Upload existing = uploads.get(uploadId);
+        if (existing != null) {
+            if (!existing.owner.equals(owner) || existing.totalSize != totalSize) {
+                throw new IllegalStateException("La subida " + uploadId + " pertenece a otro archivo");
+            }
+            existing.lastActivity = System.currentTimeMillis();
+            existing.sesion = sesion;
+            return existing.channel.size();
+        }
+
+        altas.lock();
+        try {
+            long enCurso = uploads.values().stream().filter(u -> u.owner.equals(owner)).count();
+            if (enCurso >= maxUploadsPerOwner) {
+                throw new IllegalStateException("Demasiadas subidas de audio en curso (máximo " + maxUploadsPerOwner + ")");
+            }
+            return crear(uploadId, owner, sesion, totalSize, parciales);
+        } finally {
+            altas.unlock();
+        }
+    }
+
+    // Con el lock de altas
+    private long crear(String uploadId, String owner, Object sesion, long totalSize, Consumer<String> parciales) throws IOException {
+        Files.createDirectories(UPLOADS_DIR);
+        Path partFile = UPLOADS_DIR.resolve(uploadId + ".part");
+        // Si el .part ya existe (subida cortada antes de un reinicio) se conserva lo recibido
+        FileChannel channel = FileChannel.open(partFile, StandardOpenOption.CREATE, StandardOpenOption.WRITE);
+        if (channel.size() > totalSize) {
+            channel.truncate(0);
+        }
+        // Solo se reconoce y se calcula el hash por trozos si el audio llega desde el principio
+        boolean desdeCero = channel.size() == 0;
+        Upload upload = new Upload(owner, totalSize, partFile, channel,
+                desdeCero ? transcriptionService.iniciarIncremental(parciales) : null,
+                desdeCero ? AudioStore.nuevoDigest() : null);
+        upload.sesion = sesion;
+        Upload previous = uploads.putIfAbsent(uploadId, upload);
+        if (previous != null) {
+            upload.cerrar();
+            return iniciar(uploadId, owner, sesion, totalSize, parciales);
+        }
+        System.out.println("⬆️ Subida de audio " + uploadId + " de " + owner + " (" + totalSize + " bytes, desde " + channel.size() + ")");
+        return channel.size();
+    }
+
+    /**
+     * Escribe un trozo en su posición.
+     * @return el offset esperado para el siguiente trozo; si no coincide con offset + data.length
+     *         el trozo no se escribió y el cliente debe reenviar desde el valor devuelto
+     */
+    public long escribir(String uploadId, String owner, long offset, byte[] data) throws IOException {
+        Upload upload = buscar(uploadId, owner);
+        if (data == null || data.length == 0 || data.length > maxChunkBytes) {
+            throw new IllegalArgumentException("Trozo de audio vacío o mayor de " + maxChunkBytes + " bytes");
+        }
+        upload.lock.lock();
+        try {
+            long expected = upload.channel.size();
+            if (offset != expected) {
+                return expected; // Trozo repetido o fuera de orden
+            }
+            if (offset + data.length > upload.totalSize) {
+                throw new IllegalArgumentException("El audio supera el tamaño anunciado de " + upload.totalSize + " bytes");
+            }
+            ByteBuffer buffer = ByteBuffer.wrap(data);
+            long position = offset;
+            while (buffer.hasRemaining()) {
+                position += upload.channel.write(buffer, position);
+            }
+            if (upload.digest != null) {
+                upload.digest.update(data);
+            }
+            if (upload.transcripcion != null) {
+                upload.transcripcion.alimentar(data);
+            }
+            upload.lastActivity = System.currentTimeMillis();
+            return position;
+        } finally {
+            upload.lock.unlock();
+        }
+    }
+
+    /**
+     * Cierra la subida y guarda el archivo en el AudioStore (si ese audio ya existía no se duplica).
+     * @return la ruta del archivo definitivo y su transcripción (incremental o, si no la hay, completa)
+     */
+    public AudioSubido confirmar(String uploadId, String owner) throws IOException {
+        Upload upload = buscar(uploadId, owner);
+        upload.lock.lock();
+        try {
+            long received = upload.channel.size();
+            if (received != upload.totalSize) {
+                throw new IllegalStateException("Audio incompleto: " + received + " de " + upload.totalSize + " bytes");
+            }
+            upload.channel.force(false);
+            upload.channel.close();
+            uploads.remove(uploadId, upload);
+
+            String fileName = audioStore.almacenar(upload.partFile, upload.digest == null ? null : upload.digest.digest());
+            Path target = audioStore.ruta(fileName);
+            System.out.println("✅ Subida de audio " + uploadId + " completada: " + fileName);
+
+            CompletableFuture<String> transcripcion = upload.transcripcion == null
+                    ? transcriptionService.transcribirAsync(target)
+                    : upload.transcripcion.terminar().exceptionallyCompose(e -> transcriptionService.transcribirAsync(target));
+            return new AudioSubido(target, transcripcion);
+        } finally {
+            upload.lock.unlock();
+        }
+    }
+
+    private Upload buscar(String uploadId, String owner) {
+        Upload upload = uploadId == null ? null : uploads.get(uploadId);
+        if (upload == null || !upload.owner.equals(owner)) {
+            throw new IllegalStateException("Subida de audio desconocida: " + uploadId);
+        }
+        return upload;
+    }
+
+    private void validarId(String uploadId) {
+        if (uploadId == null || !UPLOAD_ID.matcher(uploadId).matches()) {
+            throw new IllegalArgumentException("Identificador de subida inválido");
+        }
+    }
+
+    /**
+     * Borra las subidas abandonadas (sin actividad durante upload-ttl-ms)
+     */
+    private void descartarCaducadas() {
+        long limit = System.currentTimeMillis() - uploadTtlMs;
+        uploads.forEach((id, upload) -> {
+            if (upload.lastActivity < limit && uploads.remove(id, upload)) {
+                try {
+                    upload.cerrar();
+                    Files.deleteIfExists(upload.partFile);
+                    System.out.println("🗑️ Subida de audio abandonada descartada: " + id);
+                } catch (IOException e) {
+                    System.err.println("⚠️ No se pudo borrar la subida " + id + ": " + e.getMessage());
+                }
+            }
+        });
+    }
+
+    /**
+     * Borra los .part que no son de ninguna subida abierta (suspendidas o de antes de un
+     * reinicio) y llevan upload-ttl-ms sin cambios
+     */
+    private void borrarPartesHuerfanas() {
+        if (!Files.isDirectory(UPLOADS_DIR)) return;
+        long limit = System.currentTimeMillis() - uploadTtlMs;
+        try (Stream<Path> partes = Files.list(UPLOADS_DIR)) {
+            partes.filter(p -> p.getFileName().toString().endsWith(".part")).forEach(p -> {
+                String id = p.getFileName().toString().replaceFirst("\\.part$", "");
+                try {
+                    if (!uploads.containsKey(id) && Files.getLastModifiedTime(p).toMillis() < limit) {
+                        Files.deleteIfExists(p);
+                        System.out.println("🗑️ Subida de audio suspendida caducada: " + id);
+                    }
+                } catch (IOException e) {
+                    System.err.println("⚠️ No se pudo borrar la subida " + id + ": " + e.getMessage());
+                }
+            });
+        } catch (IOException e) {
+            System.err.println("⚠️ No se pudo revisar " + UPLOADS_DIR + ": " + e.getMessage());
+        }
+    }
+
+    /**
+     * El cliente se desconectó: se cierran sus subidas (archivo, reconocimiento y el callback
+     * de parciales hacia la conexión muerta). El .part se conserva para reanudar hasta que caduque.
+     */
+    public void suspenderSesion(String owner, Object sesion) {
+        uploads.forEach((id, upload) -> {
+            if (upload.owner.equals(owner) && upload.sesion == sesion && uploads.remove(id, upload)) {
+                upload.lock.lock();
+                try {
+                    upload.cerrar();
+                    System.out.println("⏸️ Subida de audio " + id + " suspendida: " + owner + " se desconectó");
+                } catch (IOException e) {
+                    System.err.println("⚠️ No se pudo cerrar la subida " + id + ": " + e.getMessage());
+                } finally {
+                    upload.lock.unlock();
+                }
+            }
+        });
+    }
+
+    /**
+     * Cierra los archivos abiertos; los .part se conservan para reanudar tras el reinicio
+     */
+    @PreDestroy
+    public void shutdown() {
+        running = false;
+        uploads.values().forEach(upload -> {
+            try { upload.cerrar(); } catch (IOException e) { /* ignore */ }
+        });
+        uploads.clear();
+    }
+}
@@ -4,10 +4,17 @@ import com.universidad.chat.servidor.model.Canal;
 import com.universidad.chat.servidor.model.Usuario;
 import com.universidad.chat.servidor.repository.CanalRepository;
 import com.universidad.chat.servidor.repository.UsuarioRepository;
+import jakarta.annotation.PostConstruct;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.stereotype.Service;
 import org.springframework.transaction.annotation.Transactional;
+
+import java.util.Collection;
+import java.util.Collections;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
 
 @Service
 public class CanalService {
@@ -18,6 +25,22 @@ public class CanalService {
     @Autowired
     private UsuarioRepository usuarioRepository;
 
+    // Índice en memoria: canal -> miembros conectados a ESTE servidor.
+    // Contiene todos los canales conocidos en la BD local (con un set vacío si no hay nadie en línea),
+    // así el reenvío de mensajes de canal no consulta la BD ni carga la colección EAGER de miembros.
+    private final Map<String, Set<String>> miembrosEnLinea = new ConcurrentHashMap<>();
+
+    // Canales de cada usuario conectado, para quitarlo del índice al desconectarse
+    private final Map<String, Set<String>> canalesDeUsuarioEnLinea = new ConcurrentHashMap<>();
+
+    @PostConstruct
+    public void cargarIndiceCanales() {
+        for (String nombreCanal : canalRepository.findAllNombresCanal()) {
+            miembrosEnLinea.computeIfAbsent(nombreCanal, k -> ConcurrentHashMap.newKeySet());
+        }
+        System.out.println("📇 Índice de canales cargado: " + miembrosEnLinea.size() + " canales");
+    }
+
     @Transactional // Asegura que toda la operación se complete o se revierta
     public Canal crearCanal(String nombreCanal, String creadorUsername) {
         // Buscamos al usuario creador
@@ -37,7 +60,9 @@ public class CanalService {
         // Añadimos al creador como el primer miembro
         nuevoCanal.getMiembros().add(creador);
 
-        return canalRepository.save(nuevoCanal);
+        Canal guardado = canalRepository.save(nuevoCanal);
+        registrarMiembro(nombreCanal, creadorUsername);
+        return guardado;
     }
 
     @Transactional
@@ -56,9 +81,63 @@ public class CanalService {
         // Añadimos el nuevo miembro y guardamos los cambios
         canal.getMiembros().add(nuevoMiembro);
         canalRepository.save(canal);
+        registrarMiembro(nombreCanal, nuevoMiembroUsername);
     }
 
     public List<Canal> findCanalesPorMiembro(String username) {
         return canalRepository.findAllByMiembros_NombreUsuario(username);
     }
+
+    // ==================== ÍNDICE DE MIEMBROS EN LÍNEA ====================
+
+    /**
+     * Marca al usuario como conectado en todos sus canales (se llama en el login)
+     */
+    public void usuarioConectado(String username, Collection<String> canales) {
+        Set<String> susCanales = ConcurrentHashMap.newKeySet();
+        susCanales.addAll(canales);
+        canalesDeUsuarioEnLinea.put(username, susCanales);
+        for (String canal : susCanales) {
+            miembrosEnLinea.computeIfAbsent(canal, k -> ConcurrentHashMap.newKeySet()).add(username);
+        }
+    }
+
+    /**
+     * Quita al usuario de los canales del índice (se llama en el logout)
+     */
+    public void usuarioDesconectado(String username) {
+        Set<String> susCanales = canalesDeUsuarioEnLinea.remove(username);
+        if (susCanales == null) {
+            return;
+        }
+        for (String canal : susCanales) {
+            Set<String> miembros = miembrosEnLinea.get(canal);
+            if (miembros != null) {
+                miembros.remove(username);
+            }
+        }
+    }
+
+    /**
+     * Registra en el índice que el usuario es miembro del canal (y el canal como conocido).
+     * Debe llamarse cada vez que se guarda un miembro nuevo en la BD.
+     */
+    public void registrarMiembro(String nombreCanal, String username) {
+        Set<String> miembros = miembrosEnLinea.computeIfAbsent(nombreCanal, k -> ConcurrentHashMap.newKeySet());
+        Set<String> susCanales = canalesDeUsuarioEnLinea.get(username);
+        if (susCanales != null) {
+            // Solo los usuarios conectados aquí entran en el set de miembros en línea
+            susCanales.add(nombreCanal);
+            miembros.add(username);
+        }
+    }
+
+    /**
+     * Miembros del canal conectados a este servidor (vista de solo lectura),
+     * o null si el canal no existe en la BD local (canal remoto).
+     */
+    public Set<String> getMiembrosEnLinea(String nombreCanal) {
+        Set<String> miembros = miembrosEnLinea.get(nombreCanal);
+        return miembros == null ? null : Collections.unmodifiableSet(miembros);
+    }
 }
\ No newline at end of file
@@ -0,0 +1,406 @@
+package com.universidad.chat.servidor.service;
+
+import com.universidad.chat.servidor.model.Mensaje;
+import jakarta.annotation.PostConstruct;
+import jakarta.annotation.PreDestroy;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.context.event.ApplicationReadyEvent;
+import org.springframework.context.event.EventListener;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.stereotype.Component;
+import org.springframework.transaction.PlatformTransactionManager;
+import org.springframework.transaction.support.TransactionTemplate;
+
+import java.sql.Timestamp;
+import java.sql.Types;
+import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Persistencia diferida (write-behind) de mensajes.
+ *
+ * Los mensajes se encolan en una cola acotada y un único hilo los inserta en lotes JDBC
+ * cuando se juntan batch-size mensajes o pasa flush-interval-ms desde el primero.
+ * Se usa JdbcTemplate en lugar de JPA porque con GenerationType.IDENTITY Hibernate no
+ * puede agrupar los INSERT; con rewriteBatchedStatements=true el driver de MySQL envía
+ * cada lote como un único INSERT multi-fila.
+ *
+ * Las transcripciones que terminan después de entregar el mensaje pasan por la misma cola
+ * (UPDATE por ruta_audio): así nunca se aplican antes del INSERT de su mensaje.
+ *
+ * Los IDs de usuarios y canales se cachean: nunca se borran en esta aplicación.
+ */
+@Component
+public class MensajeBatchWriter {
+
+    private static final String INSERT_SQL =
+            "INSERT INTO mensajes (emisor_id, receptor_usuario_id, receptor_canal_id, contenido_texto, ruta_audio, timestamp, conversacion_privada) " +
+            "VALUES (?, ?, ?, ?, ?, ?, ?)";
+
+    private static final String TRANSCRIPCION_SQL = "UPDATE mensajes SET contenido_texto = ? WHERE ruta_audio = ?";
+
+    // Rellena la clave de conversación de los mensajes guardados antes de existir la columna
+    private static final String COMPLETAR_CLAVES_SQL =
+            "UPDATE mensajes SET conversacion_privada = CONCAT(LEAST(emisor_id, receptor_usuario_id), ':', GREATEST(emisor_id, receptor_usuario_id)) " +
+            "WHERE receptor_usuario_id IS NOT NULL AND conversacion_privada IS NULL LIMIT 10000";
+
+    @Value("${chat.server.persistence.queue-capacity:10000}")
+    private int queueCapacity;
+
+    @Value("${chat.server.persistence.batch-size:100}")
+    private int batchSize;
+
+    @Value("${chat.server.persistence.flush-interval-ms:50}")
+    private long flushIntervalMs;
+
+    @Autowired
+    private JdbcTemplate jdbcTemplate;
+
+    @Autowired
+    private PlatformTransactionManager transactionManager;
+
+    /**
+     * Mensaje pendiente de guardar. El future se completa cuando el lote se confirma
+     * (true = guardado, false = receptor remoto, no se guarda localmente).
+     */
+    public static final class MensajePendiente {
+        final String emisor;
+        final String receptor;
+        final String contenidoTexto;
+        final String rutaAudio;
+        final LocalDateTime timestamp;
+        final CompletableFuture<Boolean> resultado = new CompletableFuture<>();
+
+        public MensajePendiente(String emisor, String receptor, String contenidoTexto, String rutaAudio, LocalDateTime timestamp) {
+            this.emisor = emisor;
+            this.receptor = receptor;
+            this.contenidoTexto = contenidoTexto;
+            this.rutaAudio = rutaAudio;
+            this.timestamp = timestamp;
+        }
+
+        public CompletableFuture<Boolean> getResultado() {
+            return resultado;
+        }
+    }
+
+    /**
+     * Texto definitivo de un audio guardado con el marcador de transcripción en curso
+     */
+    private record TranscripcionPendiente(String rutaAudio, String texto) {}
+
+    // Marca de apagado en la cola: despierta al writer sin interrumpirlo
+    private static final Object FIN = new Object();
+
+    // MensajePendiente o TranscripcionPendiente, en orden de llegada
+    private BlockingQueue<Object> cola;
+    private Thread writer;
+    private volatile boolean aceptando = true;
+    private TransactionTemplate transactionTemplate;
+
+    private final Map<String, Long> idsUsuario = new ConcurrentHashMap<>();
+    private final Map<String, Long> idsCanal = new ConcurrentHashMap<>();
+
+    // --- Métricas ---
+    private final AtomicLong guardados = new AtomicLong();
+    private final AtomicLong lotes = new AtomicLong();
+    private final AtomicLong fallidos = new AtomicLong();
+    private final AtomicLong omitidos = new AtomicLong();
+    private final AtomicLong transcripciones = new AtomicLong();
+    private final AtomicLong lotesFallidos = new AtomicLong();
+
+    @PostConstruct
+    public void start() {
+        cola = new ArrayBlockingQueue<>(queueCapacity);
+        transactionTemplate = new TransactionTemplate(transactionManager);
+        writer = new Thread(this::writerLoop, "mensajes-writer");
+        writer.setDaemon(true);
+        writer.start();
+        System.out.println("💾 Persistencia de mensajes por lotes: hasta " + batchSize + " mensajes o " + flushIntervalMs + " ms");
+    }
+
+    /**
+     * Encola un mensaje. Si la cola está llena el llamador espera (contrapresión)
+     * en lugar de perder mensajes. Tras el apagado se escribe directamente.
+     */
+    public MensajePendiente encolar(MensajePendiente mensaje) throws InterruptedException {
+        if (!aceptando) {
+            flush(List.of(mensaje));
+            return mensaje;
+        }
+        cola.put(mensaje);
+        return mensaje;
+    }
+
+    /**
+     * Encola la actualización del contenido de los mensajes con ese audio.
+     * Va detrás del INSERT del mensaje en la misma cola, así que no puede adelantarse a él.
+     */
+    public void encolarTranscripcion(String rutaAudio, String texto) throws InterruptedException {
+        TranscripcionPendiente transcripcion = new TranscripcionPendiente(rutaAudio, texto);
+        if (!aceptando) {
+            flush(List.of(transcripcion));
+            return;
+        }
+        cola.put(transcripcion);
+    }
+
+    private void writerLoop() {
+        List<Object> lote = new ArrayList<>(batchSize);
+        while (aceptando || !cola.isEmpty()) {
+            try {
+                Object primero = cola.poll(flushIntervalMs, TimeUnit.MILLISECONDS);
+                if (primero == null || primero == FIN) {
+                    continue;
+                }
+                lote.add(primero);
+                // Esperamos a completar el lote como mucho flush-interval-ms desde el primer mensaje
+                long limite = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(flushIntervalMs);
+                while (lote.size() < batchSize) {
+                    cola.drainTo(lote, batchSize - lote.size());
+                    long restante = limite - System.nanoTime();
+                    if (lote.size() >= batchSize || restante <= 0 || !aceptando) {
+                        break;
+                    }
+                    Object siguiente = cola.poll(restante, TimeUnit.NANOSECONDS);
+                    if (siguiente == null) {
+                        break;
+                    }
+                    lote.add(siguiente);
+                }
+                flush(lote);
+            } catch (InterruptedException e) {
+                // Nadie interrumpe al writer (el apagado usa FIN); el bucle vacía lo que quede
+            } catch (Exception e) {
+                System.err.println("❌ Error en el writer de mensajes: " + e.getMessage());
+            } finally {
+                lote.clear();
+            }
+        }
+    }
+
+    private void flush(List<?> lote) {
+        List<Object[]> filas = new ArrayList<>(lote.size());
+        List<MensajePendiente> incluidos = new ArrayList<>(lote.size());
+        List<Object[]> actualizaciones = new ArrayList<>();
+        for (Object pendiente : lote) {
+            if (pendiente == FIN) {
+                continue;
+            }
+            if (pendiente instanceof TranscripcionPendiente t) {
+                actualizaciones.add(new Object[]{t.texto(), t.rutaAudio()});
+                continue;
+            }
+            MensajePendiente m = (MensajePendiente) pendiente;
+            try {
+                Object[] fila = aFila(m);
+                if (fila == null) {
+                    omitidos.incrementAndGet();
+                    m.resultado.complete(false);
+                } else {
+                    filas.add(fila);
+                    incluidos.add(m);
+                }
+            } catch (RuntimeException e) {
+                fallidos.incrementAndGet();
+                m.resultado.completeExceptionally(e);
+            }
+        }
+        if (!filas.isEmpty()) {
+            insertar(filas, incluidos);
+        }
+        // Después de los INSERT: una transcripción puede referirse a un mensaje de este mismo lote
+        if (!actualizaciones.isEmpty()) {
+            RuntimeException[] errores = ejecutarLote(TRANSCRIPCION_SQL, actualizaciones, new int[]{Types.LONGVARCHAR, Types.VARCHAR});
+            for (int i = 0; i < errores.length; i++) {
+                if (errores[i] == null) {
+                    transcripciones.incrementAndGet();
+                } else {
+                    System.err.println("❌ Error guardando la transcripción de " + actualizaciones.get(i)[1] + ": " + errores[i].getMessage());
+                }
+            }
+        }
+    }
+
+    private void insertar(List<Object[]> filas, List<MensajePendiente> incluidos) {
+        int[] tipos = {Types.BIGINT, Types.BIGINT, Types.BIGINT, Types.LONGVARCHAR, Types.VARCHAR, Types.TIMESTAMP, Types.VARCHAR};
+        RuntimeException[] errores = ejecutarLote(INSERT_SQL, filas, tipos);
+        long ok = Arrays.stream(errores).filter(Objects::isNull).count();
+        if (ok > 0) {
+            lotes.incrementAndGet();
+            guardados.addAndGet(ok);
+            System.out.println("💾 Lote de " + ok + " mensajes guardado en DB.");
+        }
+        for (int i = 0; i < errores.length; i++) {
+            MensajePendiente m = incluidos.get(i);
+            if (errores[i] == null) {
+                m.resultado.complete(true);
+            } else {
+                fallidos.incrementAndGet();
+                System.err.println("❌ Error guardando mensaje de " + m.emisor + " para " + m.receptor + ": " + errores[i].getMessage());
+                m.resultado.completeExceptionally(errores[i]);
+            }
+        }
+    }
+
+    /**
+     * Ejecuta las filas como un lote en una transacción. En modo async nadie espera el resultado,
+     * así que una fila mala no puede tumbar al resto: si el lote falla se reintenta una vez
+     * (puede ser un fallo pasajero de la conexión) y después se ejecutan las filas de una en una.
+     * Devuelve el error de cada fila (null = guardada).
+     */
+    private RuntimeException[] ejecutarLote(String sql, List<Object[]> filas, int[] tipos) {
+        RuntimeException[] errores = new RuntimeException[filas.size()];
+        RuntimeException error = null;
+        for (int intento = 0; intento < 2; intento++) {
+            try {
+                transactionTemplate.executeWithoutResult(status -> jdbcTemplate.batchUpdate(sql, filas, tipos));
+                return errores;
+            } catch (RuntimeException e) {
+                error = e;
+            }
+        }
+        lotesFallidos.incrementAndGet();
+        System.err.println("⚠️ Lote de " + filas.size() + " filas rechazado (" + error.getMessage() + "), se guardan de una en una");
+        for (int i = 0; i < filas.size(); i++) {
+            try {
+                jdbcTemplate.update(sql, filas.get(i), tipos);
+            } catch (RuntimeException e) {
+                errores[i] = e;
+            }
+        }
+        return errores;
+    }
+
+    /**
+     * Resuelve los IDs y arma la fila del INSERT; null si el receptor no existe localmente
+     */
+    private Object[] aFila(MensajePendiente m) {
+        Long emisorId = idUsuario(m.emisor);
+        if (emisorId == null) {
+            throw new IllegalStateException("El emisor del mensaje no existe.");
+        }
+        Long receptorUsuarioId = null;
+        Long receptorCanalId = null;
+        String conversacionPrivada = null;
+        if (m.receptor.startsWith("#")) {
+            receptorCanalId = idCanal(m.receptor);
+            if (receptorCanalId == null) {
+                System.out.println("⚠️ Canal remoto detectado, mensaje no guardado en BD local: " + m.receptor);
+                return null;
+            }
+        } else {
+            receptorUsuarioId = idUsuario(m.receptor);
+            if (receptorUsuarioId == null) {
+                System.out.println("⚠️ Usuario remoto detectado, mensaje no guardado en BD local: " + m.receptor);
+                return null;
+            }
+            conversacionPrivada = Mensaje.clavePrivada(emisorId, receptorUsuarioId);
+        }
+        return new Object[]{emisorId, receptorUsuarioId, receptorCanalId, m.contenidoTexto, m.rutaAudio,
+                Timestamp.valueOf(m.timestamp), conversacionPrivada};
+    }
+
+    private Long idUsuario(String nombreUsuario) {
+        Long id = idsUsuario.get(nombreUsuario);
+        if (id == null) {
+            // No se cachean los ausentes: un usuario remoto puede registrarse localmente después
+            List<Long> ids = jdbcTemplate.queryForList("SELECT id FROM usuarios WHERE nombre_usuario = ?", Long.class, nombreUsuario);
+            if (ids.isEmpty()) {
+                return null;
+            }
+            id = ids.get(0);
+            idsUsuario.put(nombreUsuario, id);
+        }
+        return id;
+    }
+
+    private Long idCanal(String nombreCanal) {
+        Long id = idsCanal.get(nombreCanal);
+        if (id == null) {
+            List<Long> ids = jdbcTemplate.queryForList("SELECT id FROM canales WHERE nombre_canal = ?", Long.class, nombreCanal);
+            if (ids.isEmpty()) {
+                return null;
+            }
+            id = ids.get(0);
+            idsCanal.put(nombreCanal, id);
+        }
+        return id;
+    }
+
+    /**
+     * Migración de datos: completa conversacion_privada en los mensajes antiguos.
+     * Se hace por tramos para no bloquear la tabla con una única transacción enorme.
+     */
+    @EventListener(ApplicationReadyEvent.class)
+    public void completarClavesPrivadas() {
+        long total = 0;
+        int actualizados;
+        do {
+            actualizados = jdbcTemplate.update(COMPLETAR_CLAVES_SQL);
+            total += actualizados;
+        } while (actualizados > 0);
+        if (total > 0) {
+            System.out.println("💾 Clave de conversación completada en " + total + " mensajes privados");
+        }
+    }
+
+    /**
+     * Deja de aceptar mensajes en la cola y espera a que el writer guarde los pendientes.
+     * No se interrumpe al writer: cortaría un batchUpdate a medias y ese lote se perdería.
+     * La marca FIN (o el vencimiento de su espera) le avisa y termina cuando vacía la cola.
+     */
+    @PreDestroy
+    public void shutdown() {
+        aceptando = false;
+        cola.offer(FIN); // Si la cola está llena no hace falta: el writer no está esperando
+        try {
+            writer.join(TimeUnit.SECONDS.toMillis(10));
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        if (!writer.isAlive()) {
+            // Lo que se encoló justo antes de cerrar la cola, cuando el writer ya había salido
+            List<Object> resto = new ArrayList<>();
+            cola.drainTo(resto);
+            if (resto.stream().anyMatch(p -> p != FIN)) {
+                flush(resto);
+            }
+        }
+        cola.remove(FIN);
+        if (!cola.isEmpty()) {
+            System.err.println("⚠️ Quedaron " + cola.size() + " mensajes sin guardar al apagar el servidor");
+        } else {
+            System.out.println("💾 Cola de mensajes vaciada antes del apagado");
+        }
+    }
+
+    /**
+     * Métricas para la API REST
+     */
+    public Map<String, Object> getMetrics() {
+        Map<String, Object> metrics = new LinkedHashMap<>();
+        metrics.put("queued", cola.size());
+        metrics.put("queueCapacity", queueCapacity);
+        metrics.put("saved", guardados.get());
+        metrics.put("batches", lotes.get());
+        metrics.put("averageBatchSize", lotes.get() == 0 ? 0.0 : (double) guardados.get() / lotes.get());
+        metrics.put("skippedRemote", omitidos.get());
+        metrics.put("failed", fallidos.get());
+        metrics.put("batchesSplit", lotesFallidos.get());
+        metrics.put("transcriptionsUpdated", transcripciones.get());
+        return metrics;
+    }
+}
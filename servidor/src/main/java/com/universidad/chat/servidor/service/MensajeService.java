@@ -1,6 +1,7 @@
 package com.universidad.chat.servidor.service;
 
 import com.universidad.chat.comun.dto.MessageDTO;
+import com.universidad.chat.comun.dto.MessageHistoryDTO;
 import com.universidad.chat.servidor.model.Canal;
 import com.universidad.chat.servidor.model.Mensaje;
 import com.universidad.chat.servidor.model.Usuario;
@@ -8,10 +9,17 @@ import com.universidad.chat.servidor.repository.CanalRepository;
 import com.universidad.chat.servidor.repository.MensajeRepository;
 import com.universidad.chat.servidor.repository.UsuarioRepository;
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.data.domain.PageRequest;
 import org.springframework.stereotype.Service;
-import org.springframework.transaction.annotation.Transactional;
 
 import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletionException;
 import java.util.Base64; // <-- Importar Base64
 
 @Service
@@ -25,85 +33,144 @@ public class MensajeService {
     private CanalRepository canalRepository;
     @Autowired
     private TranscriptionService transcriptionService; // Necesario para la transcripción
+    @Autowired
+    private MensajeBatchWriter mensajeBatchWriter;
 
-    @Transactional
-    public void guardarMensaje(MessageDTO messageDTO) {
-        Usuario emisor = usuarioRepository.findByNombreUsuario(messageDTO.getSender())
-                .orElseThrow(() -> new IllegalStateException("El emisor del mensaje no existe."));
+    // "async" = no esperar a la BD al enviar, "sync" = esperar a que el lote se confirme
+    @Value("${chat.server.persistence.mode:async}")
+    private String persistenceMode;
 
-        Mensaje nuevoMensaje = new Mensaje();
-        nuevoMensaje.setEmisor(emisor);
-        nuevoMensaje.setTimestamp(LocalDateTime.now());
+    // Mensajes por conversación en el login y en cada página pedida después
+    @Value("${chat.server.history.page-size:50}")
+    private int historyPageSize;
 
+    /**
+     * Guarda el mensaje a través de la cola de escritura por lotes ({@link MensajeBatchWriter}).
+     * En modo "async" vuelve en cuanto el mensaje está encolado; en modo "sync" espera a que
+     * su lote se confirme en la BD (y propaga el error si el emisor no existe).
+     */
+    public void guardarMensaje(MessageDTO messageDTO) {
+        String contenido;
+        String rutaAudio;
         if (messageDTO.isAudioMessage()) {
             // Es un mensaje de audio
             // 1. Guardamos la RUTA/NOMBRE del archivo (que viene en audioFileName)
-            nuevoMensaje.setRutaAudio(messageDTO.getAudioFileName());
+            rutaAudio = messageDTO.getAudioFileName();
 
-            // 2. Obtenemos la TRANSCRIPCIÓN SIMULADA (que ya está en content)
+            // 2. Obtenemos la TRANSCRIPCIÓN (que ya está en content)
             //    No necesitamos llamar a transcriptionService aquí, ClientHandler ya lo hizo.
-            nuevoMensaje.setContenidoTexto(messageDTO.getContent());
-
+            contenido = messageDTO.getContent();
         } else {
             // Es un mensaje de texto normal
-            nuevoMensaje.setContenidoTexto(messageDTO.getContent());
-            nuevoMensaje.setRutaAudio(null); // Aseguramos que la ruta de audio sea nula
+            contenido = messageDTO.getContent();
+            rutaAudio = null; // Aseguramos que la ruta de audio sea nula
         }
 
-        // Lógica para asignar receptor (usuario o canal)
-        if (messageDTO.getRecipient().startsWith("#")) {
-            // Es un canal
-            Canal canalReceptor = canalRepository.findByNombreCanal(messageDTO.getRecipient()).orElse(null);
-            if (canalReceptor != null) {
-                nuevoMensaje.setReceptorCanal(canalReceptor);
-            } else {
-                // El canal no existe localmente (es un canal remoto)
-                System.out.println("⚠️ Canal remoto detectado, mensaje no guardado en BD local: " + messageDTO.getRecipient());
-                return; // Salir sin guardar
+        // El timestamp se fija al recibir el mensaje, no cuando se escribe el lote
+        MensajeBatchWriter.MensajePendiente pendiente = new MensajeBatchWriter.MensajePendiente(
+                messageDTO.getSender(), messageDTO.getRecipient(), contenido, rutaAudio, LocalDateTime.now());
+        try {
+            mensajeBatchWriter.encolar(pendiente);
+            if ("sync".equalsIgnoreCase(persistenceMode)) {
+                pendiente.getResultado().join();
             }
-        } else {
-            // Es un usuario
-            Usuario usuarioReceptor = usuarioRepository.findByNombreUsuario(messageDTO.getRecipient()).orElse(null);
-            if (usuarioReceptor != null) {
-                nuevoMensaje.setReceptorUsuario(usuarioReceptor);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            System.err.println("⚠️ Interrumpido mientras se encolaba el mensaje de " + messageDTO.getSender());
+        } catch (CompletionException e) {
+            if (e.getCause() instanceof RuntimeException cause) {
+                throw cause;
+            }
+            throw e;
+        }
+    }
+
+    /**
+     * Sustituye el marcador de transcripción en curso por el texto final del audio
+     */
+    public void actualizarTranscripcion(String rutaAudio, String texto) {
+        try {
+            mensajeBatchWriter.encolarTranscripcion(rutaAudio, texto);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            System.err.println("⚠️ Interrumpido mientras se encolaba la transcripción de " + rutaAudio);
+        }
+    }
+
+    /**
+     * Historial para el login: los últimos mensajes de cada conversación del usuario
+     * (privadas y canales) con una sola consulta, sin importar el tamaño de la BD.
+     */
+    public List<MessageHistoryDTO> obtenerHistorialInicial(String username) {
+        Usuario usuario = usuarioRepository.findByNombreUsuario(username).orElse(null);
+        if (usuario == null) {
+            return Collections.emptyList();
+        }
+
+        // Se pide uno más por conversación para saber si quedan mensajes anteriores
+        List<Mensaje> mensajes = mensajeRepository.findUltimosPorConversacion(usuario.getId(), historyPageSize + 1);
+        Map<String, List<Mensaje>> porConversacion = new LinkedHashMap<>();
+        for (Mensaje m : mensajes) {
+            String chatId;
+            if (m.getReceptorCanal() != null) {
+                chatId = m.getReceptorCanal().getNombreCanal();
+            } else if (m.getEmisor().getId().equals(usuario.getId())) {
+                chatId = m.getReceptorUsuario().getNombreUsuario();
             } else {
-                // El usuario no existe localmente (es usuario remoto)
-                System.out.println("⚠️ Usuario remoto detectado, mensaje no guardado en BD local: " + messageDTO.getRecipient());
-                return; // Salir sin guardar
+                chatId = m.getEmisor().getNombreUsuario();
             }
+            if (chatId.equals(username)) continue; // Saltear mensajes a sí mismo
+            porConversacion.computeIfAbsent(chatId, k -> new ArrayList<>()).add(m);
         }
 
-        mensajeRepository.save(nuevoMensaje);
-        System.out.println("Log de mensaje (con transcripción si es audio) guardado en DB.");
+        List<MessageHistoryDTO> historial = new ArrayList<>(porConversacion.size());
+        porConversacion.forEach((chatId, lista) -> historial.add(crearPagina(chatId, lista, null)));
+        return historial;
     }
-    
+
     /**
-     * Obtiene el historial de mensajes entre el usuario actual y otro usuario
+     * Página de historial anterior al cursor para una conversación (usuario o #canal).
+     * Un cursor null pide la página más reciente.
      */
-    public java.util.List<MessageDTO> obtenerHistorialPrivado(String username1, String username2) {
-        Usuario usuario1 = usuarioRepository.findByNombreUsuario(username1).orElse(null);
-        Usuario usuario2 = usuarioRepository.findByNombreUsuario(username2).orElse(null);
-        
-        if (usuario1 == null || usuario2 == null) {
-            return java.util.Collections.emptyList();
+    public MessageHistoryDTO obtenerPaginaHistorial(String username, String chatId, Long cursor) {
+        PageRequest pagina = PageRequest.of(0, historyPageSize + 1);
+        long antesDe = cursor != null ? cursor : Long.MAX_VALUE;
+        List<Mensaje> mensajes;
+
+        if (chatId.startsWith("#")) {
+            Canal canal = canalRepository.findByNombreCanal(chatId).orElse(null);
+            // Solo los miembros pueden leer el historial de un canal
+            if (canal == null || canal.getMiembros().stream().noneMatch(u -> u.getNombreUsuario().equals(username))) {
+                return new MessageHistoryDTO(chatId, Collections.emptyList(), null, cursor);
+            }
+            mensajes = mensajeRepository.findMessagesByCanalBefore(canal, antesDe, pagina);
+        } else {
+            Usuario usuario1 = usuarioRepository.findByNombreUsuario(username).orElse(null);
+            Usuario usuario2 = usuarioRepository.findByNombreUsuario(chatId).orElse(null);
+            if (usuario1 == null || usuario2 == null) {
+                return new MessageHistoryDTO(chatId, Collections.emptyList(), null, cursor);
+            }
+            String clave = Mensaje.clavePrivada(usuario1.getId(), usuario2.getId());
+            mensajes = mensajeRepository.findMessagesByConversacionBefore(clave, antesDe, pagina);
         }
-        
-        java.util.List<Mensaje> mensajes = mensajeRepository.findMessagesBetweenUsers(usuario1, usuario2);
-        return convertirAMessageDTO(mensajes);
+
+        // La consulta devuelve del más reciente al más antiguo; el cliente los muestra en orden
+        List<Mensaje> ascendentes = new ArrayList<>(mensajes);
+        Collections.reverse(ascendentes);
+        return crearPagina(chatId, ascendentes, cursor);
     }
-    
+
     /**
-     * Obtiene el historial de mensajes de un canal
+     * Arma la página a partir de hasta historyPageSize + 1 mensajes en orden ascendente:
+     * si sobra uno, hay mensajes más antiguos y el cursor apunta al primero enviado.
      */
-    public java.util.List<MessageDTO> obtenerHistorialCanal(String nombreCanal) {
-        Canal canal = canalRepository.findByNombreCanal(nombreCanal).orElse(null);
-        
-        if (canal == null) {
-            return java.util.Collections.emptyList();
+    private MessageHistoryDTO crearPagina(String chatId, List<Mensaje> ascendentes, Long beforeCursor) {
+        Long nextCursor = null;
+        if (ascendentes.size() > historyPageSize) {
+            ascendentes = ascendentes.subList(ascendentes.size() - historyPageSize, ascendentes.size());
+            nextCursor = ascendentes.get(0).getId();
         }
-        
-        java.util.List<Mensaje> mensajes = mensajeRepository.findMessagesByCanal(canal);
-        return convertirAMessageDTO(mensajes);
+        return new MessageHistoryDTO(chatId, convertirAMessageDTO(ascendentes), nextCursor, beforeCursor);
     }
     
     /**
@@ -1,31 +1,180 @@
 package com.universidad.chat.servidor.service;
 
+import com.universidad.chat.comun.dto.MessageDTO;
+import org.springframework.beans.factory.annotation.Value;
 import org.springframework.stereotype.Service;
 import org.vosk.Model;
 import org.vosk.Recognizer;
 import jakarta.annotation.PostConstruct;
+import jakarta.annotation.PreDestroy;
 
 import javax.sound.sampled.AudioInputStream;
 import javax.sound.sampled.AudioSystem;
 
+import java.io.BufferedInputStream;
 import java.io.ByteArrayInputStream;
-import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayDeque;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Consumer;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
 
+/**
+ * Transcripción de audios con Vosk.
+ *
+ * Las transcripciones se ejecutan como trabajos en un pool de hilos de plataforma con una
+ * cola acotada: el hilo del cliente no espera a Vosk, el mensaje se entrega con el marcador
+ * MessageDTO.TRANSCRIPCION_EN_CURSO y el texto llega después (TRANSCRIPTION_READY).
+ * Si la cola está llena el trabajo se rechaza en el acto (control de admisión) en lugar de
+ * acumular audios que tardarían minutos en transcribirse.
+ *
+ * Los audios subidos por partes se reconocen mientras llegan (TranscripcionIncremental):
+ * al confirmar la subida solo queda por decodificar el último trozo.
+ *
+ * Los Recognizer de Vosk (memoria nativa) se reutilizan desde un pool precalentado y se
+ * reinician entre usos; nunca hay más de chat.server.transcription.recognizers vivos. El modelo se carga al arrancar (eager) o con el primer audio (lazy);
+ * getHealth() indica si falta.
+ */
 
 @Service
 public class TranscriptionService {
 
-    private Model model;
+    public static final String SERVIDOR_OCUPADO = "[Transcripción no disponible: servidor ocupado]";
+
+    private static final int SAMPLE_RATE = 16000;
+    // Una cabecera WAV sin el chunk "data" en los primeros 64 KiB no es un WAV que sepamos leer
+    private static final int MAX_CABECERA_WAV = 64 * 1024;
+
+    public enum EstadoModelo { NO_CARGADO, CARGANDO, LISTO, NO_ENCONTRADO, ERROR }
+
+    private volatile Model model;
+    private volatile EstadoModelo estadoModelo = EstadoModelo.NO_CARGADO;
+    private volatile String rutaModelo;
+
+    // "eager" = cargar el modelo al arrancar, "lazy" = con el primer audio a transcribir
+    @Value("${chat.server.transcription.model-loading:eager}")
+    private String modelLoading;
+
+    // Carpeta del modelo; vacío = buscar vosk-model-small-es-0.42 en las rutas habituales
+    @Value("${chat.server.transcription.model-path:}")
+    private String modelPath;
+
+    // Máximo de recognizers (memoria nativa) vivos a la vez (0 = uno por worker)
+    @Value("${chat.server.transcription.recognizers:0}")
+    private int recognizers;
+
+    // Tiempo que un audio completo espera a que quede un recognizer libre antes de rechazarse
+    @Value("${chat.server.transcription.recognizer-wait-ms:5000}")
+    private long recognizerWaitMs;
+
+    private ArrayBlockingQueue<Recognizer> recognizersLibres;
+    private int maxRecognizers;
+    private final AtomicInteger recognizersVivos = new AtomicInteger();
+
+    // 0 = un worker por núcleo
+    @Value("${chat.server.transcription.workers:0}")
+    private int workers;
+
+    // 0 = tantos trabajos en espera como workers
+    @Value("${chat.server.transcription.queue-capacity:0}")
+    private int queueCapacity;
+
+    // Vosk es código nativo (JNI): ejecutado en un hilo virtual anclaría su hilo portador
+    // durante toda la transcripción. Se delega a hilos de plataforma.
+    private ThreadPoolExecutor voskExecutor;
+
+    // Envía a los listeners los resultados parciales del reconocimiento incremental
+    @Value("${chat.server.transcription.partial-results:false}")
+    private boolean partialResults;
+
+    // Una subida que no envía trozos en este tiempo devuelve su recognizer al pool
+    @Value("${chat.server.transcription.streaming-idle-ms:2000}")
+    private long streamingIdleMs;
+
+    // --- Métricas ---
+    private final AtomicLong aceptados = new AtomicLong();
+    private final AtomicLong rechazados = new AtomicLong();
+    private final AtomicLong completados = new AtomicLong();
+    private final AtomicLong tiempoTotalMs = new AtomicLong();
+    private final AtomicLong incrementales = new AtomicLong();
+    private final AtomicLong incrementalesCompletadas = new AtomicLong();
+    private final AtomicLong incrementalesDescartadas = new AtomicLong();
+    private final AtomicLong incrementalesPausadas = new AtomicLong();
+    private final AtomicLong recognizersCreados = new AtomicLong();
+    private final AtomicLong recognizersReutilizados = new AtomicLong();
+    private final AtomicLong esperasAgotadas = new AtomicLong();
 
-    // Este método se ejecuta cuando Spring crea el servicio
     @PostConstruct
-    public void loadModel() {
+    public void init() {
+        startWorkers();
+        if ("lazy".equalsIgnoreCase(modelLoading.trim())) {
+            System.out.println("🎙️ Modelo de Vosk: carga diferida hasta el primer audio");
+        } else {
+            modelo();
+        }
+    }
+
+    private void startWorkers() {
+        int poolSize = workers > 0 ? workers : Runtime.getRuntime().availableProcessors();
+        int capacity = queueCapacity > 0 ? queueCapacity : poolSize;
+        voskExecutor = new ThreadPoolExecutor(poolSize, poolSize, 0L, TimeUnit.MILLISECONDS,
+                new ArrayBlockingQueue<>(capacity),
+                Thread.ofPlatform().name("vosk-", 1).daemon(true).factory(),
+                new ThreadPoolExecutor.AbortPolicy());
+        maxRecognizers = recognizers > 0 ? recognizers : poolSize;
+        recognizersLibres = new ArrayBlockingQueue<>(maxRecognizers);
+        System.out.println("🎙️ Pool de transcripción: " + poolSize + " workers, hasta " + capacity + " audios en espera");
+    }
+
+    /**
+     * El modelo, cargándolo si aún no se hizo. Un modelo que no se encontró o no se pudo
+     * cargar no se reintenta hasta reiniciar el servidor.
+     * @return null si no hay modelo
+     */
+    private Model modelo() {
+        Model m = model;
+        if (m != null || !modeloUtilizable()) {
+            return m;
+        }
+        synchronized (this) {
+            if (model == null && modeloUtilizable()) {
+                estadoModelo = EstadoModelo.CARGANDO;
+                model = loadModel();
+                if (model != null) {
+                    precalentarRecognizers();
+                }
+            }
+            return model;
+        }
+    }
+
+    /**
+     * false si el modelo falta o falló al cargar: no tiene sentido encolar trabajos
+     */
+    private boolean modeloUtilizable() {
+        return estadoModelo != EstadoModelo.NO_ENCONTRADO && estadoModelo != EstadoModelo.ERROR;
+    }
+
+    private Model loadModel() {
         String modelName = "vosk-model-small-es-0.42";
         
-        // Intentar múltiples rutas posibles
-        String[] possiblePaths = {
+        // Intentar múltiples rutas posibles (o solo la configurada)
+        String[] possiblePaths = !modelPath.isBlank() ? new String[]{modelPath.trim()} : new String[]{
             modelName,                                           // Ruta relativa desde directorio de ejecución
             "servidor/" + modelName,                            // Ruta desde raíz del proyecto
             "../" + modelName,                                  // Un nivel arriba (cuando se ejecuta desde target)
@@ -52,15 +201,106 @@ public class TranscriptionService {
             for (String path : possiblePaths) {
                 System.err.println("!!!   - " + new File(path).getAbsolutePath());
             }
-            return;
+            estadoModelo = EstadoModelo.NO_ENCONTRADO;
+            return null;
         }
         
         try {
-            model = new Model(modelDir.getAbsolutePath());
-            System.out.println(">>> Modelo de Vosk cargado exitosamente desde: " + modelDir.getAbsolutePath() + " <<<");
+            long inicio = System.currentTimeMillis();
+            Model loaded = new Model(modelDir.getAbsolutePath());
+            rutaModelo = modelDir.getAbsolutePath();
+            estadoModelo = EstadoModelo.LISTO;
+            System.out.println(">>> Modelo de Vosk cargado exitosamente desde: " + modelDir.getAbsolutePath()
+                    + " en " + (System.currentTimeMillis() - inicio) + " ms <<<");
+            return loaded;
         } catch (IOException e) {
             System.err.println("!!! ERROR FATAL: No se pudo cargar el modelo de Vosk desde: " + modelDir.getAbsolutePath());
             e.printStackTrace();
+            estadoModelo = EstadoModelo.ERROR;
+            return null;
+        }
+    }
+
+    // ==================== POOL DE RECOGNIZERS ====================
+
+    /**
+     * Crea los recognizers del pool de antemano para que el primer audio no pague la reserva nativa
+     */
+    private void precalentarRecognizers() {
+        try {
+            Recognizer recognizer;
+            while ((recognizer = crearSiCabe(model)) != null) {
+                recognizersLibres.add(recognizer);
+            }
+            System.out.println("🎙️ " + recognizersLibres.size() + " recognizers de Vosk precalentados");
+        } catch (IOException e) {
+            System.err.println("⚠️ No se pudieron precalentar los recognizers de Vosk: " + e.getMessage());
+        }
+    }
+
+    /**
+     * Un recognizer libre del pool, o uno nuevo si aún no se llegó al máximo
+     * @return null si están todos en uso
+     */
+    private Recognizer intentarTomarRecognizer() throws IOException {
+        Model m = modelo();
+        if (m == null) {
+            throw new IllegalStateException("Modelo de Vosk no disponible");
+        }
+        Recognizer recognizer = recognizersLibres.poll();
+        if (recognizer != null) {
+            recognizersReutilizados.incrementAndGet();
+            return recognizer;
+        }
+        return crearSiCabe(m);
+    }
+
+    /**
+     * Como intentarTomarRecognizer, pero si están todos en uso espera hasta recognizer-wait-ms
+     * @return null si no quedó ninguno libre a tiempo
+     */
+    private Recognizer tomarRecognizer() throws IOException, InterruptedException {
+        Recognizer recognizer = intentarTomarRecognizer();
+        if (recognizer == null) {
+            recognizer = recognizersLibres.poll(recognizerWaitMs, TimeUnit.MILLISECONDS);
+            if (recognizer == null) {
+                esperasAgotadas.incrementAndGet();
+                return null;
+            }
+            recognizersReutilizados.incrementAndGet();
+        }
+        return recognizer;
+    }
+
+    /**
+     * Crea un recognizer si no se supera el máximo (el pool limita la memoria nativa)
+     */
+    private Recognizer crearSiCabe(Model m) throws IOException {
+        int vivos;
+        do {
+            vivos = recognizersVivos.get();
+            if (vivos >= maxRecognizers) {
+                return null;
+            }
+        } while (!recognizersVivos.compareAndSet(vivos, vivos + 1));
+        try {
+            Recognizer recognizer = new Recognizer(m, SAMPLE_RATE);
+            recognizersCreados.incrementAndGet();
+            return recognizer;
+        } catch (IOException | RuntimeException e) {
+            recognizersVivos.decrementAndGet();
+            throw e;
+        }
+    }
+
+    /**
+     * Reinicia el recognizer y lo devuelve al pool (siempre cabe: nunca hay más que maxRecognizers)
+     */
+    private void devolverRecognizer(Recognizer recognizer) {
+        recognizer.reset();
+        if (!recognizersLibres.offer(recognizer)) {
+            recognizersVivos.decrementAndGet();
+            recognizer.close();
         }
     }
 
@@ -70,30 +310,508 @@ public class TranscriptionService {
      * @return El texto transcribo.
      */
     public String transcribeAudio(byte[] wavAudioData) {
-        if (model == null) return "[Error: Modelo no cargado]";
+        return transcribe(() -> AudioSystem.getAudioInputStream(new ByteArrayInputStream(wavAudioData)));
+    }
+
+    /**
+     * Transcribe un archivo WAV leyéndolo por bloques, sin cargarlo entero en memoria.
+     */
+    public String transcribeAudio(Path wavFile) {
+        return transcribe(() -> AudioSystem.getAudioInputStream(new BufferedInputStream(Files.newInputStream(wavFile))));
+    }
+
+    /**
+     * Encola la transcripción de un archivo WAV y vuelve enseguida.
+     * El future nunca falla: si no se pudo transcribir se completa con un texto de error,
+     * y si la cola está llena se completa en el acto con SERVIDOR_OCUPADO.
+     */
+    public CompletableFuture<String> transcribirAsync(Path wavFile) {
+        if (!modeloUtilizable()) return CompletableFuture.completedFuture("[Error: Modelo no cargado]");
+
+        long encolado = System.currentTimeMillis();
+        try {
+            CompletableFuture<String> future = CompletableFuture.supplyAsync(() -> {
+                String text = recognize(() -> AudioSystem.getAudioInputStream(new BufferedInputStream(Files.newInputStream(wavFile))));
+                completados.incrementAndGet();
+                tiempoTotalMs.addAndGet(System.currentTimeMillis() - encolado);
+                return text;
+            }, voskExecutor);
+            aceptados.incrementAndGet();
+            return future;
+        } catch (RejectedExecutionException e) {
+            rechazados.incrementAndGet();
+            System.err.println("⚠️ Cola de transcripción llena, audio sin transcribir: " + wavFile.getFileName());
+            return CompletableFuture.completedFuture(SERVIDOR_OCUPADO);
+        }
+    }
+
+    /**
+     * Texto que se muestra mientras la transcripción sigue en curso
+     */
+    public static String textoProvisional(CompletableFuture<String> transcripcion) {
+        return transcripcion.isDone() ? transcripcion.join() : MessageDTO.TRANSCRIPCION_EN_CURSO;
+    }
+
+    public boolean isPartialResultsEnabled() {
+        return partialResults;
+    }
+
+    /**
+     * Empieza a reconocer un WAV que llegará por trozos.
+     * @param parciales recibe el texto reconocido hasta el momento (null = sin parciales)
+     * @return null si no hay modelo disponible
+     */
+    public TranscripcionIncremental iniciarIncremental(Consumer<String> parciales) {
+        if (!modeloUtilizable()) return null;
+        incrementales.incrementAndGet();
+        return new TranscripcionIncremental(partialResults ? parciales : null);
+    }
+
+    /**
+     * Reconocimiento de un WAV mientras se sube. Los trozos se pasan a Vosk en orden en los
+     * hilos del pool, nunca dos a la vez para la misma transcripción: solo hay un trabajo en
+     * la cola por transcripción, que vacía los trozos pendientes y termina.
+     *
+     * El recognizer solo se toma si hay uno libre en el pool y se devuelve cuando la subida
+     * pasa streaming-idle-ms sin trozos nuevos (lo reconocido hasta ahí se cierra como frase).
+     *
+     * Si no se puede seguir (formato no soportado, pool saturado, ningún recognizer libre,
+     * error de Vosk) el resultado se completa con excepción y el llamador transcribe el
+     * archivo completo.
+     */
+    public final class TranscripcionIncremental {
 
-        try (Recognizer recognizer = new Recognizer(model, 16000)) {
-            AudioInputStream ais = AudioSystem.getAudioInputStream(new ByteArrayInputStream(wavAudioData));
+        private final Consumer<String> parciales;
+        private final ReentrantLock lock = new ReentrantLock();
+        private final ArrayDeque<byte[]> pendientes = new ArrayDeque<>();
+        private final CompletableFuture<String> resultado = new CompletableFuture<>();
+        private final long inicio = System.currentTimeMillis();
+        // Estado del hilo que reconoce (solo lo toca el trabajo en curso)
+        private final StringBuilder texto = new StringBuilder();
+        private Recognizer recognizer;
+        private byte[] cabecera = new byte[0];
+        private boolean enDatos;
+        private int byteSuelto = -1; // Mitad de una muestra de 16 bits partida entre dos trozos
+        private String ultimoParcial = "";
+        // Protegido por lock
+        private boolean programada;
+        private boolean terminada;
+        private boolean valida = true;
+        private long trozos; // Trozos recibidos: si no cambia durante la espera, la subida está inactiva
 
-            ByteArrayOutputStream baos = new ByteArrayOutputStream();
+        private TranscripcionIncremental(Consumer<String> parciales) {
+            this.parciales = parciales;
+        }
+
+        /**
+         * Añade el siguiente trozo del archivo (en orden, sin huecos)
+         */
+        public void alimentar(byte[] data) {
+            lock.lock();
+            try {
+                if (!valida || terminada) return;
+                pendientes.add(data);
+                trozos++;
+                programar();
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        /**
+         * Marca el final del audio
+         * @return el texto completo; falla si hay que transcribir el archivo por otra vía
+         */
+        public CompletableFuture<String> terminar() {
+            lock.lock();
+            try {
+                if (valida && !terminada) {
+                    terminada = true;
+                    programar();
+                }
+            } finally {
+                lock.unlock();
+            }
+            return resultado;
+        }
+
+        /**
+         * Subida abandonada: libera el reconocedor sin producir resultado
+         */
+        public void cancelar() {
+            lock.lock();
+            try {
+                invalidar("subida cancelada");
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        // Con lock
+        private void programar() {
+            if (programada) return;
+            try {
+                voskExecutor.execute(this::reconocerPendientes);
+                programada = true;
+            } catch (RejectedExecutionException e) {
+                invalidar("pool de transcripción saturado");
+            }
+        }
+
+        // Con lock. La liberación corre en el pool común (hilos de plataforma): no en el de Vosk,
+        // cuyos workers pueden estar esperando justo este recognizer, ni en hilos virtuales,
+        // que la llamada nativa anclaría
+        private void programarLiberacion(long vistos) {
+            CompletableFuture.delayedExecutor(streamingIdleMs, TimeUnit.MILLISECONDS)
+                    .execute(() -> liberarSiInactiva(vistos));
+        }
+
+        private void liberarSiInactiva(long vistos) {
+            lock.lock();
+            try {
+                // Sin trabajo en curso nadie más toca el recognizer
+                if (!valida || programada || terminada || trozos != vistos || recognizer == null) return;
+                anadirFrase(recognizer.getFinalResult());
+                cerrarRecognizer();
+                incrementalesPausadas.incrementAndGet();
+            } catch (RuntimeException e) {
+                invalidar(e.getMessage());
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        // Con lock
+        private void invalidar(String motivo) {
+            if (!valida) return;
+            valida = false;
+            pendientes.clear();
+            incrementalesDescartadas.incrementAndGet();
+            resultado.completeExceptionally(new IllegalStateException(motivo));
+            if (!programada) {
+                cerrarRecognizer(); // Si hay un trabajo en curso lo cierra él al salir
+            }
+        }
+
+        private void reconocerPendientes() {
+            while (true) {
+                byte[] data;
+                lock.lock();
+                try {
+                    if (!valida) {
+                        programada = false;
+                        cerrarRecognizer();
+                        return;
+                    }
+                    data = pendientes.poll();
+                    if (data == null && !terminada) {
+                        programada = false;
+                        if (recognizer != null) {
+                            programarLiberacion(trozos);
+                        }
+                        return;
+                    }
+                } finally {
+                    lock.unlock();
+                }
+
+                try {
+                    if (data == null) {
+                        completar();
+                        return;
+                    }
+                    reconocer(data);
+                } catch (Exception e) {
+                    System.err.println("⚠️ Transcripción incremental descartada: " + e.getMessage());
+                    lock.lock();
+                    try {
+                        invalidar(e.getMessage());
+                        programada = false;
+                        cerrarRecognizer();
+                    } finally {
+                        lock.unlock();
+                    }
+                    return;
+                }
+            }
+        }
+
+        private void reconocer(byte[] data) throws IOException {
+            int desde = 0;
+            if (!enDatos) {
+                byte[] junto = new byte[cabecera.length + data.length];
+                System.arraycopy(cabecera, 0, junto, 0, cabecera.length);
+                System.arraycopy(data, 0, junto, cabecera.length, data.length);
+                int inicioDatos = inicioDatosWav(junto);
+                if (inicioDatos < 0) {
+                    cabecera = junto;
+                    return;
+                }
+                cabecera = null;
+                enDatos = true;
+                data = junto;
+                desde = inicioDatos;
+            }
+            if (recognizer == null) {
+                // Nunca espera: sin recognizer libre se transcribe el archivo completo al confirmar
+                recognizer = intentarTomarRecognizer();
+                if (recognizer == null) {
+                    throw new IllegalStateException("ningún recognizer libre");
+                }
+            }
+
+            // Vosk espera muestras completas de 16 bits
+            int length = data.length - desde;
+            byte[] pcm;
+            if (byteSuelto >= 0) {
+                pcm = new byte[length + 1];
+                pcm[0] = (byte) byteSuelto;
+                System.arraycopy(data, desde, pcm, 1, length);
+            } else if (desde > 0) {
+                pcm = new byte[length];
+                System.arraycopy(data, desde, pcm, 0, length);
+            } else {
+                pcm = data;
+            }
+            int pares = pcm.length & ~1;
+            byteSuelto = pares < pcm.length ? pcm[pcm.length - 1] & 0xFF : -1;
+            if (pares == 0) return;
+
+            if (recognizer.acceptWaveForm(pcm, pares)) {
+                // Fin de una frase: Vosk la descarta en la siguiente llamada si no se recoge ahora
+                anadirFrase(recognizer.getResult());
+            } else if (parciales != null) {
+                String parcial = (texto + " " + campoJson(recognizer.getPartialResult(), "partial")).trim();
+                if (!parcial.isEmpty() && !parcial.equals(ultimoParcial)) {
+                    ultimoParcial = parcial;
+                    parciales.accept(parcial);
+                }
+            }
+        }
+
+        private void completar() {
+            try {
+                if (!enDatos) {
+                    throw new IllegalStateException("el audio terminó antes de la cabecera WAV");
+                }
+                if (recognizer != null) { // null si se devolvió por inactividad y no llegó nada más
+                    anadirFrase(recognizer.getFinalResult());
+                }
+                incrementalesCompletadas.incrementAndGet();
+                completados.incrementAndGet();
+                tiempoTotalMs.addAndGet(System.currentTimeMillis() - inicio);
+                resultado.complete(texto.length() == 0 ? "[Transcripción vacía]" : texto.toString());
+            } catch (RuntimeException e) {
+                lock.lock();
+                try {
+                    invalidar(e.getMessage());
+                } finally {
+                    lock.unlock();
+                }
+            } finally {
+                lock.lock();
+                try {
+                    programada = false;
+                    cerrarRecognizer();
+                } finally {
+                    lock.unlock();
+                }
+            }
+        }
+
+        private void anadirFrase(String json) {
+            String frase = campoJson(json, "text");
+            if (!frase.isEmpty()) {
+                if (texto.length() > 0) texto.append(' ');
+                texto.append(frase);
+            }
+        }
+
+        private void cerrarRecognizer() {
+            if (recognizer != null) {
+                devolverRecognizer(recognizer);
+                recognizer = null;
+            }
+        }
+    }
+
+    /**
+     * Posición donde empiezan las muestras de un WAV PCM 16 kHz, 16 bits, mono.
+     * @return -1 si aún faltan bytes de la cabecera
+     * @throws IllegalStateException si no es un WAV con ese formato
+     */
+    static int inicioDatosWav(byte[] wav) {
+        if (wav.length < 12) return -1;
+        if (!"RIFF".equals(new String(wav, 0, 4, StandardCharsets.US_ASCII))
+                || !"WAVE".equals(new String(wav, 8, 4, StandardCharsets.US_ASCII))) {
+            throw new IllegalStateException("el audio no es un WAV");
+        }
+        boolean formatoLeido = false;
+        int pos = 12;
+        while (pos + 8 <= wav.length) {
+            String id = new String(wav, pos, 4, StandardCharsets.US_ASCII);
+            long size = leUInt(wav, pos + 4, 4);
+            if ("data".equals(id)) {
+                if (!formatoLeido) throw new IllegalStateException("WAV sin chunk fmt");
+                return pos + 8;
+            }
+            if (size > MAX_CABECERA_WAV) throw new IllegalStateException("chunk WAV '" + id + "' demasiado grande");
+            if ("fmt ".equals(id)) {
+                if (pos + 8 + 16 > wav.length) return -1;
+                boolean pcm16Mono = leUInt(wav, pos + 8, 2) == 1 && leUInt(wav, pos + 10, 2) == 1
+                        && leUInt(wav, pos + 12, 4) == SAMPLE_RATE && leUInt(wav, pos + 22, 2) == 16;
+                if (!pcm16Mono) throw new IllegalStateException("formato WAV no soportado (se espera PCM 16 kHz, 16 bits, mono)");
+                formatoLeido = true;
+            }
+            pos += 8 + size + (size & 1);
+        }
+        if (wav.length > MAX_CABECERA_WAV) throw new IllegalStateException("cabecera WAV demasiado larga");
+        return -1;
+    }
+
+    private static long leUInt(byte[] b, int pos, int bytes) {
+        long value = 0;
+        for (int i = bytes - 1; i >= 0; i--) {
+            value = (value << 8) | (b[pos + i] & 0xFF);
+        }
+        return value;
+    }
+
+    /**
+     * Extrae un campo de texto del JSON de Vosk ({"text" : "..."} o {"partial" : "..."})
+     */
+    private static String campoJson(String json, String campo) {
+        Matcher m = Pattern.compile("\"" + campo + "\"\\s*:\\s*\"(.*?)\"", Pattern.DOTALL).matcher(json);
+        return m.find() ? m.group(1).trim() : "";
+    }
+
+    private interface AudioSource {
+        AudioInputStream open() throws Exception;
+    }
+
+    private String transcribe(AudioSource source) {
+        if (!modeloUtilizable()) return "[Error: Modelo no cargado]";
+
+        try {
+            // El hilo que llama (posiblemente virtual) se desmonta mientras espera
+            return voskExecutor.submit(() -> recognize(source)).get();
+        } catch (RejectedExecutionException e) {
+            rechazados.incrementAndGet();
+            return SERVIDOR_OCUPADO;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return "[Error durante la transcripción]";
+        } catch (ExecutionException e) {
+            e.getCause().printStackTrace();
+            return "[Error durante la transcripción]";
+        }
+    }
+
+    private String recognize(AudioSource source) {
+        Recognizer recognizer;
+        try {
+            recognizer = tomarRecognizer();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return "[Error durante la transcripción]";
+        } catch (Exception e) {
+            System.err.println("❌ " + e.getMessage());
+            return "[Error: Modelo no cargado]";
+        }
+        if (recognizer == null) {
+            System.err.println("⚠️ Ningún recognizer de Vosk libre en " + recognizerWaitMs + " ms, audio sin transcribir");
+            return SERVIDOR_OCUPADO;
+        }
+        try (AudioInputStream ais = source.open()) {
+            // Vosk acepta el audio por bloques: no hace falta juntar todo el PCM en un array
+            StringBuilder text = new StringBuilder();
             byte[] buffer = new byte[4096];
             int bytesRead;
             while ((bytesRead = ais.read(buffer)) != -1) {
-                baos.write(buffer, 0, bytesRead);
+                if (recognizer.acceptWaveForm(buffer, bytesRead)) {
+                    // Fin de una frase: se recoge antes de que la siguiente la reemplace
+                    text.append(campoJson(recognizer.getResult(), "text")).append(' ');
+                }
             }
-            byte[] audioBytes = baos.toByteArray();
-
-            recognizer.acceptWaveForm(audioBytes, audioBytes.length);
             String json = recognizer.getFinalResult();
 
             System.out.println("JSON RESULTADO VOSK: " + json);
-            String text = json.replaceAll(".*\"text\"\\s*:\\s*\"(.*?)\".*", "$1");
-            return text.isEmpty() ? "[Transcripción vacía]" : text;
+            text.append(campoJson(json, "text"));
+            String result = text.toString().trim().replaceAll("\\s+", " ");
+            return result.isEmpty() ? "[Transcripción vacía]" : result;
         } catch (Exception e) {
             e.printStackTrace();
             return "[Error durante la transcripción]";
+        } finally {
+            devolverRecognizer(recognizer);
+        }
+    }
+
+    @PreDestroy
+    public void shutdown() {
+        voskExecutor.shutdownNow();
+        try {
+            // Vosk no atiende interrupciones: liberar la memoria nativa solo cuando nadie la usa
+            if (!voskExecutor.awaitTermination(5, TimeUnit.SECONDS)) {
+                return;
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return;
+        }
+        Recognizer recognizer;
+        while ((recognizer = recognizersLibres.poll()) != null) {
+            recognizer.close();
+        }
+        if (model != null) {
+            model.close();
         }
     }
 
+    /**
+     * Estado del modelo para el health check: la mensajería funciona sin él, pero los audios
+     * no se transcriben
+     */
+    public Map<String, Object> getHealth() {
+        Map<String, Object> health = new LinkedHashMap<>();
+        EstadoModelo estado = estadoModelo;
+        health.put("status", switch (estado) {
+            case LISTO -> "UP";
+            case NO_CARGADO, CARGANDO -> "NOT_LOADED";
+            case NO_ENCONTRADO, ERROR -> "DOWN";
+        });
+        health.put("model", estado.name());
+        health.put("modelLoading", modelLoading.trim().toLowerCase());
+        if (rutaModelo != null) {
+            health.put("modelPath", rutaModelo);
+        }
+        return health;
+    }
 
-}
\ No newline at end of file
+    /**
+     * Métricas para la API REST
+     */
+    public Map<String, Object> getMetrics() {
+        Map<String, Object> metrics = new LinkedHashMap<>();
+        metrics.put("model", estadoModelo.name());
+        metrics.put("workers", voskExecutor.getMaximumPoolSize());
+        metrics.put("active", voskExecutor.getActiveCount());
+        metrics.put("queued", voskExecutor.getQueue().size());
+        metrics.put("queueCapacity", voskExecutor.getQueue().size() + voskExecutor.getQueue().remainingCapacity());
+        metrics.put("accepted", aceptados.get());
+        metrics.put("rejected", rechazados.get());
+        metrics.put("completed", completados.get());
+        metrics.put("averageLatencyMs", completados.get() == 0 ? 0.0 : (double) tiempoTotalMs.get() / completados.get());
+        metrics.put("streamingStarted", incrementales.get());
+        metrics.put("streamingCompleted", incrementalesCompletadas.get());
+        metrics.put("streamingFallbacks", incrementalesDescartadas.get());
+        metrics.put("streamingIdleReleases", incrementalesPausadas.get());
+        metrics.put("recognizersIdle", recognizersLibres.size());
+        metrics.put("recognizersLive", recognizersVivos.get());
+        metrics.put("recognizersMax", maxRecognizers);
+        metrics.put("recognizerWaitTimeouts", esperasAgotadas.get());
+        metrics.put("recognizersCreated", recognizersCreados.get());
+        metrics.put("recognizersReused", recognizersReutilizados.get());
+        return metrics;
+    }
+}
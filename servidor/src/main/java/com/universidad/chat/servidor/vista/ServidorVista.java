@@ -448,6 +448,7 @@ public class ServidorVista extends JFrame implements PropertyChangeListener {
             if (confirm == JOptionPane.YES_OPTION) {
                 logMessage("Desconectando de servidor " + serverKey);
                 tcpServer.getServerRegistry().unregisterServer(serverKey);
+                tcpServer.getFederationOutbox().descartar(serverKey); // Desconexión a mano: no guardar nada para él
                 updateFederationTable();
                 txtServerIP.setText("");
                 txtServerPort.setText("5001");
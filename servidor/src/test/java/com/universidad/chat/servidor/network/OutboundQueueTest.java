@@ -0,0 +1,127 @@
+package com.universidad.chat.servidor.network;
+
+import com.universidad.chat.comun.dto.ActionType;
+import org.junit.jupiter.api.Test;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class OutboundQueueTest {
+
+    @Test
+    void saleEnOrdenYLlevaLaCuentaDeBytes() {
+        OutboundLimits limits = limits(10, 1000, "coalesce");
+        OutboundQueue<String> queue = new OutboundQueue<>(limits);
+        assertEquals(OutboundQueue.Result.QUEUED, queue.offer("a", 100, ActionType.NEW_MESSAGE));
+        assertEquals(OutboundQueue.Result.QUEUED, queue.offer("b", 200, ActionType.NEW_MESSAGE));
+        assertEquals(2L, limits.getMetrics().get("queuedMessages"));
+        assertEquals(300L, limits.getMetrics().get("queuedBytes"));
+
+        assertEquals("a", queue.poll());
+        assertEquals(200L, limits.getMetrics().get("queuedBytes"));
+        assertEquals("b", queue.poll());
+        assertNull(queue.poll());
+        assertTrue(queue.isEmpty());
+        assertEquals(0L, limits.getMetrics().get("queuedMessages"));
+        assertEquals(0L, limits.getMetrics().get("queuedBytes"));
+    }
+
+    @Test
+    void unPaqueteSoloSiempreCabe() {
+        OutboundLimits limits = limits(10, 1000, "drop");
+        OutboundQueue<String> queue = new OutboundQueue<>(limits);
+        assertEquals(OutboundQueue.Result.QUEUED, queue.offer("audio", 5000, ActionType.AUDIO_DOWNLOAD_DATA));
+        assertEquals(OutboundQueue.Result.DROPPED, queue.offer("otro", 10, ActionType.USER_PRESENCE_DELTA));
+    }
+
+    @Test
+    void conDropSeDescartaElCambioDePresenciaNuevo() {
+        OutboundLimits limits = limits(2, 1000, "drop");
+        OutboundQueue<String> queue = new OutboundQueue<>(limits);
+        queue.offer("a", 10, ActionType.USER_PRESENCE_DELTA);
+        queue.offer("b", 10, ActionType.USER_PRESENCE_DELTA);
+        assertEquals(OutboundQueue.Result.DROPPED, queue.offer("c", 10, ActionType.USER_PRESENCE_DELTA));
+        assertEquals(1L, limits.getMetrics().get("dropped"));
+        assertEquals("a", queue.poll());
+        assertEquals("b", queue.poll());
+        assertNull(queue.poll());
+    }
+
+    @Test
+    void lasRespuestasYElAudioNuncaSeDescartanEnSilencio() {
+        for (String policy : new String[] {"drop", "coalesce"}) {
+            for (ActionType action : new ActionType[] {ActionType.NEW_MESSAGE, ActionType.MESSAGE_HISTORY,
+                    ActionType.AUDIO_UPLOAD_STATUS, ActionType.AUDIO_DOWNLOAD_DATA, ActionType.USER_LIST_UPDATE}) {
+                OutboundLimits limits = limits(1, 1000, policy);
+                OutboundQueue<String> queue = new OutboundQueue<>(limits);
+                queue.offer("a", 10, ActionType.NEW_MESSAGE);
+                assertEquals(OutboundQueue.Result.OVERFLOW, queue.offer("b", 10, action), policy + " " + action);
+                assertEquals(0L, limits.getMetrics().get("dropped"));
+                assertEquals(1L, limits.getMetrics().get("slowConsumersDisconnected"));
+            }
+        }
+    }
+
+    @Test
+    void conDisconnectSeExpulsaALaSesion() {
+        OutboundLimits limits = limits(10, 100, "disconnect");
+        OutboundQueue<String> queue = new OutboundQueue<>(limits);
+        queue.offer("a", 60, ActionType.NEW_MESSAGE);
+        assertEquals(OutboundQueue.Result.OVERFLOW, queue.offer("b", 60, ActionType.NEW_MESSAGE));
+        // Una vez expulsada no vuelve a encolar ni a contar
+        assertEquals(OutboundQueue.Result.OVERFLOW, queue.offer("c", 1, ActionType.NEW_MESSAGE));
+        assertEquals(1L, limits.getMetrics().get("slowConsumersDisconnected"));
+    }
+
+    @Test
+    void laListaCompletaReemplazaALasPendientes() {
+        OutboundLimits limits = limits(10, 1000, "coalesce");
+        OutboundQueue<String> queue = new OutboundQueue<>(limits);
+        queue.offer("lista-1", 10, ActionType.USER_LIST_UPDATE);
+        queue.offer("mensaje", 10, ActionType.NEW_MESSAGE);
+        queue.offer("delta", 10, ActionType.USER_PRESENCE_DELTA);
+        queue.offer("canales-1", 10, ActionType.CHANNEL_LIST_UPDATE);
+        assertEquals(OutboundQueue.Result.QUEUED, queue.offer("lista-2", 10, ActionType.USER_LIST_UPDATE));
+
+        assertEquals(2L, limits.getMetrics().get("coalesced"));
+        assertEquals("mensaje", queue.poll());
+        assertEquals("canales-1", queue.poll());
+        assertEquals("lista-2", queue.poll());
+        assertNull(queue.poll());
+        assertEquals(0L, limits.getMetrics().get("queuedBytes"));
+    }
+
+    @Test
+    void coalescerHaceSitioEnUnaColaLlena() {
+        OutboundLimits limits = limits(2, 1000, "coalesce");
+        OutboundQueue<String> queue = new OutboundQueue<>(limits);
+        queue.offer("mensaje", 10, ActionType.NEW_MESSAGE);
+        queue.offer("lista-1", 10, ActionType.USER_LIST_UPDATE);
+        assertEquals(OutboundQueue.Result.QUEUED, queue.offer("lista-2", 10, ActionType.USER_LIST_UPDATE));
+        assertEquals("mensaje", queue.poll());
+        assertEquals("lista-2", queue.poll());
+    }
+
+    @Test
+    void vaciarLiberaLasMetricas() {
+        OutboundLimits limits = limits(10, 1000, "coalesce");
+        OutboundQueue<String> queue = new OutboundQueue<>(limits);
+        queue.offer("a", 100, ActionType.NEW_MESSAGE);
+        queue.offer("b", 100, ActionType.NEW_MESSAGE);
+        queue.clear();
+        assertTrue(queue.isEmpty());
+        assertEquals(0L, limits.getMetrics().get("queuedMessages"));
+        assertEquals(0L, limits.getMetrics().get("queuedBytes"));
+    }
+
+    static OutboundLimits limits(int maxMessages, long maxBytes, String policy) {
+        OutboundLimits limits = new OutboundLimits();
+        ReflectionTestUtils.setField(limits, "maxMessages", maxMessages);
+        ReflectionTestUtils.setField(limits, "maxBytes", maxBytes);
+        ReflectionTestUtils.setField(limits, "policyName", policy);
+        limits.init();
+        return limits;
+    }
+}
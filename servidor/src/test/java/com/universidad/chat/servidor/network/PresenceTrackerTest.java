@@ -0,0 +1,141 @@
+package com.universidad.chat.servidor.network;
+
+import com.universidad.chat.comun.dto.ActionType;
+import com.universidad.chat.comun.dto.Packet;
+import com.universidad.chat.comun.dto.PresenceDeltaDTO;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.mockito.ArgumentCaptor;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.ArgumentMatchers.argThat;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.doNothing;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.spy;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+
+class PresenceTrackerTest {
+
+    private static final String SERVIDOR = "10.0.0.2:5001";
+
+    private ServerRegistry serverRegistry;
+    private TCPServer tcpServer;
+    private PresenceTracker tracker;
+
+    @BeforeEach
+    void setUp() {
+        // Registro real (caché de usuarios remotos) sin enlaces: lo que se envía solo se comprueba
+        serverRegistry = spy(new ServerRegistry());
+        doNothing().when(serverRegistry).sendToServer(anyString(), any());
+        doNothing().when(serverRegistry).broadcastToFederation(any());
+        tcpServer = mock(TCPServer.class);
+
+        tracker = new PresenceTracker();
+        ReflectionTestUtils.setField(tracker, "serverRegistry", serverRegistry);
+        ReflectionTestUtils.setField(tracker, "coalesceMs", 0L); // Sin ventana: cada cambio se envía en el acto
+        tracker.setTCPServer(tcpServer);
+    }
+
+    @Test
+    void deltaSinInstantaneaPreviaPideResyncUnaSolaVez() {
+        tracker.onRemoteDelta(SERVIDOR, delta(3, List.of("ana"), List.of()));
+        tracker.onRemoteDelta(SERVIDOR, delta(4, List.of("luis"), List.of()));
+
+        verify(serverRegistry, times(1)).sendToServer(eq(SERVIDOR), argThat(p -> p.getAction() == ActionType.PRESENCE_RESYNC));
+        assertTrue(serverRegistry.getRemoteUsers(SERVIDOR).isEmpty());
+        assertEquals(2L, tracker.getMetrics().get("gapsDetected"));
+        verify(tcpServer, never()).broadcastPresence(any(), any());
+    }
+
+    @Test
+    void deltasConsecutivosSeAplicanYLosRepetidosSeIgnoran() {
+        tracker.onRemoteDelta(SERVIDOR, snapshot(5, List.of("ana")));
+        tracker.onRemoteDelta(SERVIDOR, delta(6, List.of("luis"), List.of()));
+        tracker.onRemoteDelta(SERVIDOR, delta(6, List.of("eva"), List.of()));
+        tracker.onRemoteDelta(SERVIDOR, delta(4, List.of(), List.of("ana")));
+
+        assertEquals(List.of("ana", "luis"), serverRegistry.getRemoteUsers(SERVIDOR));
+        assertEquals(1L, tracker.getMetrics().get("serverDeltasApplied"));
+        assertEquals(0L, tracker.getMetrics().get("gapsDetected"));
+        verify(serverRegistry, never()).sendToServer(anyString(), any());
+    }
+
+    @Test
+    void saltoDeSeqPideInstantaneaYEsperaHastaRecibirla() {
+        tracker.onRemoteDelta(SERVIDOR, snapshot(5, List.of("ana")));
+        tracker.onRemoteDelta(SERVIDOR, delta(7, List.of("luis"), List.of()));
+        tracker.onRemoteDelta(SERVIDOR, delta(8, List.of("eva"), List.of()));
+
+        verify(serverRegistry, times(1)).sendToServer(eq(SERVIDOR), argThat(p -> p.getAction() == ActionType.PRESENCE_RESYNC));
+        assertEquals(List.of("ana"), serverRegistry.getRemoteUsers(SERVIDOR));
+
+        // La instantánea sustituye la lista y continúa desde su seq
+        tracker.onRemoteDelta(SERVIDOR, snapshot(8, List.of("ana", "luis", "eva")));
+        tracker.onRemoteDelta(SERVIDOR, delta(9, List.of(), List.of("ana")));
+        assertEquals(List.of("luis", "eva"), serverRegistry.getRemoteUsers(SERVIDOR));
+
+        // Un salto posterior vuelve a pedir instantánea
+        tracker.onRemoteDelta(SERVIDOR, delta(11, List.of("ana"), List.of()));
+        verify(serverRegistry, times(2)).sendToServer(eq(SERVIDOR), argThat(p -> p.getAction() == ActionType.PRESENCE_RESYNC));
+    }
+
+    @Test
+    void trasDesconectarseElServidorElSiguienteDeltaEsUnSalto() {
+        tracker.onRemoteDelta(SERVIDOR, snapshot(5, List.of("ana")));
+        tracker.onServerGone(SERVIDOR, serverRegistry.getRemoteUsers(SERVIDOR));
+        tracker.onRemoteDelta(SERVIDOR, delta(6, List.of("luis"), List.of()));
+
+        verify(serverRegistry, times(1)).sendToServer(eq(SERVIDOR), argThat(p -> p.getAction() == ActionType.PRESENCE_RESYNC));
+    }
+
+    @Test
+    void losClientesRecibenDeltasNumeradosSinSaltos() {
+        tracker.onRemoteDelta(SERVIDOR, snapshot(5, List.of("ana")));
+        tracker.onRemoteDelta(SERVIDOR, delta(6, List.of("luis"), List.of("ana")));
+        // Un delta descartado por salto no genera nada para los clientes
+        tracker.onRemoteDelta(SERVIDOR, delta(9, List.of("eva"), List.of()));
+
+        ArgumentCaptor<Packet> enviados = ArgumentCaptor.forClass(Packet.class);
+        @SuppressWarnings("unchecked")
+        ArgumentCaptor<List<String>> listas = ArgumentCaptor.forClass(List.class);
+        verify(tcpServer, times(2)).broadcastPresence(enviados.capture(), listas.capture());
+        List<Packet> packets = enviados.getAllValues();
+        // La lista completa para los clientes antiguos va con cada delta
+        assertEquals(List.of(List.of("ana"), List.of("luis")), listas.getAllValues());
+
+        PresenceDeltaDTO primero = (PresenceDeltaDTO) packets.get(0).getPayload();
+        assertEquals(ActionType.USER_PRESENCE_DELTA, packets.get(0).getAction());
+        assertEquals(1, primero.getSeq());
+        assertEquals(List.of("ana"), primero.getJoined());
+        assertFalse(primero.isSnapshot());
+
+        PresenceDeltaDTO segundo = (PresenceDeltaDTO) packets.get(1).getPayload();
+        assertEquals(2, segundo.getSeq());
+        assertEquals(List.of("luis"), segundo.getJoined());
+        assertEquals(List.of("ana"), segundo.getLeft());
+    }
+
+    private static PresenceDeltaDTO delta(long seq, List<String> joined, List<String> left) {
+        PresenceDeltaDTO delta = new PresenceDeltaDTO();
+        delta.setSeq(seq);
+        delta.setJoined(joined);
+        delta.setLeft(left);
+        return delta;
+    }
+
+    private static PresenceDeltaDTO snapshot(long seq, List<String> usernames) {
+        PresenceDeltaDTO snapshot = delta(seq, usernames, List.of());
+        snapshot.setSnapshot(true);
+        return snapshot;
+    }
+}
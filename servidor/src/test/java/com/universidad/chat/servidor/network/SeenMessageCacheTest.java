@@ -0,0 +1,68 @@
+package com.universidad.chat.servidor.network;
+
+import com.universidad.chat.comun.dto.FederatedMessageDTO;
+import org.junit.jupiter.api.Test;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class SeenMessageCacheTest {
+
+    private static final String ORIGEN = "10.0.0.2:5001";
+
+    @Test
+    void lasRepeticionesSeDescartan() {
+        SeenMessageCache cache = cache(100, 60_000);
+        assertTrue(cache.accept(ORIGEN, message("a:1:1")));
+        assertFalse(cache.accept(ORIGEN, message("a:1:1")));
+        assertFalse(cache.accept("10.0.0.3:5001", message("a:1:1")));
+        assertTrue(cache.accept(ORIGEN, message("a:1:2")));
+        assertEquals(2L, cache.getMetrics().get("duplicatesDropped"));
+        assertEquals(2L, cache.getMetrics().get("accepted"));
+    }
+
+    @Test
+    void sinIdSeAceptaSiempre() {
+        SeenMessageCache cache = cache(100, 60_000);
+        assertTrue(cache.accept(ORIGEN, message(null)));
+        assertTrue(cache.accept(ORIGEN, message(null)));
+        assertEquals(2L, cache.getMetrics().get("withoutId"));
+        assertEquals(0, cache.getMetrics().get("cached"));
+    }
+
+    @Test
+    void elTamanoMaximoExpulsaLosMasAntiguos() {
+        SeenMessageCache cache = cache(2, 60_000);
+        assertTrue(cache.accept(ORIGEN, message("a:1:1")));
+        assertTrue(cache.accept(ORIGEN, message("a:1:2")));
+        assertTrue(cache.accept(ORIGEN, message("a:1:3")));
+        assertEquals(2, cache.getMetrics().get("cached"));
+        // El primero ya salió de la caché; el último sigue
+        assertFalse(cache.accept(ORIGEN, message("a:1:3")));
+        assertTrue(cache.accept(ORIGEN, message("a:1:1")));
+    }
+
+    @Test
+    void losIdsCaducanAlPasarLaVentana() throws InterruptedException {
+        SeenMessageCache cache = cache(100, 20);
+        assertTrue(cache.accept(ORIGEN, message("a:1:1")));
+        Thread.sleep(50);
+        assertTrue(cache.accept(ORIGEN, message("a:1:1")));
+        assertEquals(1, cache.getMetrics().get("cached"));
+    }
+
+    private static SeenMessageCache cache(int maxEntries, long windowMs) {
+        SeenMessageCache cache = new SeenMessageCache();
+        ReflectionTestUtils.setField(cache, "maxEntries", maxEntries);
+        ReflectionTestUtils.setField(cache, "windowMs", windowMs);
+        return cache;
+    }
+
+    private static FederatedMessageDTO message(String id) {
+        FederatedMessageDTO f = new FederatedMessageDTO();
+        f.setMessageId(id);
+        return f;
+    }
+}
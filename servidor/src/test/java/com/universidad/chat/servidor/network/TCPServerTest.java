@@ -0,0 +1,106 @@
+package com.universidad.chat.servidor.network;
+
+import com.universidad.chat.comun.dto.ActionType;
+import com.universidad.chat.comun.dto.MessageDTO;
+import com.universidad.chat.comun.dto.Packet;
+import com.universidad.chat.comun.dto.PresenceDeltaDTO;
+import com.universidad.chat.comun.dto.UserDTO;
+import com.universidad.chat.comun.protocol.BinaryPacketCodec;
+import com.universidad.chat.comun.protocol.EncodedPacket;
+import org.junit.jupiter.api.Test;
+import org.mockito.ArgumentCaptor;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+class TCPServerTest {
+
+    @Test
+    void losClientesAntiguosRecibenLaListaCompletaEnLugarDelDelta() {
+        TCPServer tcpServer = new TCPServer();
+        ClientHandler nuevo = mock(ClientHandler.class);
+        when(nuevo.getCodec()).thenReturn(BinaryPacketCodec.INSTANCE);
+        ClientHandler antiguo = mock(ClientHandler.class);
+        when(antiguo.getCodec()).thenReturn(null);
+        sessions(tcpServer).put("ana", nuevo);
+        sessions(tcpServer).put("luis", antiguo);
+
+        PresenceDeltaDTO delta = new PresenceDeltaDTO();
+        delta.setSeq(3);
+        delta.setJoined(List.of("eva"));
+        delta.setLeft(List.of());
+        tcpServer.broadcastPresence(new Packet(ActionType.USER_PRESENCE_DELTA, delta), List.of("ana", "luis", "eva"));
+
+        assertEquals(new Packet(ActionType.USER_PRESENCE_DELTA, delta), enviado(nuevo));
+        assertEquals(new Packet(ActionType.USER_LIST_UPDATE, List.of("ana", "luis", "eva")), enviado(antiguo));
+    }
+
+    @Test
+    void unSegundoLoginCierraLaSesionAnterior() {
+        TCPServer tcpServer = new TCPServer();
+        ReflectionTestUtils.setField(tcpServer, "presenceTracker", mock(PresenceTracker.class));
+        ClientHandler anterior = autenticado("ana");
+        ClientHandler nueva = autenticado("ana");
+
+        tcpServer.addClient(anterior);
+        tcpServer.addClient(nueva);
+
+        verify(anterior).disconnect();
+        verify(nueva, never()).disconnect();
+        assertSame(nueva, tcpServer.findClientByUsername("ana"));
+        assertEquals(1, tcpServer.getConnectedClientCount());
+
+        // La desconexión de la sesión cerrada no se lleva a la nueva
+        tcpServer.removeClient(anterior);
+        assertSame(nueva, tcpServer.findClientByUsername("ana"));
+    }
+
+    @Test
+    void laTranscripcionNoSeEnviaALosClientesAntiguos() {
+        TCPServer tcpServer = new TCPServer();
+        ClientHandler nuevo = mock(ClientHandler.class);
+        when(nuevo.getCodec()).thenReturn(BinaryPacketCodec.INSTANCE);
+        ClientHandler antiguo = mock(ClientHandler.class);
+        when(antiguo.getCodec()).thenReturn(null);
+        sessions(tcpServer).put("ana", nuevo);
+        sessions(tcpServer).put("luis", antiguo);
+
+        MessageDTO update = new MessageDTO();
+        update.setSender("ana");
+        update.setRecipient("luis");
+        update.setAudioFileName("audio.wav");
+        update.setContent("hola");
+        tcpServer.deliverTranscriptionToLocalClients(update);
+
+        assertEquals(new Packet(ActionType.TRANSCRIPTION_READY, update), enviado(nuevo));
+        verify(antiguo, never()).sendEncoded(any());
+    }
+
+    private static ClientHandler autenticado(String username) {
+        UserDTO user = new UserDTO();
+        user.setUsername(username);
+        ClientHandler client = mock(ClientHandler.class);
+        when(client.getAuthenticatedUser()).thenReturn(user);
+        return client;
+    }
+
+    private static Packet enviado(ClientHandler client) {
+        ArgumentCaptor<EncodedPacket> captor = ArgumentCaptor.forClass(EncodedPacket.class);
+        verify(client).sendEncoded(captor.capture());
+        return captor.getValue().getPacket();
+    }
+
+    @SuppressWarnings("unchecked")
+    private static Map<String, ClientHandler> sessions(TCPServer tcpServer) {
+        return (Map<String, ClientHandler>) ReflectionTestUtils.getField(tcpServer, "sessions");
+    }
+}
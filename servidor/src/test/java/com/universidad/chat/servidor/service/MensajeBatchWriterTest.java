@@ -0,0 +1,100 @@
+package com.universidad.chat.servidor.service;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.dao.DataIntegrityViolationException;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.test.util.ReflectionTestUtils;
+import org.springframework.transaction.PlatformTransactionManager;
+import org.springframework.transaction.support.SimpleTransactionStatus;
+
+import java.time.LocalDateTime;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyList;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.ArgumentMatchers.argThat;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+class MensajeBatchWriterTest {
+
+    private JdbcTemplate jdbcTemplate;
+    private MensajeBatchWriter writer;
+
+    @BeforeEach
+    void setUp() {
+        jdbcTemplate = mock(JdbcTemplate.class);
+        when(jdbcTemplate.queryForList(anyString(), eq(Long.class), any(Object[].class))).thenReturn(List.of(1L));
+        PlatformTransactionManager transactionManager = mock(PlatformTransactionManager.class);
+        when(transactionManager.getTransaction(any())).thenReturn(new SimpleTransactionStatus());
+
+        writer = new MensajeBatchWriter();
+        ReflectionTestUtils.setField(writer, "jdbcTemplate", jdbcTemplate);
+        ReflectionTestUtils.setField(writer, "transactionManager", transactionManager);
+        ReflectionTestUtils.setField(writer, "queueCapacity", 100);
+        ReflectionTestUtils.setField(writer, "batchSize", 10);
+        // Ventana amplia: los tres mensajes entran en el mismo lote
+        ReflectionTestUtils.setField(writer, "flushIntervalMs", 500L);
+    }
+
+    @AfterEach
+    void tearDown() {
+        writer.shutdown();
+    }
+
+    @Test
+    void unaFilaMalaNoTumbaAlRestoDelLote() throws Exception {
+        when(jdbcTemplate.batchUpdate(anyString(), anyList(), any(int[].class)))
+                .thenThrow(new DataIntegrityViolationException("fila demasiado larga"));
+        when(jdbcTemplate.update(anyString(), argThat((Object[] fila) -> "mala".equals(fila[3])), any(int[].class)))
+                .thenThrow(new DataIntegrityViolationException("fila demasiado larga"));
+        writer.start();
+
+        MensajeBatchWriter.MensajePendiente uno = writer.encolar(mensaje("uno"));
+        MensajeBatchWriter.MensajePendiente mala = writer.encolar(mensaje("mala"));
+        MensajeBatchWriter.MensajePendiente dos = writer.encolar(mensaje("dos"));
+
+        assertTrue(uno.getResultado().get(5, TimeUnit.SECONDS));
+        assertTrue(dos.getResultado().get(5, TimeUnit.SECONDS));
+        assertThrows(ExecutionException.class, () -> mala.getResultado().get(5, TimeUnit.SECONDS));
+
+        // El lote se intenta dos veces y después fila a fila
+        verify(jdbcTemplate, times(2)).batchUpdate(anyString(), anyList(), any(int[].class));
+        verify(jdbcTemplate, times(3)).update(anyString(), any(Object[].class), any(int[].class));
+        assertEquals(2L, writer.getMetrics().get("saved"));
+        assertEquals(1L, writer.getMetrics().get("failed"));
+        assertEquals(1L, writer.getMetrics().get("batchesSplit"));
+    }
+
+    @Test
+    void unFalloPasajeroSeResuelveReintentandoElLote() throws Exception {
+        when(jdbcTemplate.batchUpdate(anyString(), anyList(), any(int[].class)))
+                .thenThrow(new DataIntegrityViolationException("conexión perdida"))
+                .thenReturn(new int[]{1, 1});
+        writer.start();
+
+        MensajeBatchWriter.MensajePendiente uno = writer.encolar(mensaje("uno"));
+        MensajeBatchWriter.MensajePendiente dos = writer.encolar(mensaje("dos"));
+
+        assertTrue(uno.getResultado().get(5, TimeUnit.SECONDS));
+        assertTrue(dos.getResultado().get(5, TimeUnit.SECONDS));
+        verify(jdbcTemplate, times(0)).update(anyString(), any(Object[].class), any(int[].class));
+        assertEquals(2L, writer.getMetrics().get("saved"));
+        assertEquals(0L, writer.getMetrics().get("batchesSplit"));
+    }
+
+    private static MensajeBatchWriter.MensajePendiente mensaje(String texto) {
+        return new MensajeBatchWriter.MensajePendiente("ana", "luis", texto, null, LocalDateTime.now());
+    }
+}